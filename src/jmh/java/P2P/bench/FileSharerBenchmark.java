@@ -0,0 +1,102 @@
+package P2P.bench;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import P2P.Service.FileSharer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/* Share registry at large share counts.
+   Lookups run on a sharer that already holds shareCount live shares. offerFile grows the map, so it is measured in
+   batches of 10 000 offers on a freshly filled sharer every iteration, the score is the time of one batch.
+   9-digit tokens keep token collisions (and the retries they cost) out of the numbers.
+   lookupLinearScan is the old walk over every (share, token) entry, kept only as the "before" number for lookupHit. */
+@State(Scope.Benchmark)
+@Fork(1)
+public class FileSharerBenchmark {
+    private static final int OFFER_BATCH = 10_000;
+
+    @Param({"10000", "100000", "1000000"})
+    public int shareCount;
+
+    private FileSharer sharer;
+    private String[] tokens;
+    private ConcurrentHashMap<Integer, String> oldTokensByPort;
+
+    @Setup(Level.Iteration)
+    public void fill() {
+        sharer = new FileSharer(9);
+        tokens = new String[shareCount];
+        oldTokensByPort = new ConcurrentHashMap<>();
+        for (int i = 0; i < shareCount; i++) {
+            int shareId = sharer.offerFile("/tmp/SkyLink-uploads/bench-" + i + ".pdf", "127.0.0.1");
+            tokens[i] = sharer.getToken(shareId);
+            oldTokensByPort.put(shareId, tokens[i]);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @Warmup(iterations = 3, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    public Integer lookupHit() {
+        return sharer.getShareIdByToken(tokens[ThreadLocalRandom.current().nextInt(tokens.length)]);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @Warmup(iterations = 3, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    public Integer lookupMiss() {
+        // 8 digits never match a 9-digit token, like a client guessing
+        return sharer.getShareIdByToken(String.valueOf(10_000_000 + ThreadLocalRandom.current().nextInt(89_999_999)));
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @Warmup(iterations = 3, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    @Threads(4)
+    public Integer lookupHitContended() {
+        return sharer.getShareIdByToken(tokens[ThreadLocalRandom.current().nextInt(tokens.length)]);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 3, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    public Integer lookupLinearScan() {
+        String token = tokens[ThreadLocalRandom.current().nextInt(tokens.length)];
+        for (Map.Entry<Integer, String> entry : oldTokensByPort.entrySet()) {
+            if (entry.getValue().equals(token)) return entry.getKey();
+        }
+        return null;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 3, batchSize = OFFER_BATCH)
+    @Measurement(iterations = 5, batchSize = OFFER_BATCH)
+    public int offerFile() {
+        return sharer.offerFile("/tmp/SkyLink-uploads/bench-new.pdf", "127.0.0.1");
+    }
+}
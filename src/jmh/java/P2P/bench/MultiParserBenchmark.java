@@ -0,0 +1,98 @@
+package P2P.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import P2P.Utils.MultiParser;
+import P2P.Utils.MultipartStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/* Multipart parsing, both the in-memory MultiParser and the streaming MultipartStream that /upload uses.
+     size   -> bytes of the file part
+     layout -> fileFirst:  the file is the only part
+               fileLast:   three text fields come before the file, so the parser has to walk past them
+               nearMiss:   the file is full of "\r\n--" + almost-the-boundary, the worst case for the boundary search */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MultiParserBenchmark {
+    private static final String BOUNDARY = "----WebKitFormBoundaryQ2wE3rT4yU5iO6pA";
+
+    @Param({"1024", "65536", "1048576", "16777216"})
+    public int size;
+
+    @Param({"fileFirst", "fileLast", "nearMiss"})
+    public String layout;
+
+    private byte[] payload;
+
+    @Setup
+    public void setup() throws IOException {
+        byte[] content = new byte[size];
+        if (layout.equals("nearMiss")) {
+            // every pattern copy is one byte short of the real delimiter
+            byte[] nearMiss = ("\r\n--" + BOUNDARY.substring(0, BOUNDARY.length() - 1) + "X").getBytes(StandardCharsets.US_ASCII);
+            for (int i = 0; i < size; i++) {
+                content[i] = nearMiss[i % nearMiss.length];
+            }
+        } else {
+            new Random(42).nextBytes(content);
+        }
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream(size + 1024);
+        if (layout.equals("fileLast")) {
+            for (String field : new String[]{"title", "description", "tags"}) {
+                body.write(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"" + field + "\"\r\n\r\n"
+                        + "some value for " + field + "\r\n").getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        body.write(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"file\"; filename=\"bench.pdf\"\r\n"
+                + "Content-Type: application/pdf\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+        body.write(content);
+        body.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.UTF_8));
+        payload = body.toByteArray();
+
+        MultiParser.ParseResult result = new MultiParser(payload, BOUNDARY).parse();
+        if (result == null || !Arrays.equals(result.fileContent, content)) {
+            throw new IllegalStateException("benchmark payload does not parse, fix the setup");
+        }
+    }
+
+    @Benchmark
+    public MultiParser.ParseResult inMemoryParse() {
+        return new MultiParser(payload, BOUNDARY).parse();
+    }
+
+    @Benchmark
+    public long streamingParse() throws IOException {
+        MultipartStream stream = new MultipartStream(new ByteArrayInputStream(payload), BOUNDARY);
+        MultipartStream.PartHeaders part;
+        long fileBytes = 0;
+        while ((part = stream.nextPart()) != null) {
+            if (part.isFile()) {
+                fileBytes += stream.readBodyTo(null, Long.MAX_VALUE);
+            } else {
+                stream.skipBody();
+            }
+        }
+        return fileBytes;
+    }
+}
@@ -0,0 +1,57 @@
+package P2P.bench;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import P2P.Utils.RateLimiter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/* Cost of one rate limit check, the per-IP limiter in front of /upload and /download.
+     oneHotIp      -> every thread hammers the same IP, so all CAS go to one AtomicLong (the worst contention)
+     manyIps       -> requests spread over ipCount addresses, most of them are over the limit
+   Both run with 4 threads, a key costs one CAS so threads only slow each other down on the same IP. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class RateLimiterBenchmark {
+
+    @Param({"1000", "100000"})
+    public int ipCount;
+
+    private RateLimiter limiter;
+    private String[] ips;
+
+    @Setup
+    public void setup() {
+        limiter = new RateLimiter(10, 1, TimeUnit.MINUTES);
+        ips = new String[ipCount];
+        for (int i = 0; i < ipCount; i++) {
+            ips[i] = "10." + (i >> 16 & 0xff) + "." + (i >> 8 & 0xff) + "." + (i & 0xff);
+        }
+    }
+
+    @Benchmark
+    public long oneHotIp() {
+        return limiter.tryAcquire("203.0.113.7");
+    }
+
+    @Benchmark
+    public long manyIps() {
+        return limiter.tryAcquire(ips[ThreadLocalRandom.current().nextInt(ips.length)]);
+    }
+}
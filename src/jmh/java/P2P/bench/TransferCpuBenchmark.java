@@ -0,0 +1,163 @@
+package P2P.bench;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import P2P.Utils.TransferUtils;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/* The CPU the sending side burns to serve a file over a loopback socket:
+     copy     -> the old FileSenderHandler loop (FileInputStream + 4KB byte[] + socket OutputStream)
+     zeroCopy -> TransferUtils.sendFile into a SocketChannel (FileChannel.transferTo / sendfile)
+   The score is the wall time of one 64MB send. The sender thread's own CPU comes as two secondary results, JMH adds
+   them up over all iterations: senderCpuMs / sentGb is the CPU per GB served.
+   A receiver thread drains every connection, so only loopback sits between the two. Like every number here, this
+   one only means something on a quiet machine. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransferCpuBenchmark {
+    private static final int FILE_SIZE = 64 * 1024 * 1024;
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private File file;
+    private ServerSocketChannel server;
+    private Thread receiver;
+    private final BlockingQueue<Long> received = new LinkedBlockingQueue<>();
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class SenderCpu {
+        private long cpuNanos;
+        private long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            cpuNanos = 0;
+            bytes = 0;
+        }
+
+        public double senderCpuMs() {
+            return cpuNanos / 1e6;
+        }
+
+        public double sentGb() {
+            return bytes / (1024.0 * 1024 * 1024);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        file = File.createTempFile("skylink-cpu-bench", ".bin");
+        byte[] block = new byte[1024 * 1024];
+        new Random(1).nextBytes(block);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            for (int written = 0; written < FILE_SIZE; written += block.length) {
+                raf.write(block);
+            }
+        }
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress("127.0.0.1", 0));
+        receiver = new Thread(this::receive, "bench-receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        server.close();
+        file.delete();
+    }
+
+    // one connection after the other, each read to the end, its byte count goes to the sender
+    private void receive() {
+        ByteBuffer sink = ByteBuffer.allocateDirect(256 * 1024);
+        try {
+            while (true) {
+                try (SocketChannel in = server.accept()) {
+                    long total = 0;
+                    int read;
+                    while ((read = in.read(sink)) != -1) {
+                        total += read;
+                        sink.clear();
+                    }
+                    received.add(total);
+                }
+            }
+        } catch (IOException closed) {
+            // the trial is over
+        }
+    }
+
+    @Benchmark
+    public long copy(SenderCpu cpu) throws Exception {
+        long cpuStart = THREADS.getCurrentThreadCpuTime();
+        try (SocketChannel socket = SocketChannel.open(server.getLocalAddress())) {
+            OutputStream out = socket.socket().getOutputStream();
+            try (FileInputStream fis = new FileInputStream(file)) {
+                byte[] buffer = new byte[4096];
+                int read;
+                while ((read = fis.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            }
+            socket.shutdownOutput();
+            cpu.cpuNanos += THREADS.getCurrentThreadCpuTime() - cpuStart;
+            return awaitReceived(cpu);
+        }
+    }
+
+    @Benchmark
+    public long zeroCopy(SenderCpu cpu) throws Exception {
+        long cpuStart = THREADS.getCurrentThreadCpuTime();
+        try (SocketChannel socket = SocketChannel.open(server.getLocalAddress());
+             FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long position = 0;
+            while (position < FILE_SIZE) {
+                position += TransferUtils.sendFile(channel, position, FILE_SIZE - position, socket);
+            }
+            socket.shutdownOutput();
+            cpu.cpuNanos += THREADS.getCurrentThreadCpuTime() - cpuStart;
+            return awaitReceived(cpu);
+        }
+    }
+
+    private long awaitReceived(SenderCpu cpu) throws InterruptedException {
+        long total = received.take();
+        if (total != FILE_SIZE) {
+            throw new IllegalStateException("receiver got a short transfer: " + total);
+        }
+        cpu.bytes += total;
+        return total;
+    }
+}
@@ -0,0 +1,97 @@
+package P2P.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import P2P.Utils.TransferUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/* The copy loops that move file bytes, at different buffer sizes:
+     positionalRead -> TransferUtils.sendFile into an OutputStream, positional FileChannel reads (/download from disk)
+     hotCache       -> TransferUtils.sendBuffer from a direct buffer (/download of a file in the HotFileCache)
+   The sink hands every buffer to a Blackhole, so the score is the cost of reading and looping, not of a socket.
+   The socket side, including zero-copy, is measured by TransferCpuBenchmark. The 64MB file is read once before
+   measuring, so it comes from the page cache. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransferLoopBenchmark {
+    private static final int FILE_SIZE = 64 * 1024 * 1024;
+
+    @Param({"4096", "16384", "65536", "262144", "1048576"})
+    public int bufferSize;
+
+    private File file;
+    private FileChannel channel;
+    private ByteBuffer cached;
+    private OutputStream sink;
+
+    @Setup(Level.Trial)
+    public void setup(Blackhole blackhole) throws IOException {
+        file = File.createTempFile("skylink-transfer-bench", ".bin");
+        byte[] block = new byte[1024 * 1024];
+        new Random(7).nextBytes(block);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            for (int written = 0; written < FILE_SIZE; written += block.length) {
+                raf.write(block);
+            }
+        }
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        sink = new OutputStream() {
+            @Override
+            public void write(int b) {
+                blackhole.consume(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                blackhole.consume(b);
+            }
+        };
+        TransferUtils.sendFile(channel, 0, FILE_SIZE, sink, TransferUtils.DEFAULT_BUFFER_SIZE);
+        cached = ByteBuffer.allocateDirect(FILE_SIZE);
+        while (cached.hasRemaining()) {
+            channel.read(cached, cached.position());
+        }
+        cached.flip();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        channel.close();
+        file.delete();
+    }
+
+    @Benchmark
+    public long positionalRead() throws IOException {
+        return TransferUtils.sendFile(channel, 0, FILE_SIZE, sink, bufferSize);
+    }
+
+    @Benchmark
+    public long hotCache() throws IOException {
+        return TransferUtils.sendBuffer(cached.duplicate(), sink, bufferSize);
+    }
+}
@@ -1,23 +1,34 @@
 package P2P;
 
 import java.io.IOException;
+import java.util.Arrays;
 
+import P2P.Client.DownloadCli;
 import P2P.Controller.FileController;
+import P2P.Service.HttpEngine;
 
 public class App
 {
     public static void main( String[] args )
     {
+        // "download <server-url> <token> ..." runs the client instead of the server, same jar for both sides
+        if (args.length > 0 && args[0].equals("download")) {
+            DownloadCli.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
         try {
             // Get port dynamically (Render provides PORT env var). if we in render or any VPS does not set a port on env , it used the
             // default port which is  8081.
             int port = Integer.parseInt(System.getenv().getOrDefault("PORT", "8081"));
 
+            // which HTTP server runs the API: SKYLINK_HTTP_ENGINE=sun (the JDK's HttpServer, default) or nio
+            HttpEngine.Kind engine = HttpEngine.configuredKind();
+
             // Start the API server
-            FileController fileController = new FileController(port);
+            FileController fileController = new FileController(port, engine);
             fileController.start();
 
-            System.out.println("SkyLink server started on port " + port);
+            System.out.println("SkyLink server started on port " + port + " (" + engine.name().toLowerCase() + " engine)");
 
             // Handle shutdown properly. (this thread runs when jvm is shutting down).
             Runtime.getRuntime().addShutdownHook(new Thread(() -> {
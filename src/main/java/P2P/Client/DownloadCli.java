@@ -0,0 +1,63 @@
+package P2P.Client;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Path;
+
+/* Command line front of SkyLinkClient, runs from the server jar too:
+     java -jar P2P.jar download <server-url> <token> [-o <file or directory>] [-c <connections>] [-s <segment MB>] [-r <attempts>]
+   e.g. java -jar P2P.jar download http://files.example.com:8081 834192 -o ~/Downloads -c 8 */
+public class DownloadCli {
+    private static final String USAGE = "Usage: download <server-url> <token> [-o <file or directory>] [-c <connections>]"
+            + " [-s <segment MB>] [-r <attempts>]";
+
+    public static void main(String[] args) {
+        System.exit(run(args));
+    }
+
+    // the exit code: 0 done, 1 failed, 2 wrong arguments
+    static int run(String[] args) {
+        if (args.length < 2) {
+            System.err.println(USAGE);
+            return 2;
+        }
+        Path target = Path.of(".");
+        int connections = 4;
+        long segmentBytes = 4L * 1024 * 1024;
+        int attempts = 5;
+        try {
+            for (int i = 2; i < args.length; i += 2) {
+                if (i + 1 >= args.length) throw new IllegalArgumentException(args[i] + " needs a value");
+                String value = args[i + 1];
+                switch (args[i]) {
+                    case "-o": target = Path.of(value); break;
+                    case "-c": connections = Integer.parseInt(value); break;
+                    case "-s": segmentBytes = (long) (Double.parseDouble(value) * 1024 * 1024); break;
+                    case "-r": attempts = Integer.parseInt(value); break;
+                    default: throw new IllegalArgumentException("unknown option " + args[i]);
+                }
+            }
+            SkyLinkClient client = new SkyLinkClient(URI.create(args[0]), connections, segmentBytes, attempts);
+            SkyLinkClient.Result result = client.download(args[1], target);
+            double seconds = result.elapsedNanos / 1e9;
+            System.out.printf("%s: %d bytes in %.1f s (%.1f MB/s), %d segments, %d retries, %s%n", result.file,
+                    result.bytes, seconds, result.bytes / 1e6 / Math.max(seconds, 1e-3), result.segments, result.retries,
+                    result.verified ? "SHA-256 verified" : "no checksum from the server, not verified");
+            return 0;
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            return 2;
+        } catch (IOException e) {
+            System.err.println("Download failed: " + e.getMessage());
+            return 1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("Download interrupted");
+            return 1;
+        }
+    }
+
+    private DownloadCli() {
+    }
+}
@@ -0,0 +1,357 @@
+package P2P.Client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import P2P.Utils.Log;
+
+/* Client side of SkyLink: downloads a share by its token over several connections at once.
+   One TCP stream over a long, lossy path never gets its window wide enough to fill the link, N streams get about N
+   times as far. The file is cut into byte-range segments that `connections` workers fetch in parallel, each one
+   written at its own offset of the output file (positional writes, no reassembly buffer). A segment that fails is
+   retried on its own, from the byte it got to. If-Range with the ETag makes sure every piece is of the same file
+   (and lets the server charge its per-IP rate limit once, for the first), and at the end the result is checked
+   against the SHA-256 the server sends in Repr-Digest.
+   The download goes to <file>.part first and only gets its name once it is complete and verified.
+
+   Shares that cannot be fetched in ranges (a ZIP bundle, a compressed file) come down over one connection,
+   the same as in a browser. */
+public class SkyLinkClient {
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+)");
+    private static final Pattern FILE_NAME = Pattern.compile("filename=\"([^\"]+)\"");
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long MAX_RETRY_WAIT_MS = 30_000;
+
+    private final URI server;
+    private final int connections;
+    private final long segmentBytes;
+    private final int maxAttempts;
+    private final HttpClient http;
+
+    // what a download ended with
+    public static final class Result {
+        public final Path file;
+        public final long bytes;
+        public final boolean verified;  // the SHA-256 matched, false when the server sent none to compare with
+        public final int segments;
+        public final int retries;
+        public final long elapsedNanos;
+
+        Result(Path file, long bytes, boolean verified, int segments, int retries, long elapsedNanos) {
+            this.file = file;
+            this.bytes = bytes;
+            this.verified = verified;
+            this.segments = segments;
+            this.retries = retries;
+            this.elapsedNanos = elapsedNanos;
+        }
+    }
+
+    // the server answered with something a retry will not change (bad token, share gone, file changed)
+    public static class DownloadException extends IOException {
+        private static final long serialVersionUID = 1L;
+        public final int status;
+
+        DownloadException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    // server is the API's base URL, e.g. http://host:8081
+    public SkyLinkClient(URI server, int connections, long segmentBytes, int maxAttempts) {
+        if (connections < 1 || segmentBytes < 1 || maxAttempts < 1) {
+            throw new IllegalArgumentException("connections, segment size and attempts must be positive");
+        }
+        this.server = server;
+        this.connections = connections;
+        this.segmentBytes = segmentBytes;
+        this.maxAttempts = maxAttempts;
+        // HTTP/1.1: one request per connection at a time, so N requests in flight are N TCP streams
+        this.http = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+    }
+
+    /* Downloads the share of token to target: a file, or a directory to put it in under the name the uploader gave it.
+       Throws DownloadException when the server refuses it, IOException when a segment failed maxAttempts times or
+       the checksum does not match (nothing is left behind then). */
+    public Result download(String token, Path target) throws IOException, InterruptedException {
+        long startNanos = System.nanoTime();
+        URI uri = server.resolve("/download?token=" + URLEncoder.encode(token, StandardCharsets.UTF_8));
+        AtomicInteger retries = new AtomicInteger();
+
+        // the first segment is also the probe: length, validator, digest and file name come with it
+        Segment first = new Segment(0, segmentBytes);
+        HttpResponse<InputStream> probe = request(uri, first, null, retries);
+        HttpHeaders headers = probe.headers();
+        String fileName = headers.firstValue("Content-Disposition").map(FILE_NAME::matcher)
+                .filter(Matcher::find).map(match -> Path.of(match.group(1)).getFileName().toString()).orElse(token);
+        Path output = Files.isDirectory(target) ? target.resolve(fileName) : target;
+        Path part = output.resolveSibling(output.getFileName() + ".part");
+        byte[] digest = expectedDigest(headers);
+        long total;
+        int segments;
+        boolean complete = false;
+
+        try {
+            try (RandomAccessFile file = new RandomAccessFile(part.toFile(), "rw")) {
+                file.setLength(0);
+                FileChannel channel = file.getChannel();
+                if (probe.statusCode() == 200) {
+                    // no ranges for this share: the whole thing over this one connection
+                    total = headers.firstValueAsLong("Content-Length").orElse(-1);
+                    first = new Segment(0, Long.MAX_VALUE);
+                    receive(probe, channel, first);
+                    if (total >= 0 && first.received != total) throw new IOException("Connection closed before the end of the file");
+                    total = first.received;
+                    segments = 1;
+                } else {
+                    total = totalLength(probe, 0);
+                    first.end = Math.min(first.end, total);
+                    file.setLength(total); // one allocation up front, the workers fill it in any order
+                    String entityTag = headers.firstValue("ETag").orElse(null);
+                    List<Segment> plan = new ArrayList<>();
+                    plan.add(first);
+                    for (long start = first.end; start < total; start += segmentBytes) {
+                        plan.add(new Segment(start, Math.min(start + segmentBytes, total)));
+                    }
+                    segments = plan.size();
+                    fetchAll(uri, plan, probe, channel, entityTag, retries);
+                }
+                channel.force(false);
+                if (digest != null && !MessageDigest.isEqual(digest, sha256(channel, total))) {
+                    throw new IOException("Checksum mismatch: the downloaded file is not what the server has");
+                }
+            }
+            Files.move(part, output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            complete = true;
+        } finally {
+            if (!complete) {
+                probe.body().close();
+                Files.deleteIfExists(part);
+            }
+        }
+        return new Result(output, total, digest != null, segments, retries.get(), System.nanoTime() - startNanos);
+    }
+
+    // bytes [start, end) of the file, received counts what already is on disk so a retry picks up from there
+    private static final class Segment {
+        final long start;
+        long end;
+        long received;
+
+        Segment(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        long next() {
+            return start + received;
+        }
+
+        boolean complete() {
+            return next() >= end;
+        }
+    }
+
+    /* The workers: the first segment finishes on the probe's response, the others are spread over `connections`
+       threads. The first segment that gives up cancels the rest. */
+    private void fetchAll(URI uri, List<Segment> plan, HttpResponse<InputStream> probe, FileChannel channel,
+                          String entityTag, AtomicInteger retries) throws IOException, InterruptedException {
+        ExecutorService workers = Executors.newFixedThreadPool(connections, runnable -> {
+            Thread thread = new Thread(runnable, "skylink-segment");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<?>> pending = new ArrayList<>();
+            pending.add(workers.submit(() -> {
+                fetch(uri, plan.get(0), probe, channel, entityTag, retries);
+                return null;
+            }));
+            for (Segment segment : plan.subList(1, plan.size())) {
+                pending.add(workers.submit(() -> {
+                    fetch(uri, segment, null, channel, entityTag, retries);
+                    return null;
+                }));
+            }
+            for (Future<?> future : pending) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) throw (IOException) cause;
+                    if (cause instanceof InterruptedException) throw (InterruptedException) cause;
+                    throw new IOException("Segment failed", cause);
+                }
+            }
+        } finally {
+            workers.shutdownNow();
+            workers.awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    // one segment until it is complete, a broken transfer is asked for again from where it stopped
+    private void fetch(URI uri, Segment segment, HttpResponse<InputStream> response, FileChannel channel,
+                       String entityTag, AtomicInteger retries) throws IOException, InterruptedException {
+        int attempt = 1;
+        while (!segment.complete()) {
+            try {
+                if (response == null) response = request(uri, segment, entityTag, retries);
+                if (response.statusCode() != 206) {
+                    throw new DownloadException(response.statusCode(), "The share changed during the download");
+                }
+                if (totalLength(response, segment.next()) < segment.end) {
+                    throw new DownloadException(response.statusCode(), "The share changed during the download");
+                }
+                receive(response, channel, segment);
+                if (!segment.complete()) throw new IOException("Connection closed in the middle of a segment");
+            } catch (DownloadException e) {
+                throw e;
+            } catch (IOException e) {
+                if (++attempt > maxAttempts) {
+                    throw new IOException("Segment at " + segment.start + " failed " + maxAttempts + " times: " + e.getMessage(), e);
+                }
+                retries.incrementAndGet();
+                Log.warn("Segment failed, retrying", "offset", segment.next(), "attempt", attempt, "error", e.getMessage());
+                Thread.sleep(backoff(attempt));
+            } finally {
+                if (response != null) response.body().close();
+                response = null;
+            }
+        }
+    }
+
+    /* One GET for what is left of segment. 429 and 503 (rate limit, shed load) are waited out as the server asks in
+       Retry-After, other statuses are final. The probe passes no entity tag, the later ones make sure they still get
+       the same file. */
+    private HttpResponse<InputStream> request(URI uri, Segment segment, String entityTag, AtomicInteger retries)
+            throws IOException, InterruptedException {
+        for (int attempt = 1; ; attempt++) {
+            HttpRequest.Builder builder = HttpRequest.newBuilder(uri).GET()
+                    .header("Accept-Encoding", "identity")
+                    .header("Range", "bytes=" + segment.next() + "-" + (segment.end - 1));
+            if (entityTag != null) builder.header("If-Range", entityTag);
+            HttpResponse<InputStream> response;
+            try {
+                response = http.send(builder.build(), HttpResponse.BodyHandlers.ofInputStream());
+            } catch (IOException e) {
+                if (attempt >= maxAttempts) throw e;
+                retries.incrementAndGet();
+                Thread.sleep(backoff(attempt + 1));
+                continue;
+            }
+            int status = response.statusCode();
+            if (status == 200 || status == 206) return response;
+            String message;
+            try (InputStream body = response.body()) {
+                message = new String(body.readNBytes(1024), StandardCharsets.UTF_8);
+            }
+            if ((status == 429 || status == 503) && attempt < maxAttempts) {
+                retries.incrementAndGet();
+                long waitMs = response.headers().firstValueAsLong("Retry-After").orElse(1) * 1000;
+                Thread.sleep(Math.min(waitMs, MAX_RETRY_WAIT_MS));
+                continue;
+            }
+            throw new DownloadException(status, "Server answered " + status + ": " + message);
+        }
+    }
+
+    // copies the response body to its place in the file, received moves along so a failure keeps what arrived
+    private static void receive(HttpResponse<InputStream> response, FileChannel channel, Segment segment) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream body = response.body()) {
+            int read;
+            while (!segment.complete() && (read = body.read(buffer, 0, (int) Math.min(buffer.length, segment.end - segment.next()))) != -1) {
+                ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, read);
+                long position = segment.next();
+                while (chunk.hasRemaining()) {
+                    position += channel.write(chunk, position);
+                }
+                segment.received += read;
+            }
+        }
+    }
+
+    // the file's length from Content-Range, after checking the server starts where we asked it to
+    private static long totalLength(HttpResponse<?> response, long expectedStart) throws IOException {
+        String contentRange = response.headers().firstValue("Content-Range").orElse("");
+        Matcher match = CONTENT_RANGE.matcher(contentRange);
+        if (!match.matches() || Long.parseLong(match.group(1)) != expectedStart) {
+            throw new IOException("Unexpected Content-Range: " + contentRange);
+        }
+        return Long.parseLong(match.group(3));
+    }
+
+    // Repr-Digest: sha-256=:<base64>:, null when the server does not send one
+    private static byte[] expectedDigest(HttpHeaders headers) {
+        String value = headers.firstValue("Repr-Digest").orElse(null);
+        if (value == null) return null;
+        for (String entry : value.split(",")) {
+            String trimmed = entry.trim();
+            if (trimmed.startsWith("sha-256=:") && trimmed.endsWith(":") && trimmed.length() > 10) {
+                try {
+                    return Base64.getDecoder().decode(trimmed.substring(9, trimmed.length() - 1));
+                } catch (IllegalArgumentException e) {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static byte[] sha256(FileChannel channel, long length) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is missing from this JVM", e);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        long position = 0;
+        while (position < length) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read == -1) break;
+            buffer.flip();
+            digest.update(buffer);
+            position += read;
+        }
+        return digest.digest();
+    }
+
+    // 0.5s, 1s, 2s ... up to 30s, with jitter so the segments of one download do not retry in lockstep
+    private static long backoff(int attempt) {
+        long base = Math.min(MAX_RETRY_WAIT_MS, 250L << Math.min(attempt - 1, 7));
+        return base / 2 + (long) (Math.random() * base / 2);
+    }
+}
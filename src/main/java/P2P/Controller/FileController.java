@@ -2,16 +2,35 @@ package P2P.Controller;
 
 import java.io.File;
 import java.io.IOException;
-import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 
+import P2P.Service.BlobStore;
+import P2P.Service.ChunkedUploadManager;
+import P2P.Service.CompressedVariants;
+import P2P.Service.DiskQuota;
 import P2P.Service.FileSharer;
+import P2P.Service.HotFileCache;
+import P2P.Service.HttpEngine;
+import P2P.Service.ShareJournal;
+import P2P.Utils.AdaptiveLimiter;
+import P2P.Utils.Config;
+import P2P.Utils.ExecutionModel;
+import P2P.Utils.Log;
+import P2P.Utils.Metrics;
+import P2P.Utils.RateLimiter;
+import P2P.Utils.TransferScheduler;
+import P2P.handler.AdmissionFilter;
 import P2P.handler.CORSHandler;
+import P2P.handler.ChunkedUploadHandler;
 import P2P.handler.DownloadHandler;
+import P2P.handler.MetricsHandler;
 import P2P.handler.UploadHandler;
-import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpHandler;
 
 // fileController doesn’t do the actual file sharing itself but coordinates everything:
 //Creates and starts the HTTP server
@@ -20,18 +39,42 @@ import com.sun.net.httpserver.HttpServer;
 //Manages threads and cleanup
 public class FileController {
     private final FileSharer fileSharer;
-    private final HttpServer httpServer;
+    private final HttpEngine httpServer;
     private final String uploadDir;
     private final ExecutorService executorService;
+    private final AdmissionFilter admission; // null when admission control is off
+    private final TransferScheduler transferScheduler;
+    private final CompressedVariants compression;
+    private final HotFileCache hotFiles;
+    private final RateLimiter downloadLimiter; // shared by /download and the peer link
 
     public FileController(int port) throws IOException {
+        this(port, HttpEngine.configuredKind());
+    }
+
+    public FileController(int port, HttpEngine.Kind engine) throws IOException {
         this.fileSharer = new FileSharer();
-        this.httpServer = HttpServer.create(new InetSocketAddress(port), 0); /* a lightweight HTTP server built into
-         Java SE (no need for Spring Boot or Tomcat). Handles HTTP requests/responses */
         this.uploadDir = System.getProperty("java.io.tmpdir") + File.separator + "SkyLink-uploads"; /* 1. java.io.tmpdir → OS temporary directory
         2. File.separator → ensures correct / or \ depending on OS */
-        this.executorService = Executors.newFixedThreadPool(10); /* Creates 10 threads to handle multiple HTTP requests at the same time.
-         Prevents the server from freezing under load. */
+        /* By default 10 platform threads handle HTTP requests (and the transfers inside them) at the same time.
+           SKYLINK_EXECUTOR=virtual gives every request its own virtual thread instead, so slow clients no longer
+           starve everyone else once 10 transfers are in flight. */
+        this.executorService = ExecutionModel.newRequestExecutor();
+        /* Admission lanes (SKYLINK_ADMISSION=off disables them): bulk transfers and control requests get separate
+           adaptive concurrency limits and short bounded queues, a saturated lane answers 503 + Retry-After right away
+           instead of letting requests pile up in HttpServer's unbounded queue. The lanes run on the pool threads
+           themselves, so with a platform pool bulk requests may hold at most three quarters of them (running or
+           waiting) and the rest stay free to answer control requests and turn surplus transfers away. */
+        this.admission = Config.getBoolean("skylink.admission", true) ? new AdmissionFilter(
+                new AdaptiveLimiter(8, 2, Config.getInt("skylink.admission.control.max", 16),
+                        Config.getInt("skylink.admission.control.queue", 64), 3.0),
+                new AdaptiveLimiter(8, 2, Config.getInt("skylink.admission.bulk.max", 32),
+                        Config.getInt("skylink.admission.bulk.queue", 32), 4.0),
+                Config.getLong("skylink.admission.queue.wait.ms", 2000),
+                ExecutionModel.workerThreads(executorService)) : null;
+        /* the HTTP server itself (SKYLINK_HTTP_ENGINE): the JDK's HttpServer, a lightweight server built into Java SE
+           (no need for Spring Boot or Tomcat), or our NIO engine that keeps idle and slow connections off the pool */
+        this.httpServer = HttpEngine.create(engine, port, executorService);
 
         // if the directory is not available , we are creating a directory to store file temporary
         File uploadDirs = new File(uploadDir);
@@ -39,26 +82,103 @@ public class FileController {
             uploadDirs.mkdirs();
         }
 
+        // per-IP rate limits, by default 10 uploads and 120 downloads per minute (SKYLINK_UPLOADS_PER_MINUTE, SKYLINK_DOWNLOADS_PER_MINUTE)
+        RateLimiter uploadLimiter = new RateLimiter(Config.getInt("skylink.uploads.per.minute", 10), 1, TimeUnit.MINUTES);
+        this.downloadLimiter = new RateLimiter(Config.getInt("skylink.downloads.per.minute", 120), 1, TimeUnit.MINUTES);
+
+        /* outgoing bandwidth, shared fairly by the peer link and HTTP downloads (0 = unlimited, the default).
+           SKYLINK_BANDWIDTH_BYTES_PER_SECOND should be set a little under the line rate for the fair share to work,
+           SKYLINK_BANDWIDTH_PER_IP_BYTES_PER_SECOND caps each client. */
+        this.transferScheduler = new TransferScheduler(
+                Config.getLong("skylink.bandwidth.bytes.per.second", 0),
+                Config.getLong("skylink.bandwidth.per.ip.bytes.per.second", 0),
+                Config.getInt("skylink.bandwidth.quantum.bytes", 64 * 1024));
+
+        /* downloads of text-like files go out gzip/deflate encoded when the client accepts it, from the second download
+           of a content on a cached compressed copy (SKYLINK_COMPRESSION_CACHE_MAX_BYTES, 1 GB) */
+        this.compression = new CompressedVariants(Path.of(uploadDir, "variants"),
+                Config.getLong("skylink.compression.cache.max.bytes", 1024L * 1024 * 1024),
+                Config.getLong("skylink.compression.min.bytes", 1024),
+                Config.getInt("skylink.compression.level", 6));
+        /* files that several recipients download are kept in memory, off the heap (SKYLINK_HOT_CACHE_BYTES, 256 MB,
+           0 turns it off). The JVM needs -XX:MaxDirectMemorySize at least that big when the heap is smaller. */
+        this.hotFiles = new HotFileCache(Config.getLong("skylink.hot.cache.bytes", 256L * 1024 * 1024),
+                Config.getLong("skylink.hot.cache.max.file.bytes", 32L * 1024 * 1024));
+
         // here we are setting up the routes
-        httpServer.createContext("/upload", new UploadHandler(uploadDir, fileSharer)); // Handles file uploads and saves them to uploadDir/
-        httpServer.createContext("/download", new DownloadHandler(fileSharer)); // serving the files
-        httpServer.createContext("/", new CORSHandler()); /* manages CORS headers (allowing requests from browsers) */
-        httpServer.setExecutor(executorService); /* Assigns your thread pool to process requests concurrently.
-        basically telling the server , hey we can take at most 10 request at a time. */
+        // every uploaded content is stored once under uploadDir/blobs/<sha256>, shares of the same bytes point at one file
+        BlobStore blobStore = new BlobStore(Path.of(uploadDir, "blobs"), Path.of(uploadDir));
+        blobStore.setDeleteListener(hash -> {
+            compression.forget(hash);
+            hotFiles.forget(hash);
+        });
+
+        // shares survive a restart: offers and removals are journalled next to the blobs and replayed here,
+        // then every stored file no share needs any more is deleted. SKYLINK_JOURNAL_BYTES sizes the mapped journal.
+        try {
+            Path journalFile = Path.of(uploadDir, "shares.journal");
+            ShareJournal journal = ShareJournal.open(journalFile, Config.getLong("skylink.journal.bytes", 64L * 1024 * 1024));
+            fileSharer.restore(journal, blobStore);
+            blobStore.deleteOrphans(List.of(journalFile));
+        } catch (IOException e) {
+            Log.warn("Shares will not survive a restart", "error", e.getMessage());
+        }
+
+        // SKYLINK_STORAGE_MAX_BYTES caps what uploads may store (10 GB), SKYLINK_STORAGE_MIN_FREE_BYTES is left to the rest of the disk (1 GB)
+        DiskQuota diskQuota = new DiskQuota(Path.of(uploadDir),
+                Config.getLong("skylink.storage.max.bytes", 10L * 1024 * 1024 * 1024),
+                Config.getLong("skylink.storage.min.free.bytes", 1024L * 1024 * 1024),
+                Config.getLong("skylink.storage.retry.seconds", 5),
+                blobStore::storedBytes);
+
+        addContext("/upload", new UploadHandler(blobStore, diskQuota, fileSharer, uploadLimiter)); // Handles file uploads and stores them in the blob store
+
+        // resumable uploads: chunks go straight to their offset on disk, so the size limit no longer costs memory
+        ChunkedUploadManager chunkedUploads = new ChunkedUploadManager(uploadDir, blobStore, diskQuota, fileSharer,
+                Config.getLong("skylink.chunked.max.size", 4L * 1024 * 1024 * 1024),
+                Config.getInt("skylink.chunked.chunk.size", 8 * 1024 * 1024),
+                64 * 1024, 64 * 1024 * 1024);
+        // sessions that went quiet give their file and quota reservation back, even when no new session comes along
+        fileSharer.addHousekeeping(chunkedUploads::expireIdleSessions);
+        addContext("/upload/session", new ChunkedUploadHandler(chunkedUploads, fileSharer, uploadLimiter));
+        addContext("/download", new DownloadHandler(fileSharer, downloadLimiter, transferScheduler, compression, hotFiles)); // serving the files
+        addContext("/metrics", new MetricsHandler()); // Prometheus scrape endpoint
+        Metrics.gauge("skylink_live_shares", "", "Shares waiting to be downloaded", fileSharer::getShareCount);
+        addContext("/", new CORSHandler()); /* manages CORS headers (allowing requests from browsers) */
 
     }
 
-    public void start() {
+    // every route goes through the admission lanes
+    private void addContext(String path, HttpHandler handler) {
+        httpServer.addContext(path, handler, admission != null ? List.<Filter>of(admission) : List.of());
+    }
+
+    public void start() throws IOException {
+        // one listener for every file transfer, SKYLINK_TRANSFER_PORT picks the port (0 = any free port)
+        fileSharer.startTransferServer(Config.getInt("skylink.transfer.port", 9090),
+                Config.getInt("skylink.transfer.loops", Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2))),
+                downloadLimiter, transferScheduler, compression, hotFiles);
+        fileSharer.startExpiryScheduler(); // reclaims shares nobody downloaded before their TTL
         httpServer.start(); // httpServer.start() → begins listening for HTTP requests.
-        System.out.println("API server started on port " + httpServer.getAddress().getPort());
+        Log.info("API server started", "port", httpServer.getPort());
+    }
+
+    // the port the API really listens on (useful when it was created with port 0)
+    public int getPort() {
+        return httpServer.getPort();
     }
 
     public void stop() {
-        //httpServer.stop(0) → stops the server immediately (no delay).
-        httpServer.stop(0);
+        // stops the server immediately (no delay).
+        httpServer.stop();
+        // closing the transfer listener and every transfer still in progress
+        fileSharer.stopTransferServer();
+        transferScheduler.stop();
+        fileSharer.stopExpiryScheduler();
+        fileSharer.closeJournal();
         //executorService.shutdown() → gracefully shuts down the worker threads.
         executorService.shutdown();
         // just printing the confirmation statement that server is shut down.
-        System.out.println("API Server stopped");
+        Log.info("API server stopped");
     }
 }
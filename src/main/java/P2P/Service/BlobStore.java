@@ -0,0 +1,232 @@
+package P2P.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import P2P.Utils.Log;
+import P2P.Utils.Metrics;
+
+/* Content addressed store for uploaded files: every distinct content is kept once, as blobs/<sha256 in hex>.
+   Uploads are streamed into a temp file next to the store while their SHA-256 is computed, then handed to add():
+     - first time we see that hash -> the temp file is renamed into place (no extra copy)
+     - we already have it          -> the temp file is deleted and the existing blob gets one more reference
+   Each share holds one reference and gives it back in FileSharer.cleanupAfterDownload, the blob file is only
+   deleted when the last share using it is gone. So the tenth upload of the same PDF costs no disk space. */
+public class BlobStore {
+    private static final Metrics.Counter DEDUP_HITS = Metrics.counter("skylink_blob_dedup_hits_total", "",
+            "Uploads whose content was already stored");
+    private static final Metrics.Counter BYTES_SAVED = Metrics.counter("skylink_blob_dedup_bytes_total", "",
+            "Bytes not stored again thanks to deduplication");
+
+    // one stored content, shared by every share that points at it
+    public static final class Blob {
+        public final String hash;
+        public final Path path;
+        public final long size;
+        private final BlobStore store;
+        private int references; // guarded by the map entry, only changed inside ConcurrentHashMap.compute
+
+        private Blob(BlobStore store, String hash, Path path, long size) {
+            this.store = store;
+            this.hash = hash;
+            this.path = path;
+            this.size = size;
+        }
+
+        // gives back one reference, called once per share when the share goes away.
+        // Returns the bytes freed on disk: the blob size for the last reference, 0 otherwise
+        public long release() {
+            return store.release(this);
+        }
+    }
+
+    private final Path directory;
+    private final Path tempDirectory;
+    private final ConcurrentHashMap<String, Blob> blobs = new ConcurrentHashMap<>();
+    private final AtomicLong storedBytes = new AtomicLong(); // sum of the blob sizes, read by the disk quota on every upload
+    private volatile Consumer<String> deleteListener = hash -> { };
+
+    // blobs live in directory, temp files in tempDirectory, both must be on the same file system for the rename
+    public BlobStore(Path directory, Path tempDirectory) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.tempDirectory = Files.createDirectories(tempDirectory);
+        Metrics.gauge("skylink_blobs", "", "Distinct contents stored", blobs::size);
+        Metrics.gauge("skylink_blob_bytes", "", "Bytes stored in blobs", this::storedBytes);
+    }
+
+    // told the hash of every blob deleted, so whatever was derived from its content can go too
+    public void setDeleteListener(Consumer<String> listener) {
+        this.deleteListener = listener;
+    }
+
+    // where an upload should be streamed to before add() is called
+    public Path newTempFile() {
+        return tempDirectory.resolve(UUID.randomUUID() + ".part");
+    }
+
+    /* Takes over tempFile (its content must hash to sha256) and answers the blob holding that content, with one
+       reference taken for the caller. tempFile is gone afterwards, moved into the store or deleted as a duplicate. */
+    public Blob add(Path tempFile, byte[] sha256) throws IOException {
+        String hash = hex(sha256);
+        long size = Files.size(tempFile);
+        try {
+            return blobs.compute(hash, (key, existing) -> {
+                try {
+                    if (existing != null) {
+                        Files.delete(tempFile);
+                        existing.references++;
+                        DEDUP_HITS.increment();
+                        BYTES_SAVED.add(size);
+                        Log.info("Upload deduplicated", "hash", key, "bytes", size, "references", existing.references);
+                        return existing;
+                    }
+                    // a blob file without an entry is a leftover of an earlier run, the content is the same anyway
+                    Path target = directory.resolve(key);
+                    Files.move(tempFile, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                    Blob blob = new Blob(this, key, target, size);
+                    blob.references = 1;
+                    storedBytes.addAndGet(size);
+                    return blob;
+                } catch (IOException e) {
+                    throw new BlobIOException(e);
+                }
+            });
+        } catch (BlobIOException e) {
+            Files.deleteIfExists(tempFile);
+            throw e.getCause();
+        }
+    }
+
+    /* Takes one more reference on a blob that is already on disk, for shares restored from the journal after a restart.
+       The file name is trusted as its hash (hashing every stored byte again would make startup slow).
+       Null when there is no such blob file any more. */
+    public Blob adopt(String hash) throws IOException {
+        Path path = directory.resolve(hash);
+        if (hash.length() != 64 || !hash.chars().allMatch(c -> Character.digit(c, 16) >= 0) || !Files.isRegularFile(path)) {
+            return null;
+        }
+        long size = Files.size(path);
+        return blobs.compute(hash, (key, existing) -> {
+            if (existing != null) {
+                existing.references++;
+                return existing;
+            }
+            Blob blob = new Blob(this, key, path, size);
+            blob.references = 1;
+            storedBytes.addAndGet(size);
+            return blob;
+        });
+    }
+
+    /* Deletes the blob files no share refers to, and every other file in the temp directory except keep: temp files
+       of uploads that never finished, and files of the old one-file-per-upload layout.
+       Only safe at startup, after the shares were restored and before any upload runs. Returns the bytes freed. */
+    public long deleteOrphans(Collection<Path> keep) throws IOException {
+        long freed = 0;
+        int files = 0;
+        try (DirectoryStream<Path> stored = Files.newDirectoryStream(directory)) {
+            for (Path path : stored) {
+                if (!blobs.containsKey(path.getFileName().toString())) {
+                    freed += deleteOrphan(path);
+                    files++;
+                }
+            }
+        }
+        try (DirectoryStream<Path> temps = Files.newDirectoryStream(tempDirectory, Files::isRegularFile)) {
+            for (Path path : temps) {
+                if (keep.contains(path)) continue;
+                freed += deleteOrphan(path);
+                files++;
+            }
+        }
+        if (files > 0) {
+            Log.info("Orphaned upload files deleted", "files", files, "bytes", freed);
+        }
+        return freed;
+    }
+
+    private static long deleteOrphan(Path path) throws IOException {
+        long size = Files.size(path);
+        return Files.deleteIfExists(path) ? size : 0;
+    }
+
+    private long release(Blob blob) {
+        long[] freed = new long[1];
+        blobs.computeIfPresent(blob.hash, (key, current) -> {
+            if (current != blob) return current;
+            if (--current.references > 0) return current;
+            storedBytes.addAndGet(-current.size);
+            try {
+                if (Files.deleteIfExists(current.path)) freed[0] = current.size;
+                Log.info("Blob deleted, no shares left", "hash", key, "bytes", current.size);
+                deleteListener.accept(key);
+            } catch (IOException e) {
+                Log.error("Failed to delete blob", e, "hash", key);
+            }
+            return null;
+        });
+        return freed[0];
+    }
+
+    public int blobCount() {
+        return blobs.size();
+    }
+
+    public long storedBytes() {
+        return storedBytes.get();
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is missing from this JVM", e); // every Java SE must have it
+        }
+    }
+
+    // SHA-256 of a file that is already on disk (chunked uploads arrive out of order, so they are hashed at the end)
+    public static byte[] hashFile(Path file) throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return digest.digest();
+    }
+
+    public static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    // carries an IOException out of the compute lambda
+    private static final class BlobIOException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        BlobIOException(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+}
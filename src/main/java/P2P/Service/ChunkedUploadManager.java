@@ -0,0 +1,302 @@
+package P2P.Service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import P2P.Utils.Log;
+
+/* ChunkedUploadManager keeps the state of resumable uploads.
+   Flow: create a session (we preallocate the whole file on disk) -> PUT numbered chunks in any order, even in parallel
+   -> ask which chunks are still missing -> complete. Each chunk is written straight at its own offset with a
+   positional write, so memory stays at one small buffer per chunk, whatever the file size is.
+   Only a completed file goes into the blob store and is shared with FileSharer.offerBlob, before that nobody can
+   download it. */
+public class ChunkedUploadManager {
+
+    // a session nobody touched for this long is considered abandoned and its file is removed
+    private static final long SESSION_IDLE_TIMEOUT_MS = 60 * 60 * 1000L;
+    /* a session keeps one bit per chunk and its status lists them, tiny chunks on a huge file would make both
+       cost hundreds of MB, so the number of chunks is capped whatever chunkSize the client asks for */
+    public static final int MAX_CHUNKS = 100_000;
+
+    // thrown for requests that do not fit the session (bad index, wrong chunk length, unknown session...)
+    public static class ChunkedUploadException extends Exception {
+        private static final long serialVersionUID = 1L;
+        public final int status; // the HTTP status the handler should answer with
+
+        public ChunkedUploadException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    public static class Session {
+        public final String id;
+        public final String fileName;
+        public final long size;
+        public final int chunkSize;
+        public final int chunkCount;
+        final String uploaderHost;
+        final Path partFile;
+        final FileChannel channel;
+        private final BitSet received;
+        volatile long lastActivity = System.currentTimeMillis();
+        /* chunk writes share the read lock (they run in parallel, each at its own offset), complete and discard take
+           the write lock: they wait for the writes in flight, and a chunk arriving later sees closed and writes nothing
+           into a file that is being hashed or deleted */
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        private boolean closed; // guarded by lock
+
+        final DiskQuota.Reservation reservation; // the session's size, held until it is completed or discarded
+        Session(String id, String fileName, long size, int chunkSize, String uploaderHost, Path partFile, FileChannel channel,
+                DiskQuota.Reservation reservation) {
+            this.reservation = reservation;
+            this.id = id;
+            this.fileName = fileName;
+            this.size = size;
+            this.chunkSize = chunkSize;
+            this.chunkCount = (int) ((size + chunkSize - 1) / chunkSize);
+            this.uploaderHost = uploaderHost;
+            this.partFile = partFile;
+            this.channel = channel;
+            this.received = new BitSet(chunkCount);
+        }
+
+        long chunkOffset(int index) {
+            return (long) index * chunkSize;
+        }
+
+        long chunkLength(int index) {
+            return Math.min(chunkSize, size - chunkOffset(index));
+        }
+
+        // the first limit missing chunk indexes, missingCount() says how many there are in total
+        public synchronized List<Integer> missingChunks(int limit) {
+            List<Integer> missing = new ArrayList<>();
+            for (int i = received.nextClearBit(0); i < chunkCount && missing.size() < limit; i = received.nextClearBit(i + 1)) {
+                missing.add(i);
+            }
+            return missing;
+        }
+
+        public synchronized int missingCount() {
+            return chunkCount - received.cardinality();
+        }
+
+        synchronized void markReceived(int index) {
+            received.set(index);
+        }
+
+        synchronized boolean isComplete() {
+            return received.cardinality() == chunkCount;
+        }
+    }
+
+    private final String uploadDir;
+    private final BlobStore blobStore;
+    private final DiskQuota diskQuota;
+    private final FileSharer fileSharer;
+    private final long maxFileSize;
+    private final int defaultChunkSize;
+    private final int minChunkSize;
+    private final int maxChunkSize;
+    private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+
+    public ChunkedUploadManager(String uploadDir, BlobStore blobStore, DiskQuota diskQuota, FileSharer fileSharer,
+                                long maxFileSize, int defaultChunkSize, int minChunkSize, int maxChunkSize) {
+        this.uploadDir = uploadDir;
+        this.blobStore = blobStore;
+        this.diskQuota = diskQuota;
+        this.fileSharer = fileSharer;
+        this.maxFileSize = maxFileSize;
+        this.defaultChunkSize = defaultChunkSize;
+        this.minChunkSize = minChunkSize;
+        this.maxChunkSize = maxChunkSize;
+    }
+
+    public long getMaxFileSize() {
+        return maxFileSize;
+    }
+
+    // creates the session and preallocates the file, chunkSize <= 0 means "use the default"
+    public Session create(String fileName, long size, int chunkSize, String uploaderHost)
+            throws ChunkedUploadException, DiskQuota.QuotaExceededException, IOException {
+        if (size <= 0) {
+            throw new ChunkedUploadException(400, "size must be greater than 0");
+        }
+        if (size > maxFileSize) {
+            throw new ChunkedUploadException(413, "File too large: Maximum file size is " + (maxFileSize / (1024 * 1024)) + "MB");
+        }
+        int effectiveChunkSize = chunkSize <= 0 ? defaultChunkSize : chunkSize;
+        if (effectiveChunkSize > maxChunkSize) {
+            throw new ChunkedUploadException(400, "chunkSize must not be larger than " + maxChunkSize);
+        }
+        if (effectiveChunkSize < minChunkSize) {
+            throw new ChunkedUploadException(400, "chunkSize must be at least " + minChunkSize);
+        }
+        if ((size + effectiveChunkSize - 1) / effectiveChunkSize > MAX_CHUNKS) {
+            throw new ChunkedUploadException(400, "chunkSize is too small for this file, it must be at least "
+                    + (size + MAX_CHUNKS - 1) / MAX_CHUNKS);
+        }
+
+        // the whole size is reserved for the session's lifetime, released on complete, abort or expiry
+        DiskQuota.Reservation reservation = diskQuota.reserve(size);
+        String id = UUID.randomUUID().toString();
+        Path partFile = Path.of(uploadDir, id + ".part");
+        FileChannel channel;
+        try {
+            // setLength reserves the full size up front (sparse where the filesystem supports it),
+            // so chunks can land at any offset in any order
+            try (RandomAccessFile raf = new RandomAccessFile(partFile.toFile(), "rw")) {
+                raf.setLength(size);
+            }
+            channel = FileChannel.open(partFile, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            reservation.release();
+            Files.deleteIfExists(partFile);
+            throw e;
+        }
+        Session session = new Session(id, new File(fileName).getName(), size, effectiveChunkSize, uploaderHost, partFile,
+                channel, reservation);
+        sessions.put(id, session);
+        Log.info("Chunked upload created", "session", id, "file", session.fileName, "bytes", size,
+                "chunks", session.chunkCount);
+        return session;
+    }
+
+    public Session get(String sessionId) throws ChunkedUploadException {
+        Session session = sessions.get(sessionId);
+        if (session == null) {
+            throw new ChunkedUploadException(404, "Unknown upload session");
+        }
+        session.lastActivity = System.currentTimeMillis();
+        return session;
+    }
+
+    /* Writes one chunk at its offset. The body must contain exactly the bytes of that chunk.
+       Sending the same chunk twice is fine (a retry after a network blip), it is simply overwritten. */
+    public void writeChunk(String sessionId, int index, InputStream body) throws ChunkedUploadException, IOException {
+        Session session = get(sessionId);
+        if (index < 0 || index >= session.chunkCount) {
+            throw new ChunkedUploadException(400, "Chunk index out of range: " + index);
+        }
+        long offset = session.chunkOffset(index);
+        long expected = session.chunkLength(index);
+        session.lock.readLock().lock();
+        try {
+            if (session.closed) {
+                throw new ChunkedUploadException(409, "Upload session already completed or aborted");
+            }
+            ReadableByteChannel source = Channels.newChannel(body);
+            long written = 0;
+            while (written < expected) {
+                long moved = session.channel.transferFrom(source, offset + written, expected - written);
+                if (moved <= 0) break;
+                written += moved;
+            }
+            // one more byte means the client sent more than the chunk, that is a broken client
+            if (written != expected || body.read() != -1) {
+                throw new ChunkedUploadException(400, "Chunk " + index + " must be exactly " + expected + " bytes");
+            }
+            session.markReceived(index);
+        } finally {
+            session.lock.readLock().unlock();
+        }
+        session.lastActivity = System.currentTimeMillis();
+    }
+
+    /* moves the finished file to its final name and shares it for ttlMillis (0 = default TTL) and maxDownloads
+       recipients, returns the share id */
+    public int complete(String sessionId, long ttlMillis, int maxDownloads) throws ChunkedUploadException, IOException {
+        Session session = get(sessionId);
+        session.lock.writeLock().lock();
+        try {
+            if (session.closed) {
+                throw new ChunkedUploadException(409, "Upload session already completed");
+            }
+            if (!session.isComplete()) {
+                throw new ChunkedUploadException(409, "Upload incomplete, " + session.missingCount()
+                        + " chunks missing, first ones: " + session.missingChunks(20));
+            }
+            session.closed = true;
+        } finally {
+            session.lock.writeLock().unlock();
+        }
+        sessions.remove(sessionId);
+        BlobStore.Blob blob;
+        try (session.reservation) {
+            session.channel.force(false);
+            session.channel.close();
+            // chunks came in any order, so the hash can only be computed now, in one sequential read of the file
+            blob = blobStore.add(session.partFile, BlobStore.hashFile(session.partFile));
+        } catch (IOException e) {
+            Files.deleteIfExists(session.partFile);
+            throw e;
+        }
+        Log.info("Chunked upload completed", "session", sessionId, "file", session.fileName, "hash", blob.hash);
+        boolean shared = false;
+        try {
+            int shareId = fileSharer.offerBlob(blob, session.fileName, session.uploaderHost, ttlMillis, maxDownloads);
+            shared = true;
+            return shareId;
+        } finally {
+            // no share took the reference (no token left, journal failure...), the stored file goes again
+            if (!shared) blob.release();
+        }
+    }
+
+    public void abort(String sessionId) throws ChunkedUploadException {
+        discard(get(sessionId), true);
+    }
+
+    // wait = false leaves a session alone while one of its chunks is being written (expiry), abort waits for it
+    private void discard(Session session, boolean wait) {
+        if (wait) {
+            session.lock.writeLock().lock();
+        } else if (!session.lock.writeLock().tryLock()) {
+            return;
+        }
+        try {
+            if (session.closed) return;
+            session.closed = true;
+        } finally {
+            session.lock.writeLock().unlock();
+        }
+        sessions.remove(session.id);
+        session.reservation.release();
+        try {
+            session.channel.close();
+            Files.deleteIfExists(session.partFile);
+        } catch (IOException e) {
+            Log.error("Failed to remove chunked upload file", e, "file", session.partFile);
+        }
+        Log.info("Chunked upload discarded", "session", session.id);
+    }
+
+    // removes sessions that went quiet, run by the share expiry thread (FileSharer.addHousekeeping)
+    public void expireIdleSessions() {
+        expireIdleSessions(System.currentTimeMillis());
+    }
+
+    void expireIdleSessions(long now) {
+        for (Session session : sessions.values()) {
+            if (now - session.lastActivity > SESSION_IDLE_TIMEOUT_MS) {
+                discard(session, false);
+            }
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package P2P.Service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import P2P.Utils.Log;
+import P2P.Utils.Metrics;
+
+/* Transfer compression for downloads, over HTTP (Accept-Encoding / Content-Encoding) and the peer link.
+   Text and CSV shares shrink 5-10x, so they go out gzip or deflate encoded when the client accepts it. Types that are
+   compressed already (zip, images, docx, pdf) and tiny files go out as they are, deflating them costs CPU for nothing.
+   The first download of a content is compressed on the fly. From the second one on (dedup and multi-download shares
+   serve one blob many times) the compressed bytes are also written to variants/<sha256>.<gz|zz> while they stream,
+   and every later download sends that file with a Content-Length and no deflating at all. A variant is deleted with
+   its blob; the whole cache is at most SKYLINK_COMPRESSION_CACHE_MAX_BYTES and starts empty after a restart. */
+public class CompressedVariants {
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+
+    // formats that are compressed inside already, deflating them again saves next to nothing
+    private static final Set<String> PRECOMPRESSED = Set.of("zip", "jpg", "jpeg", "png", "gif", "docx", "pdf",
+            "gz", "bz2", "xz", "7z", "rar", "mp3", "mp4", "webp", "xlsx", "pptx");
+
+    private static final Metrics.Counter CACHE_HITS = Metrics.counter("skylink_compression_cache_hits_total", "",
+            "Compressed downloads served from a cached variant");
+
+    private final Path directory;
+    private final long maxCacheBytes;
+    private final long minFileBytes;
+    private final int level;
+    private final ConcurrentHashMap<String, AtomicInteger> serves = new ConcurrentHashMap<>(); // by hash.suffix
+    private final ConcurrentHashMap<String, Long> cached = new ConcurrentHashMap<>();          // variant -> bytes
+    private final AtomicLong cachedBytes = new AtomicLong();
+
+    public CompressedVariants(Path directory, long maxCacheBytes, long minFileBytes, int level) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.maxCacheBytes = maxCacheBytes;
+        this.minFileBytes = minFileBytes;
+        this.level = level;
+        // variants of the last run: their serve counts are gone and some of their blobs too, start over
+        try (DirectoryStream<Path> old = Files.newDirectoryStream(directory)) {
+            for (Path path : old) {
+                Files.deleteIfExists(path);
+            }
+        }
+        Metrics.gauge("skylink_compression_cache_bytes", "", "Bytes of cached compressed variants", cachedBytes::get);
+    }
+
+    /* The coding to answer an Accept-Encoding header with: gzip, deflate or null for the plain bytes.
+       Quality values count (q=0 means "not this one"), gzip wins a tie. */
+    public static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) return null;
+        double gzip = -1, deflate = -1, any = -1;
+        for (String part : acceptEncoding.split(",")) {
+            String[] pieces = part.trim().split(";");
+            double quality = 1;
+            for (int i = 1; i < pieces.length; i++) {
+                String parameter = pieces[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        quality = Double.parseDouble(parameter.substring(2));
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+            switch (pieces[0].trim().toLowerCase(Locale.ROOT)) {
+                case "gzip": case "x-gzip": gzip = quality; break;
+                case "deflate": deflate = quality; break;
+                case "*": any = quality; break;
+                default: break;
+            }
+        }
+        if (gzip < 0) gzip = any;
+        if (deflate < 0) deflate = any;
+        if (gzip <= 0 && deflate <= 0) return null;
+        return gzip >= deflate ? GZIP : DEFLATE;
+    }
+
+    public boolean worthCompressing(String fileName, long size) {
+        return size >= minFileBytes && isCompressible(fileName);
+    }
+
+    public boolean isCompressible(String fileName) {
+        if (fileName == null) return false;
+        int dot = fileName.lastIndexOf('.');
+        return dot < 0 || !PRECOMPRESSED.contains(fileName.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    // the cached variant of this content, null when there is none (yet)
+    public Path cachedVariant(String hash, String encoding) {
+        if (hash == null) return null;
+        String name = variantName(hash, encoding);
+        if (!cached.containsKey(name)) return null;
+        CACHE_HITS.increment();
+        return directory.resolve(name);
+    }
+
+    /* Compresses what is written to it into wire. hash may be null (a file outside the blob store, never cached).
+       The caller calls complete() after the last byte of the file; closing without complete() means the transfer
+       failed: the compressed stream is left unfinished and no variant is cached. */
+    public Encoder encode(OutputStream wire, String hash, String encoding) {
+        OutputStream copy = null;
+        Path temp = null;
+        if (hash != null && cachedBytes.get() < maxCacheBytes
+                && serves.computeIfAbsent(variantName(hash, encoding), key -> new AtomicInteger()).incrementAndGet() > 1) {
+            temp = directory.resolve(UUID.randomUUID() + ".part");
+            try {
+                copy = Files.newOutputStream(temp);
+            } catch (IOException e) {
+                Log.warn("Cannot cache compressed variant", "hash", hash, "error", e.getMessage());
+                temp = null;
+            }
+        }
+        return new Encoder(encoding, level, new Tee(wire, copy, temp, hash, encoding));
+    }
+
+    // the blob is gone, its variants and serve counts too
+    public void forget(String hash) {
+        for (String encoding : new String[]{GZIP, DEFLATE}) {
+            String name = variantName(hash, encoding);
+            serves.remove(name);
+            Long bytes = cached.remove(name);
+            if (bytes == null) continue;
+            cachedBytes.addAndGet(-bytes);
+            try {
+                Files.deleteIfExists(directory.resolve(name));
+            } catch (IOException e) {
+                Log.warn("Failed to delete compressed variant", "variant", name, "error", e.getMessage());
+            }
+        }
+    }
+
+    private static String variantName(String hash, String encoding) {
+        return hash + (GZIP.equals(encoding) ? ".gz" : ".zz");
+    }
+
+    // a variant finished streaming, it becomes the cached copy unless the cache filled up meanwhile
+    private void commit(Path temp, String hash, String encoding) throws IOException {
+        String name = variantName(hash, encoding);
+        long size = Files.size(temp);
+        // not counted any more: the blob was deleted while this variant streamed
+        if (cachedBytes.get() + size > maxCacheBytes || cached.containsKey(name) || !serves.containsKey(name)) {
+            Files.deleteIfExists(temp);
+            return;
+        }
+        Files.move(temp, directory.resolve(name), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        if (cached.putIfAbsent(name, size) == null) cachedBytes.addAndGet(size);
+        Log.debug("Compressed variant cached", "variant", name, "bytes", size);
+    }
+
+    /* gzip (RFC 1952) or zlib-wrapped deflate (RFC 1950, what HTTP calls "deflate") without DeflaterOutputStream,
+       so the Deflater's native memory is released on every path, a client that hung up included. */
+    public static final class Encoder extends OutputStream {
+        private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+        private final Deflater deflater;
+        private final boolean gzip;
+        private final CRC32 crc = new CRC32();
+        private final Tee out;
+        private final byte[] buffer = new byte[64 * 1024];
+        private boolean started;
+        private boolean complete;
+        private boolean closed;
+
+        private Encoder(String encoding, int level, Tee out) {
+            this.gzip = GZIP.equals(encoding);
+            this.deflater = new Deflater(level, gzip); // gzip brings its own header and trailer, no zlib wrapper
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            start();
+            if (gzip) crc.update(b, off, len);
+            deflater.setInput(b, off, len);
+            while (!deflater.needsInput()) {
+                int produced = deflater.deflate(buffer, 0, buffer.length, Deflater.NO_FLUSH);
+                if (produced > 0) out.write(buffer, 0, produced);
+            }
+        }
+
+        // every byte of the file went in: write the end of the compressed stream
+        public void complete() throws IOException {
+            start();
+            deflater.finish();
+            while (!deflater.finished()) {
+                int produced = deflater.deflate(buffer);
+                if (produced > 0) out.write(buffer, 0, produced);
+            }
+            if (gzip) {
+                writeIntLE(crc.getValue());
+                writeIntLE(deflater.getBytesRead());
+            }
+            complete = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            deflater.end();
+            out.close(complete);
+        }
+
+        private void start() throws IOException {
+            if (started) return;
+            started = true;
+            if (gzip) out.write(GZIP_HEADER, 0, GZIP_HEADER.length);
+        }
+
+        private void writeIntLE(long value) throws IOException {
+            byte[] bytes = {(byte) value, (byte) (value >> 8), (byte) (value >> 16), (byte) (value >> 24)};
+            out.write(bytes, 0, 4);
+        }
+    }
+
+    // the compressed bytes go to the wire and, while caching works, to the variant file too
+    private final class Tee {
+        private final OutputStream wire;
+        private OutputStream copy;
+        private final Path temp;
+        private final String hash;
+        private final String encoding;
+
+        Tee(OutputStream wire, OutputStream copy, Path temp, String hash, String encoding) {
+            this.wire = wire;
+            this.copy = copy;
+            this.temp = temp;
+            this.hash = hash;
+            this.encoding = encoding;
+        }
+
+        void write(byte[] b, int off, int len) throws IOException {
+            wire.write(b, off, len);
+            if (copy == null) return;
+            try {
+                copy.write(b, off, len);
+            } catch (IOException e) {
+                Log.warn("Caching compressed variant failed", "hash", hash, "error", e.getMessage());
+                abandon(); // the download itself goes on
+            }
+        }
+
+        void close(boolean complete) throws IOException {
+            try {
+                wire.close();
+            } finally {
+                if (copy != null) {
+                    try {
+                        copy.close();
+                        if (complete) {
+                            commit(temp, hash, encoding);
+                        } else {
+                            Files.deleteIfExists(temp);
+                        }
+                    } catch (IOException e) {
+                        Log.warn("Caching compressed variant failed", "hash", hash, "error", e.getMessage());
+                        Files.deleteIfExists(temp);
+                    }
+                }
+            }
+        }
+
+        private void abandon() throws IOException {
+            try {
+                copy.close();
+            } catch (IOException ignored) {
+            }
+            copy = null;
+            Files.deleteIfExists(temp);
+        }
+    }
+}
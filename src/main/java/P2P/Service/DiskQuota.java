@@ -0,0 +1,127 @@
+package P2P.Service;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import P2P.Utils.Log;
+import P2P.Utils.Metrics;
+
+/* Space accounting for the upload directory, so a burst of big uploads is turned away at the door instead of
+   filling the disk and making every request fail with IOExceptions.
+   An upload reserves its size before the first byte is read (Content-Length, or the largest allowed file when the
+   length is unknown) and gives the reservation back when it is stored or failed. Stored bytes are the blob store's
+   (shares going away free them). Admission needs both:
+     - stored + reserved + size <= limit          (SKYLINK_STORAGE_MAX_BYTES)
+     - usable disk space - reserved - size >= min free (SKYLINK_STORAGE_MIN_FREE_BYTES), other programs use the disk too
+   When only the in-flight reservations are in the way the answer is 503 with Retry-After (they finish soon),
+   when the stored files themselves leave no room it is 507 Insufficient Storage. */
+public class DiskQuota {
+    private static final Metrics.Counter REJECTED_BUSY = Metrics.counter("skylink_storage_rejected_total",
+            "status=\"503\"", "Uploads turned away because the storage quota was reached");
+    private static final Metrics.Counter REJECTED_FULL = Metrics.counter("skylink_storage_rejected_total",
+            "status=\"507\"", "Uploads turned away because the storage quota was reached");
+
+    // thrown by reserve(), carries the status and Retry-After the handler should answer with
+    public static class QuotaExceededException extends Exception {
+        private static final long serialVersionUID = 1L;
+        public final int status;
+        public final long retryAfterSeconds; // 0 when retrying soon will not help
+
+        QuotaExceededException(int status, long retryAfterSeconds, String message) {
+            super(message);
+            this.status = status;
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+    }
+
+    // space held for one upload until it is stored or failed, release() may be called more than once
+    public final class Reservation implements AutoCloseable {
+        public final long bytes;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Reservation(long bytes) {
+            this.bytes = bytes;
+        }
+
+        public void release() {
+            if (released.compareAndSet(false, true)) {
+                reserved.addAndGet(-bytes);
+                reservations.decrementAndGet();
+            }
+        }
+
+        @Override
+        public void close() {
+            release();
+        }
+    }
+
+    private final long limitBytes;
+    private final long minFreeBytes;
+    private final long retryAfterSeconds;
+    private final LongSupplier storedBytes;
+    private final FileStore fileStore;
+    private final AtomicLong reserved = new AtomicLong();
+    private final AtomicInteger reservations = new AtomicInteger();
+
+    public DiskQuota(Path directory, long limitBytes, long minFreeBytes, long retryAfterSeconds, LongSupplier storedBytes)
+            throws IOException {
+        this.limitBytes = limitBytes;
+        this.minFreeBytes = minFreeBytes;
+        this.retryAfterSeconds = retryAfterSeconds;
+        this.storedBytes = storedBytes;
+        this.fileStore = Files.getFileStore(directory);
+        Metrics.gauge("skylink_storage_limit_bytes", "", "Upload storage quota", () -> limitBytes);
+        Metrics.gauge("skylink_storage_reserved_bytes", "", "Bytes reserved by uploads in progress", reserved::get);
+        Metrics.gauge("skylink_storage_reservations", "", "Uploads holding a reservation", reservations::get);
+    }
+
+    /* Reserves bytes for one upload or says why not. The check and the add are one CAS, so two uploads racing for
+       the last free gigabyte cannot both get it. */
+    public Reservation reserve(long bytes) throws QuotaExceededException {
+        long stored = storedBytes.getAsLong();
+        long usable = usableSpace();
+        while (true) {
+            long current = reserved.get();
+            boolean fitsQuota = stored + current + bytes <= limitBytes;
+            boolean fitsDisk = usable - current - bytes >= minFreeBytes;
+            if (fitsQuota && fitsDisk) {
+                if (reserved.compareAndSet(current, current + bytes)) {
+                    reservations.incrementAndGet();
+                    return new Reservation(bytes);
+                }
+                continue;
+            }
+            // would it fit once the uploads in flight are done? then it is only a matter of waiting
+            boolean fitsLater = stored + bytes <= limitBytes && usable - bytes >= minFreeBytes;
+            if (fitsLater && current > 0) {
+                REJECTED_BUSY.increment();
+                Log.warn("Upload deferred, storage reserved by uploads in progress", "bytes", bytes, "reserved", current);
+                throw new QuotaExceededException(503, retryAfterSeconds,
+                        "Storage busy: too many uploads in progress, try again in " + retryAfterSeconds + " seconds.");
+            }
+            REJECTED_FULL.increment();
+            Log.warn("Upload rejected, storage full", "bytes", bytes, "stored", stored, "usable", usable);
+            throw new QuotaExceededException(507, 0, "Insufficient storage: the server cannot store more files right now.");
+        }
+    }
+
+    public long reservedBytes() {
+        return reserved.get();
+    }
+
+    private long usableSpace() {
+        try {
+            return fileStore.getUsableSpace();
+        } catch (IOException e) {
+            Log.error("Cannot read free disk space", e);
+            return Long.MAX_VALUE; // fall back to the quota alone, the write itself still fails cleanly
+        }
+    }
+}
@@ -1,205 +1,627 @@
 package P2P.Service;
 
-import P2P.Utils.UploadUtils;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import P2P.Utils.Config;
+import P2P.Utils.Log;
+import P2P.Utils.Metrics;
+import P2P.Utils.RateLimiter;
+import P2P.Utils.TimerWheel;
+import P2P.Utils.TransferScheduler;
 
 
 /* FileSharer is a service class that:
 Keeps track of which files are available for sharing.
-Assigns a unique port and access token for each file.
-Handles the logic for sending a file to a client using a temporary socket server.
-Cleans up once a file has been sent.
-It’s essentially managing a small, temporary file-serving network node. */
+Assigns a unique share id and access token for each file, or for a bundle of files uploaded together.
+Owns the TransferServer, the single listener that sends a file to any peer presenting a valid token.
+Cleans up once a file has been sent as many times as its uploader allowed (once by default), or when it expires.
+It’s essentially managing a small file-serving network node. */
 public class FileSharer {
+    // after this many collisions in a row the token space is considered full
+    private static final int MAX_TOKEN_ATTEMPTS = 64;
+    private static final Metrics.Counter SHARES_OFFERED = Metrics.counter("skylink_shares_offered_total", "",
+            "Files offered for download");
+    private static final Metrics.Counter SHARES_CLEANED = Metrics.counter("skylink_shares_cleaned_total", "",
+            "Shares removed after their file was delivered");
+    private static final Metrics.Counter DOWNLOADS_COMPLETED = Metrics.counter("skylink_share_downloads_total", "",
+            "Complete downloads of a share, a multi-recipient share counts one per recipient");
+    private static final Metrics.Counter SHARES_EXPIRED = Metrics.counter("skylink_shares_expired_total", "",
+            "Shares removed because nobody downloaded them before their TTL");
+    private static final Metrics.Counter RECLAIMED_AFTER_DOWNLOAD = Metrics.counter("skylink_reclaimed_bytes_total",
+            "reason=\"downloaded\"", "Disk bytes freed when shares went away");
+    private static final Metrics.Counter RECLAIMED_AFTER_EXPIRY = Metrics.counter("skylink_reclaimed_bytes_total",
+            "reason=\"expired\"", "Disk bytes freed when shares went away");
 
     //basically it is file metadata, that give info about the single file.
+    // The same FileInfo object sits in both maps, so a lookup by id or by token always sees the same share.
     private static class FileInfo {
-        String filePath; // filePath: where the file is located on disk.
-        String host;    //host: who uploaded it (IP address or hostname).
-        FileInfo(String filePath, String host) {
+        final int shareId;
+        final String token;
+        final String filePath; // filePath: where the file is located on disk.
+        final String fileName; // fileName: the name the uploader gave it, what the downloader gets to see.
+        final String host;    //host: who uploaded it (IP address or hostname).
+        final BlobStore.Blob blob; // blob: the deduplicated content behind this share, null for a plain file
+        final long expiresAt;  //expiresAt: when nobody downloaded it by then, the share and its file are reclaimed.
+        volatile TimerWheel.Timeout<Integer> expiry; // its entry in the expiry wheel, cancelled on download
+        final List<BundleFile> bundle; // bundle: the files of a multi-file upload (sent as one ZIP), null for one file
+        final int maxDownloads; // maxDownloads: complete downloads before the share goes away, 0 = until it expires
+        final AtomicInteger downloads = new AtomicInteger(); // complete downloads so far
+        final DeliveredRanges delivered = new DeliveredRanges(); // which bytes were sent to the current recipient
+        FileInfo(int shareId, String token, String filePath, String fileName, String host, BlobStore.Blob blob,
+                 List<BundleFile> bundle, long expiresAt, int maxDownloads) {
+            this.shareId = shareId;
+            this.token = token;
             this.filePath = filePath;
+            this.fileName = fileName;
             this.host = host;
+            this.blob = blob;
+            this.bundle = bundle;
+            this.expiresAt = expiresAt;
+            this.maxDownloads = maxDownloads;
+        }
+    }
+
+    // one file of a bundle share: the name it gets inside the ZIP and its content, the bundle owns one reference
+    public static final class BundleFile {
+        public final String fileName;
+        public final BlobStore.Blob blob;
+
+        public BundleFile(String fileName, BlobStore.Blob blob) {
+            this.fileName = fileName;
+            this.blob = blob;
         }
     }
 
-    /* availableFiles: Maps a port to a FileInfo (file + host info).
-    → This tells the server: “On port 5050, serve file xyz.txt.”*/
+    /* Byte ranges of a share that were fully sent, kept merged and sorted.
+       With Range requests a file can arrive in pieces (resumed or parallel downloads), so "downloaded" means
+       every byte was sent at least once, not that one request finished. Once that happened the ranges start over for
+       the next recipient of a multi-download share. Recipients whose pieces interleave are not told apart, two half
+       downloads may count as one whole: there is no identity to keep them apart, and the TTL still ends the share. */
+    private static class DeliveredRanges {
+        private final TreeMap<Long, Long> ranges = new TreeMap<>(); // start -> end (exclusive)
+
+        // adds [start, end) and returns true when [0, totalLength) is now covered completely
+        synchronized boolean add(long start, long end, long totalLength) {
+            Map.Entry<Long, Long> before = ranges.floorEntry(start);
+            if (before != null && before.getValue() >= start) {
+                start = before.getKey();
+                end = Math.max(end, before.getValue());
+            }
+            Map.Entry<Long, Long> next = ranges.ceilingEntry(start);
+            while (next != null && next.getKey() <= end) {
+                end = Math.max(end, next.getValue());
+                ranges.remove(next.getKey());
+                next = ranges.ceilingEntry(start);
+            }
+            ranges.put(start, end);
+            Map.Entry<Long, Long> firstRange = ranges.firstEntry();
+            if (firstRange.getKey() > 0 || firstRange.getValue() < totalLength) return false;
+            ranges.clear();
+            return true;
+        }
+    }
+
+    /* availableFiles: Maps a share id to a FileInfo (file + host info).
+    → This tells the server: “Share 17 is file xyz.txt.”
+    Shares used to be keyed by their own listening port, now all of them are served through one TransferServer port,
+    so the id is just a counter and we are no longer limited by the ~16k ports of the dynamic range. */
     private final ConcurrentHashMap<Integer, FileInfo> availableFiles;
 
-    /* accessTokens: Maps a port to a secure token (like a password).
-    → Prevents unauthorized downloads. */
-    private final ConcurrentHashMap<Integer, String> accessTokens;
+    /* accessTokens: Maps a token (like a password) to its share.
+    → Prevents unauthorized downloads, and /download finds the share with one hash lookup
+      instead of scanning every live share. */
+    private final ConcurrentHashMap<String, FileInfo> accessTokens;
+
+    private final AtomicInteger nextShareId = new AtomicInteger();
+
+    // how many digits a token has, 6 by default (a PIN people can type), raise it for very large share counts
+    private final int tokenDigits;
+
+    private volatile TransferServer transferServer;
+
+    /* Shares nobody downloads expire after their TTL. All of them sit in one timing wheel that a single scheduler
+       thread advances once per tick, and whatever expired in that tick is reclaimed as one batch. */
+    private static final long EXPIRY_TICK_MS = 1000;
+    private final long defaultTtlMillis;
+    private final long maxTtlMillis;
+    private final int maxDownloadsLimit;
+    private final TimerWheel<Integer> expiryWheel = new TimerWheel<>(EXPIRY_TICK_MS, 4096, System.currentTimeMillis());
+    private ScheduledExecutorService expiryScheduler;
+    private final List<Runnable> housekeeping = new CopyOnWriteArrayList<>(); // more cleanup run on every tick
+
+    // every offer and removal is appended here once restore() ran, null when shares are not persisted
+    private volatile ShareJournal journal;
 
 
     // constructor used to initialize a maps
     public FileSharer() {
+        this(Config.getInt("skylink.token.digits", 6));
+    }
+
+    public FileSharer(int tokenDigits) {
+        if (tokenDigits < 4 || tokenDigits > 18) {
+            throw new IllegalArgumentException("token digits must be between 4 and 18");
+        }
+        this.tokenDigits = tokenDigits;
+        // SKYLINK_SHARE_TTL_SECONDS: default lifetime of a share (1 day), an upload may ask for less or more, up to the max (7 days)
+        this.defaultTtlMillis = TimeUnit.SECONDS.toMillis(Config.getLong("skylink.share.ttl.seconds", 24 * 60 * 60));
+        this.maxTtlMillis = Math.max(defaultTtlMillis,
+                TimeUnit.SECONDS.toMillis(Config.getLong("skylink.share.ttl.max.seconds", 7 * 24 * 60 * 60)));
+        // SKYLINK_SHARE_MAX_DOWNLOADS: the most recipients one share may be sent to, a team rather than the internet
+        this.maxDownloadsLimit = Math.max(1, Config.getInt("skylink.share.max.downloads", 1000));
         availableFiles = new ConcurrentHashMap<>();
         accessTokens = new ConcurrentHashMap<>();
     }
 
-    /* Generates a 6-digit random token, e.g. "834192".
+    /* starts the single transfer listener (port 0 lets the OS pick a free one), sending at the pace of the scheduler.
+       It takes the per-IP limit of /download, a peer link handshake is a download request too */
+    public synchronized void startTransferServer(int port, int eventLoops, RateLimiter downloadLimiter, TransferScheduler scheduler,
+                                                 CompressedVariants compression, HotFileCache hotFiles) throws IOException {
+        if (transferServer != null) return;
+        TransferServer server = new TransferServer(this, downloadLimiter, scheduler, compression, hotFiles, port, eventLoops);
+        server.start();
+        transferServer = server;
+    }
+
+    public synchronized void stopTransferServer() {
+        if (transferServer != null) {
+            transferServer.stop();
+            transferServer = null;
+        }
+    }
+
+    // starts the thread that advances the expiry wheel, one tick per second
+    public synchronized void startExpiryScheduler() {
+        if (expiryScheduler != null) return;
+        expiryScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "share-expiry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        expiryScheduler.scheduleAtFixedRate(() -> {
+            try {
+                expireShares(System.currentTimeMillis());
+                maintainJournal();
+                for (Runnable task : housekeeping) {
+                    task.run();
+                }
+            } catch (RuntimeException e) {
+                Log.error("Share expiry failed", e); // keep the schedule alive, the next tick tries again
+            }
+        }, EXPIRY_TICK_MS, EXPIRY_TICK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // task runs on the expiry thread once per tick, for state outside the sharer that goes stale on its own
+    public void addHousekeeping(Runnable task) {
+        housekeeping.add(task);
+    }
+
+    public synchronized void stopExpiryScheduler() {
+        if (expiryScheduler != null) {
+            expiryScheduler.shutdownNow();
+            expiryScheduler = null;
+        }
+    }
+
+    /* Brings back the shares of the last run from the journal and keeps journalling from now on. Expired shares and
+       shares whose file is gone are dropped. Must run before the server accepts requests. Returns how many came back. */
+    public int restore(ShareJournal journal, BlobStore blobStore) throws IOException {
+        long now = System.currentTimeMillis();
+        List<ShareJournal.Record> records = journal.takeReplayed();
+        int restored = 0;
+        for (ShareJournal.Record record : records) {
+            nextShareId.accumulateAndGet(record.shareId, Math::max);
+            if (record.expiresAt <= now) continue;
+            BlobStore.Blob blob = null;
+            List<BundleFile> bundle = null;
+            if (record.members != null) {
+                bundle = adoptBundle(record.members, blobStore);
+                if (bundle == null) continue;
+            } else if (record.blob) {
+                blob = blobStore.adopt(Path.of(record.path).getFileName().toString());
+                if (blob == null) continue;
+            } else if (!Files.exists(Path.of(record.path))) {
+                continue;
+            }
+            FileInfo info = new FileInfo(record.shareId, record.token, record.path, record.fileName, record.host, blob,
+                    bundle, record.expiresAt, record.maxDownloads);
+            info.downloads.set(record.downloads);
+            if (accessTokens.putIfAbsent(info.token, info) != null) {
+                reclaim(info);
+                continue;
+            }
+            availableFiles.put(info.shareId, info);
+            info.expiry = expiryWheel.schedule(info.shareId, info.expiresAt);
+            restored++;
+        }
+        this.journal = journal;
+        if (restored < records.size() || journal.shouldCompact(restored)) {
+            compactJournal(); // the dropped shares are dead records now
+        }
+        Log.info("Shares restored", "restored", restored, "dropped", records.size() - restored);
+        return restored;
+    }
+
+    // the blobs of a journalled bundle, null (and nothing held) when one of its files is gone
+    private static List<BundleFile> adoptBundle(List<ShareJournal.Member> members, BlobStore blobStore) throws IOException {
+        List<BundleFile> bundle = new ArrayList<>(members.size());
+        for (ShareJournal.Member member : members) {
+            BlobStore.Blob blob = blobStore.adopt(Path.of(member.path).getFileName().toString());
+            if (blob == null) {
+                for (BundleFile adopted : bundle) adopted.blob.release();
+                return null;
+            }
+            bundle.add(new BundleFile(member.fileName, blob));
+        }
+        return bundle;
+    }
+
+    // flushes the journal to disk and compacts it once it is mostly dead records, runs on the expiry thread
+    public void maintainJournal() {
+        ShareJournal current = journal;
+        if (current == null) return;
+        current.force();
+        if (current.shouldCompact(availableFiles.size())) {
+            compactJournal();
+        }
+    }
+
+    public void closeJournal() {
+        ShareJournal current = journal;
+        journal = null;
+        if (current == null) return;
+        try {
+            current.close();
+        } catch (IOException e) {
+            Log.error("Failed to close share journal", e);
+        }
+    }
+
+    private void journalOffer(FileInfo info) {
+        ShareJournal current = journal;
+        // a full journal is compacted, the snapshot already contains this share because it was put in the maps first
+        if (current != null && !current.appendOffer(toRecord(info))) {
+            compactJournal();
+        }
+    }
+
+    private void journalDownloads(FileInfo info, int downloads) {
+        ShareJournal current = journal;
+        if (current != null && !current.appendDownloads(info.shareId, info.maxDownloads, downloads)) {
+            compactJournal();
+        }
+    }
+
+    private void journalRemove(int shareId) {
+        ShareJournal current = journal;
+        if (current != null && !current.appendRemove(shareId)) {
+            compactJournal();
+        }
+    }
+
+    private void compactJournal() {
+        ShareJournal current = journal;
+        if (current == null) return;
+        try {
+            current.compact(() -> {
+                List<ShareJournal.Record> live = new ArrayList<>(availableFiles.size());
+                for (FileInfo info : availableFiles.values()) {
+                    live.add(toRecord(info));
+                }
+                return live;
+            });
+        } catch (IOException e) {
+            Log.error("Share journal compaction failed", e);
+        }
+    }
+
+    private static ShareJournal.Record toRecord(FileInfo info) {
+        if (info.bundle != null) {
+            List<ShareJournal.Member> members = new ArrayList<>(info.bundle.size());
+            long size = 0;
+            for (BundleFile file : info.bundle) {
+                members.add(new ShareJournal.Member(file.fileName, file.blob.path.toString(), file.blob.size));
+                size += file.blob.size;
+            }
+            return new ShareJournal.Record(info.shareId, info.token, info.filePath, info.fileName, info.host, size,
+                    info.expiresAt, true, members, info.maxDownloads, info.downloads.get());
+        }
+        long size = info.blob != null ? info.blob.size : new File(info.filePath).length();
+        return new ShareJournal.Record(info.shareId, info.token, info.filePath, info.fileName, info.host, size,
+                info.expiresAt, info.blob != null, null, info.maxDownloads, info.downloads.get());
+    }
+
+    // the port peers connect to for a transfer, -1 if the transfer server is not running
+    public int getTransferPort() {
+        TransferServer server = transferServer;
+        return server == null ? -1 : server.getPort();
+    }
+
+    /* Generates a random token with tokenDigits digits, e.g. "834192".
        Used for file download authentication.
        So when someone uploads a file, they get a unique token that must be shared with the downloader. */
     private String generateAccessToken() {
-        Random random = new Random();
-        int pin = 100000 + random.nextInt(900000);
+        long low = 1;
+        for (int i = 1; i < tokenDigits; i++) low *= 10;
+        long pin = low + ThreadLocalRandom.current().nextLong(low * 9);
         return String.valueOf(pin);
     }
 
     /* This method is called when someone offers (uploads) a file.
-    It: Generates a random port number (via UploadUtils.generatePort()).
-    Checks if that port is free (not already in use).
-    If free: Stores the file info in availableFiles.
-    Creates and stores a token in accessTokens.
-    Returns that port
+    It: Takes the next share id.
+    Picks a token that no live share uses yet (putIfAbsent makes the claim atomic, two uploads can never get the same one).
+    Stores the file info under both the token and the share id.
+    Returns that share id
     So each uploaded file gets:
-      1. A unique port
+      1. A unique share id
       2. A unique access token  */
     public int offerFile(String filePath, String uploaderHost) {
-        int port;
-        while (true) {
-            port = UploadUtils.generatePort();   // call this method , until we get the free port
-            if (!availableFiles.containsKey(port)) {
-                availableFiles.put(port, new FileInfo(filePath, uploaderHost));
-                String token = generateAccessToken();
-                accessTokens.put(port, token);
-                return port;
-            }
-        }
+        return offerFile(filePath, uploaderHost, defaultTtlMillis);
     }
-    // isPortAvailable: Checks if a file exists on that port.
-    public boolean isPortOccupied(int port) {
-        return availableFiles.containsKey(port);
+
+    public int offerFile(String filePath, String uploaderHost, long ttlMillis) {
+        return offer(filePath, new File(filePath).getName(), uploaderHost, null, null, ttlMillis, 1);
     }
-    // validateToken: Ensures the provided token matches the one assigned to that port.
-    public boolean validateToken(int port, String token) {
-        if (token == null || !accessTokens.containsKey(port)) {
-            return false;
-        }
-        return accessTokens.get(port).equals(token);
+
+    /* offerBlob: Shares deduplicated content under the name the uploader gave it.
+       The share owns one reference of the blob (the caller got it from BlobStore.add) and releases it on cleanup. */
+    public int offerBlob(BlobStore.Blob blob, String fileName, String uploaderHost) {
+        return offerBlob(blob, fileName, uploaderHost, defaultTtlMillis);
+    }
+
+    // same, with its own lifetime: ttlMillis <= 0 means the default TTL, more than the maximum is cut down to it
+    public int offerBlob(BlobStore.Blob blob, String fileName, String uploaderHost, long ttlMillis) {
+        return offerBlob(blob, fileName, uploaderHost, ttlMillis, 1);
     }
-    //getToken: Fetches the token for a given port.
-    public String getToken(int port) {
-        return accessTokens.get(port);
+
+    /* same, for maxDownloads recipients (see effectiveDownloads): the share stays until that many complete downloads
+       went out or its TTL passed, whichever comes first */
+    public int offerBlob(BlobStore.Blob blob, String fileName, String uploaderHost, long ttlMillis, int maxDownloads) {
+        return offer(blob.path.toString(), fileName, uploaderHost, blob, null, ttlMillis, maxDownloads);
     }
-    //getPortByToken: Reverse lookup (find port using token).
-    public Integer getPortByToken(String token) {
-        for (Map.Entry<Integer , String> entry : accessTokens.entrySet()) {
-            if (entry.getValue().equals(token)) {
-                return entry.getKey();
+
+    /* offerBundle: Shares the files of one multi-file upload under a single token, the download is one ZIP of all of
+       them. The share owns one reference of every blob. Names that repeat get a " (1)" so the ZIP has no duplicates. */
+    public int offerBundle(List<BundleFile> files, String uploaderHost, long ttlMillis, int maxDownloads) {
+        if (files.isEmpty()) throw new IllegalArgumentException("a bundle needs at least one file");
+        List<BundleFile> bundle = new ArrayList<>(files.size());
+        Set<String> names = new HashSet<>();
+        for (BundleFile file : files) {
+            String name = file.fileName;
+            int dot = name.lastIndexOf('.');
+            String base = dot > 0 ? name.substring(0, dot) : name;
+            String extension = dot > 0 ? name.substring(dot) : "";
+            // case-insensitive, two names that differ in case collide when the ZIP is extracted on Windows or macOS
+            for (int copy = 1; !names.add(name.toLowerCase(Locale.ROOT)); copy++) {
+                name = base + " (" + copy + ")" + extension;
             }
+            bundle.add(name.equals(file.fileName) ? file : new BundleFile(name, file.blob));
         }
-        return null;
+        return offer("", "skylink-" + bundle.size() + "-files.zip", uploaderHost, null, List.copyOf(bundle), ttlMillis,
+                maxDownloads);
+    }
+
+    private int offer(String filePath, String fileName, String uploaderHost, BlobStore.Blob blob, List<BundleFile> bundle,
+                      long ttlMillis, int maxDownloads) {
+        // rejected before the share exists, the journal could not store it
+        if (!fileNameFits(fileName) || (bundle != null && !bundle.stream().allMatch(file -> fileNameFits(file.fileName)))) {
+            throw new IllegalArgumentException("File name longer than " + ShareJournal.MAX_STRING_BYTES + " bytes");
+        }
+        int shareId = nextShareId.incrementAndGet();
+        long expiresAt = System.currentTimeMillis() + effectiveTtl(ttlMillis);
+        maxDownloads = effectiveDownloads(maxDownloads);
+        for (int attempt = 0; attempt < MAX_TOKEN_ATTEMPTS; attempt++) {
+            FileInfo info = new FileInfo(shareId, generateAccessToken(), filePath, fileName, uploaderHost, blob, bundle,
+                    expiresAt, maxDownloads);
+            if (accessTokens.putIfAbsent(info.token, info) == null) {
+                // nobody knows the token yet, so nobody can look the share up between these two puts
+                availableFiles.put(shareId, info);
+                info.expiry = expiryWheel.schedule(shareId, expiresAt);
+                journalOffer(info);
+                SHARES_OFFERED.increment();
+                return shareId;
+            }
+        }
+        throw new IllegalStateException("Could not find a free access token, too many live shares for "
+                + tokenDigits + "-digit tokens");
+    }
+    // fileNameFits: Whether a share can carry this name, the upload handlers check it before storing anything.
+    public static boolean fileNameFits(String fileName) {
+        return fileName.getBytes(StandardCharsets.UTF_8).length <= ShareJournal.MAX_STRING_BYTES;
+    }
+
+    // isShareAvailable: Checks if a file exists for that share.
+    public boolean isShareAvailable(int shareId) {
+        return availableFiles.containsKey(shareId);
+    }
+    // validateToken: Ensures the provided token matches the one assigned to that share.
+    public boolean validateToken(int shareId, String token) {
+        FileInfo info = availableFiles.get(shareId);
+        return token != null && info != null && info.token.equals(token);
+    }
+    //getToken: Fetches the token for a given share.
+    public String getToken(int shareId) {
+        FileInfo info = availableFiles.get(shareId);
+        return (info != null) ? info.token : null;
+    }
+    //getShareIdByToken: Reverse lookup (find share using token), a single hash lookup.
+    public Integer getShareIdByToken(String token) {
+        if (token == null) return null;
+        FileInfo info = accessTokens.get(token);
+        return (info != null) ? info.shareId : null;
     }
 
     // Get file host (needed in DownloadHandler)
-    // getHostByPort: Gets uploader host info.
-    public String getHostByPort(int port) {
-        FileInfo info = availableFiles.get(port);
+    // getHost: Gets uploader host info.
+    public String getHost(int shareId) {
+        FileInfo info = availableFiles.get(shareId);
         return (info != null) ? info.host : null;
     }
 
-    //getFilePath: Returns the actual file path stored for that port.
-    public String getFilePath(int port) {
-        FileInfo info = availableFiles.get(port);
+    //getFilePath: Returns the actual file path stored for that share.
+    public String getFilePath(int shareId) {
+        FileInfo info = availableFiles.get(shareId);
         return (info != null) ? info.filePath : null;
     }
 
-    /* Once a file is downloaded: It deletes the file (if needed). Removes its entry from both availableFiles and accessTokens.
-       This prevents old ports/tokens creating problem for us later , when app grows — good for security and memory.   */
-    public void cleanupAfterDownload(int port) {
-        FileInfo info = availableFiles.get(port);
+    // the TTL a share really gets when ttlMillis is asked for
+    public long effectiveTtl(long ttlMillis) {
+        return ttlMillis <= 0 ? defaultTtlMillis : Math.min(ttlMillis, maxTtlMillis);
+    }
+
+    // the download count a share really gets: 0 (until it expires) stays 0, more than the maximum is cut down to it
+    public int effectiveDownloads(int maxDownloads) {
+        return maxDownloads <= 0 ? 0 : Math.min(maxDownloads, maxDownloadsLimit);
+    }
+
+    //getExpiresAt: When the share expires (epoch millis), -1 for an unknown share.
+    public long getExpiresAt(int shareId) {
+        FileInfo info = availableFiles.get(shareId);
+        return (info != null) ? info.expiresAt : -1;
+    }
+
+    //getFileName: The original name of the shared file (the blob on disk is named after its hash).
+    public String getFileName(int shareId) {
+        FileInfo info = availableFiles.get(shareId);
+        return (info != null) ? info.fileName : null;
+    }
+
+    //getContentHash: SHA-256 of the content in hex, null when the share is not backed by a blob.
+    public String getContentHash(int shareId) {
+        FileInfo info = availableFiles.get(shareId);
+        return (info != null && info.blob != null) ? info.blob.hash : null;
+    }
+
+    //getBundle: The files of a bundle share in ZIP order, null when the share is a single file.
+    public List<BundleFile> getBundle(int shareId) {
+        FileInfo info = availableFiles.get(shareId);
+        return (info != null) ? info.bundle : null;
+    }
+
+    /* getLocalFile: Returns the path of the share's file when it is readable. Every upload is stored on our own disk,
+       DownloadHandler streams straight from there; null means the file is gone (or the share is a bundle, which has
+       no single file). */
+    public Path getLocalFile(int shareId) {
+        FileInfo info = availableFiles.get(shareId);
+        if (info == null || info.bundle != null) return null;
+        Path path = Path.of(info.filePath);
+        return Files.isReadable(path) ? path : null;
+    }
+
+    /* markDelivered: Records that bytes [start, end) of a share (totalLength bytes long) were sent to a client.
+       Every byte of the file delivered at least once is one complete download. Returns true when that was the last
+       download the share allows, that is the moment to clean up. */
+    public boolean markDelivered(int shareId, long start, long end, long totalLength) {
+        FileInfo info = availableFiles.get(shareId);
+        return info != null && info.delivered.add(start, end, totalLength) && countDownload(info);
+    }
+
+    // markDownloaded: A download that is always sent whole (a bundle's ZIP) completed, same answer
+    public boolean markDownloaded(int shareId) {
+        FileInfo info = availableFiles.get(shareId);
+        return info != null && countDownload(info);
+    }
+
+    //getDownloadsLeft: How many more complete downloads the share allows, -1 for no limit (or an unknown share).
+    public int getDownloadsLeft(int shareId) {
+        FileInfo info = availableFiles.get(shareId);
+        return (info != null && info.maxDownloads > 0) ? Math.max(0, info.maxDownloads - info.downloads.get()) : -1;
+    }
+
+    private boolean countDownload(FileInfo info) {
+        int downloads = info.downloads.incrementAndGet();
+        DOWNLOADS_COMPLETED.increment();
+        if (info.maxDownloads > 0 && downloads >= info.maxDownloads) return true;
+        journalDownloads(info, downloads); // so a restart does not hand out the same downloads again
+        return false;
+    }
+
+    /* Once a file is downloaded (by its last allowed recipient): It deletes the file (if needed). Removes its entry from both availableFiles and accessTokens.
+       This prevents old shares/tokens creating problem for us later , when app grows — good for security and memory.   */
+    public void cleanupAfterDownload(int shareId) {
+        // remove() hands the entry to exactly one caller, so two downloads finishing together cannot both clean up
+        FileInfo info = availableFiles.remove(shareId);
         if (info != null) {
-            File file = new File(info.filePath);
-            if (file.exists()) {
-                if (file.delete()) {
-                    System.out.println("File deleted after download: " + file.getName());
-                } else {
-                    System.err.println("Failed to delete file: " + file.getName());
-                }
-            }
-            availableFiles.remove(port);
-            accessTokens.remove(port);
-            System.out.println("Cleaned up port " + port + " and associated token with that port");
-        }
-    }
-
-    // This is the temporary mini-server that actually sends the file.
-    public void startFileServer(int port) {
-        FileInfo info = availableFiles.get(port);
-        if (info == null) {
-            System.out.println("No file is available with this port: " + port);
-            return;
-        }
-        String filePath = info.filePath;
-        // ServerSocket is a Java class that listens for incoming TCP connections on a port.
-        try (ServerSocket serverSocket = new ServerSocket(port)) { /* When you create new ServerSocket(port)
-            ,the OS binds that process to the network port. If the port is already in use, this throws IOException. */
-            serverSocket.setSoTimeout(50000);  /* Sets a timeout (in milliseconds) for blocking operations on the ServerSocket.
-            Specifically, accept() will wait up to 50,000 ms (50 seconds);
-            if no client connects in that time, accept() throws a SocketTimeoutException.
-            This prevents the server from waiting forever and helps the method eventually return if nobody connects.*/
-            System.out.println("Serving File " + new File(filePath).getName() + " on port " + port);
-
-            Socket clientSocket = serverSocket.accept(); /*  accept() blocks the current thread until a client connects
-             (or the timeout triggers).When a client connects, accept() returns a Socket object (clientSocket) representing
-              that specific connection. The returned Socket has input/output streams for sending/receiving data across the
-              TCP connection. */
-            clientSocket.setSoTimeout(50000); /* Sets a read timeout for the client socket’s InputStream/OutputStream operations.
-             basically when connection is established, we only waits for 50 sec for file transfer , if it takes more than
-             50 sec , we have thrown the exception. (This helps avoid hung transfers.) */
-            System.out.println("Client connection: " + clientSocket.getInetAddress());
-            new Thread(new FileSenderHandler(clientSocket, filePath)).start();
-        } catch (IOException e) {
-            System.err.println("Error handling file server on port: " + port);
+            accessTokens.remove(info.token, info);
+            TimerWheel.Timeout<Integer> expiry = info.expiry;
+            if (expiry != null) expiry.cancel();
+            journalRemove(shareId);
+            SHARES_CLEANED.increment();
+            RECLAIMED_AFTER_DOWNLOAD.add(reclaim(info));
+            Log.info("Cleaned up share and its token", "share", shareId);
         }
     }
 
-    private static class FileSenderHandler implements Runnable {
-        private final Socket clientSocket;
-        private final String filePath;
-
-        public FileSenderHandler(Socket clientSocket, String filePath) {
-            this.clientSocket = clientSocket;
-            this.filePath = filePath;
+    /* Reclaims every share whose TTL passed by nowMillis, returns how many were removed.
+       Called by the expiry scheduler every tick, tests call it with a clock of their own. */
+    public int expireShares(long nowMillis) {
+        List<Integer> due;
+        synchronized (expiryWheel) {
+            due = expiryWheel.advance(nowMillis);
         }
+        if (due.isEmpty()) return 0;
+        int expired = 0;
+        long bytes = 0;
+        for (Integer shareId : due) {
+            FileInfo info = availableFiles.get(shareId);
+            // remove(key, value): a share that is being cleaned up after its download right now is not ours any more
+            if (info == null || info.expiresAt > nowMillis || !availableFiles.remove(shareId, info)) continue;
+            accessTokens.remove(info.token, info);
+            journalRemove(shareId);
+            bytes += reclaim(info);
+            expired++;
+        }
+        SHARES_EXPIRED.add(expired);
+        RECLAIMED_AFTER_EXPIRY.add(bytes);
+        if (expired > 0) {
+            Log.info("Expired shares reclaimed", "shares", expired, "bytes", bytes, "live", availableFiles.size());
+        }
+        return expired;
+    }
 
-        @Override
-        public void run() {
-            try {
-                clientSocket.setSoTimeout(30000);
-                try (FileInputStream fis = new FileInputStream(filePath)) {
-                    OutputStream oos = clientSocket.getOutputStream();
-                    String fileName = new File(filePath).getName();
-                    String header = "Filename: " + fileName + "\n";
-                    oos.write(header.getBytes());
-
-                    byte[] buffer = new byte[4096];
-                    int byteRead;
-                    while ((byteRead = fis.read(buffer)) != -1) {
-                        oos.write(buffer, 0, byteRead);
-                    }
-                    System.out.println("File " + fileName + " sent to " + clientSocket.getInetAddress());
-                }
-            } catch (IOException ex) {
-                System.err.println("Error sending file to client: " + ex.getMessage());
-            } finally {
-                try {
-                    clientSocket.close();
-                } catch (IOException e) {
-                    System.err.println("Error closing socket: " + e.getMessage());
-                }
+    // frees the storage behind a removed share, returns the bytes that really left the disk
+    private long reclaim(FileInfo info) {
+        if (info.bundle != null) {
+            long bytes = 0;
+            for (BundleFile file : info.bundle) bytes += file.blob.release();
+            return bytes;
+        }
+        if (info.blob != null) {
+            // other shares may point at the same content, the store deletes the file with the last reference
+            return info.blob.release();
+        }
+        File file = new File(info.filePath);
+        long length = file.length();
+        if (file.exists()) {
+            if (file.delete()) {
+                Log.info("File deleted", "share", info.shareId, "file", file.getName());
+                return length;
             }
+            Log.error("Failed to delete file", "share", info.shareId, "file", file.getName());
         }
+        return 0;
     }
-}
-
 
+    // number of shares currently live
+    public int getShareCount() {
+        return availableFiles.size();
+    }
+}
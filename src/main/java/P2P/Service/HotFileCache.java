@@ -0,0 +1,203 @@
+package P2P.Service;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import P2P.Utils.Log;
+import P2P.Utils.Metrics;
+
+/* Off-heap copies of the files many recipients download, so a share sent to a team of 30 is read from disk once
+   and then sent 29 more times from memory instead of 30 trips through the file system.
+   Entries are direct ByteBuffers keyed by content hash (the blob store is content addressed, an entry can never go
+   stale, it is only dropped with its blob). The cache holds at most SKYLINK_HOT_CACHE_BYTES, a single file at most
+   SKYLINK_HOT_CACHE_MAX_FILE_BYTES.
+   Eviction is LRU, admission is TinyLFU-style: every download counts in a small frequency sketch, a file is only
+   loaded once it was asked for before, and when that needs room it only gets in if it was asked for more often than
+   every entry it would push out. One-off downloads (most shares) never get to replace a file a whole team is fetching.
+   A download fetched in segments is one download: only its first range asks get(), the others peek().
+   Direct memory goes back when the GC collects an evicted buffer; a sender that still uses it keeps it valid until then. */
+public class HotFileCache {
+    private static final Metrics.Counter HITS = Metrics.counter("skylink_hot_cache_hits_total", "",
+            "Downloads served from the in-memory hot file cache");
+    private static final Metrics.Counter MISSES = Metrics.counter("skylink_hot_cache_misses_total", "",
+            "Downloads of cacheable files that had to read the disk");
+    private static final Metrics.Counter EVICTIONS = Metrics.counter("skylink_hot_cache_evictions_total", "",
+            "Files pushed out of the hot file cache to make room");
+    private static final Metrics.Counter REJECTED = Metrics.counter("skylink_hot_cache_rejected_total", "",
+            "Files not admitted because the entries they would replace are used more");
+
+    private final long maxBytes;
+    private final long maxFileBytes;
+    private final LinkedHashMap<String, ByteBuffer> entries = new LinkedHashMap<>(16, 0.75f, true); // access order
+    private final Set<String> loading = new HashSet<>();
+    private final FrequencySketch frequency = new FrequencySketch(4096);
+    private long bytes; // cached plus being loaded
+
+    public HotFileCache(long maxBytes, long maxFileBytes) {
+        this.maxBytes = maxBytes;
+        this.maxFileBytes = Math.min(maxFileBytes, Integer.MAX_VALUE);
+        Metrics.gauge("skylink_hot_cache_bytes", "", "Bytes held by the hot file cache", this::bytes);
+    }
+
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /* The whole content of file (size bytes, content hash) as a read-only buffer of its own, positioned at 0, or null
+       when the caller should read the file itself. A miss that earns admission loads the file here, on the caller's
+       thread, with the same reads the caller would have done. */
+    public ByteBuffer get(String hash, FileChannel file, long size) throws IOException {
+        if (hash == null || !isEnabled() || size <= 0 || size > maxFileBytes) return null;
+        synchronized (this) {
+            ByteBuffer cached = lookup(hash);
+            if (cached != null) return cached;
+            if (!admit(hash, size)) return null;
+        }
+        ByteBuffer buffer = null;
+        try {
+            buffer = ByteBuffer.allocateDirect((int) size);
+            while (buffer.hasRemaining()) {
+                if (file.read(buffer, buffer.position()) < 0) throw new EOFException("File shorter than " + size + " bytes");
+            }
+            buffer.flip();
+        } catch (IOException | OutOfMemoryError e) {
+            // MaxDirectMemorySize reached or the file changed under us: this download reads the disk, nothing breaks
+            Log.warn("Hot file cache load failed", "hash", hash, "error", e.toString());
+            buffer = null;
+        } finally {
+            synchronized (this) {
+                // forget() during the load removed it from loading: the blob is gone, do not keep its copy
+                if (!loading.remove(hash) || buffer == null) {
+                    bytes -= size;
+                    buffer = null;
+                } else {
+                    entries.put(hash, buffer);
+                }
+            }
+        }
+        return buffer == null ? null : buffer.asReadOnlyBuffer();
+    }
+
+    /* Only what is cached already, never loads: for the transfer event loops, which must not block on a big read.
+       Still counts as a request for the admission decision of the next get(). */
+    public synchronized ByteBuffer lookup(String hash) {
+        if (hash == null || !isEnabled()) return null;
+        frequency.increment(hash);
+        return peek(hash);
+    }
+
+    // what is cached already, without counting a request: for the later ranges of a download that was counted
+    public synchronized ByteBuffer peek(String hash) {
+        if (hash == null || !isEnabled()) return null;
+        ByteBuffer cached = entries.get(hash);
+        if (cached == null) {
+            MISSES.increment();
+            return null;
+        }
+        HITS.increment();
+        return cached.asReadOnlyBuffer(); // own position and limit for every sender
+    }
+
+    // the blob was deleted, its copy goes too
+    public synchronized void forget(String hash) {
+        ByteBuffer removed = entries.remove(hash);
+        if (removed != null) bytes -= removed.capacity();
+        loading.remove(hash);
+    }
+
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    // decides under the lock whether hash gets loaded, evicts what it replaces and reserves its bytes if so
+    private boolean admit(String hash, long size) {
+        if (loading.contains(hash) || frequency.frequency(hash) < 2 || size > maxBytes) return false;
+        int candidate = frequency.frequency(hash);
+        List<String> victims = new ArrayList<>();
+        long free = maxBytes - bytes;
+        Iterator<Map.Entry<String, ByteBuffer>> eldest = entries.entrySet().iterator();
+        while (free < size && eldest.hasNext()) {
+            Map.Entry<String, ByteBuffer> victim = eldest.next();
+            if (frequency.frequency(victim.getKey()) >= candidate) {
+                REJECTED.increment();
+                return false;
+            }
+            victims.add(victim.getKey());
+            free += victim.getValue().capacity();
+        }
+        if (free < size) return false; // the rest is still being loaded
+        for (String victim : victims) {
+            bytes -= entries.remove(victim).capacity();
+            EVICTIONS.increment();
+        }
+        bytes += size;
+        loading.add(hash);
+        return true;
+    }
+
+    /* Count-min sketch of how often each hash was requested lately: 4 rows of 4-bit-ish counters (capped at 15),
+       all halved after 10 x width requests so old popularity fades and a new hot file can win. */
+    static final class FrequencySketch {
+        private static final int ROWS = 4;
+        private final byte[][] counters;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int width) {
+            int size = Integer.highestOneBit(Math.max(width, 16));
+            this.counters = new byte[ROWS][size];
+            this.mask = size - 1;
+            this.sampleSize = 10 * size;
+        }
+
+        void increment(String key) {
+            int hash = spread(key.hashCode());
+            for (int row = 0; row < ROWS; row++) {
+                int index = index(hash, row);
+                if (counters[row][index] < 15) counters[row][index]++;
+            }
+            if (++additions >= sampleSize) reset();
+        }
+
+        int frequency(String key) {
+            int hash = spread(key.hashCode());
+            int min = Integer.MAX_VALUE;
+            for (int row = 0; row < ROWS; row++) {
+                min = Math.min(min, counters[row][index(hash, row)]);
+            }
+            return min;
+        }
+
+        private int index(int hash, int row) {
+            int h = hash * (0x9E3779B9 + 2 * row); // a different odd multiplier per row
+            return (h ^ (h >>> 16)) & mask;
+        }
+
+        private static int spread(int hash) {
+            hash ^= hash >>> 17;
+            hash *= 0xed5ad4bb;
+            return hash ^ (hash >>> 11);
+        }
+
+        private void reset() {
+            for (byte[] row : counters) {
+                for (int i = 0; i < row.length; i++) row[i] >>= 1;
+            }
+            additions /= 2;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package P2P.Service;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import P2P.Utils.Config;
+import P2P.Utils.Log;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpHandler;
+
+/* The HTTP server the API runs on. Handlers are written against com.sun.net.httpserver (HttpHandler, HttpExchange,
+   Filter) whichever engine serves them:
+     SKYLINK_HTTP_ENGINE=sun (default) -> the JDK's HttpServer, one pool thread per exchange for its whole life
+     SKYLINK_HTTP_ENGINE=nio           -> NioHttpServer: a few selector threads own every connection, keep-alive and
+                                          idle connections cost no thread, the executor only runs the handlers */
+public interface HttpEngine {
+    enum Kind { SUN, NIO }
+
+    static Kind configuredKind() {
+        String value = Config.get("skylink.http.engine", "sun");
+        if (value.equalsIgnoreCase("nio")) return Kind.NIO;
+        if (!value.equalsIgnoreCase("sun")) {
+            Log.warn("Unknown HTTP engine, using sun", "engine", value);
+        }
+        return Kind.SUN;
+    }
+
+    // handlers run on executor, port 0 picks a free port
+    static HttpEngine create(Kind kind, int port, ExecutorService executor) throws IOException {
+        if (kind == Kind.NIO) {
+            return new NioHttpServer(port, executor,
+                    Config.getInt("skylink.http.loops", Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()))),
+                    Config.getLong("skylink.http.idle.timeout.ms", 30_000));
+        }
+        return new SunHttpEngine(port, executor);
+    }
+
+    // requests whose path starts with path go to handler, through filters in order; the longest matching path wins
+    void addContext(String path, HttpHandler handler, List<Filter> filters);
+
+    void start() throws IOException;
+
+    void stop();
+
+    int getPort();
+}
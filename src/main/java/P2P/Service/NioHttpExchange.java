@@ -0,0 +1,443 @@
+package P2P.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import P2P.Utils.Log;
+import com.sun.net.httpserver.Authenticator;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpPrincipal;
+import com.sun.net.httpserver.HttpServer;
+
+/* The HttpExchange our handlers see when NioHttpServer runs them, so UploadHandler, DownloadHandler, the CORS handler
+   and the admission filter work on either engine without a change. Semantics follow HttpServer's:
+     - sendResponseHeaders(code, n): n > 0 fixed length, 0 chunked, -1 no body. HTTP/1.0 has no chunks, there 0
+       means a body that ends when the connection is closed
+     - the request body stream is framed (Content-Length or chunked) and ends with the request
+     - close() ends the response; what the handler left of the request body is read and dropped, up to DRAIN_LIMIT,
+       so the connection can take the next request. A handler that never answered gets a 500. */
+final class NioHttpExchange extends HttpExchange {
+    private static final long DRAIN_LIMIT = 1024 * 1024;
+    private static final int CHUNK_SIZE = 16 * 1024;
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private final NioHttpServer.Connection connection;
+    private final Context context;
+    private final String method;
+    private final URI uri;
+    private final String protocol;
+    private final Headers requestHeaders;
+    private final Headers responseHeaders = new Headers();
+    private final boolean keepAlive;
+    private final Map<String, Object> attributes = new HashMap<>();
+    private final InputStream requestBody;
+    private final ResponseBody responseBody = new ResponseBody();
+    private InputStream requestStream;  // what getRequestBody() returns, a filter may have wrapped it (setStreams)
+    private OutputStream responseStream;
+    private int responseCode = -1;
+    private boolean closeConnection;
+    private boolean closed;
+
+    // requestLength -1 means a chunked request body
+    NioHttpExchange(NioHttpServer.Connection connection, Context context, String method, URI uri, String protocol,
+                    Headers requestHeaders, long requestLength, boolean keepAlive) {
+        this.connection = connection;
+        this.context = context;
+        this.method = method;
+        this.uri = uri;
+        this.protocol = protocol;
+        this.requestHeaders = requestHeaders;
+        this.keepAlive = keepAlive;
+        this.requestBody = requestLength < 0 ? new ChunkedBody() : new FixedLengthBody(requestLength);
+        this.requestStream = requestBody;
+        this.responseStream = responseBody;
+    }
+
+    // runs on the executor: filters, handler, and whatever the handler forgot to finish
+    void run() {
+        try {
+            new Filter.Chain(context.getFilters(), context.getHandler()).doFilter(this);
+        } catch (Exception | Error e) {
+            Log.error("HTTP handler failed", e, "path", uri.getPath());
+            closeConnection = true;
+        } finally {
+            close();
+        }
+    }
+
+    @Override
+    public void sendResponseHeaders(int code, long length) throws IOException {
+        if (responseCode != -1) throw new IOException("Response headers already sent");
+        responseCode = code;
+        boolean noBody = length == -1 || code < 200 || code == 204 || code == 304 || method.equalsIgnoreCase("HEAD");
+        boolean untilClose = !noBody && length == 0 && protocol.equals("HTTP/1.0");
+        if (!noBody && length > 0) {
+            responseHeaders.set("Content-Length", String.valueOf(length));
+        } else if (untilClose) {
+            closeConnection = true; // the end of the connection is the end of the body
+        } else if (!noBody) {
+            responseHeaders.set("Transfer-Encoding", "chunked");
+        } else if (code >= 200 && code != 204 && code != 304) {
+            responseHeaders.set("Content-Length", "0");
+        }
+        if (!keepAlive || closeConnection || "close".equalsIgnoreCase(responseHeaders.getFirst("Connection"))) {
+            closeConnection = true;
+            responseHeaders.set("Connection", "close");
+        } else if (protocol.equals("HTTP/1.0")) {
+            responseHeaders.set("Connection", "keep-alive");
+        }
+        if (!responseHeaders.containsKey("Date")) {
+            responseHeaders.set("Date", DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC)));
+        }
+        StringBuilder head = new StringBuilder(256).append("HTTP/1.1 ").append(code).append(' ').append(reason(code)).append("\r\n");
+        for (Map.Entry<String, List<String>> header : responseHeaders.entrySet()) {
+            for (String value : header.getValue()) {
+                head.append(header.getKey()).append(": ").append(value).append("\r\n");
+            }
+        }
+        byte[] bytes = head.append("\r\n").toString().getBytes(StandardCharsets.ISO_8859_1);
+        connection.write(bytes, 0, bytes.length);
+        responseBody.begin(noBody ? -1 : untilClose ? Long.MAX_VALUE : length);
+    }
+
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        try {
+            if (responseCode == -1) {
+                closeConnection = true;
+                sendResponseHeaders(500, -1);
+            }
+            responseBody.close();
+            // the rest of the request body, unless there is too much of it to be worth keeping the connection
+            byte[] skip = new byte[8192];
+            long drained = 0;
+            int read;
+            while (drained <= DRAIN_LIMIT && (read = requestBody.read(skip)) != -1) {
+                drained += read;
+            }
+            if (drained > DRAIN_LIMIT) closeConnection = true;
+        } catch (IOException e) {
+            closeConnection = true;
+        }
+        connection.finish(closeConnection);
+    }
+
+    @Override
+    public Headers getRequestHeaders() {
+        return requestHeaders;
+    }
+
+    @Override
+    public Headers getResponseHeaders() {
+        return responseHeaders;
+    }
+
+    @Override
+    public URI getRequestURI() {
+        return uri;
+    }
+
+    @Override
+    public String getRequestMethod() {
+        return method;
+    }
+
+    @Override
+    public HttpContext getHttpContext() {
+        return context;
+    }
+
+    @Override
+    public InputStream getRequestBody() {
+        return requestStream;
+    }
+
+    @Override
+    public OutputStream getResponseBody() {
+        return responseStream;
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        return connection.remote;
+    }
+
+    @Override
+    public int getResponseCode() {
+        return responseCode;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return connection.local;
+    }
+
+    @Override
+    public String getProtocol() {
+        return protocol;
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        return attributes.get(name);
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+        attributes.put(name, value);
+    }
+
+    @Override
+    public void setStreams(InputStream in, OutputStream out) {
+        if (in != null) requestStream = in;
+        if (out != null) responseStream = out;
+    }
+
+    @Override
+    public HttpPrincipal getPrincipal() {
+        return null;
+    }
+
+    private static String reason(int code) {
+        switch (code) {
+            case 200: return "OK";
+            case 201: return "Created";
+            case 204: return "No Content";
+            case 206: return "Partial Content";
+            case 304: return "Not Modified";
+            case 400: return "Bad Request";
+            case 403: return "Forbidden";
+            case 404: return "Not Found";
+            case 405: return "Method Not Allowed";
+            case 409: return "Conflict";
+            case 410: return "Gone";
+            case 413: return "Payload Too Large";
+            case 415: return "Unsupported Media Type";
+            case 416: return "Range Not Satisfiable";
+            case 429: return "Too Many Requests";
+            case 500: return "Internal Server Error";
+            case 503: return "Service Unavailable";
+            case 507: return "Insufficient Storage";
+            default: return "Status";
+        }
+    }
+
+    // request body with a Content-Length
+    private final class FixedLengthBody extends InputStream {
+        private long remaining;
+
+        FixedLengthBody(long length) {
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining == 0) return -1;
+            if (len == 0) return 0;
+            int read = connection.read(b, off, (int) Math.min(len, remaining));
+            if (read == -1) throw new IOException("Client closed the connection before the end of the request body");
+            remaining -= read;
+            return read;
+        }
+    }
+
+    // Transfer-Encoding: chunked request body, read without going past its end (the next request may follow)
+    private final class ChunkedBody extends InputStream {
+        private long chunkLeft;
+        private boolean done;
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (done) return -1;
+            if (chunkLeft == 0) {
+                String size = line();
+                int extension = size.indexOf(';');
+                try {
+                    chunkLeft = Long.parseLong((extension >= 0 ? size.substring(0, extension) : size).trim(), 16);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Bad chunk size in request body: " + size);
+                }
+                if (chunkLeft == 0) {
+                    while (!line().isEmpty()) {
+                        // trailer fields, nobody uses them
+                    }
+                    done = true;
+                    return -1;
+                }
+            }
+            if (len == 0) return 0;
+            int read = connection.read(b, off, (int) Math.min(len, chunkLeft));
+            if (read == -1) throw new IOException("Client closed the connection inside a chunk");
+            chunkLeft -= read;
+            if (chunkLeft == 0) line(); // the CRLF after the chunk data
+            return read;
+        }
+
+        private String line() throws IOException {
+            StringBuilder line = new StringBuilder();
+            byte[] one = new byte[1];
+            while (true) {
+                if (connection.read(one, 0, 1) == -1) throw new IOException("Client closed the connection inside a chunk");
+                if (one[0] == '\n') break;
+                if (one[0] != '\r') line.append((char) one[0]);
+                if (line.length() > 1024) throw new IOException("Chunk header too long");
+            }
+            return line.toString();
+        }
+    }
+
+    // response body, framed by what sendResponseHeaders() announced
+    private final class ResponseBody extends OutputStream {
+        private long remaining;    // fixed length: bytes still owed
+        private boolean chunked;
+        private boolean started;
+        private boolean finished;
+        private byte[] chunk;      // chunked responses go out in chunks of up to CHUNK_SIZE
+        private int chunkLength;
+
+        void begin(long length) {
+            started = true;
+            chunked = length == 0;
+            remaining = Math.max(length, 0);
+            if (chunked) chunk = new byte[CHUNK_SIZE];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (!started) throw new IOException("sendResponseHeaders() must be called before writing the body");
+            if (finished) throw new IOException("Response body already closed");
+            if (chunked) {
+                while (len > 0) {
+                    int count = Math.min(len, chunk.length - chunkLength);
+                    System.arraycopy(b, off, chunk, chunkLength, count);
+                    chunkLength += count;
+                    off += count;
+                    len -= count;
+                    if (chunkLength == chunk.length) flushChunk();
+                }
+                return;
+            }
+            if (len > remaining) throw new IOException("More bytes written than the announced Content-Length");
+            connection.write(b, off, len);
+            remaining -= len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (chunked && !finished) flushChunk();
+        }
+
+        private void flushChunk() throws IOException {
+            if (chunkLength == 0) return;
+            byte[] size = (Integer.toHexString(chunkLength) + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+            connection.write(size, 0, size.length);
+            connection.write(chunk, 0, chunkLength);
+            connection.write(CRLF, 0, 2);
+            chunkLength = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!started || finished) return;
+            if (chunked) {
+                flushChunk();
+                byte[] last = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+                connection.write(last, 0, last.length);
+            } else if (remaining > 0) {
+                closeConnection = true; // the client still waits for bytes that will never come
+            }
+            finished = true;
+        }
+    }
+
+    // a path and its handler and filters; getServer() is null, there is no HttpServer behind the NIO engine
+    static final class Context extends HttpContext {
+        private final String path;
+        private HttpHandler handler;
+        private final List<Filter> filters;
+        private final Map<String, Object> attributes = new HashMap<>();
+        private Authenticator authenticator;
+
+        Context(String path, HttpHandler handler, List<Filter> filters) {
+            this.path = path;
+            this.handler = handler;
+            this.filters = new ArrayList<>(filters);
+        }
+
+        @Override
+        public HttpHandler getHandler() {
+            return handler;
+        }
+
+        @Override
+        public void setHandler(HttpHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public String getPath() {
+            return path;
+        }
+
+        @Override
+        public HttpServer getServer() {
+            return null;
+        }
+
+        @Override
+        public Map<String, Object> getAttributes() {
+            return attributes;
+        }
+
+        @Override
+        public List<Filter> getFilters() {
+            return filters;
+        }
+
+        @Override
+        public Authenticator setAuthenticator(Authenticator authenticator) {
+            Authenticator previous = this.authenticator;
+            this.authenticator = authenticator;
+            return previous;
+        }
+
+        @Override
+        public Authenticator getAuthenticator() {
+            return authenticator;
+        }
+    }
+}
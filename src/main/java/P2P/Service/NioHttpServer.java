@@ -0,0 +1,629 @@
+package P2P.Service;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import P2P.Utils.Log;
+import P2P.Utils.Metrics;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpHandler;
+
+/* HTTP/1.1 server on NIO channels, the same idea as the TransferServer: a few event loop threads, each with its own
+   Selector, own every connection. Reading a request head and waiting for the next request of a kept-alive connection
+   happen on those threads, so ten thousand idle connections or clients still sending their request head cost ten
+   thousand small Connection objects and no threads.
+   Only a complete request head is handed to the executor, where the handler runs as usual against an HttpExchange
+   (NioHttpExchange). Its body streams never touch the socket themselves: the loop reads ahead into a 64 KB buffer and
+   writes out of another one, the handler blocks on those buffers only when they are empty or full. So a transfer to
+   or from a slow client does hold an executor thread once its 64 KB are used up; many of those at once need
+   SKYLINK_EXECUTOR=virtual, where a blocked handler costs a virtual thread instead of a pool thread. A full read
+   buffer takes the connection off OP_READ (backpressure to the client), a response that fits into the socket
+   buffer is written right away without a trip through the loop.
+   Keep-alive and pipelining: once the exchange is closed and its response flushed, the bytes read past its body are
+   the start of the next request head. Connection: close, HTTP/1.0 without keep-alive, an unfinished response or
+   more than DRAIN_LIMIT of unread request body close the connection instead. */
+public class NioHttpServer implements HttpEngine {
+    private static final int MAX_HEAD_BYTES = 16 * 1024;
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final Metrics.Counter ACCEPTED = Metrics.counter("skylink_http_connections_total", "",
+            "Connections accepted by the NIO HTTP engine");
+    private static final Metrics.Gauge OPEN = Metrics.gauge("skylink_http_connections_open", "",
+            "Connections open in the NIO HTTP engine, idle ones included");
+    private static final Metrics.Counter REUSED = Metrics.counter("skylink_http_keepalive_requests_total", "",
+            "Requests served on a kept-alive connection");
+
+    private final int requestedPort;
+    private final ExecutorService executor;
+    private final long idleTimeoutMillis;
+    private final EventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final List<NioHttpExchange.Context> contexts = new CopyOnWriteArrayList<>();
+    private ServerSocketChannel serverChannel;
+
+    public NioHttpServer(int port, ExecutorService executor, int eventLoops, long idleTimeoutMillis) {
+        this.requestedPort = port;
+        this.executor = executor;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.loops = new EventLoop[Math.max(1, eventLoops)];
+    }
+
+    @Override
+    public void addContext(String path, HttpHandler handler, List<Filter> filters) {
+        contexts.add(new NioHttpExchange.Context(path, handler, filters));
+    }
+
+    // like HttpServer: the longest context path the request path starts with
+    private NioHttpExchange.Context findContext(String path) {
+        NioHttpExchange.Context best = null;
+        for (NioHttpExchange.Context context : contexts) {
+            if (path.startsWith(context.getPath()) && (best == null || context.getPath().length() > best.getPath().length())) {
+                best = context;
+            }
+        }
+        return best;
+    }
+
+    @Override
+    public void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(requestedPort), 1024);
+        serverChannel.configureBlocking(false);
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(i);
+        }
+        serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+        for (EventLoop loop : loops) {
+            loop.thread.start();
+        }
+        Log.info("NIO HTTP engine listening", "port", getPort(), "loops", loops.length);
+    }
+
+    @Override
+    public void stop() {
+        for (EventLoop loop : loops) {
+            if (loop != null) loop.shutdown();
+        }
+        try {
+            if (serverChannel != null) serverChannel.close();
+        } catch (IOException e) {
+            Log.error("Error closing HTTP server", e);
+        }
+    }
+
+    @Override
+    public int getPort() {
+        return serverChannel == null ? -1 : serverChannel.socket().getLocalPort();
+    }
+
+    private void accept() {
+        try {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                ACCEPTED.increment();
+                loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)].adopt(channel);
+            }
+        } catch (IOException e) {
+            Log.error("Error accepting HTTP connection", e);
+        }
+    }
+
+    private final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+        private final Queue<Connection> updates = new ConcurrentLinkedQueue<>(); // interest changes asked for by handlers
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE); // request heads, shared by the loop
+        private volatile boolean running = true;
+
+        EventLoop(int index) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "http-loop-" + index);
+            this.thread.setDaemon(true);
+        }
+
+        void adopt(SocketChannel channel) {
+            pending.add(channel);
+            selector.wakeup();
+        }
+
+        void post(Connection connection) {
+            updates.add(connection);
+            selector.wakeup();
+        }
+
+        void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            long lastSweep = System.currentTimeMillis();
+            while (running) {
+                try {
+                    selector.select(1000);
+                    registerPending();
+                    Connection updated;
+                    while ((updated = updates.poll()) != null) {
+                        updated.update();
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid()) continue;
+                        if (key.isAcceptable()) {
+                            accept();
+                            continue;
+                        }
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isReadable()) connection.onReadable();
+                            if (key.isValid() && key.isWritable()) connection.onWritable();
+                        } catch (IOException e) {
+                            Log.debug("HTTP connection failed", "client", connection.remote, "error", e.getMessage());
+                            connection.close();
+                        }
+                    }
+                    long now = System.currentTimeMillis();
+                    if (now - lastSweep >= 1000) {
+                        sweepTimeouts(now);
+                        lastSweep = now;
+                    }
+                } catch (IOException e) {
+                    Log.error("HTTP event loop error", e);
+                }
+            }
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection) {
+                    ((Connection) key.attachment()).close();
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        private void registerPending() {
+            SocketChannel channel;
+            while ((channel = pending.poll()) != null) {
+                try {
+                    Connection connection = new Connection(this, channel);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                } catch (IOException e) {
+                    Log.error("Error registering HTTP connection", e);
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+
+        /* Idle keep-alive connections and half-sent request heads go after the idle timeout. A running exchange only
+           when its handler is stuck on the socket that long (a client that stopped reading or sending), a handler
+           that is busy computing is not the client's fault. */
+        private void sweepTimeouts(long now) {
+            for (SelectionKey key : selector.keys()) {
+                if (!(key.attachment() instanceof Connection)) continue;
+                Connection connection = (Connection) key.attachment();
+                if (now - connection.lastActivity > idleTimeoutMillis && connection.stalled()) {
+                    Log.debug("HTTP connection timed out", "client", connection.remote);
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    /* One client connection. The loop thread reads and writes the socket; the handler thread of the current
+       exchange talks to it through the in/out buffers, under lock. */
+    final class Connection {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        final InetSocketAddress remote;
+        final InetSocketAddress local;
+        private SelectionKey key;
+        private final ReentrantLock lock = new ReentrantLock(); // not synchronized: virtual thread handlers would pin their carrier
+        private final Condition changed = lock.newCondition();
+
+        private byte[] head;               // request head read so far, null between requests
+        private int headLength;
+        private NioHttpExchange exchange;  // the request being handled, null while idle
+        private ByteBuffer in;             // read ahead for the handler, write mode
+        private ByteBuffer out;            // response bytes the socket did not take yet, write mode
+        private boolean endOfInput;
+        private boolean finished;          // the handler closed the exchange
+        private boolean closeAfterResponse;
+        private boolean closed;
+        private boolean updatePosted;
+        private int waiters;               // handler threads blocked on this socket
+        private int requests;
+        private volatile long lastActivity = System.currentTimeMillis();
+
+        Connection(EventLoop loop, SocketChannel channel) throws IOException {
+            this.loop = loop;
+            this.channel = channel;
+            this.remote = (InetSocketAddress) channel.getRemoteAddress();
+            this.local = (InetSocketAddress) channel.getLocalAddress();
+            OPEN.increment();
+        }
+
+        void onReadable() throws IOException {
+            if (exchange == null) {
+                ByteBuffer buffer = loop.readBuffer;
+                buffer.clear();
+                int read = channel.read(buffer);
+                if (read == -1) {
+                    close();
+                    return;
+                }
+                if (read == 0) return;
+                lastActivity = System.currentTimeMillis();
+                if (head == null) {
+                    head = new byte[Math.max(read, 1024)];
+                } else if (head.length - headLength < read) {
+                    head = Arrays.copyOf(head, Math.max(head.length * 2, headLength + read));
+                }
+                System.arraycopy(buffer.array(), 0, head, headLength, read);
+                headLength += read;
+                parseHead();
+                return;
+            }
+            lock.lock();
+            try {
+                int read = channel.read(in);
+                if (read == -1) endOfInput = true;
+                if (read != 0) {
+                    lastActivity = System.currentTimeMillis();
+                    changed.signalAll();
+                }
+            } finally {
+                lock.unlock();
+            }
+            update();
+        }
+
+        void onWritable() throws IOException {
+            lock.lock();
+            try {
+                out.flip();
+                int written = channel.write(out);
+                out.compact();
+                if (written > 0) {
+                    lastActivity = System.currentTimeMillis();
+                    changed.signalAll();
+                }
+            } finally {
+                lock.unlock();
+            }
+            update();
+        }
+
+        // loop thread: a complete head starts an exchange, a broken one is answered and the connection closed
+        private void parseHead() {
+            int end = headEnd(head, headLength);
+            if (end < 0) {
+                if (headLength > MAX_HEAD_BYTES) {
+                    fail(431, "Request Header Fields Too Large");
+                } else {
+                    update();
+                }
+                return;
+            }
+            String[] lines = new String(head, 0, end, StandardCharsets.ISO_8859_1).split("\r?\n");
+            String[] requestLine = lines[0].split(" ");
+            if (requestLine.length != 3) {
+                fail(400, "Bad Request");
+                return;
+            }
+            String version = requestLine[2];
+            if (!version.equals("HTTP/1.1") && !version.equals("HTTP/1.0")) {
+                fail(505, "HTTP Version Not Supported");
+                return;
+            }
+            Headers headers = new Headers();
+            for (int i = 1; i < lines.length; i++) {
+                if (lines[i].isEmpty()) continue;
+                int colon = lines[i].indexOf(':');
+                if (colon <= 0) {
+                    fail(400, "Bad Request");
+                    return;
+                }
+                headers.add(lines[i].substring(0, colon).trim(), lines[i].substring(colon + 1).trim());
+            }
+            URI uri;
+            long contentLength = 0;
+            try {
+                uri = new URI(requestLine[1]);
+                String length = headers.getFirst("Content-Length");
+                if (length != null) contentLength = Long.parseLong(length);
+            } catch (URISyntaxException | NumberFormatException e) {
+                fail(400, "Bad Request");
+                return;
+            }
+            if (contentLength < 0 || uri.getRawPath() == null) {
+                fail(400, "Bad Request");
+                return;
+            }
+            /* Transfer-Encoding wins over Content-Length, and a body we cannot frame must not be read as the next
+               request (smuggling): both headers at once is 400 (RFC 9112 6.1), any coding but a single chunked is 501 */
+            List<String> codings = headers.get("Transfer-Encoding");
+            boolean chunked = codings != null;
+            if (chunked) {
+                if (headers.containsKey("Content-Length")) {
+                    fail(400, "Bad Request");
+                    return;
+                }
+                List<String> values = new ArrayList<>();
+                for (String header : codings) {
+                    for (String coding : header.split(",")) {
+                        if (!coding.isBlank()) values.add(coding.trim());
+                    }
+                }
+                if (values.size() != 1 || !values.get(0).equalsIgnoreCase("chunked")) {
+                    fail(501, "Not Implemented");
+                    return;
+                }
+            }
+            NioHttpExchange.Context context = findContext(uri.getPath());
+            if (context == null) {
+                fail(404, "Not Found");
+                return;
+            }
+            String connectionHeader = headers.getFirst("Connection");
+            boolean keepAlive = version.equals("HTTP/1.1")
+                    ? !"close".equalsIgnoreCase(connectionHeader)
+                    : "keep-alive".equalsIgnoreCase(connectionHeader);
+
+            lock.lock();
+            try {
+                // what came in after the head is body, or already the next pipelined request
+                int leftover = headLength - end;
+                in = ByteBuffer.allocate(Math.max(BUFFER_SIZE, leftover));
+                in.put(head, end, leftover);
+                head = null;
+                headLength = 0;
+                exchange = new NioHttpExchange(this, context, requestLine[0], uri, version, headers,
+                        chunked ? -1 : contentLength, keepAlive);
+                if (requests++ > 0) REUSED.increment();
+                // like HttpServer: the client may send the body right away, the handler can still turn it down later
+                if (version.equals("HTTP/1.1") && "100-continue".equalsIgnoreCase(headers.getFirst("Expect"))) {
+                    buffer("HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+                }
+            } finally {
+                lock.unlock();
+            }
+            try {
+                executor.execute(exchange::run);
+            } catch (RejectedExecutionException e) {
+                close(); // shutting down
+                return;
+            }
+            update();
+        }
+
+        // answers a request that never reaches a handler and closes the connection once it is sent
+        private void fail(int status, String reason) {
+            lock.lock();
+            try {
+                head = null;
+                headLength = 0;
+                closeAfterResponse = true;
+                finished = true;
+                byte[] body = reason.getBytes(StandardCharsets.ISO_8859_1);
+                buffer(("HTTP/1.1 " + status + " " + reason + "\r\nContent-Length: " + body.length
+                        + "\r\nConnection: close\r\n\r\n" + reason).getBytes(StandardCharsets.ISO_8859_1));
+            } finally {
+                lock.unlock();
+            }
+            update();
+        }
+
+        // loop thread: sets the interest ops from the state, and moves on to the next request once one is done
+        void update() {
+            boolean complete;
+            int ops = 0;
+            lock.lock();
+            try {
+                updatePosted = false;
+                if (closed || !key.isValid()) return;
+                boolean writing = out != null && out.position() > 0;
+                complete = finished && !writing;
+                if (!complete) {
+                    boolean reading = !endOfInput && (exchange != null ? in.hasRemaining() : !closeAfterResponse);
+                    if (reading) ops |= SelectionKey.OP_READ;
+                    if (writing) ops |= SelectionKey.OP_WRITE;
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (complete) {
+                completeExchange();
+            } else {
+                key.interestOps(ops);
+            }
+        }
+
+        private void completeExchange() {
+            boolean closeNow;
+            lock.lock();
+            try {
+                closeNow = closeAfterResponse || endOfInput;
+                if (!closeNow) {
+                    in.flip();
+                    if (in.hasRemaining()) {
+                        headLength = in.remaining();
+                        head = new byte[Math.max(headLength, 1024)];
+                        in.get(head, 0, headLength);
+                    }
+                    in = null;
+                    out = null; // idle connections keep no buffers
+                    exchange = null;
+                    finished = false;
+                    lastActivity = System.currentTimeMillis();
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (closeNow) {
+                close();
+            } else if (head != null) {
+                parseHead(); // pipelined request, already here
+            } else {
+                update();
+            }
+        }
+
+        // handler thread: reads request bytes the loop has read ahead, -1 at the end of the input
+        int read(byte[] b, int off, int len) throws IOException {
+            lock.lock();
+            try {
+                while (in.position() == 0) {
+                    if (endOfInput) return -1;
+                    awaitSocket();
+                }
+                boolean wasFull = !in.hasRemaining();
+                in.flip();
+                int count = Math.min(len, in.remaining());
+                in.get(b, off, count);
+                in.compact();
+                if (wasFull) post(); // room again, back on OP_READ
+                return count;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // handler thread: straight into the socket while nothing is queued, otherwise through the out buffer
+        void write(byte[] b, int off, int len) throws IOException {
+            lock.lock();
+            try {
+                while (len > 0) {
+                    if (closed) throw new IOException("Connection closed");
+                    if (out == null || out.position() == 0) {
+                        int written = channel.write(ByteBuffer.wrap(b, off, len));
+                        if (written > 0) lastActivity = System.currentTimeMillis();
+                        off += written;
+                        len -= written;
+                        if (len == 0) break;
+                    }
+                    if (out == null) out = ByteBuffer.allocate(BUFFER_SIZE);
+                    if (!out.hasRemaining()) {
+                        awaitSocket();
+                        continue;
+                    }
+                    int count = Math.min(len, out.remaining());
+                    out.put(b, off, count);
+                    off += count;
+                    len -= count;
+                    post(); // the loop has to take it from here, OP_WRITE
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // handler thread: the exchange is done, the loop flushes what is left and goes on
+        void finish(boolean closeConnection) {
+            lock.lock();
+            try {
+                finished = true;
+                if (closeConnection) closeAfterResponse = true;
+                post();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // under lock
+        private void buffer(byte[] bytes) {
+            if (out == null) out = ByteBuffer.allocate(Math.max(BUFFER_SIZE, bytes.length));
+            out.put(bytes);
+        }
+
+        // under lock
+        private void post() {
+            if (updatePosted) return;
+            updatePosted = true;
+            loop.post(this);
+        }
+
+        // under lock
+        private void awaitSocket() throws IOException {
+            if (closed) throw new IOException("Connection closed");
+            waiters++;
+            try {
+                changed.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the client", e);
+            } finally {
+                waiters--;
+            }
+            if (closed) throw new IOException("Connection closed");
+        }
+
+        // idle between requests, or a handler waiting for this client
+        private boolean stalled() {
+            lock.lock();
+            try {
+                return exchange == null || waiters > 0;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void close() {
+            lock.lock();
+            try {
+                if (closed) return;
+                closed = true;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            OPEN.decrement();
+            if (key != null) key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Log.debug("Error closing HTTP connection", "error", e.getMessage());
+            }
+        }
+    }
+
+    // index just past the blank line that ends the head, -1 when it has not arrived yet
+    private static int headEnd(byte[] bytes, int length) {
+        for (int i = 0; i < length; i++) {
+            if (bytes[i] != '\n') continue;
+            if (i + 1 < length && bytes[i + 1] == '\n') return i + 2;
+            if (i + 2 < length && bytes[i + 1] == '\r' && bytes[i + 2] == '\n') return i + 3;
+        }
+        return -1;
+    }
+}
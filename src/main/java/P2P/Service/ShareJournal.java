@@ -0,0 +1,395 @@
+package P2P.Service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+import java.util.zip.CRC32C;
+
+import P2P.Utils.Log;
+import P2P.Utils.Metrics;
+
+/* Append-only journal of the live shares, so a restart does not invalidate every token that is out there.
+   The file is memory mapped: appending a record is a copy into the page cache under one lock, no write() call and
+   no fsync per upload. force() is called by the expiry thread once per tick, so a power cut loses at most the last
+   second of shares; a crash of the JVM itself loses nothing because the pages belong to the kernel already.
+
+   Record layout: [int length][byte type][payload][int crc32c of type + payload]
+     OFFER  payload: shareId, expiresAt, size, blob flag, token, fileName, host, path (strings as short length + UTF-8)
+     BUNDLE payload: an OFFER payload, then the member count and per member: size, fileName, path
+     REMOVE payload: shareId
+     DOWNLOADS payload: shareId, maxDownloads, downloads, follows the offer of a share that is not a one-time download
+                        and is appended again each time one of its downloads completes
+   Replay reads records until the first one that is zero, cut off or has a wrong checksum: that is where the last
+   run stopped writing, the next append overwrites it. Once most records are dead (removed shares) or the mapped
+   region is full, compact() rewrites the file with only the live shares and swaps it in with an atomic rename. */
+public class ShareJournal implements AutoCloseable {
+    private static final byte OFFER = 1;
+    private static final byte REMOVE = 2;
+    private static final byte BUNDLE = 3;
+    private static final byte DOWNLOADS = 4;
+    private static final int HEADER = 4;      // record length
+    private static final int TRAILER = 4;     // checksum
+    private static final int DOWNLOADS_RECORD = HEADER + 1 + 12 + TRAILER;
+    private static final int MIN_COMPACT_RECORDS = 1024;
+    public static final int MAX_STRING_BYTES = 0xFFFF; // strings are stored with an unsigned short length
+
+    private static final Metrics.Counter COMPACTIONS = Metrics.counter("skylink_journal_compactions_total", "",
+            "Share journal rewrites that dropped dead records");
+
+    // one share as it is written to the journal
+    public static final class Record {
+        public final int shareId;
+        public final String token;
+        public final String path;
+        public final String fileName;
+        public final String host;
+        public final long size;
+        public final long expiresAt;
+        public final boolean blob; // path is a file of the blob store
+        public final List<Member> members; // the files of a bundle share (all in the blob store), null for one file
+        public final int maxDownloads;     // how many complete downloads the share allows, 0 = any number until it expires
+        public final int downloads;        // complete downloads so far
+
+        public Record(int shareId, String token, String path, String fileName, String host, long size,
+                      long expiresAt, boolean blob) {
+            this(shareId, token, path, fileName, host, size, expiresAt, blob, null);
+        }
+
+        public Record(int shareId, String token, String path, String fileName, String host, long size,
+                      long expiresAt, boolean blob, List<Member> members) {
+            this(shareId, token, path, fileName, host, size, expiresAt, blob, members, 1, 0);
+        }
+
+        public Record(int shareId, String token, String path, String fileName, String host, long size,
+                      long expiresAt, boolean blob, List<Member> members, int maxDownloads, int downloads) {
+            this.shareId = shareId;
+            this.token = token;
+            this.path = path;
+            this.fileName = fileName;
+            this.host = host;
+            this.size = size;
+            this.expiresAt = expiresAt;
+            this.blob = blob;
+            this.members = members;
+            this.maxDownloads = maxDownloads;
+            this.downloads = downloads;
+        }
+
+        Record withDownloads(int maxDownloads, int downloads) {
+            return new Record(shareId, token, path, fileName, host, size, expiresAt, blob, members, maxDownloads, downloads);
+        }
+    }
+
+    // one file of a bundle
+    public static final class Member {
+        public final String fileName;
+        public final String path;
+        public final long size;
+
+        public Member(String fileName, String path, long size) {
+            this.fileName = fileName;
+            this.path = path;
+            this.size = size;
+        }
+    }
+
+    private final Path file;
+    private final long minCapacity;
+    private FileChannel channel;
+    private FileLock lock;
+    private MappedByteBuffer buffer;
+    private long records;      // records in the file, live or dead
+    private List<Record> replayed;
+
+    private ShareJournal(Path file, long minCapacity) {
+        this.file = file;
+        this.minCapacity = minCapacity;
+    }
+
+    /* Opens (or creates) the journal and replays it. Only one process may use a journal: when another one holds it,
+       this throws an IOException and the caller runs without persistence. */
+    public static ShareJournal open(Path file, long capacityBytes) throws IOException {
+        ShareJournal journal = new ShareJournal(file, capacityBytes);
+        journal.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            journal.lock = journal.channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            journal.lock = null; // held by this very JVM
+        }
+        if (journal.lock == null) {
+            journal.channel.close();
+            throw new IOException("Share journal " + file + " is in use by another server");
+        }
+        long startNanos = System.nanoTime();
+        journal.buffer = journal.channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                Math.max(capacityBytes, journal.channel.size()));
+        journal.replayed = journal.replay();
+        Log.info("Share journal replayed", "records", journal.records, "live", journal.replayed.size(),
+                "ms", (System.nanoTime() - startNanos) / 1_000_000);
+        return journal;
+    }
+
+    // the live shares found at open(), handed out once so they do not stay on the heap
+    public synchronized List<Record> takeReplayed() {
+        List<Record> result = replayed;
+        replayed = null;
+        return result != null ? result : List.of();
+    }
+
+    /* false when the mapped region is full: nothing was written, the caller compacts (which includes this share).
+       A string longer than MAX_STRING_BYTES throws IllegalArgumentException, also before anything is written. */
+    public synchronized boolean appendOffer(Record record) {
+        byte[] token = utf8(record.token), fileName = utf8(record.fileName), host = utf8(record.host), path = utf8(record.path);
+        int payload = 4 + 8 + 8 + 1 + 2 + token.length + 2 + fileName.length + 2 + host.length + 2 + path.length;
+        List<byte[]> members = new ArrayList<>();
+        if (record.members != null) {
+            payload += 4;
+            for (Member member : record.members) {
+                byte[] memberName = utf8(member.fileName), memberPath = utf8(member.path);
+                members.add(memberName);
+                members.add(memberPath);
+                payload += 8 + 2 + memberName.length + 2 + memberPath.length;
+            }
+        }
+        // a multi-download share is two records, both fit or none is written
+        boolean counted = record.maxDownloads != 1 || record.downloads != 0;
+        ByteBuffer out = reserve(payload + (counted ? DOWNLOADS_RECORD : 0));
+        if (out == null) return false;
+        int start = out.position();
+        out.putInt(payload + 1).put(record.members != null ? BUNDLE : OFFER)
+                .putInt(record.shareId).putLong(record.expiresAt).putLong(record.size).put((byte) (record.blob ? 1 : 0));
+        putString(out, token);
+        putString(out, fileName);
+        putString(out, host);
+        putString(out, path);
+        if (record.members != null) {
+            out.putInt(record.members.size());
+            for (int i = 0; i < record.members.size(); i++) {
+                out.putLong(record.members.get(i).size);
+                putString(out, members.get(2 * i));
+                putString(out, members.get(2 * i + 1));
+            }
+        }
+        seal(out, start);
+        if (counted) putDownloads(out, record.shareId, record.maxDownloads, record.downloads);
+        return true;
+    }
+
+    // a download of a multi-download share completed, replay takes the last count of a share
+    public synchronized boolean appendDownloads(int shareId, int maxDownloads, int downloads) {
+        ByteBuffer out = reserve(12);
+        if (out == null) return false;
+        putDownloads(out, shareId, maxDownloads, downloads);
+        return true;
+    }
+
+    private void putDownloads(ByteBuffer out, int shareId, int maxDownloads, int downloads) {
+        int start = out.position();
+        out.putInt(13).put(DOWNLOADS).putInt(shareId).putInt(maxDownloads).putInt(downloads);
+        seal(out, start);
+    }
+
+    public synchronized boolean appendRemove(int shareId) {
+        ByteBuffer out = reserve(4);
+        if (out == null) return false;
+        int start = out.position();
+        out.putInt(5).put(REMOVE).putInt(shareId);
+        seal(out, start);
+        return true;
+    }
+
+    // the run of records written so far is dead weight when it is much longer than the live set
+    public synchronized boolean shouldCompact(int liveShares) {
+        return records >= MIN_COMPACT_RECORDS && records > 4L * liveShares;
+    }
+
+    /* Rewrites the journal with the records liveShares returns. It is called under the journal lock, so appends
+       wait for it; shares are put in their maps before they are journalled, so none can fall in between. */
+    public synchronized void compact(Supplier<Collection<Record>> liveShares) throws IOException {
+        if (channel == null) return;
+        long startNanos = System.nanoTime();
+        long oldRecords = records;
+        Collection<Record> live = liveShares.get();
+        Path compacted = file.resolveSibling(file.getFileName() + ".compact");
+        long needed = 0;
+        for (Record record : live) {
+            needed += HEADER + 1 + TRAILER + 4 + 8 + 8 + 1 + 8 + 4L * (record.token.length() + record.fileName.length()
+                    + record.host.length() + record.path.length()) // UTF-8 needs at most 4 bytes per char
+                    + DOWNLOADS_RECORD;
+            if (record.members == null) continue;
+            for (Member member : record.members) {
+                needed += 4 + 8 + 4 + 4L * (member.fileName.length() + member.path.length());
+            }
+        }
+        long capacity = Math.min(Integer.MAX_VALUE, Math.max(minCapacity, 2 * needed)); // one mapping holds at most 2 GB
+        MappedByteBuffer oldBuffer = buffer;
+        try (FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            buffer = out.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            records = 0;
+            for (Record record : live) {
+                if (!appendOffer(record)) throw new IOException("Compacted share journal does not fit in " + capacity + " bytes");
+            }
+            buffer.force();
+            // the rename is the commit point: a crash before it leaves the old journal, after it the new one
+            Files.move(compacted, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException | RuntimeException e) {
+            buffer = oldBuffer;
+            records = oldRecords;
+            Files.deleteIfExists(compacted);
+            throw e;
+        }
+        // the old file is unlinked now, move the lock over to the new one (closing releases the old lock)
+        channel.close();
+        channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        lock = channel.tryLock();
+        COMPACTIONS.increment();
+        Log.info("Share journal compacted", "records", oldRecords, "live", records,
+                "ms", (System.nanoTime() - startNanos) / 1_000_000);
+    }
+
+    // pushes the mapped pages to the disk, called about once a second
+    public synchronized void force() {
+        if (buffer != null) buffer.force();
+    }
+
+    public synchronized long sizeBytes() {
+        return buffer != null ? buffer.position() : 0;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel == null) return;
+        buffer.force();
+        buffer = null;
+        channel.close(); // releases the lock too
+        channel = null;
+    }
+
+    // room for one record, or null when the journal is full (the next compaction makes room again)
+    private ByteBuffer reserve(int payload) {
+        if (buffer == null) return null;
+        int length = HEADER + 1 + payload + TRAILER;
+        // keep room for the zero length that marks the end
+        return buffer.remaining() >= length + HEADER ? buffer : null;
+    }
+
+    private void seal(ByteBuffer out, int start) {
+        CRC32C crc = new CRC32C();
+        crc.update(out.duplicate().position(start + HEADER).limit(out.position()));
+        out.putInt((int) crc.getValue());
+        out.putInt(out.position(), 0); // end marker, overwritten by the next record
+        records++;
+    }
+
+    /* Replay reads the mapping in place with absolute gets: no copy of the file on the heap and one scratch array
+       for all strings, so the only garbage is what the restored shares keep anyway. Uploader hosts repeat a lot and
+       are shared between records. */
+    private List<Record> replay() {
+        ByteBuffer in = buffer;
+        Map<Integer, Record> live = new LinkedHashMap<>();
+        Map<String, String> hosts = new HashMap<>();
+        CRC32C crc = new CRC32C();
+        byte[] scratch = new byte[256];
+        int limit = in.limit();
+        int position = 0;
+        while (position + HEADER + 1 + TRAILER <= limit) {
+            int length = in.getInt(position);
+            if (length <= 0 || length > limit - position - HEADER - TRAILER) break;
+            int body = position + HEADER;
+            int recordEnd = body + length;
+            crc.reset();
+            crc.update(in.slice(body, length));
+            if ((int) crc.getValue() != in.getInt(recordEnd)) break; // torn write of the last run
+            byte type = in.get(body);
+            if ((type == OFFER || type == BUNDLE) && length >= 1 + 4 + 8 + 8 + 1 + 8) {
+                int shareId = in.getInt(body + 1);
+                long expiresAt = in.getLong(body + 5);
+                long size = in.getLong(body + 13);
+                boolean blob = in.get(body + 21) == 1;
+                int at = body + 22;
+                String[] strings = new String[4]; // token, fileName, host, path
+                for (int i = 0; i < strings.length; i++) {
+                    int stringLength = at + 2 <= recordEnd ? Short.toUnsignedInt(in.getShort(at)) : -1;
+                    if (stringLength < 0 || at + 2 + stringLength > recordEnd) {
+                        strings = null;
+                        break;
+                    }
+                    if (scratch.length < stringLength) scratch = new byte[stringLength];
+                    in.get(at + 2, scratch, 0, stringLength);
+                    strings[i] = new String(scratch, 0, stringLength, StandardCharsets.UTF_8);
+                    at += 2 + stringLength;
+                }
+                if (strings == null) break;
+                List<Member> members = null;
+                if (type == BUNDLE) {
+                    int count = at + 4 <= recordEnd ? in.getInt(at) : -1;
+                    at += 4;
+                    if (count < 0) break;
+                    members = new ArrayList<>(Math.min(count, 1024));
+                    for (int m = 0; m < count; m++) {
+                        if (at + 8 + 2 > recordEnd) break;
+                        long memberSize = in.getLong(at);
+                        at += 8;
+                        int nameLength = Short.toUnsignedInt(in.getShort(at));
+                        if (at + 2 + nameLength + 2 > recordEnd) break;
+                        if (scratch.length < nameLength) scratch = new byte[nameLength];
+                        in.get(at + 2, scratch, 0, nameLength);
+                        String memberName = new String(scratch, 0, nameLength, StandardCharsets.UTF_8);
+                        at += 2 + nameLength;
+                        int pathLength = Short.toUnsignedInt(in.getShort(at));
+                        if (at + 2 + pathLength > recordEnd) break;
+                        if (scratch.length < pathLength) scratch = new byte[pathLength];
+                        in.get(at + 2, scratch, 0, pathLength);
+                        String memberPath = new String(scratch, 0, pathLength, StandardCharsets.UTF_8);
+                        at += 2 + pathLength;
+                        members.add(new Member(memberName, memberPath, memberSize));
+                    }
+                    if (members.size() != count) break; // the checksum matched, so this is not ours: stop like for garbage
+                }
+                String host = hosts.computeIfAbsent(strings[2], key -> key);
+                live.put(shareId, new Record(shareId, strings[0], strings[3], strings[1], host, size, expiresAt, blob, members));
+            } else if (type == DOWNLOADS && length == 13) {
+                int maxDownloads = in.getInt(body + 5), downloads = in.getInt(body + 9);
+                live.computeIfPresent(in.getInt(body + 1), (id, record) -> record.withDownloads(maxDownloads, downloads));
+            } else if (type == REMOVE && length == 5) {
+                live.remove(in.getInt(body + 1));
+            } else {
+                break;
+            }
+            position = recordEnd + TRAILER;
+            records++;
+        }
+        in.position(position);
+        return new ArrayList<>(live.values());
+    }
+
+    // checked here, before the record is reserved: a cut length would make replay read the rest as garbage
+    private static byte[] utf8(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_STRING_BYTES) {
+            throw new IllegalArgumentException("String of " + bytes.length + " bytes does not fit in a journal record");
+        }
+        return bytes;
+    }
+
+    private static void putString(ByteBuffer out, byte[] value) {
+        out.putShort((short) value.length).put(value);
+    }
+
+}
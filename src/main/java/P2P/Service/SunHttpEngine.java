@@ -0,0 +1,42 @@
+package P2P.Service;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+// the JDK's built-in HttpServer behind the HttpEngine interface, what the API always ran on
+public class SunHttpEngine implements HttpEngine {
+    private final HttpServer server;
+
+    public SunHttpEngine(int port, ExecutorService executor) throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        this.server.setExecutor(executor);
+    }
+
+    @Override
+    public void addContext(String path, HttpHandler handler, List<Filter> filters) {
+        HttpContext context = server.createContext(path, handler);
+        context.getFilters().addAll(filters);
+    }
+
+    @Override
+    public void start() {
+        server.start();
+    }
+
+    @Override
+    public void stop() {
+        server.stop(0);
+    }
+
+    @Override
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+}
@@ -0,0 +1,547 @@
+package P2P.Service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import P2P.Utils.Histogram;
+import P2P.Utils.Log;
+import P2P.Utils.Metrics;
+import P2P.Utils.RateLimiter;
+import P2P.Utils.TransferScheduler;
+import P2P.Utils.TransferUtils;
+
+/* TransferServer is the single listener that serves every shared file.
+   Before, every upload opened its own ServerSocket on a random port and parked a thread in accept() for 50 sec.
+   Now there is ONE ServerSocketChannel on ONE port, and a few event loop threads (each with its own Selector)
+   handle thousands of transfers at once, without a port or a thread per file.
+
+   Protocol on the connection:
+     peer   -> server : "TOKEN <token>\n", or "TOKEN <token> <codings>\n" to accept compression (gzip, deflate)
+     server -> peer   : "Filename: <name>\n" followed by the raw file bytes, then the server closes the connection
+                        or "ERROR <reason>\n" and close, when the token is unknown or the peer's IP is over the
+                        download rate limit (every TOKEN line costs one /download token, so guessing tokens here is
+                        no faster than over HTTP).
+                        A peer that named codings gets "Encoding: <gzip|deflate|identity>\n" after the file name,
+                        and the file bytes in that coding.
+   File bytes go out as fast as the TransferScheduler allows: a transfer waiting for its bandwidth turn takes itself
+   off OP_WRITE and is put back on it by the scheduler, the loop never sleeps for it.
+   A file sent to the end counts as a download exactly like one over /download, so a one-time share is gone after
+   its first peer and a multi-recipient share after its last one. */
+public class TransferServer {
+    private static final int MAX_HANDSHAKE_BYTES = 256;
+    private static final long HANDSHAKE_TIMEOUT_MS = 10_000; // peer must send its token within 10 sec
+    private static final long IDLE_TIMEOUT_MS = 30_000;      // a transfer that does not move for 30 sec is dropped
+
+    private static final Metrics.Counter ACCEPTED = Metrics.counter("skylink_transfer_connections_total", "",
+            "Connections accepted by the transfer server");
+    private static final Metrics.Gauge ACTIVE = Metrics.gauge("skylink_transfer_connections_active", "",
+            "Transfer connections open right now, handshaking or sending");
+    private static final Metrics.Counter REJECTED = Metrics.counter("skylink_transfer_rejected_total", "",
+            "Transfer handshakes answered with ERROR");
+    private static final Metrics.Counter BYTES_OUT = Metrics.counter("skylink_bytes_out_total", "path=\"peer\"",
+            "File bytes sent to downloaders");
+    // what used to be the time a per-file server thread sat in accept(): from the connection to a usable TOKEN line
+    private static final Histogram HANDSHAKE_WAIT = Metrics.histogram("skylink_transfer_handshake_seconds", "",
+            "Time from accepting a transfer connection until its token was read");
+
+    private final FileSharer fileSharer;
+    private final RateLimiter downloadLimiter;
+    private final TransferScheduler scheduler;
+    private final CompressedVariants compression;
+    private final HotFileCache hotFiles;
+    private final int requestedPort;
+    private final EventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private ServerSocketChannel serverChannel;
+
+    public TransferServer(FileSharer fileSharer, RateLimiter downloadLimiter, TransferScheduler scheduler,
+                          CompressedVariants compression, HotFileCache hotFiles, int port, int eventLoops) {
+        this.fileSharer = fileSharer;
+        this.downloadLimiter = downloadLimiter;
+        this.scheduler = scheduler;
+        this.compression = compression;
+        this.hotFiles = hotFiles;
+        this.requestedPort = port;
+        this.loops = new EventLoop[Math.max(1, eventLoops)];
+    }
+
+    public void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(requestedPort), 1024);
+        serverChannel.configureBlocking(false);
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(i);
+        }
+        // loop 0 also accepts new connections and hands them out round robin
+        serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+        for (EventLoop loop : loops) {
+            loop.thread.start();
+        }
+        Log.info("Transfer server listening", "port", getPort(), "loops", loops.length);
+    }
+
+    public int getPort() {
+        return serverChannel == null ? -1 : serverChannel.socket().getLocalPort();
+    }
+
+    public void stop() {
+        for (EventLoop loop : loops) {
+            if (loop != null) loop.shutdown();
+        }
+        try {
+            if (serverChannel != null) serverChannel.close();
+        } catch (IOException e) {
+            Log.error("Error closing transfer server", e);
+        }
+    }
+
+    private void accept() {
+        try {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                ACCEPTED.increment();
+                loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)].adopt(channel);
+            }
+        } catch (IOException e) {
+            Log.error("Error accepting transfer connection", e);
+        }
+    }
+
+    // one Selector plus the thread that drives it
+    private final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+        private final Queue<Transfer> resumed = new ConcurrentLinkedQueue<>(); // got their bandwidth turn
+        private volatile boolean running = true;
+
+        EventLoop(int index) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "transfer-loop-" + index);
+            this.thread.setDaemon(true);
+        }
+
+        // called from the accepting loop, the channel is registered on our own thread
+        void adopt(SocketChannel channel) {
+            pending.add(channel);
+            selector.wakeup();
+        }
+
+        // called by the scheduler's pacer, the interest ops are changed on our own thread
+        void resume(Transfer transfer) {
+            resumed.add(transfer);
+            selector.wakeup();
+        }
+
+        void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            long lastSweep = System.currentTimeMillis();
+            while (running) {
+                try {
+                    selector.select(1000);
+                    registerPending();
+                    resumePaused();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid()) continue;
+                        if (key.isAcceptable()) {
+                            accept();
+                            continue;
+                        }
+                        Transfer transfer = (Transfer) key.attachment();
+                        try {
+                            if (key.isReadable()) transfer.onReadable();
+                            if (key.isValid() && key.isWritable()) transfer.onWritable();
+                        } catch (IOException e) {
+                            Log.warn("Error sending file to client", "transfer", transfer.describe(), "error", e.getMessage());
+                            transfer.close();
+                        }
+                    }
+                    long now = System.currentTimeMillis();
+                    if (now - lastSweep >= 1000) {
+                        sweepTimeouts(now);
+                        lastSweep = now;
+                    }
+                } catch (IOException e) {
+                    Log.error("Transfer event loop error", e);
+                }
+            }
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Transfer) {
+                    ((Transfer) key.attachment()).close();
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        private void registerPending() {
+            SocketChannel channel;
+            while ((channel = pending.poll()) != null) {
+                try {
+                    Transfer transfer = new Transfer(this, channel);
+                    transfer.key = channel.register(selector, SelectionKey.OP_READ, transfer);
+                } catch (IOException e) {
+                    Log.error("Error registering transfer connection", e);
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+
+        private void resumePaused() {
+            Transfer transfer;
+            while ((transfer = resumed.poll()) != null) {
+                transfer.paused = false;
+                if (transfer.key.isValid()) {
+                    transfer.key.interestOps(SelectionKey.OP_WRITE);
+                    transfer.lastActivity = System.currentTimeMillis(); // waiting for a turn is not being idle
+                }
+            }
+        }
+
+        private void sweepTimeouts(long now) {
+            for (SelectionKey key : selector.keys()) {
+                if (!(key.attachment() instanceof Transfer)) continue;
+                Transfer transfer = (Transfer) key.attachment();
+                if (transfer.paused) continue; // the scheduler holds it back, however long the turn takes is not idling
+                long limit = transfer.file == null ? HANDSHAKE_TIMEOUT_MS : IDLE_TIMEOUT_MS;
+                if (now - transfer.lastActivity > limit) {
+                    Log.warn("Transfer timed out", "transfer", transfer.describe());
+                    transfer.close();
+                }
+            }
+        }
+    }
+
+    // state of a single connection: first we read the handshake, then we stream header + file
+    private final class Transfer {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final ByteBuffer handshake = ByteBuffer.allocate(MAX_HANDSHAKE_BYTES);
+        private SelectionKey key;
+        private ByteBuffer out;        // header (or error line) waiting to be written
+        private FileChannel file;
+        private TransferScheduler.Flow flow;
+        private CompressedVariants.Encoder encoder; // compressing on the fly, null for plain and cached variants
+        private Sink encoded;                       // what the encoder produced and the socket did not take yet
+        private byte[] chunk;                       // file bytes on their way into the encoder, one per transfer
+        private ByteBuffer pending;
+        private ByteBuffer cached;                  // the file from the hot file cache, null to send it from disk
+        private String fileName;
+        private int shareId;
+        private long fileLength;       // of the file itself, size is what goes on the wire (a cached variant is smaller)
+        private long position;
+        private long size;
+        private boolean truncated;     // the file shrank while it was sent, not a complete download
+        private boolean closeAfterFlush;
+        private boolean paused;        // off the selector, waiting for its bandwidth turn
+        private long lastActivity = System.currentTimeMillis();
+        private final long createdNanos = System.nanoTime();
+        private boolean closed;
+
+        Transfer(EventLoop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+            ACTIVE.increment();
+        }
+
+        void onReadable() throws IOException {
+            int read = channel.read(handshake);
+            if (read == -1) {
+                close();
+                return;
+            }
+            lastActivity = System.currentTimeMillis();
+            int newline = -1;
+            for (int i = 0; i < handshake.position(); i++) {
+                if (handshake.get(i) == '\n') {
+                    newline = i;
+                    break;
+                }
+            }
+            if (newline == -1) {
+                if (!handshake.hasRemaining()) reject("Handshake too long");
+                return;
+            }
+            String line = new String(handshake.array(), 0, newline, StandardCharsets.UTF_8).trim();
+            if (!line.startsWith("TOKEN ")) {
+                reject("Expected TOKEN");
+                return;
+            }
+            HANDSHAKE_WAIT.recordSince(createdNanos);
+            String[] words = line.substring("TOKEN ".length()).trim().split("\\s+", 2);
+            begin(words[0], words.length > 1 ? words[1] : null);
+        }
+
+        private void begin(String token, String accepted) throws IOException {
+            long retryAfterMs = downloadLimiter.tryAcquire(remoteIp());
+            if (retryAfterMs > 0) {
+                reject("Rate limit exceeded, try again in " + ((retryAfterMs + 999) / 1000) + " seconds");
+                return;
+            }
+            Integer shareId = fileSharer.getShareIdByToken(token);
+            String filePath = shareId == null ? null : fileSharer.getFilePath(shareId);
+            if (filePath == null) {
+                reject("Invalid token");
+                return;
+            }
+            if (fileSharer.getBundle(shareId) != null) {
+                // the ZIP of a bundle is generated by /download, this link only sends files that exist as they are
+                reject("Bundle, download it over HTTP");
+                return;
+            }
+            try {
+                file = FileChannel.open(Path.of(filePath), StandardOpenOption.READ);
+            } catch (IOException e) {
+                reject("File not available");
+                return;
+            }
+            this.shareId = shareId;
+            fileName = fileSharer.getFileName(shareId);
+            if (fileName == null) fileName = Path.of(filePath).getFileName().toString(); // share cleaned up meanwhile
+            size = file.size();
+            fileLength = size;
+            flow = scheduler.open(remoteIp(), () -> loop.resume(this));
+            String header = "Filename: " + fileName + "\n";
+            String encoding = accepted != null ? chooseEncoding(shareId, accepted) : "identity";
+            if (accepted != null) {
+                header += "Encoding: " + encoding + "\n";
+            }
+            if (encoding.equals("identity")) {
+                // hits only, loading a file into the cache is a big blocking read the event loop cannot afford
+                cached = hotFiles.lookup(fileSharer.getContentHash(shareId));
+                if (cached != null && cached.capacity() != size) cached = null;
+            }
+            out = ByteBuffer.wrap(header.getBytes(StandardCharsets.UTF_8));
+            key.interestOps(SelectionKey.OP_WRITE);
+        }
+
+        /* Same rules as HTTP downloads: compressible types only, a cached variant is sent like a plain file
+           (zero copy), otherwise the file is compressed chunk by chunk as the socket takes it. */
+        private String chooseEncoding(int shareId, String accepted) {
+            String encoding = CompressedVariants.negotiate(accepted);
+            if (encoding == null || !compression.worthCompressing(fileName, size)) return "identity";
+            String hash = fileSharer.getContentHash(shareId);
+            Path variant = compression.cachedVariant(hash, encoding);
+            if (variant != null) {
+                try {
+                    FileChannel variantChannel = FileChannel.open(variant, StandardOpenOption.READ);
+                    closeFile();
+                    file = variantChannel;
+                    size = file.size();
+                    return encoding;
+                } catch (IOException e) {
+                    // deleted with its blob just now, compress from the file we have open
+                }
+            }
+            encoded = new Sink();
+            chunk = new byte[TransferUtils.DEFAULT_BUFFER_SIZE];
+            encoder = compression.encode(encoded, hash, encoding);
+            return encoding;
+        }
+
+        private void reject(String reason) {
+            REJECTED.increment();
+            out = ByteBuffer.wrap(("ERROR " + reason + "\n").getBytes(StandardCharsets.UTF_8));
+            closeAfterFlush = true;
+            key.interestOps(SelectionKey.OP_WRITE);
+        }
+
+        void onWritable() throws IOException {
+            if (out != null && out.hasRemaining()) {
+                channel.write(out);
+                lastActivity = System.currentTimeMillis();
+                if (out.hasRemaining()) return; // socket buffer is full, wait for the next OP_WRITE
+                if (closeAfterFlush) {
+                    close();
+                    return;
+                }
+            }
+            if (encoder != null) {
+                sendEncoded();
+                return;
+            }
+            // keep sending until the socket buffer is full or the file is done, never block the loop.
+            // transferTo hands the bytes from the page cache straight to the socket (sendfile), no heap copy at all,
+            // a hot file goes from its off-heap copy without touching the file system.
+            while (position < size) {
+                long allowed = flow.tryAcquire(size - position);
+                if (allowed == 0) {
+                    pause();
+                    return;
+                }
+                long sent;
+                if (cached != null) {
+                    cached.limit((int) (position + allowed)).position((int) position);
+                    sent = channel.write(cached);
+                } else {
+                    sent = TransferUtils.sendFile(file, position, allowed, channel);
+                }
+                flow.giveBack(allowed - sent);
+                if (sent == 0) {
+                    if (cached == null && position >= file.size()) {
+                        size = position; // file shrank under us, stop here
+                        truncated = true;
+                        break;
+                    }
+                    return; // socket buffer is full, wait for the next OP_WRITE
+                }
+                position += sent;
+                BYTES_OUT.add(sent);
+                lastActivity = System.currentTimeMillis();
+            }
+            Log.info("File sent", "file", fileName, "peer", remote(), "bytes", size,
+                    "ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - createdNanos));
+            close();
+            delivered();
+        }
+
+        // off the selector until the scheduler says it is our turn, see resume()
+        private void pause() {
+            paused = true;
+            key.interestOps(0);
+        }
+
+        // compressed on the fly: read a chunk, deflate it, write what came out, until the file is done
+        private void sendEncoded() throws IOException {
+            while (true) {
+                if (pending != null && pending.hasRemaining()) {
+                    long allowed = flow.tryAcquire(pending.remaining());
+                    if (allowed == 0) {
+                        pause();
+                        return;
+                    }
+                    int limit = pending.limit();
+                    pending.limit(pending.position() + (int) allowed);
+                    int sent = channel.write(pending);
+                    pending.limit(limit);
+                    flow.giveBack(allowed - sent);
+                    if (sent == 0) return; // socket buffer is full, wait for the next OP_WRITE
+                    BYTES_OUT.add(sent);
+                    lastActivity = System.currentTimeMillis();
+                    continue;
+                }
+                if (position >= size && encoder == null) break;
+                encoded.reset();
+                if (position < size) {
+                    int read = file.read(ByteBuffer.wrap(chunk, 0, (int) Math.min(chunk.length, size - position)), position);
+                    if (read <= 0) {
+                        size = position; // file shrank under us, stop here
+                        truncated = true;
+                    } else {
+                        position += read;
+                        encoder.write(chunk, 0, read);
+                    }
+                }
+                if (position >= size) {
+                    // a complete stream caches the variant when this content is asked for again and again, a truncated
+                    // one is left unfinished: no variant of half a file, and the peer sees a broken stream
+                    if (!truncated) encoder.complete();
+                    encoder.close();
+                    encoder = null;
+                }
+                pending = encoded.buffer();
+            }
+            Log.info("File sent", "file", fileName, "peer", remote(), "bytes", size, "encoding", "compressed",
+                    "ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - createdNanos));
+            close();
+            delivered();
+        }
+
+        // the whole file went out: one download of the share, the last one it allows cleans it up (same as /download)
+        private void delivered() {
+            if (!truncated && fileSharer.markDelivered(shareId, 0, fileLength, fileLength)) {
+                fileSharer.cleanupAfterDownload(shareId);
+            }
+        }
+
+        String describe() {
+            return (fileName != null ? fileName : "handshake") + " to " + remote();
+        }
+
+        private String remoteIp() {
+            try {
+                return ((InetSocketAddress) channel.getRemoteAddress()).getAddress().getHostAddress();
+            } catch (IOException | RuntimeException e) {
+                return "unknown";
+            }
+        }
+
+        private String remote() {
+            try {
+                return String.valueOf(channel.getRemoteAddress());
+            } catch (IOException e) {
+                return "unknown";
+            }
+        }
+
+        void close() {
+            if (closed) return;
+            closed = true;
+            ACTIVE.decrement();
+            if (key != null) key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Log.warn("Error closing socket", "error", e.getMessage());
+            }
+            if (flow != null) flow.close();
+            if (encoder != null) {
+                try {
+                    encoder.close(); // unfinished: no variant is cached
+                } catch (IOException ignored) {
+                }
+            }
+            closeFile();
+        }
+
+        private void closeFile() {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    // the encoder's output, handed to the socket without another copy
+    private static final class Sink extends ByteArrayOutputStream {
+        Sink() {
+            super(TransferUtils.DEFAULT_BUFFER_SIZE);
+        }
+
+        ByteBuffer buffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package P2P.Utils;
+
+import java.util.concurrent.TimeUnit;
+
+/* Concurrency limit that finds its own value from the latency it measures (AIMD, like TCP congestion control).
+   Every finished request reports how long it took, and two moving averages follow those samples: a short one (the
+   last ~10 requests) and a long one (the last few hundred), the long one is what "normal" looks like.
+     - short <= long * tolerance and the limit is actually in use -> limit grows by 1 per limit completions
+     - short >  long * tolerance                                  -> limit shrinks by backoff (at most once per
+                                                                     decreaseInterval, one slow burst is one signal)
+   Comparing two averages of the same traffic, instead of against the fastest request ever seen, keeps a lane with
+   mixed request sizes from mistaking its big requests for overload; a network that got slower for good simply
+   becomes the new long average.
+   Requests over the limit wait in a bounded queue for at most maxWait; when the queue is full or the wait runs out
+   acquire() says no at once, which is the backpressure: the caller answers 503 instead of piling up work. */
+public class AdaptiveLimiter {
+    private static final double SHORT_WEIGHT = 0.1;
+    private static final double LONG_WEIGHT = 0.005;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final int queueCapacity;
+    private final double tolerance;
+    private final double backoff;
+    private final long decreaseIntervalNanos;
+
+    private double limit;
+    private int inFlight;
+    private int queued;
+    private double shortLatency; // moving averages in nanos, 0 until the first sample
+    private double longLatency;
+    private long lastDecreaseNanos;
+
+    public AdaptiveLimiter(int initialLimit, int minLimit, int maxLimit, int queueCapacity, double tolerance) {
+        this(initialLimit, minLimit, maxLimit, queueCapacity, tolerance, 0.9, TimeUnit.MILLISECONDS.toNanos(100));
+    }
+
+    AdaptiveLimiter(int initialLimit, int minLimit, int maxLimit, int queueCapacity, double tolerance,
+                    double backoff, long decreaseIntervalNanos) {
+        if (minLimit < 1 || maxLimit < minLimit || queueCapacity < 0) {
+            throw new IllegalArgumentException("need 1 <= minLimit <= maxLimit and queueCapacity >= 0");
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.queueCapacity = queueCapacity;
+        this.tolerance = tolerance;
+        this.backoff = backoff;
+        this.decreaseIntervalNanos = decreaseIntervalNanos;
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+        this.lastDecreaseNanos = System.nanoTime() - decreaseIntervalNanos;
+    }
+
+    /* Takes a slot, waiting up to maxWaitNanos in the queue when all slots are busy.
+       False when the queue is full or the wait ran out, the request must not run then. */
+    public synchronized boolean acquire(long maxWaitNanos) throws InterruptedException {
+        if (inFlight < (int) limit) {
+            inFlight++;
+            return true;
+        }
+        if (queued >= queueCapacity || maxWaitNanos <= 0) return false;
+        queued++;
+        try {
+            long deadline = System.nanoTime() + maxWaitNanos;
+            long remaining = maxWaitNanos;
+            while (inFlight >= (int) limit) {
+                if (remaining <= 0) return false;
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                remaining = deadline - System.nanoTime();
+            }
+            inFlight++;
+            return true;
+        } finally {
+            queued--;
+        }
+    }
+
+    // gives the slot back and feeds the latency of the request that held it into the limit
+    public synchronized void release(long latencyNanos) {
+        boolean wasSaturated = inFlight >= (int) limit;
+        inFlight--;
+        observe(latencyNanos, wasSaturated, System.nanoTime());
+        notify(); // one slot freed, one waiter can go (a grown limit wakes more on their next release)
+    }
+
+    private void observe(long sample, boolean wasSaturated, long now) {
+        if (longLatency == 0) {
+            shortLatency = longLatency = Math.max(1, sample);
+            return;
+        }
+        shortLatency += (sample - shortLatency) * SHORT_WEIGHT;
+        longLatency += (sample - longLatency) * LONG_WEIGHT;
+        if (shortLatency > longLatency * tolerance) {
+            if (now - lastDecreaseNanos >= decreaseIntervalNanos) {
+                limit = Math.max(minLimit, limit * backoff);
+                lastDecreaseNanos = now;
+            }
+        } else if (wasSaturated || inFlight + 1 >= limit / 2) {
+            // only grow a limit that is actually being used, an idle lane would otherwise drift to the max
+            limit = Math.min(maxLimit, limit + 1.0 / limit);
+        }
+    }
+
+    public synchronized int limit() {
+        return (int) limit;
+    }
+
+    public synchronized int inFlight() {
+        return inFlight;
+    }
+
+    public synchronized int queued() {
+        return queued;
+    }
+}
@@ -0,0 +1,75 @@
+package P2P.Utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/* BoundaryMatcher finds a fixed byte pattern (like "\r\n--boundary") inside byte arrays using Boyer-Moore-Horspool.
+   The naive search compares the pattern at every single position, so it costs O(n * m).
+   Horspool builds a skip table once from the pattern, then after every mismatch it looks at the last byte of the
+   current window and jumps ahead by up to the full pattern length. Multipart boundaries are long (30-70 bytes) and
+   their bytes are rare inside file data, so most of the time we jump the whole boundary length and only touch a
+   small fraction of the payload bytes.
+   The table depends only on the pattern, so one matcher is built per upload and reused for every buffer we scan. */
+public final class BoundaryMatcher {
+    private final byte[] pattern;
+    private final int[] skip = new int[256]; // how far we can move the window, indexed by the window's last byte
+
+    public BoundaryMatcher(byte[] pattern) {
+        if (pattern == null || pattern.length == 0) {
+            throw new IllegalArgumentException("pattern must not be empty");
+        }
+        this.pattern = pattern.clone();
+        int m = pattern.length;
+        // a byte that is not in the pattern lets us skip the whole pattern length
+        Arrays.fill(skip, m);
+        // a byte that is in the pattern lets us skip until its last occurrence (ignoring the final position) lines up
+        for (int i = 0; i < m - 1; i++) {
+            skip[pattern[i] & 0xff] = m - 1 - i;
+        }
+    }
+
+    public BoundaryMatcher(String pattern) {
+        this(pattern.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    public int length() {
+        return pattern.length;
+    }
+
+    // returns the index of the first match in data[from, to) or -1 if the pattern does not fully fit anywhere in it
+    public int indexOf(byte[] data, int from, int to) {
+        int m = pattern.length;
+        int last = m - 1;
+        byte lastByte = pattern[last];
+        int i = Math.max(from, 0);
+        int limit = Math.min(to, data.length) - m;
+        while (i <= limit) {
+            byte b = data[i + last];
+            // compare the last byte first, it is the one that decides the skip anyway
+            if (b == lastByte) {
+                int j = last - 1;
+                while (j >= 0 && data[i + j] == pattern[j]) {
+                    j--;
+                }
+                if (j < 0) {
+                    return i;
+                }
+            }
+            i += skip[b & 0xff];
+        }
+        return -1;
+    }
+
+    public int indexOf(byte[] data, int from) {
+        return indexOf(data, from, data.length);
+    }
+
+    // true when data starts with the pattern at 'offset'
+    public boolean matchesAt(byte[] data, int offset) {
+        if (offset < 0 || offset + pattern.length > data.length) return false;
+        for (int i = 0; i < pattern.length; i++) {
+            if (data[offset + i] != pattern[i]) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,67 @@
+package P2P.Utils;
+
+/* One byte range of a file, as asked for by an HTTP "Range: bytes=..." header.
+   start and end are both inclusive, like in the header itself and in Content-Range. */
+public class ByteRange {
+    public final long start;
+    public final long end;
+
+    public ByteRange(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    public long length() {
+        return end - start + 1;
+    }
+
+    // value for the Content-Range header of a 206 response
+    public String contentRange(long totalLength) {
+        return "bytes " + start + "-" + end + "/" + totalLength;
+    }
+
+    // thrown when the header is valid but none of it lies inside the file, the handler answers 416
+    public static class UnsatisfiableRangeException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public UnsatisfiableRangeException(String range) {
+            super("Range not satisfiable: " + range);
+        }
+    }
+
+    /* Parses a Range header against a file of totalLength bytes.
+         "bytes=0-499"  -> first 500 bytes
+         "bytes=500-"   -> everything from byte 500
+         "bytes=-500"   -> last 500 bytes
+       Returns null when the header should be ignored and the whole file sent: missing header, another unit,
+       syntax we do not understand, or several ranges at once (the RFC allows a server to answer those with a 200). */
+    public static ByteRange parse(String header, long totalLength) throws UnsatisfiableRangeException {
+        if (header == null) return null;
+        String value = header.trim();
+        if (!value.regionMatches(true, 0, "bytes=", 0, 6)) return null;
+        String spec = value.substring(6).trim();
+        if (spec.isEmpty() || spec.indexOf(',') != -1) return null;
+
+        int dash = spec.indexOf('-');
+        if (dash == -1) return null;
+        String first = spec.substring(0, dash).trim();
+        String last = spec.substring(dash + 1).trim();
+        try {
+            if (first.isEmpty()) {
+                // suffix range: the last N bytes
+                if (last.isEmpty()) return null;
+                long suffix = Long.parseLong(last);
+                if (suffix < 0) return null;
+                if (suffix == 0 || totalLength == 0) throw new UnsatisfiableRangeException(header);
+                return new ByteRange(Math.max(0, totalLength - suffix), totalLength - 1);
+            }
+            long start = Long.parseLong(first);
+            long end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+            if (start < 0 || end < start) return null;
+            if (start >= totalLength) throw new UnsatisfiableRangeException(header);
+            return new ByteRange(start, Math.min(end, totalLength - 1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
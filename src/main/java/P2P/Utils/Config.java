@@ -0,0 +1,53 @@
+package P2P.Utils;
+
+/* Small helper to read settings.
+   A setting like "skylink.transfer.port" is looked up first as a system property (-Dskylink.transfer.port=9090)
+   and then as an env var with the same name in upper case and underscores (SKYLINK_TRANSFER_PORT=9090),
+   the same way App reads the PORT env var that Render gives us. If neither is set we use the default. */
+public class Config {
+
+    public static String get(String key, String defaultValue) {
+        String value = System.getProperty(key);
+        if (value == null || value.isBlank()) {
+            value = System.getenv(key.toUpperCase().replace('.', '_'));
+        }
+        return (value == null || value.isBlank()) ? defaultValue : value.trim();
+    }
+
+    public static int getInt(String key, int defaultValue) {
+        String value = get(key, null);
+        if (value == null) return defaultValue;
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            Log.warn("Invalid number in setting, using the default", "setting", key, "value", value, "default", defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public static long getLong(String key, long defaultValue) {
+        String value = get(key, null);
+        if (value == null) return defaultValue;
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            Log.warn("Invalid number in setting, using the default", "setting", key, "value", value, "default", defaultValue);
+            return defaultValue;
+        }
+    }
+
+    // true/on/yes/1 and false/off/no/0, anything else falls back to the default
+    public static boolean getBoolean(String key, boolean defaultValue) {
+        String value = get(key, null);
+        if (value == null) return defaultValue;
+        switch (value.toLowerCase()) {
+            case "true": case "on": case "yes": case "1":
+                return true;
+            case "false": case "off": case "no": case "0":
+                return false;
+            default:
+                Log.warn("Invalid switch in setting, using the default", "setting", key, "value", value, "default", defaultValue);
+                return defaultValue;
+        }
+    }
+}
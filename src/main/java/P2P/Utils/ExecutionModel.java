@@ -0,0 +1,116 @@
+package P2P.Utils;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* Decides which threads run our HTTP exchanges (and with them every upload/download transfer).
+     SKYLINK_EXECUTOR=platform (default) -> bounded pool of SKYLINK_EXECUTOR_THREADS platform threads (default 10)
+     SKYLINK_EXECUTOR=virtual            -> one virtual thread per task, a slow client only parks a cheap virtual
+                                            thread instead of holding one of the 10 pool threads
+     SKYLINK_EXECUTOR_CARRIERS           -> carrier threads of the virtual thread scheduler, JVM default (one per
+                                            CPU) when unset, see configureCarrierThreads()
+   The build targets Java 17, so virtual threads are looked up by reflection. On a JVM without them (17) or with them
+   only as a preview (19/20 without --enable-preview) we fall back to the platform pool and say so in the log. */
+public class ExecutionModel {
+    public enum Mode { PLATFORM, VIRTUAL }
+
+    private static final int DEFAULT_PLATFORM_THREADS = 10;
+
+    public static Mode configuredMode() {
+        String value = Config.get("skylink.executor", "platform");
+        if (value.equalsIgnoreCase("virtual")) return Mode.VIRTUAL;
+        if (!value.equalsIgnoreCase("platform")) {
+            Log.warn("Unknown executor mode, using platform", "mode", value);
+        }
+        return Mode.PLATFORM;
+    }
+
+    public static int configuredPlatformThreads() {
+        return Math.max(1, Config.getInt("skylink.executor.threads", DEFAULT_PLATFORM_THREADS));
+    }
+
+    // the executor for the HTTP server, picked from the configuration
+    public static ExecutorService newRequestExecutor() {
+        return newExecutor(configuredMode(), configuredPlatformThreads(), "http-worker");
+    }
+
+    public static ExecutorService newExecutor(Mode mode, int platformThreads, String namePrefix) {
+        if (mode == Mode.VIRTUAL) {
+            configureCarrierThreads();
+            ExecutorService virtual = newVirtualThreadPerTaskExecutor();
+            if (virtual != null) {
+                Log.info("Execution model: virtual threads");
+                return virtual;
+            }
+            Log.warn("Virtual threads are not available, falling back to platform threads",
+                    "java", Runtime.version().feature(), "threads", platformThreads);
+        }
+        Log.info("Execution model: platform threads", "threads", platformThreads);
+        return Executors.newFixedThreadPool(platformThreads, namedFactory(namePrefix));
+    }
+
+    /* The streams of com.sun.net.httpserver do their socket I/O inside synchronized methods. On Java 21-23 a virtual
+       thread blocked inside synchronized pins its carrier thread, and the default scheduler only has one carrier per
+       CPU, so a few slow clients can stall every other request. That scheduler is JVM-wide and the operator's to size,
+       we leave it alone unless asked: either start the JVM with -Djdk.virtualThreadScheduler.parallelism=<n>, or set
+       SKYLINK_EXECUTOR_CARRIERS=<n> (e.g. 256) and we set that property here, when it is not set already.
+       This must run before the first virtual thread exists, the JDK reads the property once. */
+    private static void configureCarrierThreads() {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        String parallelism = System.getProperty("jdk.virtualThreadScheduler.parallelism");
+        if (Config.get("skylink.executor.carriers", null) == null) {
+            if (parallelism == null) {
+                Log.info("Virtual threads run on the default scheduler, set SKYLINK_EXECUTOR_CARRIERS for more carriers",
+                        "carriers", cpus);
+            }
+            return;
+        }
+        if (parallelism != null) {
+            Log.warn("SKYLINK_EXECUTOR_CARRIERS ignored, jdk.virtualThreadScheduler.parallelism is set",
+                    "parallelism", parallelism);
+            return;
+        }
+        int carriers = Math.max(cpus, Config.getInt("skylink.executor.carriers", cpus));
+        String maxPoolSize = System.getProperty("jdk.virtualThreadScheduler.maxPoolSize");
+        if (maxPoolSize != null) {
+            try {
+                carriers = Math.min(carriers, Integer.parseInt(maxPoolSize.trim())); // the operator's cap wins
+            } catch (NumberFormatException ignored) {
+                // the JDK will complain about it itself
+            }
+        }
+        System.setProperty("jdk.virtualThreadScheduler.parallelism", String.valueOf(carriers));
+        Log.info("Virtual thread carriers configured", "carriers", carriers);
+    }
+
+    // how many tasks the executor runs at once, 0 when it starts a (virtual) thread for every task
+    public static int workerThreads(ExecutorService executor) {
+        return executor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) executor).getMaximumPoolSize() : 0;
+    }
+
+    public static boolean virtualThreadsSupported() {
+        ExecutorService probe = newVirtualThreadPerTaskExecutor();
+        if (probe == null) return false;
+        probe.shutdown();
+        return true;
+    }
+
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return null; // Java 17..18, no virtual threads at all
+        } catch (InvocationTargetException e) {
+            return null; // Java 19/20 without --enable-preview throws UnsupportedOperationException
+        }
+    }
+
+    private static ThreadFactory namedFactory(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> new Thread(runnable, prefix + "-" + counter.incrementAndGet());
+    }
+}
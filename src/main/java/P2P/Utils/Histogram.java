@@ -0,0 +1,74 @@
+package P2P.Utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/* Latency histogram in the style of HdrHistogram: log-linear buckets over the full long range.
+   Every power of two is split in 32 equal sub-buckets, so a recorded value is known within ~3% whatever its size
+   (a 40 ns lookup and a 40 sec upload get the same relative precision) and recording is one array increment,
+   no allocation and no lock. Values are nanoseconds here, but the class does not care about the unit.
+   Quantiles are over everything recorded since start, like any Prometheus summary without a time window. */
+public class Histogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // values below 2 * SUB_BUCKETS get an exact bucket each, after that 32 buckets per power of two up to 2^63
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    public void record(long value) {
+        if (value < 0) value = 0;
+        buckets.incrementAndGet(indexOf(value));
+        count.increment();
+        sum.add(value);
+    }
+
+    // records the time elapsed since startNanos (a System.nanoTime() value)
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    public long sum() {
+        return sum.sum();
+    }
+
+    /* Smallest value v such that at least a fraction q of the recorded values are <= v (within bucket precision).
+       Answers the upper edge of the bucket, so a reported p99 is never lower than the real one. */
+    public long quantile(double q) {
+        long[] snapshot = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            snapshot[i] = buckets.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(q * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) return highestValueIn(i);
+        }
+        return highestValueIn(BUCKET_COUNT - 1);
+    }
+
+    static int indexOf(long value) {
+        if (value < 2 * SUB_BUCKETS) return (int) value;
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+        int top = (int) (value >>> shift); // 32..63
+        return (shift + 1) * SUB_BUCKETS + (top - SUB_BUCKETS);
+    }
+
+    static long highestValueIn(int index) {
+        if (index < 2 * SUB_BUCKETS) return index;
+        int shift = index / SUB_BUCKETS - 1;
+        long top = index % SUB_BUCKETS + SUB_BUCKETS;
+        long next = (top + 1) << shift;
+        return next <= 0 ? Long.MAX_VALUE : next - 1; // the last bucket ends at Long.MAX_VALUE
+    }
+}
@@ -0,0 +1,253 @@
+package P2P.Utils;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/* Asynchronous logging for the request and transfer paths.
+   System.out.println takes the PrintStream lock and writes to the console on the calling thread, so under load every
+   upload/download thread queues up behind the terminal. Here a log call formats nothing, it only puts a small
+   entry into a lock-free ring buffer; a background "log-writer" thread drains the buffer in batches and writes
+   each batch with one call. When the buffer is full the entry is dropped (and counted) instead of blocking.
+   Fields are key/value pairs next to the message, written as key=value so the lines stay grep-able:
+     Log.info("File sent", "share", shareId, "bytes", size, "ms", elapsedMs);
+     -> 2026-10-16T22:48:25.123Z INFO  [transfer-loop-0] File sent share=3 bytes=3000000 ms=12
+   Level: SKYLINK_LOG_LEVEL (DEBUG, INFO, WARN, ERROR, default INFO), buffer size: SKYLINK_LOG_BUFFER (default 8192). */
+public final class Log {
+
+    public enum Level { DEBUG, INFO, WARN, ERROR }
+
+    private static final String LEVEL_SETTING = Config.get("skylink.log.level", "INFO");
+    private static final Level THRESHOLD = parseLevel(LEVEL_SETTING);
+    private static final RingBuffer BUFFER = new RingBuffer(Config.getInt("skylink.log.buffer", 8192));
+    private static final Metrics.Counter DROPPED = Metrics.counter("skylink_log_dropped_total", "",
+            "Log entries dropped because the log buffer was full");
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+    private static final int MAX_BATCH = 512;
+
+    private static volatile boolean closed;
+    private static long reportedDrops; // only touched by the writer
+
+    static {
+        Thread writer = new Thread(Log::writeLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        // whatever is still buffered when the JVM exits gets written, later entries go straight to the console
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            closed = true;
+            drain();
+        }, "log-flush"));
+        if (!THRESHOLD.name().equalsIgnoreCase(LEVEL_SETTING.trim())) {
+            warn("Unknown log level, using INFO", "level", LEVEL_SETTING);
+        }
+    }
+
+    private Log() {
+    }
+
+    // one log call, kept as is until the writer formats it
+    static final class Entry {
+        final long timeMillis = System.currentTimeMillis();
+        final String thread = Thread.currentThread().getName();
+        final Level level;
+        final String message;
+        final Throwable error;
+        final Object[] fields;
+
+        Entry(Level level, String message, Throwable error, Object[] fields) {
+            this.level = level;
+            this.message = message;
+            this.error = error;
+            this.fields = fields;
+        }
+    }
+
+    public static boolean isEnabled(Level level) {
+        return level.compareTo(THRESHOLD) >= 0;
+    }
+
+    public static void debug(String message, Object... fields) {
+        log(Level.DEBUG, message, null, fields);
+    }
+
+    public static void info(String message, Object... fields) {
+        log(Level.INFO, message, null, fields);
+    }
+
+    public static void warn(String message, Object... fields) {
+        log(Level.WARN, message, null, fields);
+    }
+
+    public static void error(String message, Object... fields) {
+        log(Level.ERROR, message, null, fields);
+    }
+
+    // the exception's message is written as an "error" field, the stack trace only at DEBUG level
+    public static void error(String message, Throwable error, Object... fields) {
+        log(Level.ERROR, message, error, fields);
+    }
+
+    private static void log(Level level, String message, Throwable error, Object[] fields) {
+        if (!isEnabled(level)) return;
+        Entry entry = new Entry(level, message, error, fields);
+        if (closed || BUFFER == null) {
+            // JVM is going down and the writer may already be gone, or a bad setting is reported while this class is
+            // still being initialized (Config warns through us) and there is no buffer yet
+            write(entry);
+        } else if (!BUFFER.offer(entry)) {
+            DROPPED.increment();
+        }
+    }
+
+    private static void writeLoop() {
+        while (true) {
+            if (drain() == 0) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    // writes everything that is buffered, at most MAX_BATCH entries per console write, returns how many were written
+    private static synchronized int drain() {
+        StringBuilder out = new StringBuilder();
+        StringBuilder err = new StringBuilder();
+        int total = 0;
+        Entry entry;
+        int inBatch = 0;
+        while ((entry = BUFFER.poll()) != null) {
+            format(entry, entry.level.compareTo(Level.WARN) >= 0 ? err : out);
+            total++;
+            if (++inBatch == MAX_BATCH) {
+                flush(out, err);
+                inBatch = 0;
+            }
+        }
+        long drops = DROPPED.get();
+        if (drops != reportedDrops) {
+            format(new Entry(Level.WARN, "Log buffer full, entries dropped", null,
+                    new Object[]{"dropped", drops - reportedDrops}), err);
+            reportedDrops = drops;
+        }
+        flush(out, err);
+        return total;
+    }
+
+    private static void write(Entry entry) {
+        StringBuilder line = new StringBuilder();
+        format(entry, line);
+        (entry.level.compareTo(Level.WARN) >= 0 ? System.err : System.out).print(line);
+    }
+
+    private static void flush(StringBuilder out, StringBuilder err) {
+        print(System.out, out);
+        print(System.err, err);
+    }
+
+    private static void print(PrintStream stream, StringBuilder text) {
+        if (text.length() == 0) return;
+        stream.print(text);
+        stream.flush();
+        text.setLength(0);
+    }
+
+    static void format(Entry entry, StringBuilder line) {
+        line.append(Instant.ofEpochMilli(entry.timeMillis)).append(' ')
+                .append(String.format(Locale.ROOT, "%-5s", entry.level)).append(" [").append(entry.thread).append("] ")
+                .append(entry.message);
+        Object[] fields = entry.fields;
+        for (int i = 0; fields != null && i + 1 < fields.length; i += 2) {
+            line.append(' ').append(fields[i]).append('=');
+            appendValue(line, fields[i + 1]);
+        }
+        if (entry.error != null) {
+            line.append(" error=");
+            appendValue(line, String.valueOf(entry.error.getMessage()));
+        }
+        line.append('\n');
+        if (entry.error != null && THRESHOLD == Level.DEBUG) {
+            for (StackTraceElement element : entry.error.getStackTrace()) {
+                line.append("\tat ").append(element).append('\n');
+            }
+        }
+    }
+
+    // values with spaces are quoted so a line can still be split on spaces
+    private static void appendValue(StringBuilder line, Object value) {
+        String text = String.valueOf(value);
+        if (text.indexOf(' ') == -1 && text.indexOf('"') == -1 && !text.isEmpty()) {
+            line.append(text);
+        } else {
+            line.append('"').append(text.replace("\"", "\\\"")).append('"');
+        }
+    }
+
+    // INFO for anything unknown, the static initializer reports it once the writer runs
+    private static Level parseLevel(String value) {
+        try {
+            return Level.valueOf(value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return Level.INFO;
+        }
+    }
+
+    /* Bounded multi-producer / single-consumer queue (Dmitry Vyukov's design).
+       Every slot has a sequence number that says whose turn it is: a producer claims a slot with one CAS on tail and
+       publishes it by bumping the slot's sequence, the single consumer frees it the same way. No locks, and a full
+       buffer is reported to the producer instead of making it wait. */
+    static final class RingBuffer {
+        private final Object[] items;
+        private final AtomicLongArray sequences;
+        private final int mask;
+        private final AtomicLong tail = new AtomicLong();
+        private long head; // consumer only
+
+        RingBuffer(int requestedCapacity) {
+            int capacity = Integer.highestOneBit(Math.max(2, requestedCapacity - 1)) << 1; // next power of two
+            items = new Object[capacity];
+            sequences = new AtomicLongArray(capacity);
+            mask = capacity - 1;
+            for (int i = 0; i < capacity; i++) {
+                sequences.set(i, i);
+            }
+        }
+
+        int capacity() {
+            return items.length;
+        }
+
+        boolean offer(Entry entry) {
+            long position = tail.get();
+            while (true) {
+                int index = (int) position & mask;
+                long difference = sequences.get(index) - position;
+                if (difference == 0) {
+                    if (tail.compareAndSet(position, position + 1)) {
+                        items[index] = entry;
+                        sequences.set(index, position + 1); // volatile write publishes the item to the consumer
+                        return true;
+                    }
+                    position = tail.get();
+                } else if (difference < 0) {
+                    return false; // the consumer has not freed this slot yet, the buffer is full
+                } else {
+                    position = tail.get(); // another producer took it, try the next one
+                }
+            }
+        }
+
+        // single consumer only
+        Entry poll() {
+            int index = (int) head & mask;
+            if (sequences.get(index) != head + 1) return null; // nothing published here yet
+            Entry entry = (Entry) items[index];
+            items[index] = null;
+            sequences.set(index, head + items.length); // free for the producer one lap later
+            head++;
+            return entry;
+        }
+    }
+}
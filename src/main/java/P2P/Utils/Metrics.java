@@ -0,0 +1,230 @@
+package P2P.Utils;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/* Process wide metrics registry, served in Prometheus text format on /metrics.
+   Hot paths only touch LongAdders (striped, so threads counting the same thing do not fight over one cache line)
+   and Histogram buckets, nothing is formatted until somebody scrapes.
+   Metrics are created once, usually into a static final field of the class that updates them:
+     private static final Metrics.Counter BYTES_IN = Metrics.counter("skylink_bytes_in_total", "", "Bytes received");
+   Asking again for the same name + labels returns the same instance, so creating a second server in one JVM
+   (tests, the load generators) keeps counting into the same series. Labels are given in Prometheus syntax,
+   e.g. "endpoint=\"upload\"", or "" for none. */
+public final class Metrics {
+
+    private Metrics() {
+    }
+
+    private enum Type {
+        COUNTER("counter"), GAUGE("gauge"), SUMMARY("summary");
+
+        final String prometheusName;
+
+        Type(String prometheusName) {
+            this.prometheusName = prometheusName;
+        }
+    }
+
+    // all series of one metric name, they share HELP and TYPE
+    private static final class Family {
+        final String help;
+        final Type type;
+        final Map<String, Object> series = new ConcurrentSkipListMap<>(); // labels -> Counter / Gauge / Histogram
+
+        Family(String help, Type type) {
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    private static final Map<String, Family> FAMILIES = new ConcurrentSkipListMap<>();
+
+    // quantiles every histogram reports
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    public static final class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long amount) {
+            value.add(amount);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    // a value that goes up and down (work in flight), or is read from somewhere else when scraped (live shares)
+    public static final class Gauge {
+        private final LongAdder value = new LongAdder();
+        private volatile LongSupplier supplier;
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void decrement() {
+            value.decrement();
+        }
+
+        public long get() {
+            LongSupplier s = supplier;
+            return s != null ? s.getAsLong() : value.sum();
+        }
+    }
+
+    public static Counter counter(String name, String labels, String help) {
+        return (Counter) family(name, help, Type.COUNTER).series.computeIfAbsent(labels, l -> new Counter());
+    }
+
+    /* One counter per HTTP status, for code that only knows the status at the end of a request. The series for a status
+       is looked up the first time it shows up and kept in an array, so a request costs an array read, not a String
+       and a registry lookup. */
+    public static final class StatusCounters {
+        private final String name;
+        private final String help;
+        private final AtomicReferenceArray<Counter> byStatus = new AtomicReferenceArray<>(600);
+
+        private StatusCounters(String name, String help) {
+            this.name = name;
+            this.help = help;
+        }
+
+        public void increment(int status) {
+            if (status < 0 || status >= byStatus.length()) {
+                counter(name, "status=\"" + status + "\"", help).increment(); // -1: no response was sent
+                return;
+            }
+            Counter counter = byStatus.get(status);
+            if (counter == null) {
+                // a race only looks the same series up twice, counter() hands out one instance per labels
+                counter = counter(name, "status=\"" + status + "\"", help);
+                byStatus.set(status, counter);
+            }
+            counter.increment();
+        }
+    }
+
+    public static StatusCounters statusCounters(String name, String help) {
+        return new StatusCounters(name, help);
+    }
+
+    public static Gauge gauge(String name, String labels, String help) {
+        return (Gauge) family(name, help, Type.GAUGE).series.computeIfAbsent(labels, l -> new Gauge());
+    }
+
+    // a gauge read from supplier on every scrape, registering the same name again replaces the supplier
+    public static void gauge(String name, String labels, String help, LongSupplier supplier) {
+        gauge(name, labels, help).supplier = supplier;
+    }
+
+    // a latency histogram fed with nanoseconds, exported as a summary in seconds
+    public static Histogram histogram(String name, String labels, String help) {
+        return (Histogram) family(name, help, Type.SUMMARY).series.computeIfAbsent(labels, l -> new Histogram());
+    }
+
+    private static Family family(String name, String help, Type type) {
+        Family family = FAMILIES.computeIfAbsent(name, n -> new Family(help, type));
+        if (family.type != type) {
+            throw new IllegalArgumentException("Metric " + name + " is already registered as a " + family.type.prometheusName);
+        }
+        return family;
+    }
+
+    static {
+        gauge("skylink_jvm_heap_used_bytes", "", "Heap currently in use",
+                () -> ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+        gauge("skylink_jvm_threads", "", "Live JVM threads (platform threads only)",
+                () -> ManagementFactory.getThreadMXBean().getThreadCount());
+    }
+
+    // Prometheus text exposition format 0.0.4
+    public static String scrape() {
+        StringBuilder out = new StringBuilder(4096);
+        for (Map.Entry<String, Family> entry : FAMILIES.entrySet()) {
+            String name = entry.getKey();
+            Family family = entry.getValue();
+            out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(family.type.prometheusName).append('\n');
+            for (Map.Entry<String, Object> series : family.series.entrySet()) {
+                String labels = series.getKey();
+                Object metric = series.getValue();
+                if (metric instanceof Counter) {
+                    sample(out, name, labels, ((Counter) metric).get());
+                } else if (metric instanceof Gauge) {
+                    sample(out, name, labels, ((Gauge) metric).get());
+                } else {
+                    Histogram histogram = (Histogram) metric;
+                    for (double q : QUANTILES) {
+                        String quantileLabel = "quantile=\"" + q + "\"";
+                        sample(out, name, labels.isEmpty() ? quantileLabel : labels + "," + quantileLabel,
+                                seconds(histogram.quantile(q)));
+                    }
+                    sample(out, name + "_sum", labels, seconds(histogram.sum()));
+                    sample(out, name + "_count", labels, histogram.count());
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, Object value) {
+        out.append(name);
+        if (!labels.isEmpty()) out.append('{').append(labels).append('}');
+        out.append(' ').append(value).append('\n');
+    }
+
+    // wraps a stream so every byte read through it is added to counter as it goes (bytes/sec stays smooth on big files)
+    public static InputStream counting(InputStream in, Counter counter) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b != -1) counter.increment();
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read = in.read(b, off, len);
+                if (read > 0) counter.add(read);
+                return read;
+            }
+        };
+    }
+
+    public static OutputStream counting(OutputStream out, Counter counter) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                counter.increment();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len); // FilterOutputStream would write byte by byte
+                counter.add(len);
+            }
+        };
+    }
+}
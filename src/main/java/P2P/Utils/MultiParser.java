@@ -1,12 +1,20 @@
 package P2P.Utils;
 
+import java.nio.charset.StandardCharsets;
+
 public class MultiParser {
+    private static final BoundaryMatcher HEADER_END = new BoundaryMatcher("\r\n\r\n");
+    private static final BoundaryMatcher LINE_END = new BoundaryMatcher("\r\n");
+
     private final byte[] data;
     private final String boundary;
+    // "\r\n--boundary" , the skip table is built once here and reused for every part we scan
+    private final BoundaryMatcher delimiter;
 
     public MultiParser(byte[] data, String boundary) {
         this.data = data;
         this.boundary = boundary;
+        this.delimiter = new BoundaryMatcher("\r\n--" + boundary);
     }
 
     public static class ParseResult {
@@ -21,79 +29,65 @@ public class MultiParser {
         }
     }
 
-    private static int findSequence(byte[] data, byte[] sequence, int startPosition) {
-        // Loop through 'data' starting from startPosition
-        for (int i = startPosition; i <= data.length - sequence.length; i++) {
-
-            boolean match = true; // Assume it's a match
-
-            // Check if sequence matches starting from position i
-            for (int j = 0; j < sequence.length; j++) {
-                if (data[i + j] != sequence[j]) {
-                    match = false; // Found a mismatch
-                    break;         // Stop checking further for this i
-                }
-            }
-
-            // If all bytes matched, return the index where it starts
-            if (match) {
-                return i;
-            }
-        }
-
-        // If sequence not found anywhere, return -1
-        return -1;
-    }
-
+    /* Single pass over the payload: we walk part by part, only the small header block of each part is turned into a
+       String (never the whole payload), and the body end is found with ONE boundary search. Whether that boundary is
+       the closing "--boundary--" or just the start of the next part does not matter for the content, so there is no
+       second search for the other form. */
     public ParseResult parse() {
         try {
-            String dataAsString = new String(data);
-            String fileNameMarker = "filename=\"";
-            int fileNameStart = dataAsString.indexOf(fileNameMarker);
-            if (fileNameStart == -1) return null;
-
-            fileNameStart += fileNameMarker.length();
-            int fileNameEnd = dataAsString.indexOf("\"", fileNameStart);
-            if (fileNameEnd == -1) return null;
-            String filename = dataAsString.substring(fileNameStart, fileNameEnd);
-
-            String contentTypeMaker = "Content-Type: ";
-            int contentTypeStart = dataAsString.indexOf(contentTypeMaker, fileNameEnd);
-            String contentType = "application/octet-stream";
-            if (contentTypeStart != -1) {
-                contentTypeStart += contentTypeMaker.length();
-                int contentTypeEnd = dataAsString.indexOf("\r\n", contentTypeStart);
-                if (contentTypeEnd > contentTypeStart) {
-                    contentType = dataAsString.substring(contentTypeStart, contentTypeEnd);
+            int position = firstPartStart();
+            while (position != -1) {
+                // "--" right after a boundary means it was the closing one, so no file part was found
+                if (position + 1 < data.length && data[position] == '-' && data[position + 1] == '-') {
+                    return null;
+                }
+                int lineEnd = LINE_END.indexOf(data, position);
+                if (lineEnd == -1) return null;
+
+                int headerStart = lineEnd + 2;
+                int headerEnd;
+                int contentStart;
+                if (LINE_END.matchesAt(data, headerStart)) {
+                    // part without any header lines
+                    headerEnd = headerStart;
+                    contentStart = headerStart + 2;
+                } else {
+                    headerEnd = HEADER_END.indexOf(data, headerStart);
+                    if (headerEnd == -1) return null;
+                    contentStart = headerEnd + HEADER_END.length();
                 }
-            }
-
-            String headerEndMarker = "\r\n\r\n";
-            int headerEnd = dataAsString.indexOf(headerEndMarker);
-            if (headerEnd == -1) return null;
-
-            int contentStart = headerEnd + headerEndMarker.length();
-
-            byte[] boundaryBytes = ("\r\n--" + boundary + "--").getBytes();
-            int contentEnd = findSequence(data, boundaryBytes, contentStart);
 
-            if (contentEnd == -1) {
-                boundaryBytes = ("\r\n--" + boundary).getBytes();
-                contentEnd = findSequence(data, boundaryBytes, contentStart);
-            }
-            if (contentEnd == -1 || contentEnd <= contentStart) {
-                return null;
+                int contentEnd = delimiter.indexOf(data, contentStart);
+                if (contentEnd == -1) return null;
+
+                MultipartStream.PartHeaders part = MultipartStream.parseHeaders(
+                        new String(data, headerStart, headerEnd - headerStart, StandardCharsets.UTF_8));
+                if (part.isFile()) {
+                    if (contentEnd <= contentStart) {
+                        return null;
+                    }
+                    byte[] fileContent = new byte[contentEnd - contentStart];
+                    System.arraycopy(data, contentStart, fileContent, 0, fileContent.length);
+                    return new ParseResult(part.fileName, fileContent, part.contentType);
+                }
+                // not a file (a plain form field), continue right after its closing delimiter
+                position = contentEnd + delimiter.length();
             }
-
-            byte[] fileContent = new byte[contentEnd - contentStart];
-            System.arraycopy(data, contentStart, fileContent, 0, fileContent.length);
-
-            return new ParseResult(filename, fileContent, contentType);
+            return null;
 
         } catch (Exception ex) {
-            System.err.println("Error parsing multipart data " + ex.getMessage());
+            Log.warn("Error parsing multipart data", "error", ex.getMessage());
             return null;
         }
     }
-}
 
+    // the payload starts with "--boundary" (no CRLF in front), otherwise there is a preamble before the first one
+    private int firstPartStart() {
+        BoundaryMatcher dashBoundary = new BoundaryMatcher("--" + boundary);
+        if (dashBoundary.matchesAt(data, 0)) {
+            return dashBoundary.length();
+        }
+        int first = delimiter.indexOf(data, 0);
+        return first == -1 ? -1 : first + delimiter.length();
+    }
+}
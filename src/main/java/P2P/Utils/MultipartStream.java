@@ -0,0 +1,299 @@
+package P2P.Utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/* MultipartStream is the streaming twin of MultiParser.
+   MultiParser needs the whole request body as one byte[] , which means a 500MB upload costs us 500MB (and more) of heap.
+   This class reads the body from an InputStream through ONE fixed size buffer, finds the part boundaries even when they
+   are split across two reads, and pushes the bytes of each part straight into an OutputStream (usually a file).
+   So the memory used per upload is the buffer size, not the file size.
+
+   Usage:
+     MultipartStream ms = new MultipartStream(in, boundary);
+     MultipartStream.PartHeaders part;
+     while ((part = ms.nextPart()) != null) {
+         ms.readBodyTo(out, maxBytes);   // or ms.skipBody()
+     }
+*/
+public class MultipartStream {
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    // part headers are tiny (Content-Disposition + Content-Type), anything bigger than this is garbage or an attack
+    private static final int MAX_HEADER_SIZE = 8 * 1024;
+
+    private static final BoundaryMatcher HEADER_END = new BoundaryMatcher("\r\n\r\n");
+
+    private final InputStream in;
+    private final byte[] delimiter; // "\r\n--" + boundary , this is what ends the body of every part
+    private final BoundaryMatcher delimiterMatcher; // skip table for the delimiter, built once and reused for every buffer
+    private final byte[] buffer;
+    private int head;   // first unread byte inside buffer
+    private int tail;   // one past the last valid byte inside buffer
+    private boolean eof;
+    private boolean started;   // did we already skip the preamble and the first boundary line
+    private boolean finished;  // did we see the closing "--boundary--"
+    private boolean bodyPending; // headers of a part were returned but its body was not consumed yet
+
+    // info about a single part, taken from its own headers (not from the whole payload)
+    public static class PartHeaders {
+        public final String name;
+        public final String fileName;
+        public final String contentType;
+
+        public PartHeaders(String name, String fileName, String contentType) {
+            this.name = name;
+            this.fileName = fileName;
+            this.contentType = contentType;
+        }
+
+        public boolean isFile() {
+            return fileName != null;
+        }
+    }
+
+    // thrown when a part body is bigger than what the caller allowed, so the handler can answer 413
+    public static class SizeLimitExceededException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public SizeLimitExceededException(long limit) {
+            super("Part exceeds the maximum allowed size of " + limit + " bytes");
+        }
+    }
+
+    // thrown when the body does not follow the multipart format, so the handler can answer 400 instead of 500
+    public static class MalformedMultipartException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public MalformedMultipartException(String message) {
+            super("Malformed multipart body: " + message);
+        }
+    }
+
+    public MultipartStream(InputStream in, String boundary) {
+        this(in, boundary, DEFAULT_BUFFER_SIZE);
+    }
+
+    public MultipartStream(InputStream in, String boundary, int bufferSize) {
+        if (boundary == null || boundary.isEmpty()) {
+            throw new IllegalArgumentException("boundary must not be empty");
+        }
+        this.in = in;
+        this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        this.delimiterMatcher = new BoundaryMatcher(delimiter);
+        // the buffer must be able to hold a full header block and a full delimiter, otherwise we can never match them
+        this.buffer = new byte[Math.max(bufferSize, MAX_HEADER_SIZE + delimiter.length * 2 + 4)];
+    }
+
+    /* Moves to the next part and returns its headers, or null when the closing boundary was reached.
+       If the body of the previous part was not read by the caller, it is skipped here. */
+    public PartHeaders nextPart() throws IOException {
+        if (finished) return null;
+        if (bodyPending) {
+            skipBody();
+        }
+        if (!started) {
+            started = true;
+            // The body starts with "--boundary" without the leading CRLF, so we pretend there was one.
+            // Everything before the first boundary (the preamble) is ignored.
+            if (!skipToFirstBoundary()) {
+                finished = true;
+                return null;
+            }
+        }
+        if (!readAfterDelimiter()) {
+            finished = true;
+            return null;
+        }
+        String rawHeaders = readHeaderBlock();
+        if (rawHeaders == null) {
+            throw new MalformedMultipartException("part headers are not terminated");
+        }
+        bodyPending = true;
+        return parseHeaders(rawHeaders);
+    }
+
+    /* Streams the body of the current part into 'out' and returns how many bytes were written.
+       Throws SizeLimitExceededException as soon as more than maxBytes were seen (maxBytes < 0 means no limit). */
+    public long readBodyTo(OutputStream out, long maxBytes) throws IOException {
+        if (!bodyPending) {
+            throw new IllegalStateException("nextPart() must be called before reading a body");
+        }
+        long written = 0;
+        while (true) {
+            int match = delimiterMatcher.indexOf(buffer, head, tail);
+            if (match != -1) {
+                int len = match - head;
+                written += len;
+                checkLimit(written, maxBytes);
+                if (out != null && len > 0) out.write(buffer, head, len);
+                head = match + delimiter.length;
+                bodyPending = false;
+                return written;
+            }
+            // No full delimiter in the buffer. Everything except the last (delimiter.length - 1) bytes is safe to
+            // hand out, because a delimiter that starts in that tail could still be completed by the next read.
+            int safe = (tail - head) - (delimiter.length - 1);
+            if (safe > 0) {
+                written += safe;
+                checkLimit(written, maxBytes);
+                if (out != null) out.write(buffer, head, safe);
+                head += safe;
+            }
+            if (!fill()) {
+                throw new MalformedMultipartException("missing closing boundary");
+            }
+        }
+    }
+
+    public long skipBody() throws IOException {
+        return readBodyTo(null, -1);
+    }
+
+    private static void checkLimit(long written, long maxBytes) throws SizeLimitExceededException {
+        if (maxBytes >= 0 && written > maxBytes) {
+            throw new SizeLimitExceededException(maxBytes);
+        }
+    }
+
+    // finds the very first "--boundary" , it may be at offset 0 (no CRLF in front of it)
+    private boolean skipToFirstBoundary() throws IOException {
+        int dashLen = delimiter.length - 2;
+        if (ensure(dashLen) && regionMatches(buffer, head, delimiter, 2, dashLen)) {
+            head += dashLen;
+            return true;
+        }
+        while (true) {
+            int match = delimiterMatcher.indexOf(buffer, head, tail);
+            if (match != -1) {
+                head = match + delimiter.length;
+                return true;
+            }
+            // drop the preamble but keep a possible partial delimiter at the end
+            int keep = Math.min(tail - head, delimiter.length - 1);
+            head = tail - keep;
+            if (!fill()) return false;
+        }
+    }
+
+    /* We are right after a "--boundary". It is followed either by "--" (closing boundary, we are done)
+       or by optional whitespace and a CRLF (a new part starts). */
+    private boolean readAfterDelimiter() throws IOException {
+        if (!ensure(2)) return false;
+        if (buffer[head] == '-' && buffer[head + 1] == '-') {
+            head += 2;
+            return false;
+        }
+        // RFC 2046 allows linear whitespace after the boundary
+        while (true) {
+            if (!ensure(1)) return false;
+            byte b = buffer[head];
+            if (b == ' ' || b == '\t') {
+                head++;
+            } else {
+                break;
+            }
+        }
+        if (!ensure(2)) return false;
+        if (buffer[head] != '\r' || buffer[head + 1] != '\n') {
+            throw new MalformedMultipartException("boundary is not followed by CRLF");
+        }
+        head += 2;
+        return true;
+    }
+
+    // reads the header block of a part (ends with an empty line) and returns it as text
+    private String readHeaderBlock() throws IOException {
+        // a part without headers starts directly with CRLF
+        if (ensure(2) && buffer[head] == '\r' && buffer[head + 1] == '\n') {
+            head += 2;
+            return "";
+        }
+        int checked = 0; // how many bytes after 'head' were already searched without a match
+        while (true) {
+            int end = HEADER_END.indexOf(buffer, head + Math.max(0, checked - (HEADER_END.length() - 1)), tail);
+            if (end != -1) {
+                String headers = new String(buffer, head, end - head, StandardCharsets.UTF_8);
+                head = end + HEADER_END.length();
+                return headers;
+            }
+            if (tail - head >= MAX_HEADER_SIZE) {
+                throw new MalformedMultipartException("part headers are too large");
+            }
+            checked = tail - head;
+            if (!fill()) return null;
+        }
+    }
+
+    // shared with MultiParser, so both parsers read part headers the same way
+    static PartHeaders parseHeaders(String rawHeaders) {
+        String name = null;
+        String fileName = null;
+        String contentType = "application/octet-stream";
+        for (String line : rawHeaders.split("\r\n")) {
+            int colon = line.indexOf(':');
+            if (colon == -1) continue;
+            String key = line.substring(0, colon).trim();
+            String value = line.substring(colon + 1).trim();
+            if (key.equalsIgnoreCase("Content-Disposition")) {
+                name = dispositionParam(value, "name");
+                fileName = dispositionParam(value, "filename");
+            } else if (key.equalsIgnoreCase("Content-Type") && !value.isEmpty()) {
+                contentType = value;
+            }
+        }
+        return new PartHeaders(name, fileName, contentType);
+    }
+
+    // pulls  key="value"  (or key=value) out of a Content-Disposition header
+    private static String dispositionParam(String disposition, String key) {
+        for (String param : disposition.split(";")) {
+            String p = param.trim();
+            int eq = p.indexOf('=');
+            if (eq == -1 || !p.substring(0, eq).trim().equalsIgnoreCase(key)) continue;
+            String value = p.substring(eq + 1).trim();
+            if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+                value = value.substring(1, value.length() - 1);
+            }
+            return value;
+        }
+        return null;
+    }
+
+    // makes sure at least n unread bytes are in the buffer, returns false if the stream ended before that
+    private boolean ensure(int n) throws IOException {
+        while (tail - head < n) {
+            if (!fill()) return false;
+        }
+        return true;
+    }
+
+    // compacts the unread bytes to the front of the buffer and reads more data behind them
+    private boolean fill() throws IOException {
+        if (eof) return false;
+        if (head > 0) {
+            System.arraycopy(buffer, head, buffer, 0, tail - head);
+            tail -= head;
+            head = 0;
+        }
+        if (tail == buffer.length) {
+            throw new IOException("Multipart buffer overflow");
+        }
+        int read = in.read(buffer, tail, buffer.length - tail);
+        if (read == -1) {
+            eof = true;
+            return false;
+        }
+        tail += read;
+        return true;
+    }
+
+    private static boolean regionMatches(byte[] data, int offset, byte[] pattern, int patternOffset, int len) {
+        for (int i = 0; i < len; i++) {
+            if (data[offset + i] != pattern[patternOffset + i]) return false;
+        }
+        return true;
+    }
+}
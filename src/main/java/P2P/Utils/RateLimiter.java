@@ -0,0 +1,86 @@
+package P2P.Utils;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/* Per-key (per IP) token bucket rate limiter, lock free.
+   Instead of storing "tokens left" and "last refill" (two fields that must change together, which is what raced in the
+   old UploadInfo), every key keeps ONE long: the theoretical arrival time (TAT) of its next request. This is the
+   generic cell rate algorithm (GCRA), it behaves exactly like a token bucket of 'burst' tokens refilled at
+   'permits per period', but one compareAndSet is all a request needs, so IPs never block each other.
+   A key whose TAT is in the past has a full bucket, it is the same as a key we never saw. Such keys are evicted by a
+   sweep that runs at most once per sweep interval, so scanners hitting us from thousands of IPs cannot grow the map
+   forever. */
+public class RateLimiter {
+    // marks a state that was swept out of the map, a request that still holds it looks the key up again
+    private static final long EVICTED = Long.MIN_VALUE;
+
+    private final long emissionIntervalNanos; // time one token needs to come back
+    private final long burstToleranceNanos;   // how far ahead of "now" the TAT may run (burst - 1 tokens)
+    private final long sweepIntervalNanos;
+    private final LongSupplier clock;
+    private final ConcurrentHashMap<String, AtomicLong> states = new ConcurrentHashMap<>();
+    private final AtomicLong lastSweep;
+
+    public RateLimiter(int permits, long period, TimeUnit unit) {
+        this(permits, permits, period, unit, System::nanoTime);
+    }
+
+    RateLimiter(int permits, int burst, long period, TimeUnit unit, LongSupplier clock) {
+        if (permits <= 0 || burst <= 0) {
+            throw new IllegalArgumentException("permits and burst must be positive");
+        }
+        this.emissionIntervalNanos = Math.max(1, unit.toNanos(period) / permits);
+        this.burstToleranceNanos = emissionIntervalNanos * (burst - 1);
+        this.sweepIntervalNanos = Math.max(TimeUnit.SECONDS.toNanos(10), emissionIntervalNanos + burstToleranceNanos);
+        this.clock = clock;
+        this.lastSweep = new AtomicLong(clock.getAsLong());
+    }
+
+    /* Takes one token for this key.
+       Returns 0 when the request may go on, otherwise how many milliseconds the caller should wait (for Retry-After). */
+    public long tryAcquire(String key) {
+        long now = clock.getAsLong();
+        maybeSweep(now);
+        while (true) {
+            AtomicLong state = states.computeIfAbsent(key, k -> new AtomicLong(now));
+            long tat = state.get();
+            if (tat == EVICTED) {
+                states.remove(key, state);
+                continue;
+            }
+            long newTat = Math.max(tat, now) + emissionIntervalNanos;
+            long allowAt = newTat - emissionIntervalNanos - burstToleranceNanos;
+            if (allowAt > now) {
+                return Math.max(1, TimeUnit.NANOSECONDS.toMillis(allowAt - now));
+            }
+            if (state.compareAndSet(tat, newTat)) {
+                return 0;
+            }
+            // another request of the same key won the race, read the new TAT and try again
+        }
+    }
+
+    // number of keys currently tracked
+    public int size() {
+        return states.size();
+    }
+
+    private void maybeSweep(long now) {
+        long last = lastSweep.get();
+        if (now - last < sweepIntervalNanos || !lastSweep.compareAndSet(last, now)) {
+            return; // not due yet, or another thread is already sweeping
+        }
+        for (Map.Entry<String, AtomicLong> entry : states.entrySet()) {
+            AtomicLong state = entry.getValue();
+            long tat = state.get();
+            // TAT in the past = full bucket, forgetting the key changes nothing for that IP
+            if (tat != EVICTED && tat <= now && state.compareAndSet(tat, EVICTED)) {
+                states.remove(entry.getKey(), state);
+            }
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package P2P.Utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/* Hashed timing wheel (the structure Netty and Kafka use for their timeouts).
+   Time is cut in ticks, the wheel has a fixed number of slots and a timeout due in tick t sits in slot t % slots,
+   with a "rounds" counter when it is more than one turn of the wheel away. Scheduling and cancelling are O(1) and
+   an advance only looks at the slots of the ticks that passed, so a million pending expiries cost nothing until
+   they are due, and they are all handled by whoever calls advance() (one thread), never a thread per timeout.
+   Any thread may schedule or cancel: those go through lock-free queues that advance() drains, the slots themselves
+   are only touched by the advancing thread. */
+public class TimerWheel<K> {
+
+    public static final class Timeout<K> {
+        private static final int PENDING = 0, CANCELLED = 1, EXPIRED = 2;
+
+        public final K key;
+        public final long deadlineMillis;
+        private volatile int state = PENDING;
+        private long remainingRounds;
+        private Timeout<K> prev;
+        private Timeout<K> next;
+        private Slot<K> slot;
+        private final TimerWheel<K> wheel;
+
+        private Timeout(TimerWheel<K> wheel, K key, long deadlineMillis) {
+            this.wheel = wheel;
+            this.key = key;
+            this.deadlineMillis = deadlineMillis;
+        }
+
+        // the timeout will not fire any more, and its slot entry is freed on the next advance
+        public void cancel() {
+            if (state == PENDING) {
+                state = CANCELLED;
+                wheel.cancelled.add(this);
+            }
+        }
+    }
+
+    // doubly linked list so a cancelled timeout leaves its slot in O(1)
+    private static final class Slot<K> {
+        Timeout<K> head;
+        Timeout<K> tail;
+
+        void add(Timeout<K> timeout) {
+            timeout.slot = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        void remove(Timeout<K> timeout) {
+            if (timeout.prev != null) timeout.prev.next = timeout.next;
+            else head = timeout.next;
+            if (timeout.next != null) timeout.next.prev = timeout.prev;
+            else tail = timeout.prev;
+            timeout.prev = timeout.next = null;
+            timeout.slot = null;
+        }
+    }
+
+    private final long tickMillis;
+    private final long startMillis;
+    private final Slot<K>[] slots;
+    private final int mask;
+    private final Queue<Timeout<K>> added = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout<K>> cancelled = new ConcurrentLinkedQueue<>();
+    private long tick; // next tick to process, advancing thread only
+    private int size;  // timeouts sitting in slots, advancing thread only
+
+    @SuppressWarnings({"unchecked", "rawtypes"}) // no generic array creation in Java
+    public TimerWheel(long tickMillis, int slotCount, long startMillis) {
+        if (tickMillis <= 0 || slotCount <= 0) {
+            throw new IllegalArgumentException("tick and slot count must be positive");
+        }
+        int capacity = slotCount == 1 ? 1 : Integer.highestOneBit(slotCount - 1) << 1; // next power of two
+        this.tickMillis = tickMillis;
+        this.startMillis = startMillis;
+        this.slots = new Slot[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new Slot<>();
+        }
+        this.mask = capacity - 1;
+    }
+
+    // thread safe, the timeout is placed in its slot by the next advance()
+    public Timeout<K> schedule(K key, long deadlineMillis) {
+        Timeout<K> timeout = new Timeout<>(this, key, deadlineMillis);
+        added.add(timeout);
+        return timeout;
+    }
+
+    /* Moves the wheel up to nowMillis and returns the keys whose deadline passed, in one batch.
+       Must always be called from the same thread (or under the same lock). */
+    public List<K> advance(long nowMillis) {
+        List<K> expired = new ArrayList<>();
+        transferAdded();
+        removeCancelled();
+        // every tick whose start time has been reached is visited exactly once
+        long targetTick = (nowMillis - startMillis) / tickMillis;
+        while (tick <= targetTick) {
+            expireSlot(slots[(int) (tick & mask)], expired);
+            tick++;
+        }
+        return expired;
+    }
+
+    // timeouts waiting in the wheel (cancelled ones count until the next advance)
+    public int pending() {
+        return size + added.size();
+    }
+
+    private void transferAdded() {
+        Timeout<K> timeout;
+        while ((timeout = added.poll()) != null) {
+            if (timeout.state != Timeout.PENDING) continue;
+            // the first tick that starts at or after the deadline, or the next one for deadlines already passed
+            long dueTick = Math.max(Math.floorDiv(timeout.deadlineMillis - startMillis + tickMillis - 1, tickMillis), tick);
+            timeout.remainingRounds = (dueTick - tick) / slots.length;
+            slots[(int) (dueTick & mask)].add(timeout);
+            size++;
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout<K> timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            if (timeout.slot != null) {
+                timeout.slot.remove(timeout);
+                size--;
+            }
+        }
+    }
+
+    private void expireSlot(Slot<K> slot, List<K> expired) {
+        Timeout<K> timeout = slot.head;
+        while (timeout != null) {
+            Timeout<K> next = timeout.next;
+            if (timeout.remainingRounds > 0) {
+                timeout.remainingRounds--; // due in a later turn of the wheel
+            } else {
+                slot.remove(timeout);
+                size--;
+                if (timeout.state == Timeout.PENDING) {
+                    timeout.state = Timeout.EXPIRED;
+                    expired.add(timeout.key);
+                }
+            }
+            timeout = next;
+        }
+    }
+}
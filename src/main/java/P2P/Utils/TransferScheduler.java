@@ -0,0 +1,280 @@
+package P2P.Utils;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/* Shares the outgoing bandwidth between all transfers, peer link and HTTP downloads alike.
+   Without it the kernel hands the NIC to whoever pushes hardest, so one downloader on a fat pipe can starve a dozen
+   small ones. Every transfer opens a Flow and asks it for permission before each send:
+     - a global token bucket holds the total rate (SKYLINK_BANDWIDTH_BYTES_PER_SECOND), set it at or just below the
+       line rate so the queueing happens here, where it is fair, and not in the NIC
+     - an optional token bucket per client IP caps a single downloader, all its connections together
+       (SKYLINK_BANDWIDTH_PER_IP_BYTES_PER_SECOND)
+   While tokens are left a flow simply takes up to one quantum and goes on. Once the bucket runs dry the flows line up
+   and are served round robin, one quantum per turn: that is deficit round robin, minus the deficit counter, since a
+   byte stream can always be cut to fit the quantum. A small file needs a single turn, so it waits for at most one
+   quantum of every other transfer, never behind a whole 4 GB file. A flow over its IP limit gives up its turn to the
+   next one. A pacer thread hands out the turns as tokens come in; a blocking sender waits in acquire(), the event
+   loop gets its onGrant callback and resumes the connection.
+   With both limits at 0 (the default) flows are pass-through and no pacer is ever started. */
+public class TransferScheduler {
+    private static final Metrics.Gauge FLOWS = Metrics.gauge("skylink_bandwidth_flows", "",
+            "Transfers going through the bandwidth scheduler");
+    private static final Metrics.Counter PAUSED = Metrics.counter("skylink_bandwidth_paused_total", "",
+            "Times a transfer had to wait for its bandwidth turn");
+
+    private final long perIpBytesPerSecond;
+    private final int quantum;
+    private final LongSupplier clock;
+    private final boolean startPacer;
+    private final Bucket global; // null when there is no global limit
+    private final Map<String, Bucket> perIp = new HashMap<>();
+    private final ArrayDeque<Flow> waiting = new ArrayDeque<>();
+    private Thread pacer;
+    private boolean stopped;
+
+    // rates in bytes per second, 0 means no limit
+    public TransferScheduler(long bytesPerSecond, long perIpBytesPerSecond, int quantumBytes) {
+        this(bytesPerSecond, perIpBytesPerSecond, quantumBytes, System::nanoTime, true);
+    }
+
+    TransferScheduler(long bytesPerSecond, long perIpBytesPerSecond, int quantumBytes, LongSupplier clock, boolean startPacer) {
+        if (bytesPerSecond < 0 || perIpBytesPerSecond < 0 || quantumBytes <= 0) {
+            throw new IllegalArgumentException("rates must not be negative and the quantum must be positive");
+        }
+        this.perIpBytesPerSecond = perIpBytesPerSecond;
+        this.quantum = quantumBytes;
+        this.clock = clock;
+        this.startPacer = startPacer;
+        this.global = bytesPerSecond > 0 ? new Bucket(bytesPerSecond, quantumBytes, clock.getAsLong()) : null;
+        Metrics.gauge("skylink_bandwidth_waiting", "", "Transfers waiting for their bandwidth turn", this::waitingCount);
+    }
+
+    public boolean isShaping() {
+        return global != null || perIpBytesPerSecond > 0;
+    }
+
+    /* A flow for one transfer to the client at ip. onGrant is for non-blocking senders: after tryAcquire() said 0 it is
+       called (on the pacer thread, keep it short) once the flow may send again. Blocking senders pass null and use
+       acquire() or shape(). */
+    public Flow open(String ip, Runnable onGrant) {
+        Flow flow = new Flow(onGrant);
+        if (isShaping()) {
+            synchronized (this) {
+                if (perIpBytesPerSecond > 0) {
+                    flow.ipKey = ip;
+                    flow.ipBucket = perIp.computeIfAbsent(ip, key -> new Bucket(perIpBytesPerSecond, quantum, clock.getAsLong()));
+                    flow.ipBucket.users++;
+                }
+            }
+            FLOWS.increment();
+        }
+        return flow;
+    }
+
+    public synchronized void stop() {
+        stopped = true;
+        notifyAll();
+    }
+
+    private synchronized int waitingCount() {
+        return waiting.size();
+    }
+
+    // bytes the flow may send now (at most wanted), or 0 after putting it in line for its next turn
+    private long take(Flow flow, long wanted) {
+        if (flow.credit > 0) {
+            long granted = Math.min(flow.credit, wanted);
+            flow.credit -= granted;
+            return granted;
+        }
+        if (flow.queued > 0 || flow.closed) return 0; // its turn has not come yet
+        long want = Math.min(wanted, quantum);
+        long now = clock.getAsLong();
+        // nobody in line: no turn to respect, go ahead while the buckets hold enough
+        if (waiting.isEmpty() && (global == null || global.nanosUntil(want, now) == 0)
+                && (flow.ipBucket == null || flow.ipBucket.nanosUntil(want, now) == 0)) {
+            consume(flow, want);
+            return want;
+        }
+        flow.queued = want;
+        waiting.addLast(flow);
+        PAUSED.increment();
+        if (pacer == null && startPacer) {
+            pacer = new Thread(this::pace, "transfer-pacer");
+            pacer.setDaemon(true);
+            pacer.start();
+        }
+        notifyAll(); // the pacer may be sleeping with nothing in line
+        return 0;
+    }
+
+    private void consume(Flow flow, long bytes) {
+        if (global != null) global.tokens -= bytes;
+        if (flow.ipBucket != null) flow.ipBucket.tokens -= bytes;
+    }
+
+    /* Hands out turns with the tokens there are, in line order. Returns the nanos until the next turn can be served,
+       or -1 when nobody is waiting. Package private for tests, the pacer calls it otherwise. */
+    synchronized long serve(long now) {
+        long next = Long.MAX_VALUE;
+        int skipped = 0;
+        boolean wakeBlocked = false;
+        while (!waiting.isEmpty() && skipped < waiting.size()) {
+            Flow flow = waiting.peekFirst();
+            long ipWait = flow.ipBucket == null ? 0 : flow.ipBucket.nanosUntil(flow.queued, now);
+            if (ipWait > 0) {
+                // this client used up its own limit, the turn goes to the next one in line
+                waiting.addLast(waiting.pollFirst());
+                next = Math.min(next, ipWait);
+                skipped++;
+                continue;
+            }
+            long globalWait = global == null ? 0 : global.nanosUntil(flow.queued, now);
+            if (globalWait > 0) {
+                next = Math.min(next, globalWait); // the head keeps its turn until the bucket holds its quantum
+                break;
+            }
+            waiting.pollFirst();
+            consume(flow, flow.queued);
+            flow.credit += flow.queued;
+            flow.queued = 0;
+            skipped = 0;
+            if (flow.onGrant != null) {
+                flow.onGrant.run();
+            } else {
+                wakeBlocked = true;
+            }
+        }
+        if (wakeBlocked) notifyAll();
+        return waiting.isEmpty() ? -1 : next;
+    }
+
+    private synchronized void pace() {
+        while (!stopped) {
+            long sleep = serve(clock.getAsLong());
+            try {
+                if (sleep < 0) {
+                    wait();
+                } else {
+                    TimeUnit.NANOSECONDS.timedWait(this, Math.max(sleep, 50_000));
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // bandwidth of one transfer, not thread safe: one sender thread (or event loop) per flow
+    public final class Flow implements AutoCloseable {
+        private final Runnable onGrant;
+        private Bucket ipBucket;
+        private String ipKey;
+        private long queued; // bytes asked for while in line, 0 when not waiting
+        private long credit; // granted and not sent yet
+        private boolean closed;
+
+        private Flow(Runnable onGrant) {
+            this.onGrant = onGrant;
+        }
+
+        // bytes that may be sent now, between 1 and wanted; 0 means wait for onGrant and ask again
+        public long tryAcquire(long wanted) {
+            if (!isShaping()) return wanted;
+            synchronized (TransferScheduler.this) {
+                return take(this, wanted);
+            }
+        }
+
+        // like tryAcquire, but blocks until at least one byte may be sent
+        public long acquire(long wanted) throws InterruptedIOException {
+            if (!isShaping()) return wanted;
+            synchronized (TransferScheduler.this) {
+                long granted;
+                while ((granted = take(this, wanted)) == 0) {
+                    try {
+                        TransferScheduler.this.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+                    }
+                }
+                return granted;
+            }
+        }
+
+        // the part of a grant the socket did not take, it is used by the next send
+        public void giveBack(long unused) {
+            if (!isShaping() || unused <= 0) return;
+            synchronized (TransferScheduler.this) {
+                credit += unused;
+            }
+        }
+
+        // an OutputStream whose writes wait for their bandwidth turns
+        public OutputStream shape(OutputStream out) {
+            if (!isShaping()) return out;
+            return new FilterOutputStream(out) {
+                @Override
+                public void write(int b) throws IOException {
+                    acquire(1);
+                    out.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    while (len > 0) {
+                        int granted = (int) acquire(len);
+                        out.write(b, off, granted);
+                        off += granted;
+                        len -= granted;
+                    }
+                }
+            };
+        }
+
+        @Override
+        public void close() {
+            if (!isShaping()) return;
+            synchronized (TransferScheduler.this) {
+                if (closed) return;
+                closed = true;
+                if (queued > 0) waiting.remove(this);
+                if (ipBucket != null && --ipBucket.users == 0) {
+                    perIp.remove(ipKey, ipBucket);
+                }
+            }
+            FLOWS.decrement();
+        }
+    }
+
+    // token bucket refilled lazily, guarded by the scheduler lock
+    private static final class Bucket {
+        private final long bytesPerSecond;
+        private final double capacity;
+        private double tokens;
+        private long refilledAt;
+        private int users;
+
+        Bucket(long bytesPerSecond, int quantum, long now) {
+            this.bytesPerSecond = bytesPerSecond;
+            // 50 ms worth of bytes, but never less than one quantum or no turn could ever be served
+            this.capacity = Math.max(quantum, bytesPerSecond / 20.0);
+            this.tokens = capacity;
+            this.refilledAt = now;
+        }
+
+        long nanosUntil(long bytes, long now) {
+            tokens = Math.min(capacity, tokens + (now - refilledAt) * (bytesPerSecond / 1e9));
+            refilledAt = now;
+            return tokens >= bytes ? 0 : (long) Math.ceil((bytes - tokens) * 1e9 / bytesPerSecond);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package P2P.Utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+
+/* Helpers to move file bytes around with as few copies as possible.
+   FileChannel.transferTo lets the kernel move bytes from the page cache straight into a socket (sendfile) or another
+   file, so they never pass through a byte[] on our heap. That only works when the target is a real SocketChannel or
+   FileChannel, for anything else (like the response stream of HttpExchange, which does not expose its channel)
+   we fall back to a plain copy loop. */
+public class TransferUtils {
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    // true when the JDK can hand a transferTo into this channel to the kernel instead of copying it in Java
+    public static boolean supportsZeroCopy(WritableByteChannel target) {
+        return target instanceof SocketChannel || target instanceof FileChannel;
+    }
+
+    /* Sends count bytes of file starting at position into target and returns how many bytes were sent.
+       For a non-blocking socket this may send less than count (0 when the socket buffer is full), the caller
+       simply calls again with the new position once the socket is writable. */
+    public static long sendFile(FileChannel file, long position, long count, WritableByteChannel target) throws IOException {
+        if (supportsZeroCopy(target)) {
+            return file.transferTo(position, count, target);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(DEFAULT_BUFFER_SIZE, Math.max(count, 1)));
+        long sent = 0;
+        while (sent < count) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), count - sent));
+            int read = file.read(buffer, position + sent);
+            if (read == -1) break;
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                target.write(buffer);
+            }
+            sent += read;
+        }
+        return sent;
+    }
+
+    // sends what remains of buffer (a direct one too) into a plain OutputStream, through one heap array of bufferSize
+    public static long sendBuffer(ByteBuffer buffer, OutputStream out, int bufferSize) throws IOException {
+        byte[] array = new byte[Math.min(bufferSize, Math.max(buffer.remaining(), 1))];
+        long sent = 0;
+        while (buffer.hasRemaining()) {
+            int length = Math.min(array.length, buffer.remaining());
+            buffer.get(array, 0, length);
+            out.write(array, 0, length);
+            sent += length;
+        }
+        return sent;
+    }
+
+    // sends count bytes of file starting at position into a plain OutputStream, this is always a copy loop
+    public static long sendFile(FileChannel file, long position, long count, OutputStream out, int bufferSize) throws IOException {
+        byte[] array = new byte[(int) Math.min(bufferSize, Math.max(count, 1))];
+        ByteBuffer buffer = ByteBuffer.wrap(array);
+        long sent = 0;
+        while (sent < count) {
+            buffer.clear();
+            buffer.limit((int) Math.min(array.length, count - sent));
+            int read = file.read(buffer, position + sent);
+            if (read == -1) break;
+            out.write(array, 0, read);
+            sent += read;
+        }
+        return sent;
+    }
+}
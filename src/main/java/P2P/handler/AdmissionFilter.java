@@ -0,0 +1,169 @@
+package P2P.handler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import P2P.Utils.AdaptiveLimiter;
+import P2P.Utils.Histogram;
+import P2P.Utils.Log;
+import P2P.Utils.Metrics;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+
+/* Admission control in front of every handler. Requests are sorted into two lanes:
+     CONTROL -> small and quick: preflights, /metrics, chunked session create/status/complete/abort, 404s
+     BULK    -> moves file bytes: POST /upload, GET /download, PUT of a chunk
+   Each lane has its own AdaptiveLimiter, so a wave of big uploads can use up the bulk lane but a status poll or
+   a scrape still gets a slot right away. Over the limit a request waits in its lane's bounded queue for a moment,
+   and when that is full it gets 503 with Retry-After at once, no body read, no disk touched.
+   Waiting parks the worker thread the request runs on. On a bounded pool a request only waits while the pool has
+   another thread free, the last one is never parked in a lane queue: it says 503 right away and stays free for the
+   requests behind it (which may be the ones that hold the slots we would wait for).
+   We run on a pool thread too, so the lanes can only answer while the pool has threads to run us. Bulk requests,
+   running or waiting, may hold at most workerThreads - reserved of them (a quarter, at least one): the rest always
+   come back quickly, so control requests get served and surplus bulk requests their 503 instead of sitting in the
+   executor's unbounded queue behind transfers that take minutes.
+   Bulk latency is measured per MiB moved, otherwise a 500MB upload would look like overload to the limiter. */
+public class AdmissionFilter extends Filter {
+    public enum Lane { CONTROL, BULK }
+
+    private static final long MIB = 1024 * 1024;
+    // a rejected request body up to this size is read and thrown away before answering, see reject()
+    private static final long DRAIN_LIMIT = 64 * 1024;
+
+    private final AdaptiveLimiter control;
+    private final AdaptiveLimiter bulk;
+    private final long maxQueueWaitNanos;
+    private final long retryAfterSeconds;
+    private final int workerThreads;                          // size of the pool we run on, 0 = unbounded
+    private final int bulkWorkers;                            // pool threads bulk requests may hold, 0 = no cap
+    private final AtomicInteger busyWorkers = new AtomicInteger(); // threads inside doFilter, running or waiting
+    private final AtomicInteger busyBulkWorkers = new AtomicInteger(); // the ones of them in the bulk lane
+    private final Histogram[] waitTimes = new Histogram[Lane.values().length];
+    private final Metrics.Counter[] rejections = new Metrics.Counter[Lane.values().length];
+
+    public AdmissionFilter(AdaptiveLimiter control, AdaptiveLimiter bulk, long maxQueueWaitMillis, int workerThreads) {
+        this.control = control;
+        this.workerThreads = workerThreads;
+        this.bulkWorkers = bulkWorkers(workerThreads);
+        this.bulk = bulk;
+        this.maxQueueWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxQueueWaitMillis);
+        this.retryAfterSeconds = Math.max(1, (maxQueueWaitMillis + 999) / 1000);
+        for (Lane lane : Lane.values()) {
+            AdaptiveLimiter limiter = limiterOf(lane);
+            String labels = "lane=\"" + lane.name().toLowerCase() + "\"";
+            Metrics.gauge("skylink_admission_limit", labels, "Current concurrency limit of the lane", limiter::limit);
+            Metrics.gauge("skylink_admission_in_flight", labels, "Requests running in the lane", limiter::inFlight);
+            Metrics.gauge("skylink_admission_queued", labels, "Requests waiting for a slot in the lane", limiter::queued);
+            waitTimes[lane.ordinal()] = Metrics.histogram("skylink_admission_wait_seconds", labels,
+                    "Time requests waited for a slot");
+            rejections[lane.ordinal()] = Metrics.counter("skylink_admission_rejected_total", labels,
+                    "Requests answered with 503 because the lane was full");
+        }
+    }
+
+    // a pool of one thread has nothing to spare, its only thread has to take bulk requests as well
+    static int bulkWorkers(int workerThreads) {
+        if (workerThreads <= 1) return workerThreads;
+        return workerThreads - Math.max(1, workerThreads / 4);
+    }
+
+    static Lane laneOf(String method, String path) {
+        if (method.equalsIgnoreCase("OPTIONS")) return Lane.CONTROL;
+        if (path.startsWith("/download") && method.equalsIgnoreCase("GET")) return Lane.BULK;
+        if (path.startsWith("/upload/session")) {
+            return path.contains("/chunks/") && method.equalsIgnoreCase("PUT") ? Lane.BULK : Lane.CONTROL;
+        }
+        if (path.startsWith("/upload") && method.equalsIgnoreCase("POST")) return Lane.BULK;
+        return Lane.CONTROL;
+    }
+
+    @Override
+    public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+        Lane lane = laneOf(exchange.getRequestMethod(), exchange.getRequestURI().getPath());
+        AdaptiveLimiter limiter = limiterOf(lane);
+        long queuedAt = System.nanoTime();
+        int busy = busyWorkers.incrementAndGet();
+        int busyBulk = lane == Lane.BULK ? busyBulkWorkers.incrementAndGet() : 0;
+        try {
+            boolean admitted;
+            if (bulkWorkers > 0 && busyBulk > bulkWorkers) {
+                admitted = false; // the threads left are kept for control requests, see the class comment
+            } else {
+                try {
+                    // the pool's last free thread does not queue, see the class comment
+                    admitted = limiter.acquire(workerThreads > 0 && busy >= workerThreads ? 0 : maxQueueWaitNanos);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    admitted = false;
+                }
+            }
+            if (!admitted) {
+                reject(exchange, lane);
+                return;
+            }
+            long startNanos = System.nanoTime();
+            waitTimes[lane.ordinal()].record(startNanos - queuedAt);
+            try {
+                chain.doFilter(exchange);
+            } finally {
+                long elapsed = System.nanoTime() - startNanos;
+                // per MiB moved (plus one for the fixed cost of a request), so file size does not count as slowness
+                limiter.release(lane == Lane.BULK ? (long) (elapsed / (1 + (double) bytesMoved(exchange) / MIB)) : elapsed);
+            }
+        } finally {
+            if (lane == Lane.BULK) busyBulkWorkers.decrementAndGet();
+            busyWorkers.decrementAndGet();
+        }
+    }
+
+    private AdaptiveLimiter limiterOf(Lane lane) {
+        return lane == Lane.BULK ? bulk : control;
+    }
+
+    private void reject(HttpExchange exchange, Lane lane) throws IOException {
+        rejections[lane.ordinal()].increment();
+        Log.debug("Request rejected, lane saturated", "lane", lane, "path", exchange.getRequestURI().getPath());
+        // most clients send the whole body before they look at the answer. Reading a small one and throwing it away is
+        // cheap and lets them see the 503. A bigger (or chunked) one would hold this thread for a whole upload while we
+        // are overloaded: the connection is closed instead, and the client may get a write error rather than the 503
+        boolean chunked = exchange.getRequestHeaders().containsKey("Transfer-Encoding");
+        if (!chunked && length(exchange.getRequestHeaders().getFirst("Content-Length")) <= DRAIN_LIMIT) {
+            try (InputStream body = exchange.getRequestBody()) {
+                body.transferTo(OutputStream.nullOutputStream());
+            }
+        } else {
+            exchange.getResponseHeaders().set("Connection", "close");
+        }
+        byte[] response = "Server busy, try again shortly.".getBytes();
+        exchange.getResponseHeaders().add("Retry-After", String.valueOf(retryAfterSeconds));
+        exchange.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
+        exchange.sendResponseHeaders(503, response.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(response);
+        }
+    }
+
+    // request or response body size, whichever carried the file
+    private static long bytesMoved(HttpExchange exchange) {
+        return Math.max(length(exchange.getRequestHeaders().getFirst("Content-Length")),
+                length(exchange.getResponseHeaders().getFirst("Content-Length")));
+    }
+
+    private static long length(String value) {
+        if (value == null) return 0;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public String description() {
+        return "Per-lane adaptive admission control";
+    }
+}
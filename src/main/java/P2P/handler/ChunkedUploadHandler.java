@@ -0,0 +1,184 @@
+package P2P.handler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import P2P.Service.ChunkedUploadManager;
+import P2P.Service.DiskQuota;
+import P2P.Service.FileSharer;
+import P2P.Utils.Log;
+import P2P.Utils.Metrics;
+import P2P.Utils.RateLimiter;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/* Resumable, chunked upload API (registered on /upload/session):
+     POST   /upload/session?fileName=a.zip&size=123456[&chunkSize=8388608]  -> create, answers the session id and layout
+     PUT    /upload/session/{id}/chunks/{index}                             -> body = raw bytes of that chunk
+     GET    /upload/session/{id}                                            -> how many chunks are missing, the first 1000 of them
+     POST   /upload/session/{id}/complete                                   -> share it, answers {port, token}
+     DELETE /upload/session/{id}                                            -> give up, file is removed
+   Chunks may be sent in any order and in parallel, and a failed chunk is simply sent again. */
+public class ChunkedUploadHandler implements HttpHandler {
+    private static final String BASE_PATH = "/upload/session";
+    private static final int MAX_LISTED_MISSING = 1000;
+
+    private final ChunkedUploadManager uploads;
+    private final FileSharer fileSharer;
+    private final RateLimiter uploadLimiter; // creating a session costs one upload token, chunks are free
+
+    private static final Metrics.Counter BYTES_IN = Metrics.counter("skylink_bytes_in_total", "path=\"chunked\"",
+            "Request body bytes received from uploaders");
+    private static final Metrics.Counter RATE_LIMITED = Metrics.counter("skylink_rate_limited_total", "endpoint=\"upload_session\"",
+            "Requests rejected with 429 by the per-IP rate limit");
+
+    public ChunkedUploadHandler(ChunkedUploadManager uploads, FileSharer fileSharer, RateLimiter uploadLimiter) {
+        this.uploads = uploads;
+        this.fileSharer = fileSharer;
+        this.uploadLimiter = uploadLimiter;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        Headers headers = exchange.getResponseHeaders();
+        headers.add("Access-Control-Allow-Origin", "*");
+        headers.add("Access-Control-Allow-Methods", "GET,POST,PUT,DELETE,OPTIONS");
+        headers.add("Access-Control-Allow-Headers", "Content-Type,Authorization");
+
+        String method = exchange.getRequestMethod().toUpperCase();
+        if (method.equals("OPTIONS")) {
+            exchange.sendResponseHeaders(204, -1);
+            return;
+        }
+
+        // "/upload/session/{id}/chunks/{index}" -> ["{id}", "chunks", "{index}"]
+        String rest = exchange.getRequestURI().getPath().substring(BASE_PATH.length());
+        String[] segments = rest.isEmpty() || rest.equals("/") ? new String[0] : rest.substring(1).split("/");
+
+        try {
+            if (segments.length == 0 && method.equals("POST")) {
+                create(exchange);
+            } else if (segments.length == 1 && method.equals("GET")) {
+                status(exchange, segments[0]);
+            } else if (segments.length == 1 && method.equals("DELETE")) {
+                uploads.abort(segments[0]);
+                exchange.sendResponseHeaders(204, -1);
+            } else if (segments.length == 2 && segments[1].equals("complete") && method.equals("POST")) {
+                complete(exchange, segments[0]);
+            } else if (segments.length == 3 && segments[1].equals("chunks") && method.equals("PUT")) {
+                uploads.writeChunk(segments[0], Integer.parseInt(segments[2]), Metrics.counting(exchange.getRequestBody(), BYTES_IN));
+                sendJson(exchange, 200, "{\"received\": " + Integer.parseInt(segments[2]) + "}");
+            } else {
+                sendText(exchange, 404, "NOT FOUND");
+            }
+        } catch (ChunkedUploadManager.ChunkedUploadException e) {
+            sendText(exchange, e.status, e.getMessage());
+        } catch (DiskQuota.QuotaExceededException e) {
+            UploadHandler.sendQuotaExceeded(exchange, e);
+        } catch (NumberFormatException e) {
+            sendText(exchange, 400, "Bad Request: invalid number " + e.getMessage());
+        } catch (IOException e) {
+            Log.error("Error processing chunked upload", e, "path", exchange.getRequestURI().getPath());
+            sendText(exchange, 500, "Server error: " + e.getMessage());
+        }
+    }
+
+    private void create(HttpExchange exchange)
+            throws IOException, ChunkedUploadManager.ChunkedUploadException, DiskQuota.QuotaExceededException {
+        Map<String, String> params = queryParams(exchange.getRequestURI().getRawQuery());
+        String fileName = params.get("fileName");
+        if (fileName == null || fileName.trim().isEmpty() || params.get("size") == null) {
+            sendText(exchange, 400, "Bad Request: fileName and size are required");
+            return;
+        }
+        fileName = UploadHandler.baseName(fileName);
+        if (fileName == null) {
+            sendText(exchange, 400, "Bad Request: invalid file name");
+            return;
+        }
+        if (!FileSharer.fileNameFits(fileName)) {
+            sendText(exchange, 400, "Bad Request: file name too long");
+            return;
+        }
+        if (!UploadHandler.isAllowedExtension(fileName)) {
+            sendText(exchange, 415, "File type not allowed. Allowed extensions: .txt, .pdf, .jpg, .jpeg, .png, .gif, .zip, .doc, .docx, .csv Only");
+            return;
+        }
+        String contentType = params.get("contentType");
+        if (contentType != null && !UploadHandler.isAllowedMimeType(contentType)) {
+            sendText(exchange, 415, "MIME type not allowed");
+            return;
+        }
+        long size = Long.parseLong(params.get("size"));
+        int chunkSize = params.containsKey("chunkSize") ? Integer.parseInt(params.get("chunkSize")) : 0;
+        String userIp = exchange.getRemoteAddress().getAddress().getHostAddress();
+        long retryAfterMs = uploadLimiter.tryAcquire(userIp);
+        if (retryAfterMs > 0) {
+            exchange.getResponseHeaders().add("Retry-After", String.valueOf((retryAfterMs + 999) / 1000));
+            sendText(exchange, 429, "Rate limit exceeded: too many uploads, try again in " + ((retryAfterMs + 999) / 1000) + " seconds.");
+            RATE_LIMITED.increment();
+            return;
+        }
+
+        ChunkedUploadManager.Session session = uploads.create(fileName, size, chunkSize, userIp);
+        sendJson(exchange, 201, "{\"sessionId\": \"" + session.id + "\", \"size\": " + session.size
+                + ", \"chunkSize\": " + session.chunkSize + ", \"chunkCount\": " + session.chunkCount + "}");
+    }
+
+    private void status(HttpExchange exchange, String sessionId) throws IOException, ChunkedUploadManager.ChunkedUploadException {
+        ChunkedUploadManager.Session session = uploads.get(sessionId);
+        // a client sends the listed chunks and asks again, so the answer stays small even for a fresh 100 000 chunk session
+        List<Integer> missing = session.missingChunks(MAX_LISTED_MISSING);
+        sendJson(exchange, 200, "{\"sessionId\": \"" + session.id + "\", \"size\": " + session.size
+                + ", \"chunkSize\": " + session.chunkSize + ", \"chunkCount\": " + session.chunkCount
+                + ", \"missingCount\": " + session.missingCount() + ", \"missing\": " + missing.toString().replace(" ", "") + "}");
+    }
+
+    private void complete(HttpExchange exchange, String sessionId) throws IOException, ChunkedUploadManager.ChunkedUploadException {
+        // the share only starts to exist here, so this is where an optional ?ttl=<seconds>&downloads=<n> is taken
+        long ttlMillis = UploadHandler.ttlMillis(exchange.getRequestURI().getRawQuery());
+        int maxDownloads = UploadHandler.maxDownloads(exchange.getRequestURI().getRawQuery());
+        int shareId = uploads.complete(sessionId, ttlMillis, maxDownloads);
+        String token = fileSharer.getToken(shareId);
+        int downloads = fileSharer.effectiveDownloads(maxDownloads);
+        // same answer as a normal /upload, so the frontend handles both the same way
+        sendJson(exchange, 200, "{\"port\": " + fileSharer.getTransferPort() + ", \"token\": \"" + token
+                + "\", \"expiresIn\": " + fileSharer.effectiveTtl(ttlMillis) / 1000
+                + (downloads != 1 ? ", \"downloads\": " + downloads : "") + "}");
+    }
+
+    private static Map<String, String> queryParams(String rawQuery) {
+        Map<String, String> params = new HashMap<>();
+        if (rawQuery == null) return params;
+        for (String param : rawQuery.split("&")) {
+            int eq = param.indexOf('=');
+            if (eq <= 0) continue;
+            params.put(URLDecoder.decode(param.substring(0, eq), StandardCharsets.UTF_8),
+                    URLDecoder.decode(param.substring(eq + 1), StandardCharsets.UTF_8));
+        }
+        return params;
+    }
+
+    private static void sendJson(HttpExchange exchange, int status, String json) throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+    }
+
+    private static void sendText(HttpExchange exchange, int status, String response) throws IOException {
+        byte[] body = response.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+    }
+}
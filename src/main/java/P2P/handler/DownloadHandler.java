@@ -1,27 +1,100 @@
 package P2P.handler;
 
-import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 
+import P2P.Service.CompressedVariants;
 import P2P.Service.FileSharer;
+import P2P.Service.HotFileCache;
+import P2P.Utils.ByteRange;
+import P2P.Utils.Histogram;
+import P2P.Utils.Log;
+import P2P.Utils.Metrics;
+import P2P.Utils.RateLimiter;
+import P2P.Utils.TransferScheduler;
+import P2P.Utils.TransferUtils;
 import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 
 public class DownloadHandler implements HttpHandler {
     private final FileSharer fileSharer;
+    private final RateLimiter downloadLimiter; // per-IP token bucket, also slows down token guessing
+    private final TransferScheduler scheduler; // shares the outgoing bandwidth with every other transfer
+    private final CompressedVariants compression;
+    private final HotFileCache hotFiles; // off-heap copies of the files many recipients fetch
+    // open segmented downloads by client IP and share, see Continuation
+    private final ConcurrentHashMap<String, Continuation> continuations = new ConcurrentHashMap<>();
 
-    public DownloadHandler(FileSharer fileSharer) {
+    private static final long CONTINUATION_IDLE_MS = TimeUnit.MINUTES.toMillis(5);
+
+    private static final Metrics.Gauge DOWNLOADS_IN_FLIGHT = Metrics.gauge("skylink_downloads_in_flight", "",
+            "Downloads currently being served over HTTP");
+    private static final Metrics.Counter BYTES_OUT = Metrics.counter("skylink_bytes_out_total", "path=\"http\"",
+            "File bytes sent to downloaders");
+    private static final Metrics.Counter RATE_LIMITED = Metrics.counter("skylink_rate_limited_total", "endpoint=\"download\"",
+            "Requests rejected with 429 by the per-IP rate limit");
+    private static final Metrics.StatusCounters DOWNLOADS = Metrics.statusCounters("skylink_downloads_total",
+            "Finished downloads by HTTP status");
+    private static final Histogram DOWNLOAD_LATENCY = Metrics.histogram("skylink_download_seconds", "",
+            "Time to serve a download, first request byte to last response byte");
+
+    public DownloadHandler(FileSharer fileSharer, RateLimiter downloadLimiter, TransferScheduler scheduler,
+                           CompressedVariants compression, HotFileCache hotFiles) {
         this.fileSharer = fileSharer;
+        this.downloadLimiter = downloadLimiter;
+        this.scheduler = scheduler;
+        this.compression = compression;
+        this.hotFiles = hotFiles;
+        fileSharer.addHousekeeping(() -> expireContinuations(System.currentTimeMillis()));
+    }
+
+    /* What a charged range request leaves for the rest of its download: the bytes of the file it did not cover, for
+       the same IP, share and ETag, until it sits unused for CONTINUATION_IDLE_MS. Later ranges of that download draw
+       on it instead of on the rate limit. Once a file's worth of bytes is used up the next range is charged again,
+       so one token buys one copy and repeating "bytes=1-" is not free. */
+    private static final class Continuation {
+        final String entityTag;
+        final AtomicLong bytesLeft;
+        volatile long lastUsed = System.currentTimeMillis();
+
+        Continuation(String entityTag, long bytesLeft) {
+            this.entityTag = entityTag;
+            this.bytesLeft = new AtomicLong(bytesLeft);
+        }
+
+        boolean take(long bytes) {
+            long left;
+            do {
+                left = bytesLeft.get();
+                if (left < bytes) return false;
+            } while (!bytesLeft.compareAndSet(left, left - bytes));
+            lastUsed = System.currentTimeMillis();
+            return true;
+        }
+    }
+
+    private void expireContinuations(long now) {
+        continuations.values().removeIf(continuation -> now - continuation.lastUsed > CONTINUATION_IDLE_MS);
     }
 
     @Override
@@ -29,8 +102,8 @@ public class DownloadHandler implements HttpHandler {
         Headers headers = exchange.getResponseHeaders();
         headers.add("Access-Control-Allow-Origin", "*");
         headers.add("Access-Control-Allow-Methods", "GET,POST,OPTIONS");
-        headers.add("Access-Control-Allow-Headers", "Content-Type,Authorization");
-        headers.add("Access-Control-Expose-Headers", "Content-Disposition");
+        headers.add("Access-Control-Allow-Headers", "Content-Type,Authorization,Range,If-Range");
+        headers.add("Access-Control-Expose-Headers", "Content-Disposition,Content-Range,Accept-Ranges,ETag,Content-Encoding,Repr-Digest");
 
         // Handle CORS preflight for this route
         if (exchange.getRequestMethod().equalsIgnoreCase("OPTIONS")) {
@@ -48,23 +121,74 @@ public class DownloadHandler implements HttpHandler {
             return;
         }
 
-        // Get token from query parameter
+        // a download is charged once, on its first request: the later segments of a parallel download are free
+        String userIp = clientIp(exchange);
+        boolean charged = !continuesDownload(exchange, userIp);
+        long retryAfterMs = charged ? downloadLimiter.tryAcquire(userIp) : 0;
+        if (retryAfterMs > 0) {
+            String response = "Rate limit exceeded: too many downloads, try again in " + ((retryAfterMs + 999) / 1000) + " seconds.";
+            headers.add("Retry-After", String.valueOf((retryAfterMs + 999) / 1000));
+            exchange.sendResponseHeaders(429, response.getBytes().length); // 429 Too Many Requests
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(response.getBytes());
+            }
+            RATE_LIMITED.increment();
+            return;
+        }
+
+        DOWNLOADS_IN_FLIGHT.increment();
+        long startNanos = System.nanoTime();
+        try {
+            serveDownload(exchange, headers, charged);
+        } finally {
+            DOWNLOADS_IN_FLIGHT.decrement();
+            DOWNLOAD_LATENCY.recordSince(startNanos);
+            DOWNLOADS.increment(exchange.getResponseCode());
+        }
+    }
+
+    /* A later segment of a download this IP already paid for: a range that does not start at 0, tied by If-Range to
+       the ETag of the file, that fits in what the Continuation of the first part has left. Segments would otherwise
+       spend a token each and a big file would use up the IP's budget on its own. Anything else is charged. */
+    private boolean continuesDownload(HttpExchange exchange, String userIp) {
+        String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+        String rangeHeader = exchange.getRequestHeaders().getFirst("Range");
+        if (ifRange == null || rangeHeader == null || !ifRange.trim().startsWith("\"")) return false;
+        Integer shareId = fileSharer.getShareIdByToken(tokenOf(exchange));
+        if (shareId == null) return false;
+        Continuation continuation = continuations.get(userIp + "/" + shareId);
+        if (continuation == null || !continuation.entityTag.equals(ifRange.trim())) return false;
+        Path file = fileSharer.getLocalFile(shareId);
+        if (file == null) return false;
+        try {
+            long length = Files.size(file);
+            if (!continuation.entityTag.equals(entityTag(shareId, file, length))) return false; // the file changed
+            ByteRange range = ByteRange.parse(rangeHeader, length);
+            return range != null && range.start > 0 && continuation.take(range.length());
+        } catch (IOException | ByteRange.UnsatisfiableRangeException e) {
+            return false;
+        }
+    }
+
+    // Get token from query parameter
+    private static String tokenOf(HttpExchange exchange) {
         String query = exchange.getRequestURI().getQuery();
-        String token = null;
-        if (query != null) {
-            String[] params = query.split("&");
-            for (String param : params) {
-                if (param.startsWith("token=")) {
-                    token = param.substring(6);
-                    break;
-                }
+        if (query == null) return null;
+        for (String param : query.split("&")) {
+            if (param.startsWith("token=")) {
+                return param.substring(6);
             }
         }
+        return null;
+    }
+
+    private void serveDownload(HttpExchange exchange, Headers headers, boolean charged) throws IOException {
+        String token = tokenOf(exchange);
 
         try {
             // Ignore port in path, use only token for lookup
-            Integer port = fileSharer.getPortByToken(token);
-            if (port == null) {
+            Integer shareId = fileSharer.getShareIdByToken(token);
+            if (shareId == null) {
                 String response = "Access denied: Invalid or missing token";
                 headers.add("Content-Type", "text/plain");
                 exchange.sendResponseHeaders(403, response.getBytes().length); // 403 Forbidden
@@ -73,67 +197,31 @@ public class DownloadHandler implements HttpHandler {
                 }
                 return;
             }
-            String host = fileSharer.getHostByPort(port);
-            if (host == null) host = "localhost";
-            try (Socket socket = new Socket(host, port)) {
-                InputStream socketInput = socket.getInputStream();
-                File tempFile = File.createTempFile("download-", ".tmp");
-                tempFile.deleteOnExit(); // Extra safety: delete if JVM exits
-                String fileName = "downloaded-file";
-                try {
-                    try (FileOutputStream fileOutputStream = new FileOutputStream(tempFile)) {
-                        byte[] buffer = new byte[4096];
-                        int byteRead;
-                        ByteArrayOutputStream headerBaos = new ByteArrayOutputStream();
-                        int b;
-                        while ((b = socketInput.read()) != -1) {
-                            if (b == '\n') break;
-                            headerBaos.write(b);
-                        }
-
-                        String header = headerBaos.toString().trim();
-
-                        if (header.startsWith("Filename: ")) {
-                            fileName = header.substring("Filename: ".length());
-                        }
-                        while ((byteRead = socketInput.read(buffer)) != -1) {
-                            fileOutputStream.write(buffer, 0, byteRead);
-                        }
-                    }
-
-                    // Detect file type (e.g., pdf, jpg, png, etc.)
-                    String contentType = Files.probeContentType(Path.of(fileName));
-                    if (contentType == null) {
-                        contentType = "application/octet-stream";
-                    }
 
-                    // Send the file to the client
-                    System.out.println("Sending file with headers:");
-                    headers.add("Access-Control-Expose-Headers", "Content-Disposition");
-                    headers.set("Content-Disposition", "attachment; filename=\"" + fileName + "\"");
-                    headers.set("Content-Type", contentType);
-                    System.out.println("File length: " + tempFile.length());
-                    exchange.sendResponseHeaders(200, tempFile.length());
-                    try (OutputStream os = exchange.getResponseBody();
-                         FileInputStream fis = new FileInputStream(tempFile)) {
-                        byte[] buffer = new byte[4096];
-                        int bytesRead;
-                        while ((bytesRead = fis.read(buffer)) != -1) {
-                            os.write(buffer, 0, bytesRead);
-                        }
-                    }
+            // a multi-file upload: all of its files as one ZIP, built while it is sent
+            List<FileSharer.BundleFile> bundle = fileSharer.getBundle(shareId);
+            if (bundle != null) {
+                serveBundle(exchange, shareId, bundle);
+                return;
+            }
 
-                    fileSharer.cleanupAfterDownload(port);
+            // Fast path: the file sits on our own disk, so we stream it straight from there.
+            // No loopback socket, no temp file copy, one pass over the data.
+            Path localFile = fileSharer.getLocalFile(shareId);
+            if (localFile != null) {
+                serveLocalFile(exchange, shareId, localFile, charged);
+                return;
+            }
 
-                } finally {
-                    // Always delete temp file
-                    if (tempFile.exists()) {
-                        tempFile.delete();
-                    }
-                }
+            // the share is still there but its file is not (deleted from disk under us)
+            String response = "File no longer available";
+            headers.add("Content-Type", "text/plain");
+            exchange.sendResponseHeaders(410, response.getBytes().length); // 410 Gone
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(response.getBytes());
             }
         } catch (IOException e) {
-            System.err.println("Error downloading file from peer: " + e.getMessage());
+            Log.error("Error serving download", e);
             String response = "Error downloading file: " + e.getMessage();
             headers.add("Content-Type", "text/plain");
             exchange.sendResponseHeaders(500, response.getBytes().length);
@@ -142,4 +230,186 @@ public class DownloadHandler implements HttpHandler {
             }
         }
     }
+
+    private void serveLocalFile(HttpExchange exchange, int shareId, Path file, boolean charged) throws IOException {
+        Headers headers = exchange.getResponseHeaders();
+        try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long length = fileChannel.size();
+            // validators, so a client resuming later can check it is still the same file (If-Range)
+            String contentHash = fileSharer.getContentHash(shareId);
+            String entityTag = entityTag(shareId, file, length);
+            String lastModified = DateTimeFormatter.RFC_1123_DATE_TIME.format(
+                    Files.getLastModifiedTime(file).toInstant().atOffset(ZoneOffset.UTC).withNano(0));
+            headers.set("Accept-Ranges", "bytes");
+            headers.set("ETag", entityTag);
+            headers.set("Last-Modified", lastModified);
+
+            ByteRange range;
+            try {
+                String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+                range = ifRangeMatches(ifRange, entityTag, lastModified)
+                        ? ByteRange.parse(exchange.getRequestHeaders().getFirst("Range"), length)
+                        : null; // the file changed since the client's first part, so it gets the whole new file
+            } catch (ByteRange.UnsatisfiableRangeException e) {
+                headers.set("Content-Range", "bytes */" + length);
+                exchange.sendResponseHeaders(416, -1); // 416 Range Not Satisfiable
+                exchange.close();
+                return;
+            }
+
+            String fileName = fileSharer.getFileName(shareId);
+            if (fileName == null) fileName = file.getFileName().toString();
+            // whole files of a compressible type go out compressed when the client takes it, ranges always plain
+            // (their offsets count plain bytes, a resumed compressed stream would be useless)
+            if (compression.worthCompressing(fileName, length)) {
+                headers.set("Vary", "Accept-Encoding");
+                String encoding = CompressedVariants.negotiate(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+                if (range == null && encoding != null) {
+                    // a different representation needs its own tag, or a cache could mix them up
+                    headers.set("ETag", entityTag.substring(0, entityTag.length() - 1) + "-" + encoding + "\"");
+                    boolean sent = serveCompressed(exchange, fileChannel, fileName, contentHash, encoding);
+                    if (sent && fileSharer.markDelivered(shareId, 0, length, length)) {
+                        fileSharer.cleanupAfterDownload(shareId);
+                    }
+                    return;
+                }
+            }
+
+            long start = (range != null) ? range.start : 0;
+            long count = (range != null) ? range.length() : length;
+            if (range != null) {
+                headers.set("Content-Range", range.contentRange(length));
+                // a paid first part opens the rest of the file to this IP's next ranges, see Continuation
+                if (charged && count < length) {
+                    continuations.put(clientIp(exchange) + "/" + shareId, new Continuation(entityTag, length - count));
+                }
+            }
+            // SHA-256 of the whole file (RFC 9530), on every part too: a client that fetched the file in pieces
+            // checks what it put together. Only for the plain bytes, a compressed response would need its own.
+            if (contentHash != null) {
+                headers.set("Repr-Digest", "sha-256=:" + Base64.getEncoder().encodeToString(HexFormat.of().parseHex(contentHash)) + ":");
+            }
+            // a file that many recipients are fetching comes from memory, the others are read from disk as they go.
+            // A segmented download is one recipient: its first range counts (and may load the file), the rest only peek
+            ByteBuffer cached = start == 0 ? hotFiles.get(contentHash, fileChannel, length) : hotFiles.peek(contentHash);
+            sendFileHeaders(exchange, fileName, range != null ? 206 : 200, count);
+            try (TransferScheduler.Flow flow = scheduler.open(clientIp(exchange), null);
+                 OutputStream os = flow.shape(Metrics.counting(exchange.getResponseBody(), BYTES_OUT))) {
+                if (cached != null) {
+                    TransferUtils.sendBuffer(cached.position((int) start).limit((int) (start + count)), os,
+                            TransferUtils.DEFAULT_BUFFER_SIZE);
+                } else {
+                    TransferUtils.sendFile(fileChannel, start, count, os, TransferUtils.DEFAULT_BUFFER_SIZE);
+                }
+            }
+
+            // the share is only done once every byte went out, a resumed or segmented download keeps it alive until then,
+            // and a multi-recipient share until the last of its downloads
+            if (fileSharer.markDelivered(shareId, start, start + count, length)) {
+                continuations.remove(clientIp(exchange) + "/" + shareId);
+                fileSharer.cleanupAfterDownload(shareId);
+            }
+        }
+    }
+
+    /* The ZIP is written straight into the response: one file after the other, each read from its blob in fixed size
+       pieces, so there is no archive on disk and never more than a buffer of it in memory. Sizes and CRCs follow each
+       entry (data descriptors), that is why the length is unknown up front and the response is chunked; no ranges.
+       Text-like files are deflated, already compressed types are stored at level 0 so they cost no CPU. */
+    private void serveBundle(HttpExchange exchange, int shareId, List<FileSharer.BundleFile> bundle) throws IOException {
+        exchange.getResponseHeaders().set("Accept-Ranges", "none");
+        String zipName = fileSharer.getFileName(shareId);
+        sendFileHeaders(exchange, zipName != null ? zipName : "skylink-files.zip", 200, -1);
+        try (TransferScheduler.Flow flow = scheduler.open(clientIp(exchange), null);
+             ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(
+                     flow.shape(Metrics.counting(exchange.getResponseBody(), BYTES_OUT)), TransferUtils.DEFAULT_BUFFER_SIZE))) {
+            for (FileSharer.BundleFile file : bundle) {
+                try (FileChannel fileChannel = FileChannel.open(file.blob.path, StandardOpenOption.READ)) {
+                    ZipEntry entry = new ZipEntry(file.fileName);
+                    entry.setSize(fileChannel.size());
+                    entry.setTime(Files.getLastModifiedTime(file.blob.path).toMillis());
+                    zip.setLevel(compression.isCompressible(file.fileName) ? Deflater.DEFAULT_COMPRESSION : Deflater.NO_COMPRESSION);
+                    zip.putNextEntry(entry);
+                    TransferUtils.sendFile(fileChannel, 0, fileChannel.size(), zip, TransferUtils.DEFAULT_BUFFER_SIZE);
+                    zip.closeEntry();
+                }
+            }
+        }
+        // only a ZIP that was sent to the end counts, a broken one leaves the bundle for another try
+        Log.info("Bundle sent", "share", shareId, "files", bundle.size(), "client", clientIp(exchange));
+        if (fileSharer.markDownloaded(shareId)) {
+            fileSharer.cleanupAfterDownload(shareId);
+        }
+    }
+
+    private static String clientIp(HttpExchange exchange) {
+        return exchange.getRemoteAddress().getAddress().getHostAddress();
+    }
+
+    /* Sends the whole file gzip or deflate encoded: from the cached variant when there is one (known length, no
+       deflating), otherwise compressed while it streams, chunked since the length is only known at the end.
+       Returns whether the whole file went out. */
+    private boolean serveCompressed(HttpExchange exchange, FileChannel fileChannel, String fileName, String contentHash,
+                                 String encoding) throws IOException {
+        exchange.getResponseHeaders().set("Content-Encoding", encoding);
+        Path variant = compression.cachedVariant(contentHash, encoding);
+        if (variant != null) {
+            try (FileChannel variantChannel = FileChannel.open(variant, StandardOpenOption.READ)) {
+                sendFileHeaders(exchange, fileName, 200, variantChannel.size());
+                try (TransferScheduler.Flow flow = scheduler.open(clientIp(exchange), null);
+                     OutputStream os = flow.shape(Metrics.counting(exchange.getResponseBody(), BYTES_OUT))) {
+                    TransferUtils.sendFile(variantChannel, 0, variantChannel.size(), os, TransferUtils.DEFAULT_BUFFER_SIZE);
+                }
+                return true;
+            } catch (NoSuchFileException e) {
+                // the blob and its variant went away just now, compress from the file we still have open
+            }
+        }
+        sendFileHeaders(exchange, fileName, 200, -1);
+        try (TransferScheduler.Flow flow = scheduler.open(clientIp(exchange), null);
+             CompressedVariants.Encoder os = compression.encode(
+                     flow.shape(Metrics.counting(exchange.getResponseBody(), BYTES_OUT)), contentHash, encoding)) {
+            // a file that shrank under us is not finished, so neither the client nor the variant cache get a valid stream
+            long size = fileChannel.size();
+            if (TransferUtils.sendFile(fileChannel, 0, size, os, TransferUtils.DEFAULT_BUFFER_SIZE) != size) {
+                return false;
+            }
+            os.complete();
+            return true;
+        }
+    }
+
+    // A deduplicated share is named by its SHA-256, which is the strongest tag there is
+    private String entityTag(int shareId, Path file, long length) throws IOException {
+        String contentHash = fileSharer.getContentHash(shareId);
+        return contentHash != null
+                ? "\"" + contentHash + "\""
+                : "\"" + Long.toHexString(length) + "-" + Long.toHexString(Files.getLastModifiedTime(file).toMillis()) + "\"";
+    }
+
+    // If-Range holds either the ETag or the Last-Modified date the client saw, a Range only counts when it still matches
+    private static boolean ifRangeMatches(String ifRange, String entityTag, String lastModified) {
+        if (ifRange == null) return true;
+        String value = ifRange.trim();
+        if (value.startsWith("W/")) return false; // weak tags are never good enough for byte ranges
+        if (value.startsWith("\"")) return value.equals(entityTag);
+        return value.equals(lastModified);
+    }
+
+    private void sendFileHeaders(HttpExchange exchange, String fileName, int status, long length) throws IOException {
+        Headers headers = exchange.getResponseHeaders();
+        // Detect file type (e.g., pdf, jpg, png, etc.)
+        String contentType = Files.probeContentType(Path.of(fileName));
+        if (contentType == null) {
+            contentType = "application/octet-stream";
+        }
+
+        // Send the file to the client
+        headers.set("Content-Disposition", "attachment; filename=\"" + fileName + "\"");
+        headers.set("Content-Type", contentType);
+        Log.debug("Sending file", "file", fileName, "status", status, "bytes", length);
+        // for HttpExchange 0 means "chunked", an empty file has to be announced as -1 (no body).
+        // length -1 here is a body of unknown length (compressed while it is sent), that is the chunked case
+        exchange.sendResponseHeaders(status, length < 0 ? 0 : length == 0 ? -1 : length);
+    }
 }
@@ -1,28 +1,38 @@
 package P2P.handler;
 
-import java.io.ByteArrayOutputStream;
-import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
-
-
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+import P2P.Service.BlobStore;
+import P2P.Service.DiskQuota;
 import P2P.Service.FileSharer;
-import P2P.Utils.MultiParser;
+import P2P.Utils.Config;
+import P2P.Utils.Histogram;
+import P2P.Utils.Log;
+import P2P.Utils.Metrics;
+import P2P.Utils.MultipartStream;
+import P2P.Utils.RateLimiter;
 import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 
 public class UploadHandler implements HttpHandler {
-    private final String uploadDir;
+    private final BlobStore blobStore;
     private final FileSharer fileSharer;
     // Maximum file size: 500MB, that's the max users can upload
     private static final long MAX_FILE_SIZE = 500L * 1024 * 1024; // 500MB in bytes
-
-    private static final int MAX_UPLOADS_PER_MINUTE = 10; // Maximum uploads allowed per minute, user can only upload 10 files per minutes.
-    private static final long ONE_MINUTE_MS = 60_000; // One minute in milliseconds
+    /* several files may come in one request (they are shared as one bundle), this caps the whole request body:
+       SKYLINK_UPLOAD_MAX_REQUEST_BYTES (2GB) and SKYLINK_UPLOAD_MAX_FILES (1000) */
+    private static final long MAX_REQUEST_SIZE = Math.max(MAX_FILE_SIZE,
+            Config.getLong("skylink.upload.max.request.bytes", 2L * 1024 * 1024 * 1024));
+    private static final int MAX_FILES = Config.getInt("skylink.upload.max.files", 1000);
 
     // Allowed file extensions
     private static final String[] ALLOWED_EXTENSIONS = {
@@ -36,28 +46,88 @@ public class UploadHandler implements HttpHandler {
             "text/csv"
     };
 
-    // This class stores info about uploads for one IP
-    private static class UploadInfo {
-        long minuteWindowStart; // When the current minute started
-        int uploadCount;        // How many uploads so far in this minute
-        UploadInfo(long minuteWindowStart) {
-            this.minuteWindowStart = minuteWindowStart;
-            this.uploadCount = 1;
+    // space accounting for the upload directory, every upload holds a reservation while it is received
+    private final DiskQuota diskQuota;
+
+    // per-IP token bucket, shared with the chunked upload API so both count against the same budget
+    private final RateLimiter uploadLimiter;
+
+    private static final Metrics.Gauge UPLOADS_IN_FLIGHT = Metrics.gauge("skylink_uploads_in_flight", "",
+            "Uploads currently being received");
+    private static final Metrics.Counter BYTES_IN = Metrics.counter("skylink_bytes_in_total", "path=\"upload\"",
+            "Request body bytes received from uploaders");
+    private static final Metrics.Counter RATE_LIMITED = Metrics.counter("skylink_rate_limited_total", "endpoint=\"upload\"",
+            "Requests rejected with 429 by the per-IP rate limit");
+    private static final Metrics.StatusCounters UPLOADS = Metrics.statusCounters("skylink_uploads_total",
+            "Finished uploads by HTTP status");
+    private static final Histogram UPLOAD_LATENCY = Metrics.histogram("skylink_upload_seconds", "",
+            "Time to receive, store and share an upload");
+    // time spent locating the file part (headers + skipped form fields), the file bytes themselves are not parsing
+    private static final Histogram PARSE_TIME = Metrics.histogram("skylink_multipart_parse_seconds", "parser=\"streaming\"",
+            "Time spent parsing multipart headers");
+
+   // initializing the blobStore, fileSharer and the limiter , whatever it passed from file controller.
+    public UploadHandler(BlobStore blobStore, DiskQuota diskQuota, FileSharer fileSharer, RateLimiter uploadLimiter) {
+        this.blobStore = blobStore;
+        this.diskQuota = diskQuota;
+        this.fileSharer = fileSharer;
+        this.uploadLimiter = uploadLimiter;
+    }
+
+    /* Optional ?ttl=<seconds> on the upload URL: how long the share may wait for its download.
+       0 when it is not given (the server default applies), NumberFormatException for anything that is not a positive number. */
+    static long ttlMillis(String rawQuery) {
+        if (rawQuery == null) return 0;
+        for (String param : rawQuery.split("&")) {
+            if (param.startsWith("ttl=")) {
+                long seconds = Long.parseLong(param.substring(4));
+                if (seconds <= 0 || seconds > Long.MAX_VALUE / 1000) {
+                    throw new NumberFormatException("ttl must be a positive number of seconds");
+                }
+                return seconds * 1000;
+            }
         }
+        return 0;
     }
 
-    // This map keeps track of each IP's upload info
-    // Key: IP address, Value: UploadInfo object
-    private static final ConcurrentHashMap<String, UploadInfo> uploadTracker = new ConcurrentHashMap<>();
+    /* Optional ?downloads=<n> on the upload URL: how many recipients may download the share before it is removed,
+       0 for any number until it expires. 1 when it is not given (a one-time download, as always), NumberFormatException
+       for anything that is not a number >= 0. */
+    static int maxDownloads(String rawQuery) {
+        if (rawQuery == null) return 1;
+        for (String param : rawQuery.split("&")) {
+            if (param.startsWith("downloads=")) {
+                int downloads = Integer.parseInt(param.substring(10));
+                if (downloads < 0) throw new NumberFormatException("downloads must be 0 or more");
+                return downloads;
+            }
+        }
+        return 1;
+    }
 
-   // initializing the uploadDir and fileSharer , whatever it passed from file controller.
-    public UploadHandler(String uploadDir, FileSharer fileSharer) {
-        this.uploadDir = uploadDir;
-        this.fileSharer = fileSharer;
+    // 503 (busy, with Retry-After) or 507 (full) when the storage quota turned an upload away, also used by ChunkedUploadHandler
+    static void sendQuotaExceeded(HttpExchange exchange, DiskQuota.QuotaExceededException e) throws IOException {
+        if (e.retryAfterSeconds > 0) {
+            exchange.getResponseHeaders().add("Retry-After", String.valueOf(e.retryAfterSeconds));
+        }
+        byte[] response = e.getMessage().getBytes();
+        exchange.sendResponseHeaders(e.status, response.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(response);
+        }
+    }
+
+    /* The name a file is shared under, and the entry name it gets inside a bundle ZIP: only the part after the last
+       '/' or '\'. File.getName() only knows the separator of the OS we run on, so on Linux "..\..\a.txt" would
+       stay a path that a Windows extractor follows out of its folder. null when nothing usable is left. */
+    static String baseName(String filename) {
+        String name = filename.substring(Math.max(filename.lastIndexOf('/'), filename.lastIndexOf('\\')) + 1).trim();
+        if (name.isEmpty() || name.equals(".") || name.equals("..")) return null;
+        return name;
     }
 
-    // Helper method to check if file extension is allowed
-    private boolean isAllowedExtension(String filename) {
+    // Helper method to check if file extension is allowed (also used by ChunkedUploadHandler)
+    static boolean isAllowedExtension(String filename) {
         if (filename == null) return false;
         String lower = filename.toLowerCase();
         for (String extention : ALLOWED_EXTENSIONS) {
@@ -69,7 +139,7 @@ public class UploadHandler implements HttpHandler {
     }
 
     // Helper method to check if MIME type is allowed
-    private boolean isAllowedMimeType(String mimeType) {
+    static boolean isAllowedMimeType(String mimeType) {
         if (mimeType == null) return false;
         for (String allowed : ALLOWED_MIME_TYPES) {
             if (mimeType.toLowerCase().startsWith(allowed.toLowerCase())) {
@@ -117,33 +187,33 @@ public class UploadHandler implements HttpHandler {
 
         // Get the user's IP address
         String userIp = exchange.getRemoteAddress().getAddress().getHostAddress();
-        long currentTime = System.currentTimeMillis();
-
-        // Look up this IP in our tracker map
-        UploadInfo info = uploadTracker.get(userIp);
-
-        if (info == null) {
-            // First upload from this IP, start a new minute window
-            info = new UploadInfo(currentTime);
-            uploadTracker.put(userIp, info);
-        } else if (currentTime - info.minuteWindowStart > ONE_MINUTE_MS) {
-            // It's a new minute, reset the counter
-            info.minuteWindowStart = currentTime;
-            info.uploadCount = 1;
-        } else {
-            // Still in the same minute, increase the count
-            info.uploadCount++;
-            if (info.uploadCount > MAX_UPLOADS_PER_MINUTE) {
-                // Too many uploads! Block this request , Rate limiting happens here
-                String response = "Rate limit exceeded: Max " + MAX_UPLOADS_PER_MINUTE + " uploads per minute you can do.";
-                exchange.sendResponseHeaders(429, response.getBytes().length); // 429 Too Many Requests
-                try (OutputStream os = exchange.getResponseBody()) {
-                    os.write(response.getBytes());
-                }
-                return;
+
+        // Rate limiting happens here, one token per upload from this IP
+        long retryAfterMs = uploadLimiter.tryAcquire(userIp);
+        if (retryAfterMs > 0) {
+            // Too many uploads! Block this request
+            String response = "Rate limit exceeded: too many uploads, try again in " + ((retryAfterMs + 999) / 1000) + " seconds.";
+            headers.add("Retry-After", String.valueOf((retryAfterMs + 999) / 1000));
+            exchange.sendResponseHeaders(429, response.getBytes().length); // 429 Too Many Requests
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(response.getBytes());
             }
+            RATE_LIMITED.increment();
+            return;
+        }
+
+        UPLOADS_IN_FLIGHT.increment();
+        long startNanos = System.nanoTime();
+        try {
+            receiveUpload(exchange, headers, userIp);
+        } finally {
+            UPLOADS_IN_FLIGHT.decrement();
+            UPLOAD_LATENCY.recordSince(startNanos);
+            UPLOADS.increment(exchange.getResponseCode());
         }
+    }
 
+    private void receiveUpload(HttpExchange exchange, Headers headers, String userIp) throws IOException {
         // fetching out the value of content type from request body
         Headers requestHeaders = exchange.getRequestHeaders();
         String contentType = null;
@@ -164,13 +234,28 @@ public class UploadHandler implements HttpHandler {
             return;
         }
 
+        long ttlMillis;
+        int maxDownloads;
+        try {
+            ttlMillis = ttlMillis(exchange.getRequestURI().getRawQuery());
+            maxDownloads = maxDownloads(exchange.getRequestURI().getRawQuery());
+        } catch (NumberFormatException e) {
+            String response = "Bad Request: invalid ttl or downloads, expected seconds and a download count";
+            exchange.sendResponseHeaders(400, response.getBytes().length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(response.getBytes());
+            }
+            return;
+        }
+
         // first line of defense , if Content-Length header is available , we read that length , if grater than max , we reject
         String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+        long len = -1;
         if (contentLength != null) {
-            long len = Long.parseLong(contentLength);
-            if (len > MAX_FILE_SIZE) {
+            len = Long.parseLong(contentLength);
+            if (len > MAX_REQUEST_SIZE) {
                 // Reject immediately without reading
-                String response = "File too large: Maximum file size is " + (MAX_FILE_SIZE / (1024 * 1024)) + "MB";
+                String response = "Upload too large: Maximum is " + (MAX_REQUEST_SIZE / (1024 * 1024)) + "MB per request";
                 exchange.sendResponseHeaders(413, response.getBytes().length);
                 try (OutputStream os = exchange.getResponseBody()) {
                     os.write(response.getBytes());
@@ -179,7 +264,18 @@ public class UploadHandler implements HttpHandler {
             }
         }
 
+        // storage quota: the upload holds its size (the largest file we accept when the length is unknown) until it is
+        // stored or failed, so a burst of big uploads gets 503/507 here instead of IOExceptions once the disk is full.
+        // All files of the request together have to fit in what was reserved.
+        DiskQuota.Reservation reservation;
         try {
+            reservation = diskQuota.reserve(len >= 0 ? len : MAX_FILE_SIZE);
+        } catch (DiskQuota.QuotaExceededException e) {
+            sendQuotaExceeded(exchange, e);
+            return;
+        }
+
+        try (reservation) {
             // Boundary extraction from Content-Type
             int bIdx = contentType.toLowerCase().indexOf("boundary=");
             if (bIdx == -1) {
@@ -197,96 +293,146 @@ public class UploadHandler implements HttpHandler {
                 boundary = boundary.substring(1, boundary.length() - 1);
             }
 
-            // Check 2: Read request body with size limit (second line of defense)
-            ByteArrayOutputStream baos = new ByteArrayOutputStream(); // array of bytes which can be acted as a stream, you can apply streams operation like reading.
-            byte[] buffer = new byte[8192];
-            int bytesRead;
-            long totalBytesRead = 0;
-
-            while ((bytesRead = exchange.getRequestBody().read(buffer)) != -1) {
-                totalBytesRead += bytesRead;
-                if (totalBytesRead > MAX_FILE_SIZE) {
-                    String response = "File too large: Maximum file size is " + (MAX_FILE_SIZE / (1024 * 1024)) + "MB";
-                    exchange.sendResponseHeaders(413, response.getBytes().length);
-                    try (OutputStream os = exchange.getResponseBody()) {
-                        os.write(response.getBytes());
+            // Check 2: Stream the request body part by part (second line of defense).
+            // We never hold the whole body in memory, MultipartStream only keeps one fixed size buffer and
+            // the file bytes go straight from the socket into the destination file.
+            // Every file part is taken: one file is a plain share, several become one bundle share (a ZIP on download).
+            MultipartStream multipartStream = new MultipartStream(Metrics.counting(exchange.getRequestBody(), BYTES_IN), boundary);
+            List<FileSharer.BundleFile> files = new ArrayList<>();
+            long budget = reservation.bytes;
+            boolean shared = false;
+            try {
+                MultipartStream.PartHeaders part;
+                long parseStart = System.nanoTime();
+                while ((part = multipartStream.nextPart()) != null) {
+                    if (!part.isFile()) {
+                        multipartStream.skipBody(); // plain form fields are not interesting for us
+                        continue;
                     }
-                    return;
-                }
-                baos.write(buffer, 0, bytesRead);
-            }
-            byte[] requestData = baos.toByteArray();
+                    PARSE_TIME.recordSince(parseStart);
 
-            MultiParser multiParser = new MultiParser(requestData, boundary);
-            MultiParser.ParseResult result = multiParser.parse();
+                    String filename = part.fileName;
+                    if (filename == null || filename.trim().isEmpty()) {
+                        filename = "deafult.txt";
+                    }
+                    filename = baseName(filename);
+                    if (filename == null) {
+                        String response = "Bad request: invalid file name";
+                        exchange.sendResponseHeaders(400, response.getBytes().length);
+                        try (OutputStream os = exchange.getResponseBody()) {
+                            os.write(response.getBytes());
+                        }
+                        return;
+                    }
+                    if (!FileSharer.fileNameFits(filename)) {
+                        String response = "Bad request: file name too long";
+                        exchange.sendResponseHeaders(400, response.getBytes().length);
+                        try (OutputStream os = exchange.getResponseBody()) {
+                            os.write(response.getBytes());
+                        }
+                        return;
+                    }
 
-            if (result == null) {
-                String response = "Bad request: Could not parse file content";
-                exchange.sendResponseHeaders(400, response.getBytes().length);
-                try (OutputStream os = exchange.getResponseBody()) {
-                    os.write(response.getBytes());
-                }
-                return;
-            }
+                    // Check 3: Validate file extension (block executables and malicious files)
+                    // the part headers arrive before the file bytes, so we can reject before writing anything to disk.
+                    // One bad file turns the whole request away, a bundle with holes in it would only confuse.
+                    if (!isAllowedExtension(filename)) {
+                        String response = "File type not allowed. Allowed extensions: .txt, .pdf, .jpg, .jpeg, .png, .gif, .zip, .doc, .docx, .csv Only";
+                        exchange.sendResponseHeaders(415, response.getBytes().length); // 415 Unsupported Media Type
+                        try (OutputStream os = exchange.getResponseBody()) {
+                            os.write(response.getBytes());
+                        }
+                        return;
+                    }
 
-            // Check 3: Validate actual file content size (third line of defense)
-            if (result.fileContent != null && result.fileContent.length > MAX_FILE_SIZE) {
-                String response = "File too large: Maximum file size is " + (MAX_FILE_SIZE / (1024 * 1024)) + "MB";
-                exchange.sendResponseHeaders(413, response.getBytes().length);
-                try (OutputStream os = exchange.getResponseBody()) {
-                    os.write(response.getBytes());
-                }
-                return;
-            }
+                    // Check 4: Validate MIME type from multipart Content-Type (extra safety layer)
+                    String fileMimeType = part.contentType;
+                    if (!isAllowedMimeType(fileMimeType)) {
+                        String response = "MIME type not allowed. Allowed types: text/plain, application/pdf, image/jpeg, image/png, image/gif, application/zip, application/octet-stream, application/msword, text/csv";
+                        exchange.sendResponseHeaders(415, response.getBytes().length);
+                        try (OutputStream os = exchange.getResponseBody()) {
+                            os.write(response.getBytes());
+                        }
+                        return;
+                    }
 
-            String filename = result.fileName;
-            if (filename == null || filename.trim().isEmpty()) {
-                filename = "deafult.txt";
-            }
+                    if (files.size() == MAX_FILES) {
+                        String response = "Too many files: Maximum is " + MAX_FILES + " files per upload";
+                        exchange.sendResponseHeaders(413, response.getBytes().length);
+                        try (OutputStream os = exchange.getResponseBody()) {
+                            os.write(response.getBytes());
+                        }
+                        return;
+                    }
 
-            // Check 4: Validate file extension (block executables and malicious files)
-            if (!isAllowedExtension(filename)) {
-                String response = "File type not allowed. Allowed extensions: .txt, .pdf, .jpg, .jpeg, .png, .gif, .zip, .doc, .docx, .csv Only";
-                exchange.sendResponseHeaders(415, response.getBytes().length); // 415 Unsupported Media Type
-                try (OutputStream os = exchange.getResponseBody()) {
-                    os.write(response.getBytes());
+                    // Check 5: Validate actual file content size while it is written (third line of defense)
+                    BlobStore.Blob blob;
+                    try {
+                        blob = storePart(multipartStream, Math.min(MAX_FILE_SIZE, budget));
+                    } catch (MultipartStream.SizeLimitExceededException ex) {
+                        String response = budget < MAX_FILE_SIZE
+                                ? "Upload too large: Maximum is " + (reservation.bytes / (1024 * 1024)) + "MB per request"
+                                : "File too large: Maximum file size is " + (MAX_FILE_SIZE / (1024 * 1024)) + "MB";
+                        exchange.sendResponseHeaders(413, response.getBytes().length);
+                        try (OutputStream os = exchange.getResponseBody()) {
+                            os.write(response.getBytes());
+                        }
+                        return;
+                    }
+                    // an empty part is what a browser sends for a file input nobody picked a file for
+                    if (blob != null) {
+                        files.add(new FileSharer.BundleFile(filename, blob));
+                        budget -= blob.size;
+                    }
+                    parseStart = System.nanoTime();
                 }
-                return;
-            }
 
-            // Check 5: Validate MIME type from multipart Content-Type (extra safety layer)
-            String fileMimeType = result.contentType;
-            if (!isAllowedMimeType(fileMimeType)) {
-                String response = "MIME type not allowed. Allowed types: text/plain, application/pdf, image/jpeg, image/png, image/gif, application/zip, application/octet-stream, application/msword, text/csv";
-                exchange.sendResponseHeaders(415, response.getBytes().length);
-                try (OutputStream os = exchange.getResponseBody()) {
-                    os.write(response.getBytes());
+                if (files.isEmpty()) {
+                    String response = "Bad request: Could not parse file content";
+                    exchange.sendResponseHeaders(400, response.getBytes().length);
+                    try (OutputStream os = exchange.getResponseBody()) {
+                        os.write(response.getBytes());
+                    }
+                    return;
                 }
-                return;
-            }
-
-            String uniqueFileName = UUID.randomUUID() + "_" + new File(filename).getName();
-            String filePath = uploadDir + File.separator + uniqueFileName;
 
-            try (FileOutputStream fos = new FileOutputStream(filePath)) {
-                fos.write(result.fileContent);
+                int shareId = files.size() == 1
+                        ? fileSharer.offerBlob(files.get(0).blob, files.get(0).fileName, userIp, ttlMillis, maxDownloads)
+                        : fileSharer.offerBundle(files, userIp, ttlMillis, maxDownloads);
+                shared = true;
+                String token = fileSharer.getToken(shareId); // Get the access token
+                // no per-file server thread any more, the shared TransferServer serves the file as soon as a peer shows the token
+                int port = fileSharer.getTransferPort();
+
+                // Return both port and token in JSON response. because you must tell the frontend (or client) how to access that file.
+                //That’s what this jsonResponse block does — it sends information back to the client in a structured JSON format.
+                // port is the transfer server port and the token identifies the file on it, expiresIn is the TTL in seconds.
+                // a bundle says how many files it has, its token downloads all of them as one ZIP from /download.
+                // downloads is only there for multi-recipient shares (0 = until it expires)
+                int downloads = fileSharer.effectiveDownloads(maxDownloads);
+                String jsonResponse = "{\"port\": " + port + ", \"token\": \"" + token + "\", \"expiresIn\": "
+                        + fileSharer.effectiveTtl(ttlMillis) / 1000
+                        + (files.size() > 1 ? ", \"files\": " + files.size() : "")
+                        + (downloads != 1 ? ", \"downloads\": " + downloads : "") + "}";
+                headers.add("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, jsonResponse.getBytes().length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(jsonResponse.getBytes());
+                }
+            } finally {
+                // a request that failed half way shares nothing, the files it stored so far go again
+                if (!shared) {
+                    for (FileSharer.BundleFile file : files) file.blob.release();
+                }
             }
-
-            int port = fileSharer.offerFile(filePath , userIp);
-            String token = fileSharer.getToken(port); // Get the access token
-            new Thread(() -> fileSharer.startFileServer(port)).start();
-
-            // Return both port and token in JSON response. because you must tell the frontend (or client) how to access that file.
-            //That’s what this jsonResponse block does — it sends information back to the client in a structured JSON format.
-            // because both port and token is required by the frontend to download the file.
-            String jsonResponse = "{\"port\": " + port + ", \"token\": \"" + token + "\"}";
-            headers.add("Content-Type", "application/json");
-            exchange.sendResponseHeaders(200, jsonResponse.getBytes().length);
+        } catch (MultipartStream.MalformedMultipartException ex) {
+            String response = "Bad request: " + ex.getMessage();
+            exchange.sendResponseHeaders(400, response.getBytes().length);
             try (OutputStream os = exchange.getResponseBody()) {
-                os.write(jsonResponse.getBytes());
+                os.write(response.getBytes());
             }
         } catch (IOException ex) {
-            System.err.println("Error processing file upload: " + ex.getMessage());
+            Log.error("Error processing file upload", ex, "client", userIp);
             String response = "Server error: " + ex.getMessage();
             exchange.sendResponseHeaders(500, response.getBytes().length);
             try (OutputStream os = exchange.getResponseBody()) {
@@ -294,4 +440,22 @@ public class UploadHandler implements HttpHandler {
             }
         }
     }
+
+    /* Writes the body of the current part to a temp file while its SHA-256 is computed on the way, the blob store then
+       keeps it under that hash, or throws the temp file away when the same content is already stored.
+       Returns null for an empty part, nothing is stored then. */
+    private BlobStore.Blob storePart(MultipartStream multipartStream, long maxBytes) throws IOException {
+        Path tempFile = blobStore.newTempFile();
+        MessageDigest digest = BlobStore.newDigest();
+        boolean stored = false;
+        try (OutputStream fos = new DigestOutputStream(new FileOutputStream(tempFile.toFile()), digest)) {
+            stored = multipartStream.readBodyTo(fos, maxBytes) > 0;
+        } finally {
+            // never leave half written files behind in the upload directory
+            if (!stored) {
+                Files.deleteIfExists(tempFile);
+            }
+        }
+        return stored ? blobStore.add(tempFile, digest.digest()) : null;
+    }
 }
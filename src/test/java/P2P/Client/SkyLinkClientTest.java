@@ -0,0 +1,226 @@
+package P2P.Client;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import P2P.Service.BlobStore;
+import P2P.Service.CompressedVariants;
+import P2P.Service.FileSharer;
+import P2P.Service.HotFileCache;
+import P2P.Utils.RateLimiter;
+import P2P.Utils.TransferScheduler;
+import P2P.handler.DownloadHandler;
+
+public class SkyLinkClientTest {
+    @TempDir
+    Path dir;
+
+    private HttpServer server;
+    private ExecutorService executor;
+    private FileSharer fileSharer;
+    private BlobStore blobStore;
+    // Range headers whose first attempt the server breaks off after a few bytes
+    private final Set<String> rangesToBreak = ConcurrentHashMap.newKeySet();
+
+    @BeforeEach
+    public void start() throws IOException {
+        blobStore = new BlobStore(dir.resolve("blobs"), dir.resolve("tmp"));
+        fileSharer = new FileSharer();
+        startServer(new RateLimiter(1000, 1, TimeUnit.MINUTES));
+    }
+
+    private void startServer(RateLimiter downloadLimiter) throws IOException {
+        executor = Executors.newFixedThreadPool(8);
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/download", new DownloadHandler(fileSharer, downloadLimiter,
+                new TransferScheduler(0, 0, 65536), new CompressedVariants(dir.resolve("variants"), 0, 1024, 6),
+                new HotFileCache(0, 0))).getFilters().add(new Filter() {
+            @Override
+            public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+                String range = exchange.getRequestHeaders().getFirst("Range");
+                if (range != null && rangesToBreak.remove(range)) {
+                    exchange.setStreams(null, new BreakingStream(exchange.getResponseBody(), 1000));
+                }
+                chain.doFilter(exchange);
+            }
+
+            @Override
+            public String description() {
+                return "drops a connection in the middle of a response";
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    @AfterEach
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void segmentsAreFetchedInParallelAndVerified() throws Exception {
+        byte[] content = randomBytes(3 * 1024 * 1024 + 12345);
+        String token = share(content, "report.bin");
+
+        SkyLinkClient client = new SkyLinkClient(uri(), 4, 256 * 1024, 5);
+        SkyLinkClient.Result result = client.download(token, dir);
+
+        assertEquals(dir.resolve("report.bin"), result.file);
+        assertArrayEquals(content, Files.readAllBytes(result.file));
+        assertEquals(content.length, result.bytes);
+        assertEquals(13, result.segments);
+        assertTrue(result.verified, "Repr-Digest checked");
+        assertEquals(0, result.retries);
+        assertFalse(Files.exists(dir.resolve("report.bin.part")));
+        // the server counts a range as delivered after its response is closed, which may be just after the client is done
+        for (int i = 0; i < 50 && fileSharer.getShareIdByToken(token) != null; i++) {
+            Thread.sleep(20);
+        }
+        assertNull(fileSharer.getShareIdByToken(token), "a one-time share is gone once every range was sent");
+    }
+
+    @Test
+    public void brokenSegmentsResumeFromWhereTheyStopped() throws Exception {
+        byte[] content = randomBytes(1024 * 1024 + 777);
+        String token = share(content, "report.bin");
+        // the probe and one segment in the middle lose their connection once
+        rangesToBreak.add("bytes=0-262143");
+        rangesToBreak.add("bytes=524288-786431");
+
+        SkyLinkClient client = new SkyLinkClient(uri(), 3, 256 * 1024, 5);
+        SkyLinkClient.Result result = client.download(token, dir.resolve("copy.bin"));
+
+        assertArrayEquals(content, Files.readAllBytes(dir.resolve("copy.bin")));
+        assertTrue(result.verified);
+        assertEquals(2, result.retries);
+    }
+
+    @Test
+    public void segmentsOfOneDownloadCostOneRateLimitToken() throws Exception {
+        stop();
+        startServer(new RateLimiter(2, 1, TimeUnit.MINUTES));
+        byte[] content = randomBytes(2 * 1024 * 1024);
+        String first = share(content, "first.bin");
+        String second = share(content, "second.bin");
+
+        SkyLinkClient client = new SkyLinkClient(uri(), 4, 128 * 1024, 1);
+        SkyLinkClient.Result result = client.download(first, dir);
+        assertEquals(16, result.segments);
+        assertEquals(0, result.retries, "no segment was turned away with 429");
+        // the IP still has its second token for another download
+        assertArrayEquals(content, Files.readAllBytes(client.download(second, dir).file));
+        for (int i = 0; i < 50 && fileSharer.getShareIdByToken(first) != null; i++) {
+            Thread.sleep(20);
+        }
+        assertNull(fileSharer.getShareIdByToken(first), "the one-time share is gone after its segmented download");
+    }
+
+    @Test
+    public void repeatedRangesPastTheFirstByteAreStillCharged() throws Exception {
+        stop();
+        startServer(new RateLimiter(2, 1, TimeUnit.MINUTES));
+        String token = share(randomBytes(64 * 1024), "report.bin");
+
+        HttpResponse<Void> first = range(token, null);
+        assertEquals(206, first.statusCode());
+        String entityTag = first.headers().firstValue("ETag").orElseThrow();
+        // the tag is no ticket: the first part left a file's worth minus one byte, not enough for another copy
+        assertEquals(206, range(token, entityTag).statusCode());
+        assertEquals(429, range(token, entityTag).statusCode());
+        assertNotNull(fileSharer.getShareIdByToken(token), "byte 0 was never sent, so the share is still waiting");
+    }
+
+    @Test
+    public void unknownTokenFailsWithoutLeavingAFile() throws Exception {
+        SkyLinkClient client = new SkyLinkClient(uri(), 4, 256 * 1024, 2);
+        SkyLinkClient.DownloadException e = assertThrows(SkyLinkClient.DownloadException.class,
+                () -> client.download("999999", dir.resolve("out.bin")));
+        assertEquals(403, e.status);
+        assertFalse(Files.exists(dir.resolve("out.bin")));
+        assertFalse(Files.exists(dir.resolve("out.bin.part")));
+    }
+
+    // GET bytes=1- of the share, tied to entityTag when it is not null
+    private HttpResponse<Void> range(String token, String entityTag) throws IOException, InterruptedException {
+        HttpRequest.Builder request = HttpRequest.newBuilder(uri().resolve("/download?token=" + token))
+                .header("Range", "bytes=1-");
+        if (entityTag != null) request.header("If-Range", entityTag);
+        return HttpClient.newHttpClient().send(request.build(), HttpResponse.BodyHandlers.discarding());
+    }
+
+    private URI uri() {
+        return URI.create("http://localhost:" + server.getAddress().getPort());
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(42).nextBytes(bytes);
+        return bytes;
+    }
+
+    private String share(byte[] content, String fileName) throws IOException {
+        Path temp = blobStore.newTempFile();
+        Files.write(temp, content);
+        BlobStore.Blob blob = blobStore.add(temp, BlobStore.hashFile(temp));
+        return fileSharer.getToken(fileSharer.offerBlob(blob, fileName, "127.0.0.1"));
+    }
+
+    // passes limit bytes on, then fails like a connection reset would
+    private static final class BreakingStream extends FilterOutputStream {
+        private long left;
+
+        BreakingStream(OutputStream out, long limit) {
+            super(out);
+            this.left = limit;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len > left) {
+                out.write(b, off, (int) left);
+                out.flush();
+                left = 0;
+                throw new IOException("connection reset (test)");
+            }
+            out.write(b, off, len);
+            left -= len;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+    }
+}
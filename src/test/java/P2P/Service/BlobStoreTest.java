@@ -0,0 +1,61 @@
+package P2P.Service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class BlobStoreTest {
+
+    @TempDir
+    Path uploadDir;
+
+    private BlobStore.Blob store(BlobStore store, String content) throws IOException {
+        Path temp = store.newTempFile();
+        Files.write(temp, content.getBytes(StandardCharsets.UTF_8));
+        BlobStore.Blob blob = store.add(temp, BlobStore.hashFile(temp));
+        assertFalse(Files.exists(temp), "temp file must be moved or deleted");
+        return blob;
+    }
+
+    @Test
+    public void sameContentIsStoredOnce() throws IOException {
+        BlobStore store = new BlobStore(uploadDir.resolve("blobs"), uploadDir);
+        BlobStore.Blob first = store(store, "same pdf bytes");
+        BlobStore.Blob second = store(store, "same pdf bytes");
+        BlobStore.Blob other = store(store, "another file");
+
+        assertSame(first, second);
+        assertNotEquals(first.path, other.path);
+        assertEquals(2, store.blobCount());
+        assertEquals(64, first.hash.length());
+        assertEquals(first.path.getFileName().toString(), first.hash);
+    }
+
+    @Test
+    public void blobIsDeletedWithItsLastShare() throws IOException {
+        BlobStore store = new BlobStore(uploadDir.resolve("blobs"), uploadDir);
+        FileSharer fileSharer = new FileSharer();
+        BlobStore.Blob blob = store(store, "popular.zip content");
+        int firstShare = fileSharer.offerBlob(blob, "popular.zip", "127.0.0.1");
+        int secondShare = fileSharer.offerBlob(store(store, "popular.zip content"), "copy.zip", "127.0.0.1");
+
+        assertEquals("copy.zip", fileSharer.getFileName(secondShare));
+        assertEquals(blob.hash, fileSharer.getContentHash(firstShare));
+
+        fileSharer.cleanupAfterDownload(firstShare);
+        assertTrue(Files.exists(blob.path), "second share still needs the blob");
+        fileSharer.cleanupAfterDownload(secondShare);
+        assertFalse(Files.exists(blob.path));
+        assertEquals(0, store.blobCount());
+    }
+}
@@ -0,0 +1,158 @@
+package P2P.Service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ChunkedUploadManagerTest {
+    @TempDir
+    Path dir;
+
+    private BlobStore blobStore;
+    private DiskQuota diskQuota;
+    private FileSharer fileSharer;
+    private ChunkedUploadManager uploads;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        blobStore = new BlobStore(dir.resolve("blobs"), dir.resolve("tmp"));
+        diskQuota = new DiskQuota(dir, Long.MAX_VALUE, 0, 5, blobStore::storedBytes);
+        fileSharer = new FileSharer();
+        uploads = new ChunkedUploadManager(dir.toString(), blobStore, diskQuota, fileSharer, 1024 * 1024, 4, 2, 64);
+    }
+
+    @Test
+    public void chunksAfterCompleteOrAbortAreRefused() throws Exception {
+        ChunkedUploadManager.Session session = uploads.create("notes.txt", 8, 0, "127.0.0.1");
+        uploads.writeChunk(session.id, 0, chunk("abcd"));
+        uploads.writeChunk(session.id, 1, chunk("efgh"));
+        uploads.complete(session.id, 0, 1);
+
+        // the session is gone, a late retry of a chunk must not touch the file that became the blob
+        assertEquals(404, assertThrows(ChunkedUploadManager.ChunkedUploadException.class,
+                () -> uploads.writeChunk(session.id, 1, chunk("XXXX"))).status);
+
+        ChunkedUploadManager.Session aborted = uploads.create("other.txt", 8, 0, "127.0.0.1");
+        uploads.abort(aborted.id);
+        assertEquals(404, assertThrows(ChunkedUploadManager.ChunkedUploadException.class,
+                () -> uploads.writeChunk(aborted.id, 0, chunk("abcd"))).status);
+        assertEquals(0, diskQuota.reservedBytes());
+    }
+
+    @Test
+    public void abortWaitsForTheChunkBeingWritten() throws Exception {
+        ChunkedUploadManager.Session session = uploads.create("notes.txt", 8, 0, "127.0.0.1");
+        CountDownLatch reading = new CountDownLatch(1);
+        CountDownLatch proceed = new CountDownLatch(1);
+        // a slow client: two bytes, then nothing until we say so
+        InputStream slow = new SequenceInputStream(chunk("ab"), new InputStream() {
+            private final InputStream rest = chunk("cd");
+
+            @Override
+            public int read() throws IOException {
+                reading.countDown();
+                try {
+                    proceed.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return rest.read();
+            }
+        });
+        Thread writer = new Thread(() -> {
+            try {
+                uploads.writeChunk(session.id, 0, slow);
+            } catch (Exception ignored) {
+            }
+        });
+        writer.start();
+        reading.await();
+
+        Thread aborter = new Thread(() -> {
+            try {
+                uploads.abort(session.id);
+            } catch (ChunkedUploadManager.ChunkedUploadException ignored) {
+            }
+        });
+        aborter.start();
+        aborter.join(200);
+        assertTrue(aborter.isAlive(), "abort must not delete the file under a chunk write");
+        assertTrue(Files.exists(session.partFile));
+
+        proceed.countDown();
+        aborter.join(5000);
+        writer.join(5000);
+        assertFalse(Files.exists(session.partFile));
+        assertEquals(0, diskQuota.reservedBytes());
+    }
+
+    @Test
+    public void idleSessionsGiveBackTheirFileAndQuota() throws Exception {
+        ChunkedUploadManager.Session session = uploads.create("notes.txt", 8, 0, "127.0.0.1");
+        uploads.writeChunk(session.id, 0, chunk("abcd"));
+        assertEquals(8, diskQuota.reservedBytes());
+
+        uploads.expireIdleSessions(System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(30));
+        assertTrue(Files.exists(session.partFile), "half an hour is not idle yet");
+
+        uploads.expireIdleSessions(System.currentTimeMillis() + TimeUnit.HOURS.toMillis(2));
+        assertFalse(Files.exists(session.partFile));
+        assertEquals(0, diskQuota.reservedBytes());
+        assertEquals(404, assertThrows(ChunkedUploadManager.ChunkedUploadException.class,
+                () -> uploads.get(session.id)).status);
+    }
+
+    @Test
+    public void blobIsReleasedWhenItCannotBeShared() throws Exception {
+        // the sharer fails the way it does when no token is left
+        fileSharer = new FileSharer() {
+            @Override
+            public int offerBlob(BlobStore.Blob blob, String fileName, String uploaderHost, long ttlMillis, int maxDownloads) {
+                throw new IllegalStateException("Could not find a free access token");
+            }
+        };
+        uploads = new ChunkedUploadManager(dir.toString(), blobStore, diskQuota, fileSharer, 1024 * 1024, 4, 2, 64);
+        ChunkedUploadManager.Session session = uploads.create("notes.txt", 4, 0, "127.0.0.1");
+        uploads.writeChunk(session.id, 0, chunk("abcd"));
+
+        assertThrows(IllegalStateException.class, () -> uploads.complete(session.id, 0, 1));
+        assertEquals(0, blobStore.blobCount());
+        assertEquals(0, blobStore.storedBytes());
+    }
+
+    @Test
+    public void tinyChunksAreRefusedAndMissingChunksAreListedInPart() throws Exception {
+        assertEquals(400, assertThrows(ChunkedUploadManager.ChunkedUploadException.class,
+                () -> uploads.create("notes.txt", 8, 1, "127.0.0.1")).status);
+        // 2-byte chunks are allowed, but not so many of them
+        assertEquals(400, assertThrows(ChunkedUploadManager.ChunkedUploadException.class,
+                () -> uploads.create("notes.txt", 2L * ChunkedUploadManager.MAX_CHUNKS + 2, 2, "127.0.0.1")).status);
+        assertEquals(0, diskQuota.reservedBytes());
+
+        ChunkedUploadManager.Session session = uploads.create("notes.txt", 5000, 4, "127.0.0.1");
+        uploads.writeChunk(session.id, 0, chunk("abcd"));
+        assertEquals(1249, session.missingCount());
+        List<Integer> missing = session.missingChunks(3);
+        assertEquals(List.of(1, 2, 3), missing);
+    }
+
+    private static ByteArrayInputStream chunk(String content) {
+        return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+    }
+}
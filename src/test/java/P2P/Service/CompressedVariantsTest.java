@@ -0,0 +1,92 @@
+package P2P.Service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class CompressedVariantsTest {
+    private static final byte[] CSV = "id,name,city\n1,alice,berlin\n2,bob,paris\n".repeat(500).getBytes(StandardCharsets.UTF_8);
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void negotiatesWithQualityValues() {
+        assertEquals("gzip", CompressedVariants.negotiate("gzip, deflate, br"));
+        assertEquals("deflate", CompressedVariants.negotiate("deflate"));
+        assertEquals("deflate", CompressedVariants.negotiate("gzip;q=0.5, deflate"));
+        assertEquals("gzip", CompressedVariants.negotiate("*"));
+        assertNull(CompressedVariants.negotiate("gzip;q=0, deflate;q=0"));
+        assertNull(CompressedVariants.negotiate("br, identity"));
+        assertNull(CompressedVariants.negotiate(null));
+    }
+
+    @Test
+    public void encodesStreamsStandardDecodersRead() throws IOException {
+        CompressedVariants variants = new CompressedVariants(dir, 1 << 20, 1024, 6);
+        byte[] gzip = encode(variants, null, "gzip");
+        assertTrue(gzip.length < CSV.length / 5, "csv shrinks: " + gzip.length);
+        assertArrayEquals(CSV, new GZIPInputStream(new ByteArrayInputStream(gzip)).readAllBytes());
+        byte[] deflate = encode(variants, null, "deflate");
+        assertArrayEquals(CSV, new InflaterInputStream(new ByteArrayInputStream(deflate)).readAllBytes());
+
+        assertFalse(variants.worthCompressing("photos.zip", 1 << 20));
+        assertFalse(variants.worthCompressing("tiny.txt", 10));
+        assertTrue(variants.worthCompressing("table.csv", 1 << 20));
+    }
+
+    @Test
+    public void variantIsCachedFromTheSecondServeAndForgottenWithItsBlob() throws IOException {
+        CompressedVariants variants = new CompressedVariants(dir, 1 << 20, 1024, 6);
+        encode(variants, "abc", "gzip");
+        assertNull(variants.cachedVariant("abc", "gzip"), "one download is not worth a copy on disk");
+        byte[] second = encode(variants, "abc", "gzip");
+        Path variant = variants.cachedVariant("abc", "gzip");
+        assertNotNull(variant);
+        assertArrayEquals(second, Files.readAllBytes(variant));
+        assertNull(variants.cachedVariant("abc", "deflate"));
+
+        // a download that broke off leaves nothing behind
+        try (CompressedVariants.Encoder encoder = variants.encode(new ByteArrayOutputStream(), "def", "gzip")) {
+            encoder.write(CSV);
+        }
+        try (CompressedVariants.Encoder encoder = variants.encode(new ByteArrayOutputStream(), "def", "gzip")) {
+            encoder.write(CSV);
+        }
+        assertNull(variants.cachedVariant("def", "gzip"));
+
+        variants.forget("abc");
+        assertNull(variants.cachedVariant("abc", "gzip"));
+        assertFalse(Files.exists(variant));
+        try (var left = Files.list(dir)) {
+            assertEquals(0, left.count(), "no variants or temp files left");
+        }
+    }
+
+    private static byte[] encode(CompressedVariants variants, String hash, String encoding) throws IOException {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        try (CompressedVariants.Encoder encoder = variants.encode(wire, hash, encoding); InputStream in = new ByteArrayInputStream(CSV)) {
+            byte[] chunk = new byte[1000]; // several writes, like a download
+            int read;
+            while ((read = in.read(chunk)) != -1) encoder.write(chunk, 0, read);
+            encoder.complete();
+        }
+        return wire.toByteArray();
+    }
+}
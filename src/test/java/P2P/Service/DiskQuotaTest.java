@@ -0,0 +1,44 @@
+package P2P.Service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class DiskQuotaTest {
+
+    @TempDir
+    Path uploadDir;
+
+    @Test
+    public void inFlightUploadsDeferAndStoredFilesReject() throws Exception {
+        AtomicLong stored = new AtomicLong();
+        DiskQuota quota = new DiskQuota(uploadDir, 1000, 0, 7, stored::get);
+
+        DiskQuota.Reservation first = quota.reserve(600);
+        DiskQuota.QuotaExceededException busy = assertThrows(DiskQuota.QuotaExceededException.class, () -> quota.reserve(600));
+        assertEquals(503, busy.status);
+        assertEquals(7, busy.retryAfterSeconds);
+
+        first.release();
+        first.release(); // a second release must not give the space back twice
+        assertEquals(0, quota.reservedBytes());
+
+        stored.set(900); // the first upload was stored
+        DiskQuota.QuotaExceededException full = assertThrows(DiskQuota.QuotaExceededException.class, () -> quota.reserve(200));
+        assertEquals(507, full.status);
+        quota.reserve(100).release();
+    }
+
+    @Test
+    public void keepsTheMinimumFreeSpaceOfTheDisk() throws IOException {
+        DiskQuota quota = new DiskQuota(uploadDir, Long.MAX_VALUE, Long.MAX_VALUE / 2, 5, () -> 0);
+        DiskQuota.QuotaExceededException full = assertThrows(DiskQuota.QuotaExceededException.class, () -> quota.reserve(1));
+        assertEquals(507, full.status);
+    }
+}
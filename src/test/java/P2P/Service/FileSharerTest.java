@@ -0,0 +1,162 @@
+package P2P.Service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class FileSharerTest {
+
+    @TempDir
+    Path uploadDir;
+
+    @Test
+    public void tokensStayUniqueUntilTheSpaceIsFull() {
+        // 4 digits = 9000 possible tokens, keep offering until the sharer gives up
+        FileSharer fileSharer = new FileSharer(4);
+        Set<String> tokens = new HashSet<>();
+        int offered = 0;
+        try {
+            while (offered < 20_000) {
+                int shareId = fileSharer.offerFile("/tmp/none-" + offered, "127.0.0.1");
+                String token = fileSharer.getToken(shareId);
+                assertTrue(tokens.add(token), "duplicate token " + token);
+                assertEquals(shareId, fileSharer.getShareIdByToken(token));
+                offered++;
+            }
+        } catch (IllegalStateException expected) {
+            // token space exhausted, this is the only acceptable way out of the loop
+        }
+        assertTrue(offered > 1000 && offered <= 9000, "offered " + offered);
+        assertEquals(offered, fileSharer.getShareCount());
+    }
+
+    @Test
+    public void cleanupRemovesBothIndexes() {
+        FileSharer fileSharer = new FileSharer();
+        int shareId = fileSharer.offerFile("/tmp/does-not-exist.txt", "127.0.0.1");
+        String token = fileSharer.getToken(shareId);
+        assertTrue(fileSharer.validateToken(shareId, token));
+
+        fileSharer.cleanupAfterDownload(shareId);
+
+        assertNull(fileSharer.getShareIdByToken(token));
+        assertFalse(fileSharer.isShareAvailable(shareId));
+        assertFalse(fileSharer.validateToken(shareId, token));
+    }
+
+    @Test
+    public void shareIsDeliveredOnlyWhenEveryRangeWasSent() {
+        FileSharer fileSharer = new FileSharer();
+        int shareId = fileSharer.offerFile("/tmp/does-not-exist.bin", "127.0.0.1");
+
+        assertFalse(fileSharer.markDelivered(shareId, 500, 1000, 1000));
+        assertFalse(fileSharer.markDelivered(shareId, 0, 200, 1000));
+        assertFalse(fileSharer.markDelivered(shareId, 150, 450, 1000)); // overlaps, still a gap at 450..500
+        assertTrue(fileSharer.markDelivered(shareId, 450, 500, 1000));
+    }
+
+    @Test
+    public void abandonedShareExpiresAndItsBlobIsDeleted() throws IOException {
+        BlobStore store = new BlobStore(uploadDir.resolve("blobs"), uploadDir);
+        FileSharer fileSharer = new FileSharer();
+        Path temp = store.newTempFile();
+        Files.write(temp, new byte[1234]);
+        BlobStore.Blob blob = store.add(temp, BlobStore.hashFile(temp));
+        long now = System.currentTimeMillis();
+        int abandoned = fileSharer.offerBlob(blob, "abandoned.zip", "127.0.0.1", 5_000);
+        int downloaded = fileSharer.offerFile("/tmp/does-not-exist.txt", "127.0.0.1", 5_000);
+        String token = fileSharer.getToken(abandoned);
+
+        assertEquals(0, fileSharer.expireShares(now + 1_000));
+        assertTrue(fileSharer.isShareAvailable(abandoned));
+        fileSharer.cleanupAfterDownload(downloaded); // its timeout is cancelled, nothing left to expire
+
+        assertEquals(1, fileSharer.expireShares(now + 7_000));
+        assertFalse(fileSharer.isShareAvailable(abandoned));
+        assertNull(fileSharer.getShareIdByToken(token));
+        assertFalse(Files.exists(blob.path));
+        assertEquals(0, fileSharer.expireShares(now + 60_000));
+    }
+
+    @Test
+    public void bundleSurvivesARestartAndReleasesEveryBlob() throws IOException {
+        Path journalFile = uploadDir.resolve("shares.journal");
+        BlobStore store = new BlobStore(uploadDir.resolve("blobs"), uploadDir);
+        List<FileSharer.BundleFile> files = List.of(
+                new FileSharer.BundleFile("notes.txt", blob(store, "one")),
+                new FileSharer.BundleFile("Notes.txt", blob(store, "two")),
+                new FileSharer.BundleFile("table.csv", blob(store, "three")));
+        FileSharer before = new FileSharer();
+        before.restore(ShareJournal.open(journalFile, 64 * 1024), store);
+        int shareId = before.offerBundle(files, "127.0.0.1", 0, 1);
+        String token = before.getToken(shareId);
+        assertNull(before.getLocalFile(shareId), "a bundle has no single file to stream");
+        before.closeJournal();
+
+        BlobStore restarted = new BlobStore(uploadDir.resolve("blobs"), uploadDir);
+        FileSharer after = new FileSharer();
+        assertEquals(1, after.restore(ShareJournal.open(journalFile, 64 * 1024), restarted));
+        List<FileSharer.BundleFile> bundle = after.getBundle(after.getShareIdByToken(token));
+        assertEquals(3, bundle.size());
+        assertEquals("notes.txt", bundle.get(0).fileName);
+        assertEquals("Notes (1).txt", bundle.get(1).fileName, "names that collide on extraction are made unique");
+        assertEquals("two", Files.readString(bundle.get(1).blob.path));
+        assertEquals(3, restarted.blobCount());
+
+        after.cleanupAfterDownload(shareId);
+        assertEquals(0, restarted.blobCount());
+        assertFalse(Files.exists(bundle.get(2).blob.path));
+        after.closeJournal();
+    }
+
+    @Test
+    public void multiRecipientShareStaysUntilItsLastDownload() throws IOException {
+        Path journalFile = uploadDir.resolve("shares.journal");
+        BlobStore store = new BlobStore(uploadDir.resolve("blobs"), uploadDir);
+        BlobStore.Blob content = blob(store, "for the whole team");
+        FileSharer before = new FileSharer();
+        before.restore(ShareJournal.open(journalFile, 64 * 1024), store);
+        int shareId = before.offerBlob(content, "plan.txt", "127.0.0.1", 0, 3);
+        long length = content.size;
+
+        assertFalse(before.markDelivered(shareId, 0, length, length));
+        assertFalse(before.markDelivered(shareId, 0, 5, length), "the next recipient starts from nothing");
+        assertFalse(before.markDelivered(shareId, 5, length, length));
+        assertEquals(1, before.getDownloadsLeft(shareId));
+        before.closeJournal();
+
+        // the count survives a restart, the last download is still the last one
+        BlobStore restarted = new BlobStore(uploadDir.resolve("blobs"), uploadDir);
+        FileSharer after = new FileSharer();
+        after.restore(ShareJournal.open(journalFile, 64 * 1024), restarted);
+        assertEquals(1, after.getDownloadsLeft(shareId));
+        assertTrue(after.markDownloaded(shareId));
+        after.cleanupAfterDownload(shareId);
+        assertFalse(after.isShareAvailable(shareId));
+        assertEquals(0, restarted.blobCount());
+        after.closeJournal();
+
+        int untilExpiry = after.offerFile("/tmp/none.txt", "127.0.0.1");
+        assertEquals(1, after.getDownloadsLeft(untilExpiry));
+        assertEquals(0, after.effectiveDownloads(0));
+        assertEquals(-1, after.getDownloadsLeft(after.offerBlob(blob(restarted, "x"), "x.txt", "127.0.0.1", 0, 0)));
+    }
+
+    private static BlobStore.Blob blob(BlobStore store, String content) throws IOException {
+        Path temp = store.newTempFile();
+        Files.writeString(temp, content);
+        return store.add(temp, BlobStore.hashFile(temp));
+    }
+
+}
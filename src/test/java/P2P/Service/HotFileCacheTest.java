@@ -0,0 +1,89 @@
+package P2P.Service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class HotFileCacheTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void fileIsCachedOnceItIsAskedForAgain() throws IOException {
+        HotFileCache cache = new HotFileCache(1000, 1000);
+        try (FileChannel file = file("a", 300)) {
+            assertNull(cache.get("a", file, 300), "the first download reads the disk");
+            ByteBuffer cached = cache.get("a", file, 300);
+            assertNotNull(cached);
+            assertEquals(300, cached.remaining());
+            assertEquals(7, cached.get(7));
+            // every caller gets its own position over the same memory
+            ByteBuffer other = cache.lookup("a");
+            assertEquals(0, other.position());
+            assertEquals(300, cache.bytes());
+
+            cache.forget("a");
+            assertNull(cache.lookup("a"));
+            assertEquals(0, cache.bytes());
+        }
+    }
+
+    @Test
+    public void popularEntriesAreNotPushedOutByColderFiles() throws IOException {
+        HotFileCache cache = new HotFileCache(1000, 1000);
+        try (FileChannel hot = file("hot", 600); FileChannel cold = file("cold", 600); FileChannel warm = file("warm", 600)) {
+            for (int i = 0; i < 5; i++) cache.get("hot", hot, 600);
+            assertNotNull(cache.lookup("hot"));
+
+            cache.get("cold", cold, 600);
+            assertNull(cache.get("cold", cold, 600), "asked for twice, still less than the entry it would replace");
+            assertNotNull(cache.lookup("hot"));
+
+            for (int i = 0; i < 10; i++) cache.get("warm", warm, 600);
+            assertNotNull(cache.lookup("warm"), "more popular by now, it takes the place");
+            assertNull(cache.lookup("hot"));
+            assertEquals(600, cache.bytes());
+        }
+    }
+
+    @Test
+    public void laterSegmentsOfADownloadDoNotCount() throws IOException {
+        HotFileCache cache = new HotFileCache(1000, 1000);
+        try (FileChannel team = file("team", 600); FileChannel once = file("once", 600)) {
+            cache.get("team", team, 600);
+            assertNotNull(cache.get("team", team, 600));
+
+            // one recipient fetching "once" in 6 segments: the first range asks, the others only peek
+            assertNull(cache.get("once", once, 600));
+            for (int i = 0; i < 5; i++) assertNull(cache.peek("once"));
+            assertNull(cache.get("once", once, 600), "two downloads, not seven, do not beat the team file");
+            assertNotNull(cache.peek("team"));
+        }
+    }
+
+    @Test
+    public void filesOverTheLimitAreNeverCached() throws IOException {
+        HotFileCache cache = new HotFileCache(10_000, 100);
+        try (FileChannel big = file("big", 500)) {
+            for (int i = 0; i < 3; i++) assertNull(cache.get("big", big, 500));
+        }
+        assertTrue(new HotFileCache(0, 100).lookup("x") == null);
+    }
+
+    private FileChannel file(String name, int size) throws IOException {
+        byte[] content = new byte[size];
+        for (int i = 0; i < size; i++) content[i] = (byte) i;
+        return FileChannel.open(Files.write(dir.resolve(name), content));
+    }
+}
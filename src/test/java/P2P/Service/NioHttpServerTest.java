@@ -0,0 +1,204 @@
+package P2P.Service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class NioHttpServerTest {
+    private ExecutorService executor;
+    private NioHttpServer server;
+
+    @BeforeEach
+    public void start() throws IOException {
+        executor = Executors.newFixedThreadPool(4);
+        server = new NioHttpServer(0, executor, 1, 30_000);
+        // answers "<method> <path> <bytes of request body read>"
+        server.addContext("/echo", exchange -> {
+            long read = exchange.getRequestBody().transferTo(OutputStream.nullOutputStream());
+            respond(exchange, 200, exchange.getRequestMethod() + " " + exchange.getRequestURI().getPath() + " " + read);
+        }, List.of());
+        // never reads the request body, the engine has to skip it
+        server.addContext("/ignore", exchange -> respond(exchange, 201, "ignored"), List.of());
+        // chunked response
+        server.addContext("/stream", exchange -> {
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream os = exchange.getResponseBody()) {
+                for (int i = 0; i < 3; i++) {
+                    os.write(("part" + i).getBytes(StandardCharsets.UTF_8));
+                    os.flush();
+                }
+            }
+        }, List.of(new Filter() {
+            @Override
+            public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+                exchange.getResponseHeaders().add("X-Filtered", "yes");
+                chain.doFilter(exchange);
+            }
+
+            @Override
+            public String description() {
+                return "test filter";
+            }
+        }));
+        server.start();
+    }
+
+    @AfterEach
+    public void stop() {
+        server.stop();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void keepAliveConnectionServesPipelinedRequests() throws IOException {
+        try (Socket socket = new Socket("localhost", server.getPort())) {
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+            // two requests in one write: the second one is read ahead while the first is handled
+            out.write(("GET /echo/a HTTP/1.1\r\nHost: x\r\n\r\n"
+                    + "POST /echo/b HTTP/1.1\r\nHost: x\r\nContent-Length: 5\r\n\r\nhello").getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+            assertEquals("GET /echo/a 0", readResponse(in).body);
+            assertEquals("POST /echo/b 5", readResponse(in).body);
+
+            out.write("GET /stream HTTP/1.1\r\nHost: x\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            Response streamed = readResponse(in);
+            assertTrue(streamed.head.contains("Transfer-encoding: chunked"), streamed.head);
+            assertTrue(streamed.head.contains("X-filtered: yes"), streamed.head);
+            assertEquals("part0part1part2", streamed.body);
+        }
+    }
+
+    @Test
+    public void requestBodiesAreFramedAndUnreadOnesSkipped() throws IOException {
+        try (Socket socket = new Socket("localhost", server.getPort())) {
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+            out.write(("POST /echo HTTP/1.1\r\nHost: x\r\nTransfer-Encoding: chunked\r\n\r\n"
+                    + "3\r\nabc\r\n4;ext=1\r\ndefg\r\n0\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            assertEquals("POST /echo 7", readResponse(in).body);
+
+            out.write(("POST /ignore HTTP/1.1\r\nHost: x\r\nContent-Length: 100000\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            out.write(new byte[100_000]);
+            Response ignored = readResponse(in);
+            assertTrue(ignored.head.startsWith("HTTP/1.1 201"), ignored.head);
+
+            // still the same connection, the 100000 unread bytes did not end up in front of this request
+            out.write("GET /echo/after HTTP/1.1\r\nHost: x\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            Response last = readResponse(in);
+            assertEquals("GET /echo/after 0", last.body);
+            assertTrue(last.head.contains("Connection: close"), last.head);
+            assertEquals(-1, in.read(), "closed after Connection: close");
+        }
+    }
+
+    @Test
+    public void unknownLengthGoesUnframedToHttp10Clients() throws IOException {
+        try (Socket socket = new Socket("localhost", server.getPort())) {
+            socket.getOutputStream().write("GET /stream HTTP/1.0\r\nConnection: keep-alive\r\n\r\n"
+                    .getBytes(StandardCharsets.ISO_8859_1));
+            String response = new String(socket.getInputStream().readAllBytes(), StandardCharsets.ISO_8859_1);
+            String head = response.substring(0, response.indexOf("\r\n\r\n"));
+            assertFalse(head.contains("Transfer-encoding"), head);
+            assertTrue(head.contains("Connection: close"), head);
+            assertEquals("part0part1part2", response.substring(head.length() + 4), "no chunk framing in the body");
+        }
+    }
+
+    @Test
+    public void transferCodingsOtherThanChunkedAreNotImplemented() throws IOException {
+        // the body must never be taken for a pipelined request that follows it
+        String smuggled = "GET /echo/smuggled HTTP/1.1\r\nHost: x\r\n\r\n";
+        assertTrue(rejected("Transfer-Encoding: gzip, chunked\r\n", smuggled).startsWith("HTTP/1.1 501"));
+        assertTrue(rejected("Transfer-Encoding: chunked\r\nTransfer-Encoding: chunked\r\n", smuggled).startsWith("HTTP/1.1 501"));
+        assertTrue(rejected("Transfer-Encoding: identity\r\n", smuggled).startsWith("HTTP/1.1 501"));
+    }
+
+    @Test
+    public void transferEncodingWithContentLengthIsABadRequest() throws IOException {
+        String response = rejected("Transfer-Encoding: chunked\r\nContent-Length: 5\r\n", "0\r\n\r\nGET /echo/smuggled HTTP/1.1\r\n\r\n");
+        assertTrue(response.startsWith("HTTP/1.1 400"), response);
+    }
+
+    // sends a POST with these extra headers and body, returns all the server answered before it closed the connection
+    private String rejected(String headers, String body) throws IOException {
+        try (Socket socket = new Socket("localhost", server.getPort())) {
+            socket.getOutputStream().write(("POST /echo HTTP/1.1\r\nHost: x\r\n" + headers + "\r\n" + body)
+                    .getBytes(StandardCharsets.ISO_8859_1));
+            String response = new String(socket.getInputStream().readAllBytes(), StandardCharsets.ISO_8859_1);
+            assertFalse(response.contains("smuggled"), response);
+            return response;
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    private static final class Response {
+        final String head;
+        final String body;
+
+        Response(String head, String body) {
+            this.head = head;
+            this.body = body;
+        }
+    }
+
+    // just enough of an HTTP client for these tests: Content-Length and chunked bodies
+    private static Response readResponse(InputStream in) throws IOException {
+        StringBuilder head = new StringBuilder();
+        while (!head.toString().endsWith("\r\n\r\n")) {
+            int b = in.read();
+            if (b == -1) throw new IOException("connection closed in the response head: " + head);
+            head.append((char) b);
+        }
+        String text = head.toString();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        if (text.contains("Transfer-encoding: chunked")) {
+            while (true) {
+                int size = Integer.parseInt(line(in), 16);
+                if (size == 0) {
+                    line(in);
+                    break;
+                }
+                body.write(in.readNBytes(size));
+                line(in);
+            }
+        } else {
+            int start = text.indexOf("Content-length: ") + "Content-length: ".length();
+            body.write(in.readNBytes(Integer.parseInt(text.substring(start, text.indexOf("\r\n", start)))));
+        }
+        return new Response(text, body.toString(StandardCharsets.UTF_8));
+    }
+
+    private static String line(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) throw new IOException("connection closed");
+            if (b != '\r') line.append((char) b);
+        }
+        return line.toString();
+    }
+}
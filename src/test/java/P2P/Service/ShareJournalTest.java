@@ -0,0 +1,149 @@
+package P2P.Service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ShareJournalTest {
+
+    @TempDir
+    Path uploadDir;
+
+    private static ShareJournal.Record record(int shareId) {
+        return new ShareJournal.Record(shareId, "token" + shareId, "/tmp/blobs/" + shareId, "report é " + shareId + ".pdf",
+                "10.0.0." + shareId, 1000L * shareId, Long.MAX_VALUE, true);
+    }
+
+    @Test
+    public void replayKeepsOffersThatWereNotRemoved() throws IOException {
+        Path file = uploadDir.resolve("shares.journal");
+        try (ShareJournal journal = ShareJournal.open(file, 64 * 1024)) {
+            for (int i = 1; i <= 100; i++) {
+                assertTrue(journal.appendOffer(record(i)));
+            }
+            for (int i = 1; i <= 100; i += 2) {
+                journal.appendRemove(i);
+            }
+        }
+        // a record that was being written when the process died: length and half a payload, no checksum
+        try (RandomAccessFile raw = new RandomAccessFile(file.toFile(), "rw")) {
+            long end = 0;
+            try (ShareJournal journal = ShareJournal.open(file, 64 * 1024)) {
+                end = journal.sizeBytes();
+            }
+            raw.seek(end);
+            raw.writeInt(40);
+            raw.write(new byte[]{1, 0, 0, 0, 7});
+        }
+
+        try (ShareJournal journal = ShareJournal.open(file, 64 * 1024)) {
+            List<ShareJournal.Record> live = journal.takeReplayed();
+            assertEquals(50, live.size());
+            ShareJournal.Record first = live.get(0);
+            assertEquals(2, first.shareId);
+            assertEquals("token2", first.token);
+            assertEquals("report é 2.pdf", first.fileName);
+            assertEquals("10.0.0.2", first.host);
+            assertEquals(2000, first.size);
+            assertTrue(first.blob);
+            // the torn record is overwritten by the next append
+            assertTrue(journal.appendRemove(2));
+        }
+        try (ShareJournal journal = ShareJournal.open(file, 64 * 1024)) {
+            assertEquals(49, journal.takeReplayed().size());
+        }
+    }
+
+    @Test
+    public void tooLongNamesAreRefusedBeforeAnythingIsWritten() throws IOException {
+        Path file = uploadDir.resolve("shares.journal");
+        try (ShareJournal journal = ShareJournal.open(file, 256 * 1024)) {
+            assertTrue(journal.appendOffer(record(1)));
+            long before = journal.sizeBytes();
+            ShareJournal.Record tooLong = new ShareJournal.Record(2, "token2", "/tmp/blobs/2",
+                    "x".repeat(ShareJournal.MAX_STRING_BYTES + 1) + ".txt", "10.0.0.2", 2000, Long.MAX_VALUE, true);
+            assertThrows(IllegalArgumentException.class, () -> journal.appendOffer(tooLong));
+            assertEquals(before, journal.sizeBytes());
+            assertTrue(journal.appendOffer(record(3)));
+        }
+        try (ShareJournal journal = ShareJournal.open(file, 256 * 1024)) {
+            List<ShareJournal.Record> live = journal.takeReplayed();
+            assertEquals(2, live.size());
+            assertEquals("report é 3.pdf", live.get(1).fileName);
+        }
+        assertFalse(FileSharer.fileNameFits("é".repeat(ShareJournal.MAX_STRING_BYTES / 2 + 1)));
+    }
+
+    @Test
+    public void compactionKeepsOnlyLiveShares() throws IOException {
+        Path file = uploadDir.resolve("shares.journal");
+        List<ShareJournal.Record> live = new ArrayList<>();
+        try (ShareJournal journal = ShareJournal.open(file, 256 * 1024)) {
+            for (int i = 1; i <= 2000; i++) {
+                journal.appendOffer(record(i));
+                if (i % 100 == 0) live.add(record(i));
+                else journal.appendRemove(i);
+            }
+            assertTrue(journal.shouldCompact(live.size()));
+            long before = journal.sizeBytes();
+            journal.compact(() -> live);
+            assertTrue(journal.sizeBytes() < before / 20, journal.sizeBytes() + " vs " + before);
+            assertFalse(journal.shouldCompact(live.size()));
+            journal.appendOffer(record(5000));
+        }
+        try (ShareJournal journal = ShareJournal.open(file, 256 * 1024)) {
+            assertEquals(21, journal.takeReplayed().size());
+        }
+        assertFalse(Files.exists(uploadDir.resolve("shares.journal.compact")));
+    }
+
+    @Test
+    public void sharesSurviveARestartAndOrphansAreDeleted() throws IOException {
+        Path journalFile = uploadDir.resolve("shares.journal");
+        BlobStore store = new BlobStore(uploadDir.resolve("blobs"), uploadDir);
+        Path temp = store.newTempFile();
+        Files.write(temp, "kept".getBytes());
+        BlobStore.Blob kept = store.add(temp, BlobStore.hashFile(temp));
+        temp = store.newTempFile();
+        Files.write(temp, "downloaded".getBytes());
+        BlobStore.Blob downloaded = store.add(temp, BlobStore.hashFile(temp));
+
+        FileSharer before = new FileSharer();
+        before.restore(ShareJournal.open(journalFile, 64 * 1024), store);
+        int keptShare = before.offerBlob(kept, "kept.txt", "127.0.0.1");
+        String token = before.getToken(keptShare);
+        int gone = before.offerBlob(downloaded, "gone.txt", "127.0.0.1");
+        before.cleanupAfterDownload(gone);
+        Files.write(uploadDir.resolve("crashed-upload.part"), new byte[100]);
+        before.closeJournal();
+
+        // a new process: empty maps, the blob store only has files on disk
+        BlobStore restarted = new BlobStore(uploadDir.resolve("blobs"), uploadDir);
+        Files.write(uploadDir.resolve("blobs").resolve(BlobStore.hex(new byte[32])), new byte[10]); // nobody's blob
+        FileSharer after = new FileSharer();
+        assertEquals(1, after.restore(ShareJournal.open(journalFile, 64 * 1024), restarted));
+        restarted.deleteOrphans(List.of(journalFile));
+
+        assertEquals(keptShare, after.getShareIdByToken(token));
+        assertEquals("kept.txt", after.getFileName(keptShare));
+        assertEquals(kept.hash, after.getContentHash(keptShare));
+        assertEquals(1, restarted.blobCount());
+        assertFalse(Files.exists(uploadDir.resolve("crashed-upload.part")));
+        assertTrue(Files.exists(journalFile));
+        assertTrue(after.offerFile("/tmp/none", "127.0.0.1") > keptShare, "share ids must not be reused");
+        after.cleanupAfterDownload(keptShare);
+        assertFalse(Files.exists(kept.path));
+        after.closeJournal();
+    }
+}
@@ -0,0 +1,89 @@
+package P2P.Service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import P2P.Utils.RateLimiter;
+import P2P.Utils.TransferScheduler;
+
+public class TransferServerTest {
+    @TempDir
+    Path dir;
+
+    private FileSharer fileSharer;
+    private BlobStore blobStore;
+
+    @BeforeEach
+    public void start() throws IOException {
+        blobStore = new BlobStore(dir.resolve("blobs"), dir.resolve("tmp"));
+        fileSharer = new FileSharer();
+        // 5 handshakes per minute and IP
+        fileSharer.startTransferServer(0, 1, new RateLimiter(5, 1, TimeUnit.MINUTES), new TransferScheduler(0, 0, 65536),
+                new CompressedVariants(dir.resolve("variants"), 0, 1024, 6), new HotFileCache(0, 0));
+    }
+
+    @AfterEach
+    public void stop() {
+        fileSharer.stopTransferServer();
+    }
+
+    @Test
+    public void peerDownloadsCountAgainstTheShare() throws Exception {
+        String content = "id,name\n1,alice\n2,bob\n";
+        String token = share(content, 2);
+
+        assertEquals("Filename: people.csv\n" + content, fetch(token));
+        assertEquals("Filename: people.csv\n" + content, fetch(token));
+        // the second complete send was the last one the share allows
+        for (int i = 0; i < 50 && fileSharer.getShareIdByToken(token) != null; i++) {
+            Thread.sleep(20);
+        }
+        assertNull(fileSharer.getShareIdByToken(token));
+        assertTrue(fetch(token).startsWith("ERROR Invalid token"));
+    }
+
+    @Test
+    public void tokenGuessesAreRateLimitedPerIp() throws Exception {
+        for (int guess = 0; guess < 5; guess++) {
+            assertTrue(fetch("10000" + guess).startsWith("ERROR Invalid token"));
+        }
+        // over the limit: even a valid token is turned away until the bucket refills
+        String token = share("a,b\n", 1);
+        assertTrue(fetch(token).startsWith("ERROR Rate limit exceeded"));
+        assertEquals(token, fileSharer.getToken(fileSharer.getShareIdByToken(token)));
+    }
+
+    private String share(String content, int maxDownloads) throws IOException {
+        Path temp = blobStore.newTempFile();
+        Files.writeString(temp, content);
+        BlobStore.Blob blob = blobStore.add(temp, BlobStore.hashFile(temp));
+        return fileSharer.getToken(fileSharer.offerBlob(blob, "people.csv", "127.0.0.1", 60_000, maxDownloads));
+    }
+
+    // everything the server sends for one TOKEN line, until it closes the connection
+    private String fetch(String token) throws IOException {
+        try (Socket socket = new Socket("localhost", fileSharer.getTransferPort())) {
+            socket.getOutputStream().write(("TOKEN " + token + "\n").getBytes(StandardCharsets.UTF_8));
+            ByteArrayOutputStream received = new ByteArrayOutputStream();
+            try (InputStream in = socket.getInputStream()) {
+                in.transferTo(received);
+            }
+            return received.toString(StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package P2P.Utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Test;
+
+public class AdaptiveLimiterTest {
+
+    @Test
+    public void fullQueueIsRejectedAtOnceAndWaitersGetFreedSlots() throws Exception {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(1, 1, 1, 1, 2.0);
+        assertTrue(limiter.acquire(0));
+        assertFalse(limiter.acquire(0), "no waiting allowed, no slot");
+
+        AtomicBoolean waiterAdmitted = new AtomicBoolean();
+        Thread waiter = new Thread(() -> {
+            try {
+                waiterAdmitted.set(limiter.acquire(TimeUnit.SECONDS.toNanos(10)));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        waiter.start();
+        while (limiter.queued() == 0) {
+            Thread.onSpinWait();
+        }
+        assertFalse(limiter.acquire(TimeUnit.SECONDS.toNanos(10)), "queue of one is full, must not wait");
+
+        limiter.release(1_000_000);
+        waiter.join();
+        assertTrue(waiterAdmitted.get());
+        assertEquals(1, limiter.inFlight());
+    }
+
+    @Test
+    public void limitGrowsWhileFastAndBacksOffWhenLatencyRises() throws Exception {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(4, 2, 50, 0, 2.0, 0.5, 0);
+        // saturated and fast: the limit climbs
+        for (int round = 0; round < 200; round++) {
+            while (limiter.acquire(0)) {
+                // take every slot there is
+            }
+            for (int i = limiter.inFlight(); i > 0; i--) {
+                limiter.release(1_000_000);
+            }
+        }
+        int grown = limiter.limit();
+        assertTrue(grown > 10, "limit " + grown);
+
+        // ten times slower than usual: multiplicative decrease down to the floor
+        for (int i = 0; i < 20; i++) {
+            assertTrue(limiter.acquire(0));
+            limiter.release(10_000_000);
+        }
+        assertEquals(2, limiter.limit());
+    }
+}
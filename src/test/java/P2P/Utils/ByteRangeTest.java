@@ -0,0 +1,39 @@
+package P2P.Utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+public class ByteRangeTest {
+
+    @ParameterizedTest
+    @CsvSource({
+            "'bytes=0-499', 0, 499",
+            "'bytes=500-', 500, 999",
+            "'bytes=-200', 800, 999",
+            "'bytes=-5000', 0, 999",
+            "'bytes=900-5000', 900, 999",
+            "'BYTES=10-10', 10, 10"
+    })
+    public void parsesSingleRanges(String header, long start, long end) throws Exception {
+        ByteRange range = ByteRange.parse(header, 1000);
+        assertEquals(start, range.start);
+        assertEquals(end, range.end);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"items=0-10", "bytes=0-10,20-30", "bytes=abc-", "bytes=10-5", "bytes=-", "bytes="})
+    public void ignoresHeadersWeDoNotServe(String header) throws Exception {
+        assertNull(ByteRange.parse(header, 1000));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"bytes=1000-", "bytes=5000-6000", "bytes=-0"})
+    public void rejectsRangesOutsideTheFile(String header) {
+        assertThrows(ByteRange.UnsatisfiableRangeException.class, () -> ByteRange.parse(header, 1000));
+    }
+}
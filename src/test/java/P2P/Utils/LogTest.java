@@ -0,0 +1,74 @@
+package P2P.Utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+public class LogTest {
+
+    private static Log.Entry entry(String message) {
+        return new Log.Entry(Log.Level.INFO, message, null, null);
+    }
+
+    @Test
+    public void fullBufferRejectsInsteadOfBlocking() {
+        Log.RingBuffer buffer = new Log.RingBuffer(4);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(buffer.offer(entry("m" + i)));
+        }
+        assertFalse(buffer.offer(entry("too many")));
+        assertEquals("m0", buffer.poll().message);
+        assertTrue(buffer.offer(entry("m4")));
+        for (int i = 1; i <= 4; i++) {
+            assertEquals("m" + i, buffer.poll().message);
+        }
+        assertNull(buffer.poll());
+    }
+
+    @Test
+    public void concurrentProducersLoseNothing() throws InterruptedException {
+        Log.RingBuffer buffer = new Log.RingBuffer(1024);
+        int producers = 4;
+        int perProducer = 50_000;
+        AtomicInteger rejected = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    while (!buffer.offer(entry("x"))) {
+                        rejected.incrementAndGet();
+                        Thread.onSpinWait();
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        int received = 0;
+        while (received < producers * perProducer) {
+            if (buffer.poll() != null) received++;
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(buffer.poll());
+        assertEquals(producers * perProducer, received);
+    }
+
+    @Test
+    public void formatsFieldsAsKeyValuePairs() {
+        StringBuilder line = new StringBuilder();
+        Log.format(new Log.Entry(Log.Level.WARN, "File sent", new java.io.IOException("Broken pipe"),
+                new Object[]{"share", 3, "file", "my report.pdf"}), line);
+        String text = line.toString();
+        assertTrue(text.contains(" WARN  ["), text);
+        assertTrue(text.endsWith("] File sent share=3 file=\"my report.pdf\" error=\"Broken pipe\"\n"), text);
+    }
+}
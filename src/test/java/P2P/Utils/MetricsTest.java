@@ -0,0 +1,76 @@
+package P2P.Utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.junit.jupiter.api.Test;
+
+public class MetricsTest {
+
+    @Test
+    public void bucketsCoverEveryValueWithinThreePercent() {
+        long[] values = {0, 1, 63, 64, 65, 1000, 123_456, 40_000_000_000L, Long.MAX_VALUE};
+        for (long value : values) {
+            int index = Histogram.indexOf(value);
+            long high = Histogram.highestValueIn(index);
+            assertTrue(high >= value, "bucket of " + value + " ends at " + high);
+            assertTrue(high - value <= Math.max(1, value / 32), "bucket of " + value + " is too wide: " + high);
+            if (index > 0) {
+                assertTrue(Histogram.highestValueIn(index - 1) < value, "previous bucket already holds " + value);
+            }
+        }
+    }
+
+    @Test
+    public void quantilesFollowTheRecordedValues() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1_000_000L); // 1ms .. 1000ms
+        }
+        assertEquals(1000, histogram.count());
+        assertEquals(500_500_000_000L, histogram.sum());
+        assertEquals(500_000_000L, histogram.quantile(0.5), 500_000_000L / 32);
+        assertEquals(990_000_000L, histogram.quantile(0.99), 990_000_000L / 32);
+        assertTrue(histogram.quantile(0.99) >= 990_000_000L);
+        assertEquals(0, new Histogram().quantile(0.5));
+    }
+
+    @Test
+    public void scrapeUsesPrometheusTextFormat() throws IOException {
+        Metrics.Counter counter = Metrics.counter("skylink_test_bytes_total", "path=\"a\"", "Bytes in a test");
+        try (InputStream in = Metrics.counting(new ByteArrayInputStream(new byte[300]), counter);
+             OutputStream out = Metrics.counting(new ByteArrayOutputStream(), counter)) {
+            in.readAllBytes();
+            out.write(new byte[20], 0, 20);
+        }
+        Metrics.histogram("skylink_test_seconds", "", "Latency in a test").record(2_000_000);
+
+        String scrape = Metrics.scrape();
+        assertTrue(scrape.contains("# TYPE skylink_test_bytes_total counter\n"));
+        assertTrue(scrape.contains("skylink_test_bytes_total{path=\"a\"} 320\n"), scrape);
+        assertTrue(scrape.contains("# TYPE skylink_test_seconds summary\n"));
+        assertTrue(scrape.contains("skylink_test_seconds{quantile=\"0.99\"} 0.00"), scrape);
+        assertTrue(scrape.contains("skylink_test_seconds_count 1\n"), scrape);
+        assertTrue(scrape.contains("skylink_jvm_threads "), scrape);
+    }
+
+    @Test
+    public void statusCountersKeepOneSeriesPerStatus() {
+        Metrics.StatusCounters requests = Metrics.statusCounters("skylink_test_requests_total", "Requests in a test");
+        requests.increment(200);
+        requests.increment(200);
+        requests.increment(404);
+        requests.increment(-1);
+
+        assertEquals(2, Metrics.counter("skylink_test_requests_total", "status=\"200\"", "").get());
+        String scrape = Metrics.scrape();
+        assertTrue(scrape.contains("skylink_test_requests_total{status=\"404\"} 1\n"), scrape);
+        assertTrue(scrape.contains("skylink_test_requests_total{status=\"-1\"} 1\n"), scrape);
+    }
+}
@@ -0,0 +1,72 @@
+package P2P.Utils;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class MultiParserTest {
+
+    private static final String BOUNDARY = "----WebKitFormBoundaryQ2wE3rT4yU5iO6pA";
+
+    private static int naiveIndexOf(byte[] data, byte[] pattern, int from) {
+        outer:
+        for (int i = from; i <= data.length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    @Test
+    public void boundaryMatcherAgreesWithNaiveSearch() {
+        Random random = new Random(7);
+        for (int round = 0; round < 2000; round++) {
+            // small alphabet so partial matches and overlaps happen a lot
+            byte[] data = new byte[random.nextInt(200)];
+            for (int i = 0; i < data.length; i++) data[i] = (byte) ('a' + random.nextInt(3));
+            byte[] pattern = new byte[1 + random.nextInt(5)];
+            for (int i = 0; i < pattern.length; i++) pattern[i] = (byte) ('a' + random.nextInt(3));
+            int from = data.length == 0 ? 0 : random.nextInt(data.length);
+
+            assertEquals(naiveIndexOf(data, pattern, from), new BoundaryMatcher(pattern).indexOf(data, from));
+        }
+    }
+
+    @Test
+    public void parsesFilePartAfterPlainFields() throws IOException {
+        byte[] content = new byte[4096];
+        new Random(1).nextBytes(content);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(("--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"comment\"\r\n\r\n"
+                + "filename=\"decoy.txt\"\r\n"
+                + "--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"photo.png\"\r\n"
+                + "Content-Type: image/png\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+        body.write(content);
+        body.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.UTF_8));
+
+        MultiParser.ParseResult result = new MultiParser(body.toByteArray(), BOUNDARY).parse();
+
+        assertEquals("photo.png", result.fileName);
+        assertEquals("image/png", result.contentType);
+        assertArrayEquals(content, result.fileContent);
+    }
+
+    @Test
+    public void returnsNullWithoutFilePart() {
+        byte[] body = ("--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"comment\"\r\n\r\n"
+                + "hi\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.UTF_8);
+        assertNull(new MultiParser(body, BOUNDARY).parse());
+    }
+}
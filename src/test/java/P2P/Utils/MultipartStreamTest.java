@@ -0,0 +1,92 @@
+package P2P.Utils;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+public class MultipartStreamTest {
+
+    private static final String BOUNDARY = "----WebKitFormBoundary7MA4YWxkTrZu0gW";
+
+    private static byte[] body(byte[] fileContent) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(("--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"note\"\r\n\r\n"
+                + "hello\r\n"
+                + "--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"report.pdf\"\r\n"
+                + "Content-Type: application/pdf\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+        out.write(fileContent);
+        out.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.UTF_8));
+        return out.toByteArray();
+    }
+
+    // hands out the data in tiny random slices, so boundaries end up split across reads
+    private static InputStream trickle(byte[] data, long seed) {
+        Random random = new Random(seed);
+        return new FilterInputStream(new ByteArrayInputStream(data)) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return super.read(b, off, Math.min(len, 1 + random.nextInt(7)));
+            }
+        };
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 64, 4096})
+    public void streamsFilePartAcrossBufferEdges(int bufferSize) throws IOException {
+        byte[] content = new byte[10_000];
+        new Random(42).nextBytes(content);
+        // put a fake delimiter prefix inside the payload, it must not end the part
+        byte[] fake = ("\r\n--" + BOUNDARY.substring(0, 10)).getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(fake, 0, content, 5000, fake.length);
+
+        MultipartStream stream = new MultipartStream(trickle(body(content), bufferSize), BOUNDARY, bufferSize);
+
+        MultipartStream.PartHeaders note = stream.nextPart();
+        assertEquals("note", note.name);
+        assertTrue(!note.isFile());
+
+        MultipartStream.PartHeaders file = stream.nextPart();
+        assertEquals("report.pdf", file.fileName);
+        assertEquals("application/pdf", file.contentType);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(content.length, stream.readBodyTo(out, -1));
+        assertArrayEquals(content, out.toByteArray());
+        assertNull(stream.nextPart());
+    }
+
+    @Test
+    public void rejectsPartsOverTheLimit() throws IOException {
+        MultipartStream stream = new MultipartStream(new ByteArrayInputStream(body(new byte[2048])), BOUNDARY, 256);
+        stream.nextPart();
+        stream.nextPart();
+        assertThrows(MultipartStream.SizeLimitExceededException.class,
+                () -> stream.readBodyTo(new ByteArrayOutputStream(), 1024));
+    }
+
+    @Test
+    public void reportsMissingClosingBoundary() throws IOException {
+        byte[] truncated = ("--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"a.txt\"\r\n\r\n"
+                + "no end in sight").getBytes(StandardCharsets.UTF_8);
+        MultipartStream stream = new MultipartStream(new ByteArrayInputStream(truncated), BOUNDARY);
+        stream.nextPart();
+        assertThrows(MultipartStream.MalformedMultipartException.class, stream::skipBody);
+    }
+}
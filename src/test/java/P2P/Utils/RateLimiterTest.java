@@ -0,0 +1,58 @@
+package P2P.Utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+public class RateLimiterTest {
+
+    private final AtomicLong now = new AtomicLong(0);
+
+    private RateLimiter tenPerMinute() {
+        return new RateLimiter(10, 10, 1, TimeUnit.MINUTES, now::get);
+    }
+
+    @Test
+    public void allowsTheBurstThenAsksToWait() {
+        RateLimiter limiter = tenPerMinute();
+        for (int i = 0; i < 10; i++) {
+            assertEquals(0, limiter.tryAcquire("1.2.3.4"));
+        }
+        long retryAfterMs = limiter.tryAcquire("1.2.3.4");
+        // one token comes back every 6 seconds
+        assertEquals(6000, retryAfterMs);
+        // other IPs have their own bucket
+        assertEquals(0, limiter.tryAcquire("5.6.7.8"));
+    }
+
+    @Test
+    public void refillsOneTokenPerInterval() {
+        RateLimiter limiter = tenPerMinute();
+        for (int i = 0; i < 10; i++) {
+            limiter.tryAcquire("1.2.3.4");
+        }
+        now.addAndGet(TimeUnit.SECONDS.toNanos(3));
+        assertEquals(3000, limiter.tryAcquire("1.2.3.4"));
+        now.addAndGet(TimeUnit.SECONDS.toNanos(3));
+        assertEquals(0, limiter.tryAcquire("1.2.3.4"));
+        assertTrue(limiter.tryAcquire("1.2.3.4") > 0);
+    }
+
+    @Test
+    public void sweepForgetsIdleKeys() {
+        RateLimiter limiter = tenPerMinute();
+        for (int i = 0; i < 1000; i++) {
+            limiter.tryAcquire("10.0." + (i / 256) + "." + (i % 256));
+        }
+        assertEquals(1000, limiter.size());
+
+        // after a full period every bucket is full again, the next request sweeps them away
+        now.addAndGet(TimeUnit.MINUTES.toNanos(1) + 1);
+        assertEquals(0, limiter.tryAcquire("1.2.3.4"));
+        assertEquals(1, limiter.size());
+    }
+}
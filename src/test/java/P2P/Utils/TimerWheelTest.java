@@ -0,0 +1,51 @@
+package P2P.Utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class TimerWheelTest {
+
+    @Test
+    public void timeoutsFireInTheTickOfTheirDeadline() {
+        TimerWheel<String> wheel = new TimerWheel<>(100, 8, 0);
+        wheel.schedule("soon", 250);
+        wheel.schedule("later", 5_000); // several turns of an 8 slot wheel away
+        wheel.schedule("overdue", -10);
+
+        assertEquals(List.of("overdue"), wheel.advance(0));
+        assertTrue(wheel.advance(200).isEmpty());
+        assertEquals(List.of("soon"), wheel.advance(300));
+        // calling often must not count the same tick twice
+        for (long now = 300; now < 4_900; now += 37) {
+            assertTrue(wheel.advance(now).isEmpty(), "fired early at " + now);
+        }
+        assertEquals(List.of("later"), wheel.advance(5_000));
+        assertEquals(0, wheel.pending());
+    }
+
+    @Test
+    public void cancelledTimeoutsNeverFire() {
+        TimerWheel<Integer> wheel = new TimerWheel<>(10, 16, 0);
+        List<TimerWheel.Timeout<Integer>> timeouts = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            timeouts.add(wheel.schedule(i, i * 7L));
+        }
+        for (int i = 0; i < 1000; i += 2) {
+            timeouts.get(i).cancel();
+        }
+        List<Integer> fired = new ArrayList<>();
+        for (long now = 0; now <= 7_000; now += 250) {
+            fired.addAll(wheel.advance(now));
+        }
+        assertEquals(500, fired.size());
+        for (Integer key : fired) {
+            assertEquals(1, key % 2);
+        }
+        assertEquals(0, wheel.pending());
+    }
+}
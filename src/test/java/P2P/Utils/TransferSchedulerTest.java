@@ -0,0 +1,88 @@
+package P2P.Utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+public class TransferSchedulerTest {
+    private static final int QUANTUM = 10_000;
+
+    @Test
+    public void withoutLimitsFlowsArePassThrough() {
+        TransferScheduler scheduler = new TransferScheduler(0, 0, QUANTUM);
+        TransferScheduler.Flow flow = scheduler.open("10.0.0.1", null);
+        assertEquals(5_000_000, flow.tryAcquire(5_000_000));
+        flow.close();
+    }
+
+    @Test
+    public void queuedFlowsTakeTurnsWhenTheBucketIsDry() {
+        AtomicLong now = new AtomicLong();
+        // 100 kB/s with a 10 kB quantum: one turn every 100 ms
+        TransferScheduler scheduler = new TransferScheduler(100_000, 0, QUANTUM, now::get, false);
+        AtomicInteger bigTurns = new AtomicInteger();
+        AtomicInteger smallTurns = new AtomicInteger();
+        TransferScheduler.Flow big = scheduler.open("10.0.0.1", bigTurns::incrementAndGet);
+        TransferScheduler.Flow small = scheduler.open("10.0.0.2", smallTurns::incrementAndGet);
+
+        assertEquals(QUANTUM, big.tryAcquire(1_000_000), "bucket starts full");
+        assertEquals(0, big.tryAcquire(1_000_000));
+        assertEquals(0, small.tryAcquire(1_000_000));
+
+        long bigBytes = 0, smallBytes = 0;
+        for (int turn = 0; turn < 20; turn++) {
+            now.addAndGet(TimeUnit.MILLISECONDS.toNanos(100));
+            scheduler.serve(now.get());
+            // whoever got the turn sends it and gets back in line
+            assertEquals(turn + 1, bigTurns.get() + smallTurns.get(), "one turn per quantum of tokens");
+            long sent = big.tryAcquire(1_000_000);
+            if (sent > 0) {
+                bigBytes += sent;
+                assertEquals(0, big.tryAcquire(1_000_000));
+            }
+            sent = small.tryAcquire(1_000_000);
+            if (sent > 0) {
+                smallBytes += sent;
+                assertEquals(0, small.tryAcquire(1_000_000));
+            }
+        }
+        assertEquals(10 * QUANTUM, bigBytes);
+        assertEquals(10 * QUANTUM, smallBytes);
+        big.close();
+        small.close();
+    }
+
+    @Test
+    public void clientOverItsIpLimitLetsOthersGoFirst() {
+        AtomicLong now = new AtomicLong();
+        // the global bucket is no constraint here, only the per-IP one: 10 kB/s per client
+        TransferScheduler scheduler = new TransferScheduler(10_000_000, 10_000, QUANTUM, now::get, false);
+        AtomicInteger greedyTurns = new AtomicInteger();
+        TransferScheduler.Flow greedy = scheduler.open("10.0.0.1", greedyTurns::incrementAndGet);
+        TransferScheduler.Flow sameClient = scheduler.open("10.0.0.1", null);
+        TransferScheduler.Flow other = scheduler.open("10.0.0.2", null);
+
+        assertEquals(QUANTUM, greedy.tryAcquire(1_000_000));
+        assertEquals(0, sameClient.tryAcquire(QUANTUM), "both connections of a client share its limit");
+        assertEquals(0, greedy.tryAcquire(1_000_000));
+        assertEquals(0, other.tryAcquire(QUANTUM), "in line behind the others");
+
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(10));
+        long nextTurn = scheduler.serve(now.get());
+        assertEquals(QUANTUM, other.tryAcquire(QUANTUM), "skipped the two flows over their IP limit");
+        assertEquals(0, greedyTurns.get());
+        assertTrue(nextTurn > 0 && nextTurn <= TimeUnit.SECONDS.toNanos(1), "next turn in " + nextTurn);
+
+        now.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        scheduler.serve(now.get());
+        assertEquals(1, greedyTurns.get() + (sameClient.tryAcquire(QUANTUM) > 0 ? 1 : 0), "one quantum per second for the client");
+        greedy.close();
+        sameClient.close();
+        other.close();
+    }
+}
@@ -0,0 +1,143 @@
+package P2P.bench;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import P2P.Controller.FileController;
+
+/* Concurrent-transfer capacity of the two execution models.
+   For every mode it starts SkyLink in-process, uploads N files and then lets N slow clients download them at the same
+   time (each client reads 64KB and then sleeps, like a phone on a bad link). It reports how many downloads were
+   actually moving bytes at the same time and the time-to-first-byte the clients saw.
+   With 10 platform threads the 11th slow client waits in the HttpServer queue; with virtual threads every client is
+   served at once.
+   A plain main, not a unit test (surefire leaves it alone). Run after "mvn test-compile" on a JVM with virtual
+   threads (21+) to compare both modes:
+     java -cp target/classes:target/test-classes -Dload.clients=200 P2P.bench.ExecutionModeLoadGenerator platform virtual */
+public class ExecutionModeLoadGenerator {
+
+    public static void main(String[] args) throws Exception {
+        int clients = Integer.getInteger("load.clients", 200);
+        int fileSize = Integer.getInteger("load.file.kb", 4096) * 1024;
+        String[] modes = args.length > 0 ? args : new String[]{"platform", "virtual"};
+
+        System.setProperty("skylink.transfer.port", "0");
+        System.setProperty("skylink.uploads.per.minute", String.valueOf(Integer.MAX_VALUE));
+        System.setProperty("skylink.downloads.per.minute", String.valueOf(Integer.MAX_VALUE));
+        for (String mode : modes) {
+            System.setProperty("skylink.executor", mode);
+            FileController controller = new FileController(0);
+            controller.start();
+            try {
+                run(mode, controller.getPort(), clients, fileSize);
+            } finally {
+                controller.stop();
+            }
+        }
+    }
+
+    private static void run(String mode, int port, int clients, int fileSize) throws Exception {
+        byte[] content = new byte[fileSize];
+        new Random(3).nextBytes(content);
+
+        ExecutorService pool = Executors.newFixedThreadPool(clients);
+        try {
+            List<Future<String>> uploads = new ArrayList<>();
+            for (int i = 0; i < clients; i++) {
+                uploads.add(pool.submit(() -> upload(port, content)));
+            }
+            List<String> tokens = new ArrayList<>();
+            for (Future<String> upload : uploads) {
+                tokens.add(upload.get());
+            }
+
+            AtomicInteger moving = new AtomicInteger();
+            AtomicInteger peakMoving = new AtomicInteger();
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<Long>> downloads = new ArrayList<>();
+            for (String token : tokens) {
+                downloads.add(pool.submit(() -> {
+                    start.await();
+                    return slowDownload(port, token, fileSize, moving, peakMoving);
+                }));
+            }
+            long begin = System.nanoTime();
+            start.countDown();
+            List<Long> ttfb = new ArrayList<>();
+            for (Future<Long> download : downloads) {
+                ttfb.add(download.get());
+            }
+            long wallMs = (System.nanoTime() - begin) / 1_000_000;
+            Collections.sort(ttfb);
+            System.out.printf("%-8s clients=%d file=%dKB  peak concurrent transfers=%d  ttfb p50=%dms p99=%dms max=%dms  wall=%dms  threads=%d%n",
+                    mode, clients, fileSize / 1024, peakMoving.get(),
+                    ttfb.get(ttfb.size() / 2), ttfb.get((int) (ttfb.size() * 0.99)), ttfb.get(ttfb.size() - 1),
+                    wallMs, Thread.activeCount());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static String upload(int port, byte[] content) throws IOException {
+        String boundary = "----SkyLinkLoad" + System.nanoTime();
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + port + "/upload").openConnection();
+        connection.setDoOutput(true);
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + boundary);
+        byte[] head = ("--" + boundary + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"load.pdf\"\r\n"
+                + "Content-Type: application/pdf\r\n\r\n").getBytes(StandardCharsets.UTF_8);
+        byte[] tail = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8);
+        connection.setFixedLengthStreamingMode(head.length + content.length + tail.length);
+        try (DataOutputStream out = new DataOutputStream(connection.getOutputStream())) {
+            out.write(head);
+            out.write(content);
+            out.write(tail);
+        }
+        if (connection.getResponseCode() != 200) {
+            throw new IOException("upload failed with HTTP " + connection.getResponseCode());
+        }
+        try (InputStream in = connection.getInputStream()) {
+            String json = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            int start = json.indexOf("\"token\": \"") + "\"token\": \"".length();
+            return json.substring(start, json.indexOf('"', start));
+        }
+    }
+
+    // returns the time to first byte in ms
+    private static long slowDownload(int port, String token, int expected, AtomicInteger moving, AtomicInteger peakMoving)
+            throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + port + "/download?token=" + token).openConnection();
+        try (InputStream in = connection.getInputStream()) {
+            byte[] buffer = new byte[64 * 1024];
+            int read = in.read(buffer);
+            long ttfb = (System.nanoTime() - start) / 1_000_000;
+            peakMoving.accumulateAndGet(moving.incrementAndGet(), Math::max);
+            long total = Math.max(read, 0);
+            while (read != -1) {
+                Thread.sleep(20);
+                read = in.read(buffer);
+                if (read > 0) total += read;
+            }
+            moving.decrementAndGet();
+            if (total != expected) {
+                throw new IOException("short download: " + total + " of " + expected);
+            }
+            return ttfb;
+        }
+    }
+}
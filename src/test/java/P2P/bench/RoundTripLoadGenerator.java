@@ -0,0 +1,412 @@
+package P2P.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import P2P.Controller.FileController;
+
+/* Upload -> download round trips against an in-process SkyLink on loopback, to size capacity and to gate changes to
+   UploadHandler, DownloadHandler and FileSharer. Everything runs offline.
+   Every client loops: multipart POST /upload of a file with a size drawn from the distribution, then
+   GET /download?token=..., and checks the CRC32 of what came back. At the end it prints throughput, p50/p99/p999
+   latency of uploads, downloads and whole round trips, the heap high-water mark and thread counts of the JVM
+   (server and clients share it, the client side only keeps a 1MB block of random data).
+
+   A plain main, not a unit test (surefire leaves it alone). Run after "mvn test-compile":
+     java -cp target/classes:target/test-classes -Dload.clients=32 -Dload.rounds=50 P2P.bench.RoundTripLoadGenerator
+   Settings (system properties):
+     load.clients   concurrent clients (default 16)
+     load.rounds    measured round trips per client (default 20), load.warmup ones before that are not recorded (default 2)
+     load.sizes     file size distribution (default "16KB:60,512KB:30,8MB:10"):
+                      "4MB"                    every file has this size
+                      "16KB:60,512KB:30,8MB:10" weighted mix, weights are relative
+                      "lognormal:256KB:1.5"    log-normal with that median and sigma, capped at load.max.size (default 64MB)
+     load.max.p99.ms  fail when the round trip p99 is above this, for use as a gate
+   A 503 (admission lane full) is retried after its Retry-After like a browser would, up to 5 times; those waits
+   count in the latency and the number of 503s is reported as "shed".
+   The exit code is 1 when any round trip failed or the p99 gate was missed. SKYLINK_* settings work as usual
+   (e.g. -Dskylink.executor=virtual), the rate limits are lifted for the run. */
+public class RoundTripLoadGenerator {
+    private static final int BLOCK_SIZE = 1024 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        int clients = Integer.getInteger("load.clients", 16);
+        int rounds = Integer.getInteger("load.rounds", 20);
+        int warmup = Integer.getInteger("load.warmup", 2);
+        long maxSize = parseSize(System.getProperty("load.max.size", "64MB"));
+        SizeDistribution sizes = SizeDistribution.parse(System.getProperty("load.sizes", "16KB:60,512KB:30,8MB:10"), maxSize);
+        long maxP99Ms = Long.getLong("load.max.p99.ms", Long.MAX_VALUE);
+
+        System.setProperty("skylink.transfer.port", "0");
+        System.setProperty("skylink.uploads.per.minute", String.valueOf(Integer.MAX_VALUE));
+        System.setProperty("skylink.downloads.per.minute", String.valueOf(Integer.MAX_VALUE));
+
+        byte[] block = new byte[BLOCK_SIZE];
+        new Random(11).nextBytes(block);
+
+        FileController controller = new FileController(0);
+        controller.start();
+        Report report;
+        try {
+            report = run(controller.getPort(), clients, rounds, warmup, sizes, block);
+        } finally {
+            controller.stop();
+        }
+        report.print(clients, sizes);
+
+        boolean failed = report.failures.get() > 0;
+        if (report.percentile(report.roundTrips, 0.99) > maxP99Ms) {
+            System.out.println("FAILED: round trip p99 above load.max.p99.ms=" + maxP99Ms);
+            failed = true;
+        }
+        System.exit(failed ? 1 : 0);
+    }
+
+    private static Report run(int port, int clients, int rounds, int warmup, SizeDistribution sizes, byte[] block)
+            throws Exception {
+        Report report = new Report(clients * rounds);
+        ExecutorService pool = Executors.newFixedThreadPool(clients);
+        try {
+            // warm the JIT and the server pools first, then reset the peaks so they only cover the measured part
+            runRounds(pool, port, clients, warmup, sizes, block, null);
+            System.gc();
+            report.startMeasuring();
+            runRounds(pool, port, clients, rounds, sizes, block, report);
+            report.stopMeasuring();
+        } finally {
+            pool.shutdownNow();
+        }
+        return report;
+    }
+
+    private static void runRounds(ExecutorService pool, int port, int clients, int rounds, SizeDistribution sizes,
+                                  byte[] block, Report report) throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int c = 0; c < clients; c++) {
+            Random random = new Random(1000L + c);
+            futures.add(pool.submit(() -> {
+                start.await();
+                for (int r = 0; r < rounds; r++) {
+                    roundTrip(port, sizes.next(random), random.nextInt(BLOCK_SIZE), block, report);
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get();
+        }
+    }
+
+    private static void roundTrip(int port, long size, int offset, byte[] block, Report report) {
+        try {
+            long begin = System.nanoTime();
+            UploadResult upload = retryWhenBusy(() -> upload(port, size, offset, block), report);
+            long uploaded = System.nanoTime();
+            long downloadedCrc = retryWhenBusy(() -> download(port, upload.token, size), report);
+            long end = System.nanoTime();
+            if (downloadedCrc != upload.crc) {
+                throw new IOException("content mismatch for token " + upload.token);
+            }
+            if (report != null) {
+                report.record(uploaded - begin, end - uploaded, end - begin, size);
+            }
+        } catch (IOException e) {
+            if (report != null) {
+                report.failures.incrementAndGet();
+                System.err.println("round trip failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private interface Call<T> {
+        T run() throws IOException;
+    }
+
+    // the server shed the request, it says when to come back
+    private static class BusyException extends IOException {
+        private static final long serialVersionUID = 1L;
+        final long retryAfterSeconds;
+
+        BusyException(String message, long retryAfterSeconds) {
+            super(message);
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+    }
+
+    private static <T> T retryWhenBusy(Call<T> call, Report report) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return call.run();
+            } catch (BusyException e) {
+                if (report != null) report.shed.incrementAndGet();
+                if (attempt == 5) throw e;
+                try {
+                    Thread.sleep(TimeUnit.SECONDS.toMillis(e.retryAfterSeconds));
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private static void checkStatus(HttpURLConnection connection, String what) throws IOException {
+        int status = connection.getResponseCode();
+        if (status == 503) {
+            String retryAfter = connection.getHeaderField("Retry-After");
+            throw new BusyException(what + " shed with HTTP 503", retryAfter != null ? Long.parseLong(retryAfter) : 1);
+        }
+        if (status != 200) {
+            throw new IOException(what + " failed with HTTP " + status);
+        }
+    }
+
+    private static class UploadResult {
+        final String token;
+        final long crc;
+
+        UploadResult(String token, long crc) {
+            this.token = token;
+            this.crc = crc;
+        }
+    }
+
+    // streams size bytes of the random block (starting at offset, wrapping around) as a multipart upload
+    private static UploadResult upload(int port, long size, int offset, byte[] block) throws IOException {
+        String boundary = "----SkyLinkRoundTrip" + System.nanoTime();
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + port + "/upload").openConnection();
+        connection.setDoOutput(true);
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + boundary);
+        byte[] head = ("--" + boundary + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"roundtrip.pdf\"\r\n"
+                + "Content-Type: application/pdf\r\n\r\n").getBytes(StandardCharsets.UTF_8);
+        byte[] tail = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8);
+        connection.setFixedLengthStreamingMode(head.length + size + tail.length);
+
+        CRC32 crc = new CRC32();
+        writeBody(connection, head, tail, size, offset, block, crc);
+        checkStatus(connection, "upload");
+        try (InputStream in = connection.getInputStream()) {
+            String json = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            int start = json.indexOf("\"token\": \"") + "\"token\": \"".length();
+            return new UploadResult(json.substring(start, json.indexOf('"', start)), crc.getValue());
+        }
+    }
+
+    private static void writeBody(HttpURLConnection connection, byte[] head, byte[] tail, long size, int offset,
+                                  byte[] block, CRC32 crc) throws IOException {
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(head);
+            long written = 0;
+            int position = offset;
+            while (written < size) {
+                int length = (int) Math.min(BLOCK_SIZE - position, size - written);
+                out.write(block, position, length);
+                crc.update(block, position, length);
+                written += length;
+                position = (position + length) % BLOCK_SIZE;
+            }
+            out.write(tail);
+        }
+    }
+
+    // downloads the share and returns the CRC32 of its bytes
+    private static long download(int port, String token, long expected) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + port + "/download?token=" + token).openConnection();
+        checkStatus(connection, "download");
+        CRC32 crc = new CRC32();
+        long total = 0;
+        try (InputStream in = connection.getInputStream()) {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+                total += read;
+            }
+        }
+        if (total != expected) {
+            throw new IOException("short download: " + total + " of " + expected);
+        }
+        return crc.getValue();
+    }
+
+    /* Collects the latencies of the measured rounds and the JVM peaks around them. */
+    private static class Report {
+        final long[] uploads;
+        final long[] downloads;
+        final long[] roundTrips;
+        final AtomicLong failures = new AtomicLong();
+        final AtomicLong shed = new AtomicLong();
+        private final AtomicLong recorded = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private final List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+        private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        private long startNanos;
+        private long wallNanos;
+        private int threadsBefore;
+        private int peakThreads;
+        private int threadsAfter;
+        private long peakHeap;
+
+        Report(int capacity) {
+            uploads = new long[capacity];
+            downloads = new long[capacity];
+            roundTrips = new long[capacity];
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP) heapPools.add(pool);
+            }
+        }
+
+        void startMeasuring() {
+            heapPools.forEach(MemoryPoolMXBean::resetPeakUsage);
+            threads.resetPeakThreadCount();
+            threadsBefore = threads.getThreadCount();
+            startNanos = System.nanoTime();
+        }
+
+        void stopMeasuring() {
+            wallNanos = System.nanoTime() - startNanos;
+            peakThreads = threads.getPeakThreadCount();
+            threadsAfter = threads.getThreadCount();
+            // the sum of the pool peaks, the pools do not peak at the same moment so this is an upper bound
+            for (MemoryPoolMXBean pool : heapPools) {
+                peakHeap += pool.getPeakUsage().getUsed();
+            }
+        }
+
+        void record(long uploadNanos, long downloadNanos, long roundTripNanos, long size) {
+            int slot = (int) recorded.getAndIncrement();
+            uploads[slot] = uploadNanos;
+            downloads[slot] = downloadNanos;
+            roundTrips[slot] = roundTripNanos;
+            bytes.addAndGet(size);
+        }
+
+        // in milliseconds, over the recorded rounds only
+        long percentile(long[] values, double p) {
+            int count = (int) recorded.get();
+            if (count == 0) return 0;
+            long[] sorted = Arrays.copyOf(values, count);
+            Arrays.sort(sorted);
+            int index = (int) Math.min(count - 1, Math.ceil(p * count) - 1);
+            return sorted[Math.max(0, index)] / 1_000_000;
+        }
+
+        void print(int clients, SizeDistribution sizes) {
+            long count = recorded.get();
+            double seconds = wallNanos / 1e9;
+            System.out.printf(Locale.ROOT, "round trips: %d ok, %d failed, %d shed, %d clients, sizes %s%n",
+                    count, failures.get(), shed.get(), clients, sizes);
+            System.out.printf(Locale.ROOT, "throughput:  %.1f round trips/s, %.1f MB/s each way (%.1fs wall)%n",
+                    count / seconds, bytes.get() / seconds / (1024 * 1024), seconds);
+            System.out.printf(Locale.ROOT, "%-11s %8s %8s %8s%n", "latency ms", "p50", "p99", "p999");
+            printLatency("upload", uploads);
+            printLatency("download", downloads);
+            printLatency("round trip", roundTrips);
+            System.out.printf(Locale.ROOT, "heap high-water: %.1f MB   threads: %d before, %d peak, %d after%n",
+                    peakHeap / (1024.0 * 1024), threadsBefore, peakThreads, threadsAfter);
+        }
+
+        private void printLatency(String name, long[] values) {
+            System.out.printf(Locale.ROOT, "%-11s %8d %8d %8d%n", name,
+                    percentile(values, 0.50), percentile(values, 0.99), percentile(values, 0.999));
+        }
+    }
+
+    /* File sizes the clients upload, see load.sizes above. */
+    private static class SizeDistribution {
+        private final String spec;
+        private final long[] sizes;
+        private final double[] cumulative; // for a weighted mix
+        private final double logMedian;    // for a log-normal, sizes == null then
+        private final double sigma;
+        private final long maxSize;
+
+        private SizeDistribution(String spec, long[] sizes, double[] cumulative, double logMedian, double sigma, long maxSize) {
+            this.spec = spec;
+            this.sizes = sizes;
+            this.cumulative = cumulative;
+            this.logMedian = logMedian;
+            this.sigma = sigma;
+            this.maxSize = maxSize;
+        }
+
+        static SizeDistribution parse(String spec, long maxSize) {
+            String value = spec.trim();
+            if (value.toLowerCase(Locale.ROOT).startsWith("lognormal:")) {
+                String[] parts = value.split(":");
+                if (parts.length != 3) {
+                    throw new IllegalArgumentException("expected lognormal:<median>:<sigma>, got " + spec);
+                }
+                return new SizeDistribution(value, null, null, Math.log(parseSize(parts[1])),
+                        Double.parseDouble(parts[2]), maxSize);
+            }
+            String[] entries = value.split(",");
+            long[] sizes = new long[entries.length];
+            double[] cumulative = new double[entries.length];
+            double total = 0;
+            for (int i = 0; i < entries.length; i++) {
+                String[] parts = entries[i].trim().split(":");
+                sizes[i] = Math.min(parseSize(parts[0]), maxSize);
+                total += parts.length > 1 ? Double.parseDouble(parts[1]) : 1;
+                cumulative[i] = total;
+            }
+            for (int i = 0; i < cumulative.length; i++) {
+                cumulative[i] /= total;
+            }
+            return new SizeDistribution(value, sizes, cumulative, 0, 0, maxSize);
+        }
+
+        long next(Random random) {
+            if (sizes == null) {
+                long size = (long) Math.exp(logMedian + sigma * random.nextGaussian());
+                return Math.max(1, Math.min(size, maxSize));
+            }
+            double pick = random.nextDouble();
+            for (int i = 0; i < cumulative.length; i++) {
+                if (pick < cumulative[i]) return sizes[i];
+            }
+            return sizes[sizes.length - 1];
+        }
+
+        @Override
+        public String toString() {
+            return spec;
+        }
+    }
+
+    // "512", "16KB", "8MB", "1GB"
+    static long parseSize(String value) {
+        String v = value.trim().toUpperCase(Locale.ROOT);
+        long unit = 1;
+        if (v.endsWith("KB")) unit = 1024;
+        else if (v.endsWith("MB")) unit = 1024 * 1024;
+        else if (v.endsWith("GB")) unit = 1024L * 1024 * 1024;
+        if (unit != 1) v = v.substring(0, v.length() - 2);
+        else if (v.endsWith("B")) v = v.substring(0, v.length() - 1);
+        return (long) (Double.parseDouble(v.trim()) * unit);
+    }
+}
@@ -0,0 +1,153 @@
+package P2P.handler;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import P2P.Utils.AdaptiveLimiter;
+
+public class AdmissionFilterTest {
+    private HttpServer server;
+    private ExecutorService pool;
+    private AdaptiveLimiter bulk;
+    private final ExecutorService clients = Executors.newCachedThreadPool();
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @AfterEach
+    public void stop() {
+        release.countDown();
+        server.stop(0);
+        pool.shutdownNow();
+        clients.shutdownNow();
+    }
+
+    @Test
+    public void lastFreeWorkerRejectsInsteadOfWaiting() throws Exception {
+        start(2);
+        Future<Integer> holder = clients.submit(() -> status("/download"));
+        awaitInFlight();
+
+        // one slot, taken; the second of two pool threads must not park in the queue for 5 sec
+        long startNanos = System.nanoTime();
+        assertEquals(503, status("/download"));
+        assertTrue(System.nanoTime() - startNanos < TimeUnit.SECONDS.toNanos(2));
+
+        release.countDown();
+        assertEquals(200, holder.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void requestsQueueWhileTheirPoolHasThreadsLeft() throws Exception {
+        start(3);
+        Future<Integer> holder = clients.submit(() -> status("/download"));
+        awaitInFlight();
+
+        Future<Integer> queued = clients.submit(() -> status("/download"));
+        Thread.sleep(200);
+        release.countDown();
+        assertEquals(200, holder.get(10, TimeUnit.SECONDS));
+        assertEquals(200, queued.get(10, TimeUnit.SECONDS), "waited for the slot instead of a 503");
+    }
+
+    @Test
+    public void rejectedBigUploadIsNotReadBeforeTheAnswer() throws Exception {
+        start(2);
+        Future<Integer> holder = clients.submit(() -> status("/download"));
+        awaitInFlight();
+
+        // announces 1 MB and sends none of it: draining it would wait for the client, not answer
+        try (Socket socket = new Socket("localhost", server.getAddress().getPort())) {
+            socket.setSoTimeout(5000);
+            socket.getOutputStream().write(("GET /download HTTP/1.1\r\nHost: x\r\nContent-Length: 1000000\r\n\r\n")
+                    .getBytes(StandardCharsets.ISO_8859_1));
+            String response = new String(socket.getInputStream().readNBytes(12), StandardCharsets.ISO_8859_1);
+            assertEquals("HTTP/1.1 503", response);
+        }
+
+        release.countDown();
+        assertEquals(200, holder.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void fullBulkLaneLeavesThreadsForControlRequests() throws Exception {
+        // the default lanes on the default 10-thread pool
+        start(10, new AdaptiveLimiter(8, 2, 32, 32, 4.0));
+        List<Future<Integer>> transfers = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            transfers.add(clients.submit(() -> status("/download")));
+        }
+        while (bulk.inFlight() < AdmissionFilter.bulkWorkers(10)) {
+            Thread.sleep(5);
+        }
+
+        long startNanos = System.nanoTime();
+        assertEquals(200, status("/metrics"));
+        assertTrue(System.nanoTime() - startNanos < TimeUnit.SECONDS.toNanos(2), "control request waited for a transfer");
+        assertEquals(503, status("/download"), "a bulk request over the cap is turned away, not queued");
+
+        release.countDown();
+        for (Future<Integer> transfer : transfers) {
+            int status = transfer.get(10, TimeUnit.SECONDS);
+            assertTrue(status == 200 || status == 503);
+        }
+    }
+
+    private void start(int workerThreads) throws IOException {
+        start(workerThreads, new AdaptiveLimiter(1, 1, 1, 4, 3.0));
+    }
+
+    private void start(int workerThreads, AdaptiveLimiter bulkLimiter) throws IOException {
+        bulk = bulkLimiter;
+        pool = Executors.newFixedThreadPool(workerThreads);
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        AdmissionFilter admission = new AdmissionFilter(new AdaptiveLimiter(4, 1, 4, 4, 3.0), bulk, 5000, workerThreads);
+        server.createContext("/metrics", exchange -> {
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        }).getFilters().add(admission);
+        server.createContext("/download", exchange -> {
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        }).getFilters().add(admission);
+        server.setExecutor(pool);
+        server.start();
+    }
+
+    private void awaitInFlight() throws InterruptedException {
+        while (bulk.inFlight() == 0) {
+            Thread.sleep(5);
+        }
+    }
+
+    private int status(String path) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:"
+                + server.getAddress().getPort() + path).openConnection();
+        try {
+            return connection.getResponseCode();
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
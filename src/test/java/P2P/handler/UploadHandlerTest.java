@@ -0,0 +1,25 @@
+package P2P.handler;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import org.junit.jupiter.api.Test;
+
+public class UploadHandlerTest {
+
+    @Test
+    public void sharedNamesKeepNoPathOfEitherKind() {
+        assertEquals("startup.txt", UploadHandler.baseName("..\\..\\..\\startup.txt"));
+        assertEquals("startup.txt", UploadHandler.baseName("../../startup.txt"));
+        assertEquals("startup.txt", UploadHandler.baseName("C:\\Users\\me/..\\startup.txt"));
+        assertEquals("report.pdf", UploadHandler.baseName("report.pdf"));
+    }
+
+    @Test
+    public void namesWithNothingLeftAreRefused() {
+        assertNull(UploadHandler.baseName(".."));
+        assertNull(UploadHandler.baseName("a\\.."));
+        assertNull(UploadHandler.baseName("docs/."));
+        assertNull(UploadHandler.baseName("docs\\"));
+    }
+}